@@ -48,6 +48,8 @@ public class HostAllocatorChain implements HostAllocatorTrigger, HostAllocatorSt
     private ErrorFacade errf;
     @Autowired
     private DatabaseFacade dbf;
+    @Autowired
+    private HostCapacityIndex capacityIndex;
 
     public HostAllocatorSpec getAllocationSpec() {
         return allocationSpec;
@@ -73,8 +75,16 @@ public class HostAllocatorChain implements HostAllocatorTrigger, HostAllocatorSt
         this.flows = flows;
     }
 
-    @Transactional
     private boolean reserveCapacity(String hostUuid, long cpu, long memory) {
+        if (capacityIndex.isReady()) {
+            return capacityIndex.reserveCapacity(hostUuid, cpu, memory);
+        }
+
+        return reserveCapacityWithLock(hostUuid, cpu, memory);
+    }
+
+    @Transactional
+    private boolean reserveCapacityWithLock(String hostUuid, long cpu, long memory) {
         HostCapacityVO vo = dbf.getEntityManager().find(HostCapacityVO.class, hostUuid, LockModeType.PESSIMISTIC_WRITE);
         if (vo == null) {
             return false;
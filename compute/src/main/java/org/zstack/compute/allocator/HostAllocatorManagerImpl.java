@@ -41,6 +41,8 @@ public class HostAllocatorManagerImpl extends AbstractService implements HostAll
 	private PluginRegistry pluginRgty;
     @Autowired
     private HostCapacityReserveManager reserveMgr;
+    @Autowired
+    private HostCapacityIndex capacityIndex;
 
 	@Override
     @MessageSafe
@@ -90,6 +92,10 @@ public class HostAllocatorManagerImpl extends AbstractService implements HostAll
         } else {
             dbf.update(vo);
         }
+
+        if (capacityIndex.isEnabled()) {
+            capacityIndex.update(vo.getUuid(), vo.getAvailableCpu(), vo.getAvailableMemory());
+        }
     }
 
 	private void handle(final AllocateHostMsg msg) {
@@ -259,6 +265,9 @@ public class HostAllocatorManagerImpl extends AbstractService implements HostAll
         vo.setAvailableMemory(availMemory);
 
 		dbf.getEntityManager().merge(vo);
+        if (capacityIndex.isEnabled()) {
+            capacityIndex.update(hostUuid, availCpu, availMemory);
+        }
 		logger.debug(String.format("Successfully returned cpu[%s HZ], memory[%s bytes] to host[uuid:%s]", cpu, memory, hostUuid));
     }
 }
@@ -5,9 +5,12 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Configurable;
 import org.springframework.transaction.annotation.Transactional;
 import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.db.SimpleQuery;
+import org.zstack.core.db.SimpleQuery.Op;
 import org.zstack.core.errorcode.ErrorFacade;
 import org.zstack.header.allocator.*;
 import org.zstack.header.host.HostVO;
+import org.zstack.header.host.HostVO_;
 import org.zstack.utils.Utils;
 import org.zstack.utils.logging.CLogger;
 
@@ -21,6 +24,8 @@ public class HostCapacityAllocatorFlow extends AbstractHostAllocatorFlow {
     private DatabaseFacade dbf;
     @Autowired
     private HostCapacityReserveManager reserveMgr;
+    @Autowired
+    private HostCapacityIndex capacityIndex;
 
 	@Transactional(readOnly = true)
 	private List<HostVO> allocate(long cpu, long memory) {
@@ -37,10 +42,34 @@ public class HostCapacityAllocatorFlow extends AbstractHostAllocatorFlow {
 		return query.getResultList();
 	}
 
+	private List<HostVO> allocateFromIndex(long cpu, long memory) {
+        List<String> huuids = capacityIndex.findHosts(cpu, memory);
+        if (usePagination()) {
+            // sorted to keep pages stable while capacity changes
+            Collections.sort(huuids);
+            int from = Math.min(paginationInfo.getOffset(), huuids.size());
+            int to = Math.min(from + paginationInfo.getLimit(), huuids.size());
+            huuids = huuids.subList(from, to);
+        }
+
+        if (huuids.isEmpty()) {
+            return new ArrayList<HostVO>();
+        }
+
+        SimpleQuery<HostVO> q = dbf.createQuery(HostVO.class);
+        q.add(HostVO_.uuid, Op.IN, huuids);
+        return q.list();
+    }
+
 	private List<HostVO> allocate(List<HostVO> vos, long cpu, long memory) {
+        boolean useIndex = capacityIndex.isReady();
         List<HostVO> ret = new ArrayList<HostVO>();
         for (HostVO hvo : vos) {
-            if (hvo.getCapacity().getAvailableCpu() >= cpu && hvo.getCapacity().getAvailableMemory() >= memory) {
+            if (useIndex) {
+                if (capacityIndex.hasCapacity(hvo.getUuid(), cpu, memory)) {
+                    ret.add(hvo);
+                }
+            } else if (hvo.getCapacity().getAvailableCpu() >= cpu && hvo.getCapacity().getAvailableMemory() >= memory) {
                 ret.add(hvo);
             }
         }
@@ -51,7 +80,8 @@ public class HostCapacityAllocatorFlow extends AbstractHostAllocatorFlow {
     @Override
     public void allocate() {
         if (amITheFirstFlow()) {
-            candidates = allocate(spec.getCpuCapacity(), spec.getMemoryCapacity());
+            candidates = capacityIndex.isReady() ? allocateFromIndex(spec.getCpuCapacity(), spec.getMemoryCapacity())
+                    : allocate(spec.getCpuCapacity(), spec.getMemoryCapacity());
         } else {
             candidates = allocate(candidates, spec.getCpuCapacity(), spec.getMemoryCapacity());
         }
@@ -0,0 +1,310 @@
+package org.zstack.compute.allocator;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.annotation.Transactional;
+import org.zstack.core.config.GlobalConfig;
+import org.zstack.core.config.GlobalConfigUpdateExtensionPoint;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.db.SimpleQuery;
+import org.zstack.core.db.SimpleQuery.Op;
+import org.zstack.core.thread.PeriodicTask;
+import org.zstack.core.thread.ThreadFacade;
+import org.zstack.header.Component;
+import org.zstack.header.allocator.HostCapacityVO;
+import org.zstack.header.allocator.HostCapacityVO_;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import javax.persistence.Query;
+import javax.persistence.Tuple;
+import java.util.*;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * available cpu and memory of all hosts kept in primitive arrays.
+ *
+ * Hosts are bucketed by the highest bit of their available memory, a lookup skips
+ * buckets too small for the required memory and doesn't check memory of buckets
+ * bigger than it. Capacity is reserved by a conditional update on HostCapacityVO
+ * instead of a row lock; as other management nodes reserve capacity of the same hosts,
+ * the index is only a hint: a failed reservation reloads the host, and the whole index
+ * is reloaded from HostCapacityVO every hostAllocator.capacityIndex.syncInterval seconds.
+ */
+public class HostCapacityIndex implements Component {
+    private static final CLogger logger = Utils.getLogger(HostCapacityIndex.class);
+
+    private static final int BUCKET_NUM = 64;
+
+    @Autowired
+    private DatabaseFacade dbf;
+    @Autowired
+    private ThreadFacade thdf;
+
+    private String[] hostUuids = new String[64];
+    private long[] availableCpu = new long[64];
+    private long[] availableMemory = new long[64];
+    private int[] bucketOfSlot = new int[64];
+    private int[] positionInBucket = new int[64];
+    private int slotNum = 0;
+    private final Deque<Integer> freeSlots = new ArrayDeque<Integer>();
+    private final Map<String, Integer> slots = new HashMap<String, Integer>();
+
+    private final int[][] buckets = new int[BUCKET_NUM][];
+    private final int[] bucketSizes = new int[BUCKET_NUM];
+
+    private Future<Void> syncTask;
+    private volatile boolean loaded = false;
+
+    {
+        for (int i=0; i<BUCKET_NUM; i++) {
+            buckets[i] = new int[8];
+        }
+    }
+
+    private static int bucketOf(long memory) {
+        return memory <= 0 ? 0 : 63 - Long.numberOfLeadingZeros(memory);
+    }
+
+    private void addToBucket(int slot) {
+        int b = bucketOf(availableMemory[slot]);
+        if (bucketSizes[b] == buckets[b].length) {
+            buckets[b] = Arrays.copyOf(buckets[b], buckets[b].length * 2);
+        }
+        buckets[b][bucketSizes[b]] = slot;
+        bucketOfSlot[slot] = b;
+        positionInBucket[slot] = bucketSizes[b];
+        bucketSizes[b] ++;
+    }
+
+    private void removeFromBucket(int slot) {
+        int b = bucketOfSlot[slot];
+        int pos = positionInBucket[slot];
+        int last = buckets[b][-- bucketSizes[b]];
+        buckets[b][pos] = last;
+        positionInBucket[last] = pos;
+    }
+
+    private int allocateSlot() {
+        if (!freeSlots.isEmpty()) {
+            return freeSlots.pop();
+        }
+
+        if (slotNum == hostUuids.length) {
+            int len = slotNum * 2;
+            hostUuids = Arrays.copyOf(hostUuids, len);
+            availableCpu = Arrays.copyOf(availableCpu, len);
+            availableMemory = Arrays.copyOf(availableMemory, len);
+            bucketOfSlot = Arrays.copyOf(bucketOfSlot, len);
+            positionInBucket = Arrays.copyOf(positionInBucket, len);
+        }
+
+        return slotNum ++;
+    }
+
+    private void doUpdate(String hostUuid, long cpu, long memory) {
+        Integer slot = slots.get(hostUuid);
+        if (slot == null) {
+            slot = allocateSlot();
+            slots.put(hostUuid, slot);
+            hostUuids[slot] = hostUuid;
+        } else {
+            removeFromBucket(slot);
+        }
+
+        availableCpu[slot] = cpu;
+        availableMemory[slot] = memory;
+        addToBucket(slot);
+    }
+
+    private void doRemove(String hostUuid) {
+        Integer slot = slots.remove(hostUuid);
+        if (slot == null) {
+            return;
+        }
+
+        removeFromBucket(slot);
+        hostUuids[slot] = null;
+        freeSlots.push(slot);
+    }
+
+    public boolean isEnabled() {
+        return HostAllocatorGlobalConfig.USE_CAPACITY_INDEX.value(Boolean.class);
+    }
+
+    /**
+     * @return true if the index is enabled and has been loaded from database
+     */
+    public boolean isReady() {
+        return loaded && isEnabled();
+    }
+
+    /**
+     * @return uuids of hosts having more available cpu and memory than required
+     */
+    public synchronized List<String> findHosts(long cpu, long memory) {
+        List<String> ret = new ArrayList<String>();
+        int first = bucketOf(memory);
+        for (int b=first; b<BUCKET_NUM; b++) {
+            int[] bucket = buckets[b];
+            for (int i=0; i<bucketSizes[b]; i++) {
+                int slot = bucket[i];
+                if (availableCpu[slot] > cpu && (b != first || availableMemory[slot] > memory)) {
+                    ret.add(hostUuids[slot]);
+                }
+            }
+        }
+
+        return ret;
+    }
+
+    public synchronized boolean hasCapacity(String hostUuid, long cpu, long memory) {
+        Integer slot = slots.get(hostUuid);
+        return slot != null && availableCpu[slot] >= cpu && availableMemory[slot] >= memory;
+    }
+
+    public synchronized void update(String hostUuid, long cpu, long memory) {
+        doUpdate(hostUuid, cpu, memory);
+    }
+
+    public synchronized void remove(String hostUuid) {
+        doRemove(hostUuid);
+    }
+
+    private synchronized void subtract(String hostUuid, long cpu, long memory) {
+        Integer slot = slots.get(hostUuid);
+        if (slot != null) {
+            doUpdate(hostUuid, availableCpu[slot] - cpu, availableMemory[slot] - memory);
+        }
+    }
+
+    @Transactional
+    private int conditionalReserve(String hostUuid, long cpu, long memory) {
+        String sql = "update HostCapacityVO hc set hc.availableCpu = hc.availableCpu - :cpu, hc.availableMemory = hc.availableMemory - :memory" +
+                " where hc.uuid = :uuid and hc.availableCpu >= :cpu and hc.availableMemory >= :memory";
+        Query q = dbf.getEntityManager().createQuery(sql);
+        q.setParameter("cpu", cpu);
+        q.setParameter("memory", memory);
+        q.setParameter("uuid", hostUuid);
+        return q.executeUpdate();
+    }
+
+    /**
+     * reserves capacity without locking the HostCapacityVO row; the update only
+     * succeeds if the host still has the capacity when it's executed
+     */
+    public boolean reserveCapacity(String hostUuid, long cpu, long memory) {
+        if (conditionalReserve(hostUuid, cpu, memory) == 1) {
+            subtract(hostUuid, cpu, memory);
+            return true;
+        }
+
+        reload(hostUuid);
+        return false;
+    }
+
+    public void reload(String hostUuid) {
+        SimpleQuery<HostCapacityVO> q = dbf.createQuery(HostCapacityVO.class);
+        q.select(HostCapacityVO_.availableCpu, HostCapacityVO_.availableMemory);
+        q.add(HostCapacityVO_.uuid, Op.EQ, hostUuid);
+        Tuple t = q.findTuple();
+        if (t == null) {
+            remove(hostUuid);
+        } else {
+            update(hostUuid, t.get(0, Long.class), t.get(1, Long.class));
+        }
+    }
+
+    public void reconcile() {
+        SimpleQuery<HostCapacityVO> q = dbf.createQuery(HostCapacityVO.class);
+        q.select(HostCapacityVO_.uuid, HostCapacityVO_.availableCpu, HostCapacityVO_.availableMemory);
+        List<Tuple> ts = q.listTuple();
+
+        synchronized (this) {
+            Set<String> gone = new HashSet<String>(slots.keySet());
+            for (Tuple t : ts) {
+                String uuid = t.get(0, String.class);
+                doUpdate(uuid, t.get(1, Long.class), t.get(2, Long.class));
+                gone.remove(uuid);
+            }
+
+            for (String uuid : gone) {
+                doRemove(uuid);
+            }
+
+            loaded = true;
+        }
+
+        logger.trace(String.format("reconciled host capacity index with %s hosts", ts.size()));
+    }
+
+    private synchronized void clear() {
+        loaded = false;
+        for (String uuid : new ArrayList<String>(slots.keySet())) {
+            doRemove(uuid);
+        }
+    }
+
+    private void startSyncTask() {
+        if (syncTask != null) {
+            syncTask.cancel(true);
+            syncTask = null;
+        }
+
+        if (!isEnabled()) {
+            clear();
+            return;
+        }
+
+        syncTask = thdf.submitPeriodicTask(new PeriodicTask() {
+            @Override
+            public TimeUnit getTimeUnit() {
+                return TimeUnit.SECONDS;
+            }
+
+            @Override
+            public long getInterval() {
+                return HostAllocatorGlobalConfig.CAPACITY_INDEX_SYNC_INTERVAL.value(Long.class);
+            }
+
+            @Override
+            public String getName() {
+                return "host-capacity-index-sync";
+            }
+
+            @Override
+            public void run() {
+                try {
+                    reconcile();
+                } catch (Throwable t) {
+                    logger.warn("failed to reconcile host capacity index", t);
+                }
+            }
+        });
+    }
+
+    @Override
+    public boolean start() {
+        startSyncTask();
+
+        GlobalConfigUpdateExtensionPoint restart = new GlobalConfigUpdateExtensionPoint() {
+            @Override
+            public void updateGlobalConfig(GlobalConfig oldConfig, GlobalConfig newConfig) {
+                logger.debug(String.format("%s change from %s to %s, restart host capacity index sync task",
+                        oldConfig.getCanonicalName(), oldConfig.value(), newConfig.value()));
+                startSyncTask();
+            }
+        };
+        HostAllocatorGlobalConfig.USE_CAPACITY_INDEX.installUpdateExtension(restart);
+        HostAllocatorGlobalConfig.CAPACITY_INDEX_SYNC_INTERVAL.installUpdateExtension(restart);
+        return true;
+    }
+
+    @Override
+    public boolean stop() {
+        if (syncTask != null) {
+            syncTask.cancel(true);
+        }
+        return true;
+    }
+}
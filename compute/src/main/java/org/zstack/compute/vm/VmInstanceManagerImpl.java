@@ -7,6 +7,7 @@ import org.zstack.core.Platform;
 import org.zstack.core.cloudbus.CloudBus;
 import org.zstack.core.cloudbus.CloudBusCallBack;
 import org.zstack.core.cloudbus.MessageSafe;
+import org.zstack.core.cloudbus.ResourceDestinationMaker;
 import org.zstack.core.componentloader.PluginRegistry;
 import org.zstack.core.db.DatabaseFacade;
 import org.zstack.core.db.DbEntityLister;
@@ -32,6 +33,7 @@ import org.zstack.header.image.ImageConstant.ImageMediaType;
 import org.zstack.header.image.ImagePlatform;
 import org.zstack.header.image.ImageVO;
 import org.zstack.header.image.ImageVO_;
+import org.zstack.header.managementnode.ManagementNodeChangeListener;
 import org.zstack.header.message.APICreateMessage;
 import org.zstack.header.message.APIMessage;
 import org.zstack.header.message.Message;
@@ -63,7 +65,8 @@ import java.util.*;
 
 import static org.zstack.utils.CollectionDSL.list;
 
-public class VmInstanceManagerImpl extends AbstractService implements VmInstanceManager, HostStatusChangeNotifyPoint, ReportQuotaExtensionPoint {
+public class VmInstanceManagerImpl extends AbstractService implements VmInstanceManager, HostStatusChangeNotifyPoint, ReportQuotaExtensionPoint,
+        ManagementNodeChangeListener {
     private static final CLogger logger = Utils.getLogger(VmInstanceManagerImpl.class);
     private Map<String, VmInstanceFactory> vmInstanceFactories = Collections.synchronizedMap(new HashMap<String, VmInstanceFactory>());
     private List<String> createVmWorkFlowElements;
@@ -80,6 +83,8 @@ public class VmInstanceManagerImpl extends AbstractService implements VmInstance
     private FlowChainBuilder destroyVmFlowBuilder;
     private FlowChainBuilder migrateVmFlowBuilder;
     private FlowChainBuilder attachVolumeFlowBuilder;
+    private int residentVmNum;
+    private VmInstanceResidentCache residentCache;
     private static final Set<Class> allowedMessageAfterSoftDeletion = new HashSet<Class>();
 
     static {
@@ -100,6 +105,8 @@ public class VmInstanceManagerImpl extends AbstractService implements VmInstance
     private TagManager tagMgr;
     @Autowired
     private ErrorFacade errf;
+    @Autowired
+    private ResourceDestinationMaker destMaker;
 
     @Override
     @MessageSafe
@@ -112,7 +119,8 @@ public class VmInstanceManagerImpl extends AbstractService implements VmInstance
     }
 
     void passThrough(VmInstanceMessage msg) {
-        VmInstanceVO vo = dbf.findByUuid(msg.getVmInstanceUuid(), VmInstanceVO.class);
+        VmInstanceVO vo = residentCache != null ? residentCache.get(msg.getVmInstanceUuid()) :
+                dbf.findByUuid(msg.getVmInstanceUuid(), VmInstanceVO.class);
         if (vo == null && allowedMessageAfterSoftDeletion.contains(msg.getClass())) {
             VmInstanceEO eo = dbf.findByUuid(msg.getVmInstanceUuid(), VmInstanceEO.class);
             vo = ObjectUtils.newAndCopy(eo, VmInstanceVO.class);
@@ -293,6 +301,9 @@ public class VmInstanceManagerImpl extends AbstractService implements VmInstance
             createVmFlowChainBuilder();
             populateExtensions();
             installSystemTagValidator();
+            if (residentVmNum > 0) {
+                residentCache = new VmInstanceResidentCache(dbf, destMaker, residentVmNum);
+            }
             return true;
         } catch (Exception e) {
             throw new CloudConfigureFailException(VmInstanceManagerImpl.class, e.getMessage(), e);
@@ -494,6 +505,36 @@ public class VmInstanceManagerImpl extends AbstractService implements VmInstance
         this.attachVolumeWorkFlowElements = attachVolumeWorkFlowElements;
     }
 
+    public void setResidentVmNum(int residentVmNum) {
+        this.residentVmNum = residentVmNum;
+    }
+
+    @Override
+    public void nodeJoin(String nodeId) {
+        // VMs may be taken over by the new node
+        if (residentCache != null) {
+            residentCache.evictNotManagedByUs();
+        }
+    }
+
+    @Override
+    public void nodeLeft(String nodeId) {
+    }
+
+    @Override
+    public void iAmDead(String nodeId) {
+        if (residentCache != null) {
+            residentCache.evictAll();
+        }
+    }
+
+    @Override
+    public void iJoin(String nodeId) {
+        if (residentCache != null) {
+            residentCache.evictNotManagedByUs();
+        }
+    }
+
 
     @Override
     public List<Quota> reportQuota() {
@@ -0,0 +1,204 @@
+package org.zstack.compute.vm;
+
+import org.apache.commons.lang.StringUtils;
+import org.springframework.transaction.annotation.Transactional;
+import org.zstack.core.cloudbus.ResourceDestinationMaker;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.header.vm.VmInstanceVO;
+import org.zstack.header.vm.VmNicVO;
+import org.zstack.header.volume.VolumeVO;
+import org.zstack.utils.FieldUtils;
+import org.zstack.utils.ObjectUtils;
+
+import javax.persistence.Column;
+import javax.persistence.Query;
+import java.lang.reflect.Field;
+import java.lang.ref.SoftReference;
+import java.util.*;
+
+/**
+ * keeps VmInstanceVO of VMs managed by this node in memory, so a message to a VM doesn't
+ * load the VM with all its nics and volumes every time.
+ *
+ * Before a cached VO is used, its version is checked by one aggregate query over the content of
+ * the rows: all mapped columns of the VM, and count and sum of checksums of all mapped columns
+ * of its nics and volumes. lastOpDate can't be the version, Hibernate writes it back with the
+ * loaded value which stops the database from updating it; comparing the content catches every
+ * write, local or from other nodes.
+ *
+ * Only VOs of exact class VmInstanceVO are cached, columns of subclass tables are not versioned.
+ * Entries are evicted when the VM is no longer managed by this node, least recently used ones
+ * are evicted over the max size, and entries are soft referenced to give way to memory pressure.
+ * Every caller gets its own copy of the VO.
+ */
+class VmInstanceResidentCache {
+    private static final String VERSION_SQL = String.format("select %s," +
+            " (select count(*) from VmNicVO n where n.vmInstanceUuid = vm.uuid)," +
+            " (select sum(crc32(%s)) from VmNicVO n where n.vmInstanceUuid = vm.uuid)," +
+            " (select count(*) from VolumeVO v where v.vmInstanceUuid = vm.uuid)," +
+            " (select sum(crc32(%s)) from VolumeVO v where v.vmInstanceUuid = vm.uuid)" +
+            " from VmInstanceVO vm where vm.uuid = :uuid",
+            concatColumns("vm", VmInstanceVO.class), concatColumns("n", VmNicVO.class), concatColumns("v", VolumeVO.class));
+
+    private static class Entry {
+        final String version;
+        final SoftReference<VmInstanceVO> vo;
+
+        Entry(String version, VmInstanceVO vo) {
+            this.version = version;
+            this.vo = new SoftReference<VmInstanceVO>(vo);
+        }
+    }
+
+    private static class Load {
+        VmInstanceVO vo;
+        String version;
+    }
+
+    private final DatabaseFacade dbf;
+    private final ResourceDestinationMaker destMaker;
+    private final Map<String, Entry> entries;
+
+    VmInstanceResidentCache(DatabaseFacade dbf, ResourceDestinationMaker destMaker, final int maxSize) {
+        this.dbf = dbf;
+        this.destMaker = destMaker;
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @return an expression concatenating all mapped columns of the entity, nulls are kept apart from empty strings
+     */
+    private static String concatColumns(String alias, Class entityClass) {
+        List<String> cols = new ArrayList<String>();
+        for (Field f : FieldUtils.getAnnotatedFields(Column.class, entityClass)) {
+            Column at = f.getAnnotation(Column.class);
+            String name = at.name().isEmpty() ? f.getName() : at.name();
+            cols.add(String.format("ifnull(%s.%s, char(0))", alias, name));
+        }
+        return String.format("concat_ws('|', %s)", StringUtils.join(cols, ", "));
+    }
+
+    private static VmInstanceVO copy(VmInstanceVO vo) {
+        VmInstanceVO ret = ObjectUtils.newAndCopy(vo, VmInstanceVO.class);
+
+        Set<VmNicVO> nics = new HashSet<VmNicVO>();
+        for (VmNicVO nic : vo.getVmNics()) {
+            nics.add(ObjectUtils.newAndCopy(nic, VmNicVO.class));
+        }
+        ret.setVmNics(nics);
+
+        Set<VolumeVO> vols = new HashSet<VolumeVO>();
+        for (VolumeVO vol : vo.getAllVolumes()) {
+            vols.add(ObjectUtils.newAndCopy(vol, VolumeVO.class));
+        }
+        ret.setAllVolumes(vols);
+        return ret;
+    }
+
+    private synchronized Entry getEntry(String uuid) {
+        return entries.get(uuid);
+    }
+
+    private synchronized void putEntry(String uuid, Entry e) {
+        entries.put(uuid, e);
+    }
+
+    synchronized void evict(String uuid) {
+        entries.remove(uuid);
+    }
+
+    /**
+     * evicts VMs no longer managed by this node
+     */
+    synchronized void evictNotManagedByUs() {
+        Iterator<String> it = entries.keySet().iterator();
+        while (it.hasNext()) {
+            if (!destMaker.isManagedByUs(it.next())) {
+                it.remove();
+            }
+        }
+    }
+
+    synchronized void evictAll() {
+        entries.clear();
+    }
+
+    /**
+     * @return content of the VM and aggregated checksums of its nics and volumes as version;
+     * null if the VM is not found
+     */
+    @Transactional(readOnly = true)
+    private String getVersion(String uuid) {
+        Query q = dbf.getEntityManager().createNativeQuery(VERSION_SQL);
+        q.setParameter("uuid", uuid);
+        List res = q.getResultList();
+        if (res.isEmpty()) {
+            return null;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (Object o : (Object[]) res.get(0)) {
+            sb.append(o).append(",");
+        }
+        return sb.toString();
+    }
+
+    @Transactional(readOnly = true)
+    private Load load(String uuid) {
+        // version and VO are read in one transaction, so they are of the same snapshot
+        Load l = new Load();
+        l.version = getVersion(uuid);
+        if (l.version == null) {
+            return l;
+        }
+
+        l.vo = dbf.getEntityManager().find(VmInstanceVO.class, uuid);
+        return l;
+    }
+
+    /**
+     * @return a copy of the VO, or null if the VM is not found
+     */
+    VmInstanceVO get(String uuid) {
+        if (!destMaker.isManagedByUs(uuid)) {
+            evict(uuid);
+            return dbf.findByUuid(uuid, VmInstanceVO.class);
+        }
+
+        Entry e = getEntry(uuid);
+        if (e != null) {
+            VmInstanceVO vo = e.vo.get();
+            if (vo != null) {
+                String version = getVersion(uuid);
+                if (version == null) {
+                    evict(uuid);
+                    return null;
+                }
+
+                if (version.equals(e.version)) {
+                    return copy(vo);
+                }
+            }
+        }
+
+        Load l = load(uuid);
+        if (l.vo == null) {
+            evict(uuid);
+            return null;
+        }
+
+        if (l.vo.getClass() == VmInstanceVO.class) {
+            VmInstanceVO vo = copy(l.vo);
+            putEntry(uuid, new Entry(l.version, vo));
+            return copy(vo);
+        } else {
+            evict(uuid);
+            return l.vo;
+        }
+    }
+}
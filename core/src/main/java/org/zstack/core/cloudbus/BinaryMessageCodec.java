@@ -0,0 +1,621 @@
+package org.zstack.core.cloudbus;
+
+import org.zstack.header.exception.CloudRuntimeException;
+import org.zstack.header.message.GsonTransient;
+import org.zstack.header.message.Message;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.Charset;
+import java.sql.Timestamp;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * a compact binary codec for messages between management nodes.
+ *
+ * Every class gets a plan, its serializable fields in a fixed order with access
+ * checks already suppressed, built once and cached; plans for all message classes
+ * are built at start. Values carry their concrete type inline, so polymorphic fields
+ * need neither the JSON schema nor a rehash on receipt. Class names are written once
+ * per message and referenced by index afterwards. Encoding writes into a per-thread
+ * buffer that is reused between messages.
+ *
+ * Only classes under ALLOWED_PACKAGE and the JDK types handled by tags can be carried;
+ * a class name from the wire is never loaded or instantiated otherwise, and objects are
+ * created by their no-arg constructors only. Encoding fails on anything else.
+ */
+public class BinaryMessageCodec implements MessageCodec {
+    private static final CLogger logger = Utils.getLogger(BinaryMessageCodec.class);
+
+    public static final String NAME = "binary";
+
+    private static final int VERSION = 1;
+
+    private static final int NULL = 0;
+    private static final int STRING = 1;
+    private static final int INT = 2;
+    private static final int LONG = 3;
+    private static final int BOOLEAN = 4;
+    private static final int DOUBLE = 5;
+    private static final int FLOAT = 6;
+    private static final int SHORT = 7;
+    private static final int BYTE = 8;
+    private static final int CHAR = 9;
+    private static final int ENUM = 10;
+    private static final int DATE = 11;
+    private static final int LIST = 12;
+    private static final int SET = 13;
+    private static final int MAP = 14;
+    private static final int OBJECT = 15;
+    private static final int BYTES = 16;
+    private static final int ARRAY = 17;
+
+    private static final int MAX_DEPTH = 256;
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+    private static final int MAX_POOLED_BUFFER_SIZE = 1024 * 1024;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String ALLOWED_PACKAGE = "org.zstack.";
+    private static final Set<Class> ALLOWED_JDK_CLASSES = new HashSet<Class>();
+
+    static {
+        ALLOWED_JDK_CLASSES.add(Date.class);
+        ALLOWED_JDK_CLASSES.add(Timestamp.class);
+        ALLOWED_JDK_CLASSES.add(java.sql.Date.class);
+    }
+
+    private final Map<Class, ClassPlan> plans = new ConcurrentHashMap<Class, ClassPlan>();
+    private final Map<String, Class> classes = new ConcurrentHashMap<String, Class>();
+
+    private final ThreadLocal<Output> outputs = new ThreadLocal<Output>() {
+        @Override
+        protected Output initialValue() {
+            return new Output();
+        }
+    };
+
+    private static class ClassPlan {
+        Class clazz;
+        Field[] fields;
+        Constructor constructor;
+
+        Object newInstance() throws Exception {
+            if (constructor == null) {
+                throw new CloudRuntimeException(String.format("class[%s] has no no-arg constructor", clazz.getName()));
+            }
+
+            return constructor.newInstance();
+        }
+    }
+
+    private static class Output {
+        byte[] buf = new byte[INITIAL_BUFFER_SIZE];
+        int pos;
+        Map<Class, Integer> classRefs = new HashMap<Class, Integer>();
+
+        void reset() {
+            pos = 0;
+            classRefs.clear();
+            if (buf.length > MAX_POOLED_BUFFER_SIZE) {
+                // don't let one huge message pin a huge buffer to the thread
+                buf = new byte[INITIAL_BUFFER_SIZE];
+            }
+        }
+
+        void ensure(int n) {
+            if (pos + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n));
+            }
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            buf[pos++] = (byte) b;
+        }
+
+        void writeVarInt(int v) {
+            ensure(5);
+            while ((v & ~0x7F) != 0) {
+                buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[pos++] = (byte) v;
+        }
+
+        void writeVarLong(long v) {
+            ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[pos++] = (byte) v;
+        }
+
+        void writeZigZagInt(int v) {
+            writeVarInt((v << 1) ^ (v >> 31));
+        }
+
+        void writeZigZagLong(long v) {
+            writeVarLong((v << 1) ^ (v >> 63));
+        }
+
+        void writeBytes(byte[] b) {
+            writeVarInt(b.length);
+            ensure(b.length);
+            System.arraycopy(b, 0, buf, pos, b.length);
+            pos += b.length;
+        }
+
+        void writeString(String s) {
+            writeBytes(s.getBytes(UTF8));
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, pos);
+        }
+    }
+
+    private static class Input {
+        final byte[] buf;
+        int pos;
+        List<Class> classRefs = new ArrayList<Class>();
+
+        Input(byte[] buf) {
+            this.buf = buf;
+        }
+
+        int readByte() {
+            return buf[pos++];
+        }
+
+        int readVarInt() {
+            int shift = 0;
+            int result = 0;
+            while (true) {
+                byte b = buf[pos++];
+                result |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+                shift += 7;
+            }
+        }
+
+        long readVarLong() {
+            int shift = 0;
+            long result = 0;
+            while (true) {
+                byte b = buf[pos++];
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+                shift += 7;
+            }
+        }
+
+        int readZigZagInt() {
+            int v = readVarInt();
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        long readZigZagLong() {
+            long v = readVarLong();
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        byte[] readBytes() {
+            int len = readVarInt();
+            byte[] b = Arrays.copyOfRange(buf, pos, pos + len);
+            pos += len;
+            return b;
+        }
+
+        String readString() {
+            int len = readVarInt();
+            String s = new String(buf, pos, len, UTF8);
+            pos += len;
+            return s;
+        }
+    }
+
+    @Override
+    public String getCodecName() {
+        return NAME;
+    }
+
+    @Override
+    public void prepareMessageClasses(List<Class> messageClasses) {
+        int count = 0;
+        for (Class clz : messageClasses) {
+            if (clz.isInterface() || Modifier.isAbstract(clz.getModifiers())) {
+                continue;
+            }
+
+            getPlan(clz);
+            count ++;
+        }
+
+        logger.debug(String.format("binary message codec compiled plans for %s message classes", count));
+    }
+
+    private ClassPlan getPlan(Class clz) {
+        ClassPlan plan = plans.get(clz);
+        if (plan == null) {
+            plan = compile(clz);
+            plans.put(clz, plan);
+        }
+        return plan;
+    }
+
+    private ClassPlan compile(Class clz) {
+        List<Class> hierarchy = new ArrayList<Class>();
+        for (Class c = clz; c != null && c != Object.class; c = c.getSuperclass()) {
+            hierarchy.add(0, c);
+        }
+
+        List<Field> fields = new ArrayList<Field>();
+        for (Class c : hierarchy) {
+            Field[] fs = c.getDeclaredFields();
+            // declared order is not guaranteed, both ends must agree on it
+            Arrays.sort(fs, new Comparator<Field>() {
+                @Override
+                public int compare(Field o1, Field o2) {
+                    return o1.getName().compareTo(o2.getName());
+                }
+            });
+
+            for (Field f : fs) {
+                int mod = f.getModifiers();
+                if (Modifier.isStatic(mod) || Modifier.isTransient(mod) || f.isSynthetic() || f.isAnnotationPresent(GsonTransient.class)) {
+                    continue;
+                }
+
+                f.setAccessible(true);
+                fields.add(f);
+            }
+        }
+
+        ClassPlan plan = new ClassPlan();
+        plan.clazz = clz;
+        plan.fields = fields.toArray(new Field[fields.size()]);
+        try {
+            Constructor c = clz.getDeclaredConstructor();
+            c.setAccessible(true);
+            plan.constructor = c;
+        } catch (NoSuchMethodException e) {
+            plan.constructor = null;
+        }
+        return plan;
+    }
+
+    private static boolean isAllowed(Class clz) {
+        while (clz.isArray()) {
+            clz = clz.getComponentType();
+        }
+
+        return clz.isPrimitive() || ALLOWED_JDK_CLASSES.contains(clz) || clz.getName().startsWith(ALLOWED_PACKAGE);
+    }
+
+    private static boolean isAllowedName(String name) {
+        int dim = 0;
+        while (dim < name.length() && name.charAt(dim) == '[') {
+            dim ++;
+        }
+
+        if (dim == 0) {
+            return name.startsWith(ALLOWED_PACKAGE) || name.equals(Date.class.getName())
+                    || name.equals(Timestamp.class.getName()) || name.equals(java.sql.Date.class.getName());
+        }
+
+        // an array, e.g. [I or [Lorg.zstack.Foo;
+        String component = name.substring(dim);
+        if (component.startsWith("L") && component.endsWith(";")) {
+            return isAllowedName(component.substring(1, component.length() - 1));
+        }
+        return component.length() == 1;
+    }
+
+    private Class loadClass(String name) throws ClassNotFoundException {
+        Class clz = classes.get(name);
+        if (clz == null) {
+            if (!isAllowedName(name)) {
+                throw new CloudRuntimeException(String.format("class[%s] is not allowed in binary messages", name));
+            }
+
+            // don't run static initializers of a class named by the wire
+            clz = Class.forName(name, false, BinaryMessageCodec.class.getClassLoader());
+            if (!isAllowed(clz)) {
+                throw new CloudRuntimeException(String.format("class[%s] is not allowed in binary messages", name));
+            }
+            classes.put(name, clz);
+        }
+        return clz;
+    }
+
+    private void writeClass(Output out, Class clz) {
+        Integer ref = out.classRefs.get(clz);
+        if (ref != null) {
+            out.writeVarInt(ref + 1);
+            return;
+        }
+
+        out.writeVarInt(0);
+        out.writeString(clz.getName());
+        out.classRefs.put(clz, out.classRefs.size());
+    }
+
+    private Class readClass(Input in) throws ClassNotFoundException {
+        int ref = in.readVarInt();
+        if (ref != 0) {
+            return in.classRefs.get(ref - 1);
+        }
+
+        Class clz = loadClass(in.readString());
+        in.classRefs.add(clz);
+        return clz;
+    }
+
+    private void checkEncodable(Class clz) {
+        if (!isAllowed(clz)) {
+            throw new CloudRuntimeException(String.format("binary message codec cannot encode %s", clz.getName()));
+        }
+    }
+
+    private void writeValue(Output out, Object v, int depth) throws Exception {
+        if (depth > MAX_DEPTH) {
+            throw new CloudRuntimeException(String.format("object graph deeper than %s, it may be recursive", MAX_DEPTH));
+        }
+
+        if (v == null) {
+            out.writeByte(NULL);
+            return;
+        }
+
+        Class clz = v.getClass();
+        if (clz == String.class) {
+            out.writeByte(STRING);
+            out.writeString((String) v);
+        } else if (clz == Integer.class) {
+            out.writeByte(INT);
+            out.writeZigZagInt((Integer) v);
+        } else if (clz == Long.class) {
+            out.writeByte(LONG);
+            out.writeZigZagLong((Long) v);
+        } else if (clz == Boolean.class) {
+            out.writeByte(BOOLEAN);
+            out.writeByte((Boolean) v ? 1 : 0);
+        } else if (clz == Double.class) {
+            out.writeByte(DOUBLE);
+            out.writeVarLong(Double.doubleToLongBits((Double) v));
+        } else if (clz == Float.class) {
+            out.writeByte(FLOAT);
+            out.writeVarInt(Float.floatToIntBits((Float) v));
+        } else if (clz == Short.class) {
+            out.writeByte(SHORT);
+            out.writeZigZagInt((Short) v);
+        } else if (clz == Byte.class) {
+            out.writeByte(BYTE);
+            out.writeByte((Byte) v);
+        } else if (clz == Character.class) {
+            out.writeByte(CHAR);
+            out.writeVarInt((Character) v);
+        } else if (v instanceof Enum) {
+            checkEncodable(((Enum) v).getDeclaringClass());
+            out.writeByte(ENUM);
+            writeClass(out, ((Enum) v).getDeclaringClass());
+            out.writeString(((Enum) v).name());
+        } else if (v instanceof Date) {
+            checkEncodable(clz);
+            out.writeByte(DATE);
+            writeClass(out, clz);
+            out.writeZigZagLong(((Date) v).getTime());
+            if (v instanceof Timestamp) {
+                out.writeVarInt(((Timestamp) v).getNanos());
+            }
+        } else if (clz == byte[].class) {
+            out.writeByte(BYTES);
+            out.writeBytes((byte[]) v);
+        } else if (clz.isArray()) {
+            checkEncodable(clz);
+            out.writeByte(ARRAY);
+            writeClass(out, clz);
+            int len = Array.getLength(v);
+            out.writeVarInt(len);
+            for (int i=0; i<len; i++) {
+                writeValue(out, Array.get(v, i), depth + 1);
+            }
+        } else if (v instanceof Collection) {
+            Collection col = (Collection) v;
+            out.writeByte(v instanceof Set ? SET : LIST);
+            out.writeVarInt(col.size());
+            for (Object item : col) {
+                writeValue(out, item, depth + 1);
+            }
+        } else if (v instanceof Map) {
+            Map<Object, Object> map = (Map<Object, Object>) v;
+            out.writeByte(MAP);
+            out.writeVarInt(map.size());
+            for (Map.Entry<Object, Object> e : map.entrySet()) {
+                writeValue(out, e.getKey(), depth + 1);
+                writeValue(out, e.getValue(), depth + 1);
+            }
+        } else {
+            checkEncodable(clz);
+            ClassPlan plan = getPlan(clz);
+            if (plan.constructor == null) {
+                throw new CloudRuntimeException(String.format("binary message codec cannot encode %s, it has no no-arg constructor", clz.getName()));
+            }
+
+            out.writeByte(OBJECT);
+            writeClass(out, clz);
+            for (Field f : plan.fields) {
+                writeValue(out, f.get(v), depth + 1);
+            }
+        }
+    }
+
+    private Object readValue(Input in) throws Exception {
+        int tag = in.readByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case STRING:
+                return in.readString();
+            case INT:
+                return in.readZigZagInt();
+            case LONG:
+                return in.readZigZagLong();
+            case BOOLEAN:
+                return in.readByte() != 0;
+            case DOUBLE:
+                return Double.longBitsToDouble(in.readVarLong());
+            case FLOAT:
+                return Float.intBitsToFloat(in.readVarInt());
+            case SHORT:
+                return (short) in.readZigZagInt();
+            case BYTE:
+                return (byte) in.readByte();
+            case CHAR:
+                return (char) in.readVarInt();
+            case ENUM: {
+                Class clz = readClass(in);
+                if (!clz.isEnum()) {
+                    throw new CloudRuntimeException(String.format("class[%s] is not an enum", clz.getName()));
+                }
+                return Enum.valueOf(clz, in.readString());
+            }
+            case DATE: {
+                Class clz = readClass(in);
+                long time = in.readZigZagLong();
+                if (clz == Timestamp.class) {
+                    Timestamp ts = new Timestamp(time);
+                    ts.setNanos(in.readVarInt());
+                    return ts;
+                } else if (clz == java.sql.Date.class) {
+                    return new java.sql.Date(time);
+                } else {
+                    return new Date(time);
+                }
+            }
+            case BYTES:
+                return in.readBytes();
+            case ARRAY: {
+                Class clz = readClass(in);
+                if (!clz.isArray()) {
+                    throw new CloudRuntimeException(String.format("class[%s] is not an array", clz.getName()));
+                }
+                int len = in.readVarInt();
+                Object arr = Array.newInstance(clz.getComponentType(), len);
+                for (int i=0; i<len; i++) {
+                    Array.set(arr, i, readValue(in));
+                }
+                return arr;
+            }
+            case LIST: {
+                int size = in.readVarInt();
+                List lst = new ArrayList(size);
+                for (int i=0; i<size; i++) {
+                    lst.add(readValue(in));
+                }
+                return lst;
+            }
+            case SET: {
+                int size = in.readVarInt();
+                Set set = new LinkedHashSet(size);
+                for (int i=0; i<size; i++) {
+                    set.add(readValue(in));
+                }
+                return set;
+            }
+            case MAP: {
+                int size = in.readVarInt();
+                Map map = new LinkedHashMap(size);
+                for (int i=0; i<size; i++) {
+                    Object key = readValue(in);
+                    map.put(key, readValue(in));
+                }
+                return map;
+            }
+            case OBJECT: {
+                Class clz = readClass(in);
+                ClassPlan plan = getPlan(clz);
+                Object obj = plan.newInstance();
+                for (Field f : plan.fields) {
+                    Object value = readValue(in);
+                    if (value != null && !f.getType().isPrimitive() && !f.getType().isInstance(value)) {
+                        value = coerce(f, value);
+                    }
+                    f.set(obj, value);
+                }
+                return obj;
+            }
+            default:
+                throw new CloudRuntimeException(String.format("unknown type tag[%s] in binary message", tag));
+        }
+    }
+
+    private Object coerce(Field f, Object value) throws Exception {
+        // collections are decoded as ArrayList, LinkedHashSet and LinkedHashMap,
+        // fields declared as other concrete types get a copy of their own type
+        Class type = f.getType();
+        if (type.isInterface() || Modifier.isAbstract(type.getModifiers())) {
+            throw new CloudRuntimeException(String.format("cannot assign %s to field %s.%s", value.getClass().getName(),
+                    f.getDeclaringClass().getName(), f.getName()));
+        }
+
+        if (value instanceof Collection && Collection.class.isAssignableFrom(type)) {
+            Collection col = (Collection) getPlan(type).newInstance();
+            col.addAll((Collection) value);
+            return col;
+        } else if (value instanceof Map && Map.class.isAssignableFrom(type)) {
+            Map map = (Map) getPlan(type).newInstance();
+            map.putAll((Map) value);
+            return map;
+        }
+
+        throw new CloudRuntimeException(String.format("cannot assign %s to field %s.%s", value.getClass().getName(),
+                f.getDeclaringClass().getName(), f.getName()));
+    }
+
+    @Override
+    public byte[] encode(Message msg) {
+        Output out = outputs.get();
+        out.reset();
+        try {
+            out.writeByte(VERSION);
+            writeValue(out, msg, 0);
+            return out.toByteArray();
+        } catch (CloudRuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new CloudRuntimeException(e);
+        }
+    }
+
+    @Override
+    public Message decode(byte[] data) {
+        Input in = new Input(data);
+        int version = in.readByte();
+        if (version != VERSION) {
+            throw new CloudRuntimeException(String.format("unsupported binary message version[%s], expected %s", version, VERSION));
+        }
+
+        try {
+            Object obj = readValue(in);
+            if (!(obj instanceof Message)) {
+                throw new CloudRuntimeException(String.format("binary data is not a message but %s", obj == null ? null : obj.getClass().getName()));
+            }
+            return (Message) obj;
+        } catch (CloudRuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new CloudRuntimeException(e);
+        }
+    }
+}
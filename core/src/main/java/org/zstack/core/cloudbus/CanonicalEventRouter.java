@@ -0,0 +1,246 @@
+package org.zstack.core.cloudbus;
+
+import org.zstack.header.exception.CloudRuntimeException;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * routes canonical event paths to subscriptions through a trie of path segments.
+ *
+ * A subscription path is made of segments:
+ *   literal         "/vmTracer/strangerVmFound"
+ *   {token}         matches one segment and passes it to the callback as token
+ *   *               matches one segment; as the last segment it matches all remaining segments
+ *   glob            a segment with '*' or '?' inside, e.g. "?e?t", matches one segment
+ *
+ * Routing walks the trie once per event, so the cost depends on the depth of the path instead
+ * of the number of subscriptions; tokens are collected on the way down. The trie is copy-on-write:
+ * add() and remove() copy the nodes on the changed path and publish a new root, routing never locks.
+ */
+class CanonicalEventRouter<T> {
+    private static final String ANY = "*";
+
+    interface Visitor<T> {
+        void visit(T value, Map<String, String> tokens);
+    }
+
+    private static class Subscription<T> {
+        final String[] segments;
+        final T value;
+
+        Subscription(String[] segments, T value) {
+            this.segments = segments;
+            this.value = value;
+        }
+    }
+
+    private static class Node<T> {
+        Map<String, Node<T>> literals = Collections.emptyMap();
+        Map<String, Node<T>> tokens = Collections.emptyMap();
+        Map<String, Node<T>> globs = Collections.emptyMap();
+        Node<T> any;
+        // the compiled glob of the segment leading to this node, if it's a glob node
+        Pattern pattern;
+        List<Subscription<T>> subscriptions = Collections.emptyList();
+        // subscriptions ending with '*', they match any remaining segments
+        List<Subscription<T>> tails = Collections.emptyList();
+
+        Node<T> copy() {
+            Node<T> n = new Node<T>();
+            n.literals = literals;
+            n.tokens = tokens;
+            n.globs = globs;
+            n.any = any;
+            n.pattern = pattern;
+            n.subscriptions = subscriptions;
+            n.tails = tails;
+            return n;
+        }
+
+        boolean isEmpty() {
+            return literals.isEmpty() && tokens.isEmpty() && globs.isEmpty() && any == null
+                    && subscriptions.isEmpty() && tails.isEmpty();
+        }
+    }
+
+    private volatile Node<T> root = new Node<T>();
+    private final Map<Object, Subscription<T>> subscriptions = new HashMap<Object, Subscription<T>>();
+
+    static String[] split(String path) {
+        List<String> segs = new ArrayList<String>();
+        int start = 0;
+        while (start <= path.length()) {
+            int end = path.indexOf('/', start);
+            if (end == -1) {
+                end = path.length();
+            }
+            if (end > start) {
+                segs.add(path.substring(start, end));
+            }
+            start = end + 1;
+        }
+        return segs.toArray(new String[segs.size()]);
+    }
+
+    private static boolean isToken(String seg) {
+        return seg.length() > 2 && seg.startsWith("{") && seg.endsWith("}");
+    }
+
+    private static String tokenName(String seg) {
+        return seg.substring(1, seg.length() - 1);
+    }
+
+    private static boolean isGlob(String seg) {
+        return seg.indexOf('*') != -1 || seg.indexOf('?') != -1;
+    }
+
+    private static Pattern compileGlob(String seg) {
+        StringBuilder sb = new StringBuilder();
+        for (char c : seg.toCharArray()) {
+            if (c == '*') {
+                sb.append(".*");
+            } else if (c == '?') {
+                sb.append('.');
+            } else {
+                sb.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(sb.toString());
+    }
+
+    private static <T> Map<String, Node<T>> with(Map<String, Node<T>> m, String key, Node<T> n) {
+        Map<String, Node<T>> ret = new HashMap<String, Node<T>>(m);
+        if (n == null) {
+            ret.remove(key);
+        } else {
+            ret.put(key, n);
+        }
+        return ret;
+    }
+
+    private static <T> List<Subscription<T>> with(List<Subscription<T>> l, Subscription<T> added, Subscription<T> removed) {
+        List<Subscription<T>> ret = new ArrayList<Subscription<T>>(l.size() + 1);
+        for (Subscription<T> s : l) {
+            if (s != removed) {
+                ret.add(s);
+            }
+        }
+        if (added != null) {
+            ret.add(added);
+        }
+        return ret;
+    }
+
+    /**
+     * returns a copy of the node with the subscription added or removed at segments[i..],
+     * or null if the copy is empty
+     */
+    private Node<T> update(Node<T> node, Subscription<T> s, int i, boolean add) {
+        Node<T> n = node == null ? new Node<T>() : node.copy();
+        String[] segs = s.segments;
+
+        if (i == segs.length) {
+            n.subscriptions = add ? with(n.subscriptions, s, null) : with(n.subscriptions, null, s);
+        } else if (i == segs.length - 1 && ANY.equals(segs[i])) {
+            n.tails = add ? with(n.tails, s, null) : with(n.tails, null, s);
+        } else {
+            String seg = segs[i];
+            if (ANY.equals(seg)) {
+                n.any = update(n.any, s, i + 1, add);
+            } else if (isToken(seg)) {
+                String name = tokenName(seg);
+                n.tokens = with(n.tokens, name, update(n.tokens.get(name), s, i + 1, add));
+            } else if (isGlob(seg)) {
+                Node<T> child = update(n.globs.get(seg), s, i + 1, add);
+                if (child != null && child.pattern == null) {
+                    child.pattern = compileGlob(seg);
+                }
+                n.globs = with(n.globs, seg, child);
+            } else {
+                n.literals = with(n.literals, seg, update(n.literals.get(seg), s, i + 1, add));
+            }
+        }
+
+        return n.isEmpty() ? null : n;
+    }
+
+    private void setRoot(Node<T> n) {
+        root = n == null ? new Node<T>() : n;
+    }
+
+    /**
+     * subscribes the value to the path, replacing the subscription of the same identity
+     */
+    synchronized void add(Object identity, String path, T value) {
+        String[] segs = split(path);
+        for (String seg : segs) {
+            if (!isToken(seg) && (seg.indexOf('{') != -1 || seg.indexOf('}') != -1)) {
+                throw new CloudRuntimeException(String.format("invalid canonical event path[%s], a token must be a whole segment like {name}", path));
+            }
+        }
+
+        Subscription<T> old = subscriptions.remove(identity);
+        Node<T> r = root;
+        if (old != null) {
+            r = update(r, old, 0, false);
+        }
+
+        Subscription<T> s = new Subscription<T>(segs, value);
+        subscriptions.put(identity, s);
+        setRoot(update(r, s, 0, true));
+    }
+
+    synchronized T remove(Object identity) {
+        Subscription<T> s = subscriptions.remove(identity);
+        if (s == null) {
+            return null;
+        }
+
+        setRoot(update(root, s, 0, false));
+        return s.value;
+    }
+
+    void route(String path, Visitor<T> visitor) {
+        route(root, split(path), 0, new HashMap<String, String>(), visitor);
+    }
+
+    private void route(Node<T> n, String[] segs, int i, Map<String, String> tokens, Visitor<T> visitor) {
+        if (i == segs.length) {
+            for (Subscription<T> s : n.subscriptions) {
+                visitor.visit(s.value, new HashMap<String, String>(tokens));
+            }
+            return;
+        }
+
+        for (Subscription<T> s : n.tails) {
+            visitor.visit(s.value, new HashMap<String, String>(tokens));
+        }
+
+        String seg = segs[i];
+        Node<T> child = n.literals.get(seg);
+        if (child != null) {
+            route(child, segs, i + 1, tokens, visitor);
+        }
+
+        for (Map.Entry<String, Node<T>> e : n.tokens.entrySet()) {
+            String previous = tokens.put(e.getKey(), seg);
+            route(e.getValue(), segs, i + 1, tokens, visitor);
+            if (previous == null) {
+                tokens.remove(e.getKey());
+            } else {
+                tokens.put(e.getKey(), previous);
+            }
+        }
+
+        if (n.any != null) {
+            route(n.any, segs, i + 1, tokens, visitor);
+        }
+
+        for (Node<T> g : n.globs.values()) {
+            if (g.pattern.matcher(seg).matches()) {
+                route(g, segs, i + 1, tokens, visitor);
+            }
+        }
+    }
+}
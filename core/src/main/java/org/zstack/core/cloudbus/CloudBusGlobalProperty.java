@@ -31,4 +31,8 @@ public class CloudBusGlobalProperty {
     public static int CHANNEL_POOL_SIZE;
     @GlobalProperty(name="CloudBus.messageTTL", defaultValue = "300")
     public static int MESSAGE_TTL;
+    @GlobalProperty(name="CloudBus.localDelivery", defaultValue = "false")
+    public static boolean LOCAL_DELIVERY;
+    @GlobalProperty(name="CloudBus.messageCodec", defaultValue = "json")
+    public static String MESSAGE_CODEC;
 }
@@ -39,6 +39,7 @@ import java.sql.Timestamp;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.zstack.utils.CollectionDSL.e;
 import static org.zstack.utils.CollectionDSL.map;
@@ -71,6 +72,8 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
 
     private Map<String, Envelope> envelopes = new ConcurrentHashMap<String, Envelope>();
     private Map<String, EndPoint> endpoints = new ConcurrentHashMap<String, EndPoint>();
+    private Map<String, LocalConsumer> localConsumers = new ConcurrentHashMap<String, LocalConsumer>();
+    private AtomicLong localDeliveryCount = new AtomicLong(0);
     private AtomicBoolean stopped = new AtomicBoolean(false);
     private boolean trackerClose = false;
     private Map<String, MessageStatistic> statistics = new HashMap<String, MessageStatistic>();
@@ -78,6 +81,13 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
     private Map<Class, Map<String, Serializable>> mvelExpressions = Collections.synchronizedMap(new HashMap<Class, Map<String,Serializable>>());
     private Map<Class, List<ReplyMessagePreSendingExtensionPoint>> replyMessageMarshaller = new ConcurrentHashMap<Class, List<ReplyMessagePreSendingExtensionPoint>>();
     private Map<Class, Long> messageTimeout = new ConcurrentHashMap<Class, Long>();
+    private Map<String, MessageCodec> codecs = new ConcurrentHashMap<String, MessageCodec>();
+    private MessageCodec messageCodec;
+
+    {
+        MessageCodec binary = new BinaryMessageCodec();
+        codecs.put(binary.getCodecName(), binary);
+    }
 
     private final String NO_NEED_REPLY_MSG = "noReply";
     private final String CORRELATION_ID = "correlationId";
@@ -89,6 +99,8 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
     private final String DEAD_LETTER = "dead-message";
 
     private final String AMQP_PROPERTY_HEADER__COMPRESSED = "compressed";
+    private final String AMQP_PROPERTY_HEADER__CODEC = "codec";
+    private final String JSON_CODEC = "json";
 
     private String SERVICE_ID = makeLocalServiceId("cloudbus");
 
@@ -297,7 +309,25 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
 
     private NoRouteEndPoint noRouteEndPoint = new NoRouteEndPoint();
 
-    private Consumer consumer = new AbstractConsumer() {
+    private interface LocalConsumer {
+        void consume(Message msg);
+    }
+
+    private boolean isLocalQueue(String queueName) {
+        return queueName.endsWith("." + Platform.getManagementServerId());
+    }
+
+    private void registerLocalConsumer(String queueName, LocalConsumer lc) {
+        if (CloudBusGlobalProperty.LOCAL_DELIVERY && isLocalQueue(queueName)) {
+            localConsumers.put(queueName, lc);
+        }
+    }
+
+    private void unregisterLocalConsumer(String queueName) {
+        localConsumers.remove(queueName);
+    }
+
+    private class ReplyConsumer extends AbstractConsumer implements LocalConsumer {
         @AsyncThread
         @MessageSafe
         private void handle(Message msg) {
@@ -320,6 +350,11 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
             }
         }
 
+        @Override
+        public void consume(Message msg) {
+            handle(msg);
+        }
+
         @Override
         public void handleDelivery(String s, com.rabbitmq.client.Envelope envelope, AMQP.BasicProperties basicProperties, byte[] bytes) throws IOException {
             try {
@@ -330,7 +365,9 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
                 logger.warn("unhandled throwable", t);
             }
         }
-    };
+    }
+
+    private ReplyConsumer consumer = new ReplyConsumer();
 
     private class Wire implements GsonTypeCoder<Message> {
         private List<String> filterMsgNames = new ArrayList<String>();
@@ -391,17 +428,47 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
             }
         }
 
+        private MessageCodec selectCodec(Message msg) {
+            // API messages and events always go in JSON
+            if (messageCodec == null || msg instanceof APIEvent || msg instanceof APIMessage) {
+                return null;
+            }
+
+            return messageCodec;
+        }
+
         private void buildSchema(Message msg) {
-            msg.putHeaderEntry("schema", MessageJsonSchemaBuilder.buildSchema(msg));
+            if (selectCodec(msg) != null) {
+                // the codec carries concrete types itself
+                return;
+            }
+
+            Map<String, List<String>> schema = MessageJsonSchemaBuilder.buildSchema(msg);
+            if (schema.isEmpty()) {
+                // most messages have nothing polymorphic, spare the receiver a second parse
+                msg.getHeaders().remove("schema");
+            } else {
+                msg.putHeaderEntry("schema", schema);
+            }
+        }
+
+        private byte[] encode(Message msg) {
+            MessageCodec codec = selectCodec(msg);
+            if (codec == null) {
+                return gson.toJson(msg, Message.class).getBytes();
+            }
+
+            msg.getAMQPHeaders().put(AMQP_PROPERTY_HEADER__CODEC, codec.getCodecName());
+            return codec.encode(msg);
         }
 
         private byte[] compressMessageIfNeeded(Message msg) throws IOException {
             if (!CloudBusGlobalProperty.COMPRESS_NON_API_MESSAGE || msg instanceof APIEvent || msg instanceof APIMessage) {
-                return gson.toJson(msg, Message.class).getBytes();
+                return encode(msg);
             }
 
             msg.getAMQPHeaders().put(AMQP_PROPERTY_HEADER__COMPRESSED, "true");
-            return Compresser.deflate(gson.toJson(msg, Message.class).getBytes());
+            return Compresser.deflate(encode(msg));
         }
 
         public void send(Message msg, boolean makeQueueName) {
@@ -420,6 +487,17 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
                 logger.trace(String.format("[msg send]: %s", wire.dumpMessage(msg)));
             }
 
+            if (CloudBusGlobalProperty.LOCAL_DELIVERY) {
+                LocalConsumer lc = localConsumers.get(serviceId);
+                if (lc != null) {
+                    // the destination queue is consumed by this management node,
+                    // hand a copy to the consumer directly and skip the broker
+                    localDeliveryCount.incrementAndGet();
+                    lc.consume(copy(msg));
+                    return;
+                }
+            }
+
             try {
                 byte[] data = compressMessageIfNeeded(msg);
                 Channel chan = channelPool.acquire();
@@ -484,13 +562,13 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
             return exp;
         }
 
-        private void restoreFromSchema(Message msg, byte[] binary) throws ClassNotFoundException {
+        private void restoreFromSchema(Message msg, String json) throws ClassNotFoundException {
             Map<String, List<String>> schema = msg.getHeaderEntry("schema");
-            if (schema == null) {
+            if (schema == null || schema.isEmpty()) {
                 return;
             }
 
-            Map raw = JSONObjectUtil.toObject(new String(binary), LinkedHashMap.class);
+            Map raw = JSONObjectUtil.toObject(json, LinkedHashMap.class);
             raw = (Map) raw.values().iterator().next();
             for (Map.Entry<String, List<String>> e : schema.entrySet()) {
                 String rawClassName = e.getKey();
@@ -563,11 +641,24 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
                     data = binary;
                 }
 
-                Message msg = gson.fromJson(new String(data), Message.class);
+                Object codecName = basicProperties.getHeaders() == null ? null : basicProperties.getHeaders().get(AMQP_PROPERTY_HEADER__CODEC);
+                if (codecName != null) {
+                    MessageCodec codec = codecs.get(codecName.toString());
+                    if (codec == null) {
+                        throw new CloudRuntimeException(String.format("no message codec[%s] found to decode the message", codecName));
+                    }
+
+                    Message msg = codec.decode(data);
+                    msg.setAMQPProperties(basicProperties);
+                    return msg;
+                }
+
+                String json = new String(data);
+                Message msg = gson.fromJson(json, Message.class);
                 msg.setAMQPProperties(basicProperties);
 
                 try {
-                    restoreFromSchema(msg, data);
+                    restoreFromSchema(msg, json);
                 } catch (ClassNotFoundException e) {
                     throw new CloudRuntimeException(e);
                 }
@@ -586,6 +677,29 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
             }
         }
 
+        public Message copy(Message msg) {
+            // the copy is what the receiver would get from the broker, so the sender
+            // and receiver never share a message object
+            MessageCodec codec = selectCodec(msg);
+            if (codec != null) {
+                Message copy = codec.decode(codec.encode(msg));
+                copy.setAMQPProperties(msg.getAMQPProperties());
+                return copy;
+            }
+
+            String json = gson.toJson(msg, Message.class);
+            Message copy = gson.fromJson(json, Message.class);
+            copy.setAMQPProperties(msg.getAMQPProperties());
+
+            try {
+                restoreFromSchema(copy, json);
+            } catch (ClassNotFoundException e) {
+                throw new CloudRuntimeException(e);
+            }
+
+            return copy;
+        }
+
         public String dumpMessage(Message msg) {
             return gson.toJson(msg, Message.class);
         }
@@ -1076,6 +1190,7 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
             chan.basicConsume(outboundQueue.getName(), true, consumer);
             chan.queueBind(outboundQueue.getName(), outboundQueue.getBusExchange().toString(), outboundQueue.getBindingKey());
             channelPool.returnChannel(chan);
+            registerLocalConsumer(outboundQueue.getName(), consumer);
             maid.construct();
             noRouteEndPoint.construct();
             tracker.construct();
@@ -1776,6 +1891,7 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
         EndPoint e = new EndPoint() {
             Channel echan;
             Consumer handler;
+            LocalConsumer localConsumer;
             String baseName;
             List<String> aliasNames = new ArrayList<String>();
 
@@ -1791,45 +1907,54 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
                     @Override
                     public void handleDelivery(String s, com.rabbitmq.client.Envelope envelope, AMQP.BasicProperties basicProperties, byte[] bytes) throws IOException {
                         try {
-                            final Message msg = wire.toMessage(bytes, basicProperties);
+                            dispatch(wire.toMessage(bytes, basicProperties));
+                        } catch (Throwable t) {
+                            logger.warn("unhandled throwable", t);
+                        }
+                    }
+                };
 
-                            if (logger.isTraceEnabled() && wire.logMessage(msg)) {
-                                logger.trace(String.format("[msg received]: %s", wire.dumpMessage(msg)));
-                            }
+                localConsumer = new LocalConsumer() {
+                    @Override
+                    public void consume(Message msg) {
+                        dispatch(msg);
+                    }
+                };
+            }
 
-                            SyncTask<Void> task = new SyncTask<Void>() {
-                                @Override
-                                public String getSyncSignature() {
-                                    return serv.getId();
-                                }
+            private void dispatch(final Message msg) {
+                if (logger.isTraceEnabled() && wire.logMessage(msg)) {
+                    logger.trace(String.format("[msg received]: %s", wire.dumpMessage(msg)));
+                }
 
-                                @Override
-                                public int getSyncLevel() {
-                                    return syncLevel;
-                                }
+                SyncTask<Void> task = new SyncTask<Void>() {
+                    @Override
+                    public String getSyncSignature() {
+                        return serv.getId();
+                    }
 
-                                @Override
-                                public String getName() {
-                                    return String.format("CloudBus EndPoint[%s]", serv.getId());
-                                }
+                    @Override
+                    public int getSyncLevel() {
+                        return syncLevel;
+                    }
 
-                                @Override
-                                public Void call() throws Exception {
-                                    serv.handleMessage(msg);
-                                    return null;
-                                }
-                            };
+                    @Override
+                    public String getName() {
+                        return String.format("CloudBus EndPoint[%s]", serv.getId());
+                    }
 
-                            if (syncLevel == 0) {
-                                thdf.submit(task);
-                            } else {
-                                thdf.syncSubmit(task);
-                            }
-                        } catch (Throwable t) {
-                            logger.warn("unhandled throwable", t);
-                        }
+                    @Override
+                    public Void call() throws Exception {
+                        serv.handleMessage(msg);
+                        return null;
                     }
                 };
+
+                if (syncLevel == 0) {
+                    thdf.submit(task);
+                } else {
+                    thdf.syncSubmit(task);
+                }
             }
 
             @Override
@@ -1839,11 +1964,13 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
                     echan.queueDeclare(baseName, true, false, true, null);
                     echan.basicConsume(baseName, true, handler);
                     echan.queueBind(baseName, BusExchange.P2P.toString(), baseName);
+                    registerLocalConsumer(baseName, localConsumer);
 
                     for (String aliasName : aliasNames) {
                         echan.queueDeclare(aliasName, true, false, true, null);
                         echan.basicConsume(aliasName, true, handler);
                         echan.queueBind(aliasName, BusExchange.P2P.toString(), aliasName);
+                        registerLocalConsumer(aliasName, localConsumer);
                     }
                 } catch (IOException e1) {
                     throw new CloudRuntimeException(e1);
@@ -1852,6 +1979,11 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
 
             @Override
             public void inactive() {
+                unregisterLocalConsumer(baseName);
+                for (String aliasName: aliasNames) {
+                    unregisterLocalConsumer(aliasName);
+                }
+
                 try {
                     echan.queueUnbind(baseName, BusExchange.P2P.toString(), baseName);
                     for (String aliasName: aliasNames) {
@@ -2115,11 +2247,38 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
         }
     }
 
+    private void prepareMessageCodec() {
+        for (MessageCodec codec : pluginRgty.getExtensionList(MessageCodec.class)) {
+            MessageCodec old = codecs.get(codec.getCodecName());
+            if (old != null && old != codec) {
+                throw new CloudRuntimeException(String.format("duplicate message codec[%s, %s] for name[%s]",
+                        old.getClass().getName(), codec.getClass().getName(), codec.getCodecName()));
+            }
+            codecs.put(codec.getCodecName(), codec);
+        }
+
+        String name = CloudBusGlobalProperty.MESSAGE_CODEC;
+        if (name == null || JSON_CODEC.equals(name)) {
+            return;
+        }
+
+        MessageCodec codec = codecs.get(name);
+        if (codec == null) {
+            throw new CloudRuntimeException(String.format("unknown message codec[%s] set by CloudBus.messageCodec, available codecs are %s and %s",
+                    name, JSON_CODEC, codecs.keySet()));
+        }
+
+        codec.prepareMessageClasses(BeanUtils.scanClassByType("org.zstack", Message.class));
+        messageCodec = codec;
+        logger.info(String.format("use message codec[%s] for non-API messages", name));
+    }
+
     @Override
     public boolean start() {
         populateExtension();
         prepareStatistics();
         collectMessageTimeOut();
+        prepareMessageCodec();
 
         for (Service serv : services) {
             assert serv.getId() != null : String.format("service id can not be null[%s]", serv.getClass().getName());
@@ -2206,6 +2365,11 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
         return statistics;
     }
 
+    @Override
+    public long getLocalDeliveryCount() {
+        return localDeliveryCount.get();
+    }
+
     @Override
     public List<WaitingReplyMessageStatistic> getWaitingReplyMessageStatistic() {
         List<WaitingReplyMessageStatistic> ret = new ArrayList<WaitingReplyMessageStatistic>();
@@ -0,0 +1,26 @@
+package org.zstack.core.cloudbus;
+
+import org.zstack.header.message.Message;
+
+import java.util.List;
+
+/**
+ * encodes messages to the bytes carried by the broker and back.
+ *
+ * JSON, the default wire format, is built in CloudBus; a codec selected by
+ * CloudBus.messageCodec replaces it for non-API messages. The name of the codec
+ * travels in AMQP headers, so the receiver always knows how to decode.
+ */
+public interface MessageCodec {
+    String getCodecName();
+
+    /**
+     * called once at start with all message classes found, codecs can
+     * build per-class state here instead of on the first message
+     */
+    void prepareMessageClasses(List<Class> messageClasses);
+
+    byte[] encode(Message msg);
+
+    Message decode(byte[] data);
+}
@@ -16,94 +16,157 @@ import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
+ * the reflective work is done once per class: a plan lists the fields that can
+ * ever lead to an object needing a schema, with access checks suppressed. Classes
+ * whose plan is empty, including all JDK classes, are never walked.
  */
 public class MessageJsonSchemaBuilder {
-    private static Map<Field, Field> skipMap = new ConcurrentHashMap<Field, Field>();
+    private enum FieldKind {
+        MAP,
+        LIST,
+        OBJECT
+    }
 
-    private static boolean isSkip(Field f) {
-        if (skipMap.containsKey(f)) {
-            return true;
-        }
+    private static class FieldPlan {
+        Field field;
+        FieldKind kind;
+    }
+
+    private static class ClassPlan {
+        FieldPlan[] fields;
+        boolean needSchema;
+    }
+
+    private static final FieldPlan[] NO_FIELDS = new FieldPlan[0];
+
+    private static Map<Class, ClassPlan> plans = new ConcurrentHashMap<Class, ClassPlan>();
 
+    private static boolean isSkip(Field f) {
         if (TypeUtils.isPrimitiveOrWrapper(f.getType())) {
-            skipMap.put(f, f);
             return true;
         }
 
         if (f.isAnnotationPresent(NoJsonSchema.class)) {
-            skipMap.put(f, f);
             return true;
         }
 
         if (Modifier.isStatic(f.getModifiers())) {
-            skipMap.put(f, f);
             return true;
         }
 
         if (f.isAnnotationPresent(GsonTransient.class)) {
-            skipMap.put(f, f);
             return true;
         }
 
+        // enums and dates never carry an inventory
+        if (f.getType().isEnum() || Date.class.isAssignableFrom(f.getType())) {
+            return true;
+        }
+
+        if (Map.class.isAssignableFrom(f.getType()) || Collection.class.isAssignableFrom(f.getType())) {
+            Class genericType = FieldUtils.getGenericType(f);
+            if (genericType != null && TypeUtils.isPrimitiveOrWrapper(genericType)) {
+                return true;
+            }
+        }
+
         return false;
     }
 
-    private static Object getValue(Field f, Object obj) throws IllegalAccessException {
-        f.setAccessible(true);
-        return f.get(obj);
+    private static boolean isJdkClass(Class clz) {
+        String name = clz.getName();
+        return name.startsWith("java.") || name.startsWith("javax.");
     }
 
-    private static boolean isNullValue(Field f, Object obj) throws IllegalAccessException {
-        return getValue(f, obj) == null;
+    private static ClassPlan getPlan(Class<?> clz) {
+        ClassPlan plan = plans.get(clz);
+        if (plan == null) {
+            plan = compile(clz);
+            plans.put(clz, plan);
+        }
+        return plan;
     }
 
-    private static void buildSchema(Object obj, Map<String, List<String>> schema, Stack<String> trace, Stack<Object> paths) throws IllegalAccessException {
-        List<Field> fs = FieldUtils.getAllFields(obj.getClass());
-        for (Field f : fs) {
+    private static ClassPlan compile(Class<?> clz) {
+        ClassPlan plan = new ClassPlan();
+        plan.needSchema = clz.isAnnotationPresent(Inventory.class) || clz.isAnnotationPresent(NeedJsonSchema.class);
+        if (clz.isArray() || clz.isPrimitive() || clz.isEnum() || isJdkClass(clz)) {
+            plan.fields = NO_FIELDS;
+            return plan;
+        }
+
+        List<FieldPlan> fps = new ArrayList<FieldPlan>();
+        for (Field f : FieldUtils.getAllFields(clz)) {
             if (isSkip(f)) {
                 continue;
             }
 
+            FieldPlan fp = new FieldPlan();
+            fp.field = f;
             if (Map.class.isAssignableFrom(f.getType())) {
-                schemaMap(f, obj, schema, trace, paths);
-                continue;
-            }
-
-            if (Collection.class.isAssignableFrom(f.getType())) {
-                Class genericType = FieldUtils.getGenericType(f);
-                if (genericType != null && TypeUtils.isPrimitiveOrWrapper(genericType)) {
-                    continue;
-                }
-
+                fp.kind = FieldKind.MAP;
+            } else if (Collection.class.isAssignableFrom(f.getType())) {
                 if (!List.class.isAssignableFrom(f.getType())) {
                     throw new CloudRuntimeException(String.format("the collection type in message can only be List, but %s.%s is %s",
                             f.getDeclaringClass().getName(), f.getName(), f.getType().getName()));
                 }
-
-                schemaList(f, obj, schema, trace, paths);
-                continue;
+                fp.kind = FieldKind.LIST;
+            } else {
+                fp.kind = FieldKind.OBJECT;
             }
 
-            schemaObject(f, obj, schema, trace, paths);
+            f.setAccessible(true);
+            fps.add(fp);
         }
+
+        plan.fields = fps.isEmpty() ? NO_FIELDS : fps.toArray(new FieldPlan[fps.size()]);
+        return plan;
     }
 
-    private static void schemaList(Field f, Object obj, Map<String, List<String>> schema, Stack<String> trace, Stack<Object> paths) throws IllegalAccessException {
-        if (isNullValue(f, obj)) {
-            return;
+    private static void buildSchema(Object obj, Map<String, List<String>> schema, Stack<String> trace, Stack<Object> paths) throws IllegalAccessException {
+        ClassPlan plan = getPlan(obj.getClass());
+        for (FieldPlan fp : plan.fields) {
+            Object value = fp.field.get(obj);
+            if (value == null) {
+                continue;
+            }
+
+            if (fp.kind == FieldKind.MAP) {
+                schemaMap(fp.field, value, schema, trace, paths);
+            } else if (fp.kind == FieldKind.LIST) {
+                schemaList(fp.field, value, schema, trace, paths);
+            } else {
+                schemaObject(fp.field, value, schema, trace, paths);
+            }
         }
+    }
 
-        Object value = getValue(f, obj);
+    private static void checkRecursive(Object value, Stack<Object> paths) {
         if (paths.contains(value)) {
             paths.push(value);
             throw new CloudRuntimeException(String.format("recursive object graph: %s", StringUtils.join(paths, " --> ")));
         }
+    }
+
+    private static void schemaList(Field f, Object value, Map<String, List<String>> schema, Stack<String> trace, Stack<Object> paths) throws IllegalAccessException {
+        checkRecursive(value, paths);
 
         paths.push(value);
         List col = (List) value;
+        int index = 0;
         for (Object item : col) {
-            String itemName = String.format("%s[%s]", f.getName(), col.indexOf(item));
-            if (isObjectNeedSchema(item)) {
+            int i = index ++;
+            if (item == null) {
+                continue;
+            }
+
+            ClassPlan plan = getPlan(item.getClass());
+            if (!plan.needSchema && plan.fields.length == 0) {
+                continue;
+            }
+
+            String itemName = String.format("%s[%s]", f.getName(), i);
+            if (plan.needSchema) {
                 addToSchema(item.getClass(), itemName, schema, trace);
             }
 
@@ -124,24 +187,22 @@ public class MessageJsonSchemaBuilder {
             buildSchema(msg, schema, trace, paths);
 
             return schema;
+        } catch (CloudRuntimeException e) {
+            throw e;
         } catch (Exception e) {
             throw new CloudRuntimeException(e);
         }
     }
 
-    private static void schemaObject(Field f, Object obj, Map<String, List<String>> schema, Stack<String> trace, Stack<Object> paths) throws IllegalAccessException {
-        if (isNullValue(f, obj)) {
+    private static void schemaObject(Field f, Object value, Map<String, List<String>> schema, Stack<String> trace, Stack<Object> paths) throws IllegalAccessException {
+        ClassPlan plan = getPlan(value.getClass());
+        if (!plan.needSchema && plan.fields.length == 0) {
             return;
         }
 
-        Object value = getValue(f, obj);
-        if (paths.contains(value)) {
-            paths.push(value);
-            throw new CloudRuntimeException(String.format("recursive object graph: %s", StringUtils.join(paths, " --> ")));
-        }
+        checkRecursive(value, paths);
 
-
-        if (isObjectNeedSchema(value)) {
+        if (plan.needSchema) {
             addToSchema(value.getClass(), f.getName(), schema, trace);
         }
 
@@ -153,48 +214,38 @@ public class MessageJsonSchemaBuilder {
     }
 
     private static void addToSchema(Class<?> realClass, String name, Map<String, List<String>> schema, Stack<String> trace) {
-        String base = StringUtils.join(trace, ".");
         List<String> path = schema.get(realClass.getName());
         if (path == null) {
             path = new ArrayList<String>();
             schema.put(realClass.getName(), path);
         }
-        if (base.equals("")) {
+        if (trace.isEmpty()) {
             path.add(name);
         } else {
-            path.add(String.format("%s.%s", base, name));
+            path.add(String.format("%s.%s", StringUtils.join(trace, "."), name));
         }
     }
 
-    private static boolean isObjectNeedSchema(Object obj) {
-        return obj.getClass().isAnnotationPresent(Inventory.class) || obj.getClass().isAnnotationPresent(NeedJsonSchema.class);
-    }
+    private static void schemaMap(Field f, Object value, Map<String, List<String>> schema, Stack<String> trace, Stack<Object> paths) throws IllegalAccessException {
+        checkRecursive(value, paths);
 
-    private static void schemaMap(Field f, Object obj, Map<String, List<String>> schema, Stack<String> trace, Stack<Object> paths) throws IllegalAccessException {
-        Class genericType = FieldUtils.getGenericType(f);
-        if (genericType != null && TypeUtils.isPrimitiveOrWrapper(genericType)) {
-            return;
-        }
-
-        if (isNullValue(f, obj)) {
-            return;
-        }
-
-        Object value = getValue(f, obj);
-        if (paths.contains(value)) {
-            paths.push(value);
-            throw new CloudRuntimeException(String.format("recursive object graph: %s", StringUtils.join(paths, " --> ")));
-        }
-
-        paths.push(obj);
+        paths.push(value);
         Map map = (Map) value;
         Iterator<Entry> it = map.entrySet().iterator();
         while (it.hasNext()) {
             Entry e = it.next();
-            String key = e.getKey().toString();
             Object item = e.getValue();
-            String itemName = String.format("%s[\"%s\"]", f.getName(), key);
-            if (isObjectNeedSchema(item)) {
+            if (item == null) {
+                continue;
+            }
+
+            ClassPlan plan = getPlan(item.getClass());
+            if (!plan.needSchema && plan.fields.length == 0) {
+                continue;
+            }
+
+            String itemName = String.format("%s[\"%s\"]", f.getName(), e.getKey().toString());
+            if (plan.needSchema) {
                 addToSchema(item.getClass(), itemName, schema, trace);
             }
 
@@ -1,14 +1,37 @@
 package org.zstack.core.job;
 
+import com.google.gson.*;
 import org.zstack.header.exception.CloudRuntimeException;
+import org.zstack.utils.gson.GsonUtil;
+import org.zstack.utils.serializable.SerializableHelper;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.charset.Charset;
+import java.util.*;
 
+/**
+ * the context of a job stored in JobQueueEntryVO.
+ *
+ * Contexts are written by Java serialization unless JobQueueFacade.jsonContext is true,
+ * then they are stored as a magic, a version byte and a UTF-8 JSON document. In the JSON
+ * document every value carries its runtime class; elements of collections and keys and
+ * values of maps are encoded the same way one by one, so a List<Base> holding subclasses
+ * or an Object field holding a map is decoded to the classes it was saved with. Other
+ * objects are decoded by gson with their runtime class. Both formats are always readable,
+ * so the property can be switched on a running cluster.
+ */
 final class JobContextObject implements Serializable {
+    // the default value computed for the class before the JSON format was added, so
+    // contexts serialized by older nodes and by this one stay compatible
+    private static final long serialVersionUID = -8841888167730110264L;
+    private static final byte[] MAGIC = {'Z', 'J', 'C'};
+    private static final byte VERSION = 1;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Gson gson = new GsonUtil().create();
+
     private final String className;
     private Map<String, Object> args = new HashMap<String, Object>();
 
@@ -41,6 +64,143 @@ final class JobContextObject implements Serializable {
         }
     }
     
+    private JobContextObject(String className) {
+        this.className = className;
+    }
+
+    private static JsonElement encode(Object val) {
+        if (val == null) {
+            return JsonNull.INSTANCE;
+        }
+
+        JsonObject jval = new JsonObject();
+        jval.addProperty("type", val.getClass().getName());
+        if (val instanceof Collection) {
+            JsonArray arr = new JsonArray();
+            for (Object o : (Collection) val) {
+                arr.add(encode(o));
+            }
+            jval.add("value", arr);
+        } else if (val instanceof Map) {
+            JsonArray arr = new JsonArray();
+            for (Map.Entry e : ((Map<?, ?>) val).entrySet()) {
+                JsonArray pair = new JsonArray();
+                pair.add(encode(e.getKey()));
+                pair.add(encode(e.getValue()));
+                arr.add(pair);
+            }
+            jval.add("value", arr);
+        } else {
+            jval.add("value", gson.toJsonTree(val));
+        }
+        return jval;
+    }
+
+    private static Collection newCollection(Class<?> type) {
+        try {
+            return (Collection) type.newInstance();
+        } catch (Exception e) {
+            // no accessible zero-argument constructor, e.g. Arrays.asList() or Collections.unmodifiableList()
+            if (SortedSet.class.isAssignableFrom(type)) {
+                return new TreeSet();
+            } else if (Set.class.isAssignableFrom(type)) {
+                return new LinkedHashSet();
+            } else {
+                return new ArrayList();
+            }
+        }
+    }
+
+    private static Map newMap(Class<?> type) {
+        try {
+            return (Map) type.newInstance();
+        } catch (Exception e) {
+            return SortedMap.class.isAssignableFrom(type) ? new TreeMap() : new LinkedHashMap();
+        }
+    }
+
+    private static Object decode(JsonElement je) throws ClassNotFoundException {
+        if (je.isJsonNull()) {
+            return null;
+        }
+
+        JsonObject jval = je.getAsJsonObject();
+        Class<?> type = Class.forName(jval.get("type").getAsString());
+        JsonElement value = jval.get("value");
+        if (Collection.class.isAssignableFrom(type)) {
+            Collection c = newCollection(type);
+            for (JsonElement e : value.getAsJsonArray()) {
+                c.add(decode(e));
+            }
+            return c;
+        } else if (Map.class.isAssignableFrom(type)) {
+            Map m = newMap(type);
+            for (JsonElement e : value.getAsJsonArray()) {
+                JsonArray pair = e.getAsJsonArray();
+                m.put(decode(pair.get(0)), decode(pair.get(1)));
+            }
+            return m;
+        } else {
+            return gson.fromJson(value, type);
+        }
+    }
+
+    byte[] toBytes() throws IOException {
+        if (!JobGlobalProperty.JOB_CONTEXT_JSON) {
+            return SerializableHelper.writeObject(this);
+        }
+
+        JsonObject jargs = new JsonObject();
+        for (Map.Entry<String, Object> e : args.entrySet()) {
+            jargs.add(e.getKey(), encode(e.getValue()));
+        }
+
+        JsonObject jctx = new JsonObject();
+        jctx.addProperty("className", className);
+        jctx.add("args", jargs);
+
+        byte[] json = gson.toJson(jctx).getBytes(UTF8);
+        byte[] bytes = new byte[MAGIC.length + 1 + json.length];
+        System.arraycopy(MAGIC, 0, bytes, 0, MAGIC.length);
+        bytes[MAGIC.length] = VERSION;
+        System.arraycopy(json, 0, bytes, MAGIC.length + 1, json.length);
+        return bytes;
+    }
+
+    private static boolean hasMagic(byte[] bytes) {
+        if (bytes.length <= MAGIC.length) {
+            return false;
+        }
+
+        for (int i=0; i<MAGIC.length; i++) {
+            if (bytes[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static JobContextObject fromBytes(byte[] bytes) throws IOException, ClassNotFoundException {
+        if (!hasMagic(bytes)) {
+            return SerializableHelper.readObject(bytes);
+        }
+
+        byte version = bytes[MAGIC.length];
+        if (version != VERSION) {
+            throw new CloudRuntimeException(String.format("unknown job context version[%s]", version));
+        }
+
+        String json = new String(bytes, MAGIC.length + 1, bytes.length - MAGIC.length - 1, UTF8);
+        JsonObject jctx = new JsonParser().parse(json).getAsJsonObject();
+        JobContextObject ctx = new JobContextObject(jctx.get("className").getAsString());
+        JsonObject jargs = jctx.getAsJsonObject("args");
+        for (Map.Entry<String, JsonElement> e : jargs.entrySet()) {
+            ctx.args.put(e.getKey(), decode(e.getValue()));
+        }
+
+        return ctx;
+    }
+
     Job load() {
         try {
             Class<?> currClass = Class.forName(className);
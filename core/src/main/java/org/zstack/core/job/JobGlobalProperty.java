@@ -17,4 +17,8 @@ public class JobGlobalProperty {
     public static String QUARTZ_DB_PASSWORD;
     @GlobalProperty(name = "QuartzJdbcJobFacade.maxDbConnection", defaultValue = "10")
     public static int QUARTZ_DB_MAX_CONNECTIONS;
+    @GlobalProperty(name = "JobQueueFacade.lockStripes", defaultValue = "32")
+    public static int JOB_QUEUE_LOCK_STRIPES;
+    @GlobalProperty(name = "JobQueueFacade.jsonContext", defaultValue = "false")
+    public static boolean JOB_CONTEXT_JSON;
 }
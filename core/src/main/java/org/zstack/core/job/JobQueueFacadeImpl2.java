@@ -7,6 +7,7 @@ import org.zstack.core.Platform;
 import org.zstack.core.cloudbus.CloudBus;
 import org.zstack.core.cloudbus.CloudBusEventListener;
 import org.zstack.core.cloudbus.EventSubscriberReceipt;
+import org.zstack.core.cloudbus.ResourceDestinationMaker;
 import org.zstack.core.db.*;
 import org.zstack.core.errorcode.ErrorFacade;
 import org.zstack.header.errorcode.SysErrors;
@@ -25,7 +26,6 @@ import org.zstack.utils.DebugUtils;
 import org.zstack.utils.JsonWrapper;
 import org.zstack.utils.Utils;
 import org.zstack.utils.logging.CLogger;
-import org.zstack.utils.serializable.SerializableHelper;
 
 import javax.persistence.Tuple;
 import javax.persistence.TypedQuery;
@@ -34,11 +34,14 @@ import java.sql.Timestamp;
 import java.util.*;
 
 /**
+ * job queues are sharded: a queue is guarded by one of JobQueueFacade.lockStripes named
+ * locks picked by the hash of its name, so queues in different stripes never wait for each
+ * other. Orphan queues of a left management node are taken over by the nodes the queue
+ * names hash to, instead of one node replaying all of them.
  */
 public class JobQueueFacadeImpl2 implements JobQueueFacade, CloudBusEventListener, Component, ManagementNodeChangeListener {
     private static final CLogger logger = Utils.getLogger(JobQueueFacadeImpl2.class);
     private static final String LOCK_NAME = "JobQueueFacade.lock";
-    private static final String ORPHAN_JOB_LOCK_NAME = "JobQueueFacade.orphanJobLock";
     private static final int LOCK_TIMEOUT = 60;
 
     private Map<Long, JobWrapper> wrappers = Collections.synchronizedMap(new HashMap<Long, JobWrapper>());
@@ -49,6 +52,8 @@ public class JobQueueFacadeImpl2 implements JobQueueFacade, CloudBusEventListene
     private CloudBus bus;
     @Autowired
     private ErrorFacade errf;
+    @Autowired
+    private ResourceDestinationMaker destMaker;
 
     private volatile boolean stopped = false;
     private EventSubscriberReceipt unsubscriber;
@@ -91,7 +96,50 @@ public class JobQueueFacadeImpl2 implements JobQueueFacade, CloudBusEventListene
         return true;
     }
 
-    private void restartQueue(JobQueueVO qvo, String mgmtId) {
+    private GLock queueLock(String queueName) {
+        int stripes = Math.max(JobGlobalProperty.JOB_QUEUE_LOCK_STRIPES, 1);
+        int stripe = (queueName.hashCode() & Integer.MAX_VALUE) % stripes;
+        return new GLock(String.format("%s.%s", LOCK_NAME, stripe), LOCK_TIMEOUT);
+    }
+
+    @Transactional
+    private JobQueueVO claimOrphanQueue(long queueId) {
+        JobQueueVO qvo = dbf.getEntityManager().find(JobQueueVO.class, queueId);
+        if (qvo == null || qvo.getWorkerManagementNodeId() != null) {
+            // deleted or taken over by another node
+            return null;
+        }
+
+        qvo.setWorkerManagementNodeId(Platform.getManagementServerId());
+        return dbf.getEntityManager().merge(qvo);
+    }
+
+    private void restartQueue(JobQueueVO orphan, String mgmtId) {
+        JobQueueEntryVO first = null;
+        JobQueueVO qvo;
+        GLock lock = queueLock(orphan.getName());
+        lock.lock();
+        try {
+            qvo = claimOrphanQueue(orphan.getId());
+            if (qvo == null) {
+                return;
+            }
+
+            first = cleanupOrphanQueue(qvo, mgmtId);
+            if (first == null) {
+                dbf.remove(qvo);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (first != null) {
+            // GLock is not reentrant, the job is submitted after the queue lock is released
+            execute(qvo.getName(), qvo.getOwner(), first, new NopeReturnValueCompletion(), null, true);
+        }
+    }
+
+    private JobQueueEntryVO cleanupOrphanQueue(JobQueueVO qvo, String mgmtId) {
         SimpleQuery<JobQueueEntryVO> q = dbf.createQuery(JobQueueEntryVO.class);
         q.select(JobQueueEntryVO_.id, JobQueueEntryVO_.name);
         q.add(JobQueueEntryVO_.jobQueueId, SimpleQuery.Op.EQ, qvo.getId());
@@ -109,7 +157,7 @@ public class JobQueueFacadeImpl2 implements JobQueueFacade, CloudBusEventListene
         long count = q.count();
         if (count == 0) {
             logger.debug(String.format("[JobQueue Removed]: id:%s, no Pending or Processing job remaining in this queue, remove it", qvo.getId()));
-            return;
+            return null;
         }
 
         List<JobQueueEntryVO> es = q.list();
@@ -127,27 +175,38 @@ public class JobQueueFacadeImpl2 implements JobQueueFacade, CloudBusEventListene
 
             logger.debug(String.format("[Job Restart]: job[id:%s, name:%s] in queue[id:%s] is restarting as its previous worker node[id:%s] became unavailable",
                     e.getId(), e.getName(), qvo.getId(), mgmtId));
-            execute(qvo.getName(), qvo.getOwner(), e, new NopeReturnValueCompletion(), null);
-            return;
+            return e;
+        }
+
+        return null;
+    }
+
+    private boolean isOrphanQueueOurs(JobQueueVO queue, String mgmtId) {
+        if (destMaker.isManagedByUs(queue.getName())) {
+            return true;
         }
+
+        // the hash ring may not have dropped the left node yet, every node then races for its queues
+        return mgmtId.equals(destMaker.makeDestination(queue.getName()));
     }
 
     private void takeOverJobs(String mgmtId) {
-        GLock lock = new GLock(ORPHAN_JOB_LOCK_NAME, LOCK_TIMEOUT);
-        lock.lock();
-        try {
-            logger.debug(String.format("management node[id:%s] starts taking over jobs of left management node[%s]",
-                    Platform.getManagementServerId(), mgmtId));
-            SimpleQuery<JobQueueVO> qq = dbf.createQuery(JobQueueVO.class);
-            qq.add(JobQueueVO_.workerManagementNodeId, SimpleQuery.Op.NULL);
-            List<JobQueueVO> queues = qq.list();
-
-            logger.debug(String.format("[Orphan Queue found]: management node is going to take over %s orphan queues", queues.size()));
-            for (JobQueueVO queue : queues) {
-                restartQueue(queue, mgmtId);
+        logger.debug(String.format("management node[id:%s] starts taking over jobs of left management node[%s]",
+                Platform.getManagementServerId(), mgmtId));
+        SimpleQuery<JobQueueVO> qq = dbf.createQuery(JobQueueVO.class);
+        qq.add(JobQueueVO_.workerManagementNodeId, SimpleQuery.Op.NULL);
+        List<JobQueueVO> queues = qq.list();
+
+        List<JobQueueVO> ours = new ArrayList<JobQueueVO>();
+        for (JobQueueVO queue : queues) {
+            if (isOrphanQueueOurs(queue, mgmtId)) {
+                ours.add(queue);
             }
-        } finally {
-            lock.unlock();
+        }
+
+        logger.debug(String.format("[Orphan Queue found]: management node is going to take over %s of %s orphan queues", ours.size(), queues.size()));
+        for (JobQueueVO queue : ours) {
+            restartQueue(queue, mgmtId);
         }
     }
 
@@ -181,7 +240,8 @@ public class JobQueueFacadeImpl2 implements JobQueueFacade, CloudBusEventListene
     }
 
 
-    private <T> void execute(final String queueName, final String owner, final JobQueueEntryVO entry, final ReturnValueCompletion<T> completion, final Class<? extends T> returnType) {
+    private <T> void execute(final String queueName, final String owner, final JobQueueEntryVO entry, final ReturnValueCompletion<T> completion,
+                             final Class<? extends T> returnType, final boolean takenOver) {
         new JobWrapper() {
             private Long myJobId;
 
@@ -212,6 +272,9 @@ public class JobQueueFacadeImpl2 implements JobQueueFacade, CloudBusEventListene
                     qvo.setWorkerManagementNodeId(Platform.getManagementServerId());
                     dbf.getEntityManager().merge(qvo);
                     ret = qvo;
+                } else if (takenOver && Platform.getManagementServerId().equals(qvo.getWorkerManagementNodeId())) {
+                    // claimed by restartQueue(), nobody is processing it yet
+                    ret = qvo;
                 }
 
                 entry.setJobQueueId(qvo.getId());
@@ -263,7 +326,7 @@ public class JobQueueFacadeImpl2 implements JobQueueFacade, CloudBusEventListene
             }
 
             private Bucket takeJob(final JobQueueVO qvo) {
-                GLock lock = new GLock(LOCK_NAME, LOCK_TIMEOUT);
+                GLock lock = queueLock(qvo.getName());
                 lock.lock();
                 try {
                     JobQueueEntryVO jobe = findJob(qvo);
@@ -277,7 +340,7 @@ public class JobQueueFacadeImpl2 implements JobQueueFacade, CloudBusEventListene
 
                     while (true) {
                         try {
-                            JobContextObject ctx = SerializableHelper.readObject(jobe.getContext());
+                            JobContextObject ctx = JobContextObject.fromBytes(jobe.getContext());
                             Job theJob = ctx.load();
                             jobe.setState(JobState.Processing);
                             jobe = dbf.updateAndRefresh(jobe);
@@ -349,7 +412,7 @@ public class JobQueueFacadeImpl2 implements JobQueueFacade, CloudBusEventListene
                 }
 
                 try {
-                    GLock lock = new GLock(LOCK_NAME, LOCK_TIMEOUT);
+                    GLock lock = queueLock(queueName);
                     JobQueueVO qvo = null;
                     lock.lock();
                     try {
@@ -387,11 +450,10 @@ public class JobQueueFacadeImpl2 implements JobQueueFacade, CloudBusEventListene
         try {
             JobQueueEntryVO e = new JobQueueEntryVO();
             JobContextObject ctx = new JobContextObject(job);
-            byte[] bits = SerializableHelper.writeObject(ctx);
-            e.setContext(bits);
+            e.setContext(ctx.toBytes());
             e.setRestartable(job.getClass().isAnnotationPresent(RestartableJob.class));
             e.setName(job.getClass().getName());
-            execute(queueName, owner, e, completion, returnType);
+            execute(queueName, owner, e, completion, returnType, false);
         } catch (IOException e1) {
             throw new CloudRuntimeException(e1);
         }
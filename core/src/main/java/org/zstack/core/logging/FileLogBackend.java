@@ -0,0 +1,507 @@
+package org.zstack.core.logging;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.zstack.core.thread.PeriodicTask;
+import org.zstack.core.thread.Task;
+import org.zstack.core.thread.ThreadFacade;
+import org.zstack.header.exception.CloudRuntimeException;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+import org.zstack.utils.path.PathUtil;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * writes resource logs to append-only segment files instead of the database.
+ *
+ * The active segment is a memory-mapped file of LogFacade.fileBackend.segmentSize bytes;
+ * when it's full it's truncated to its content and a new one is started. Every segment
+ * keeps an in-memory index from resource uuid to record offsets, rebuilt by scanning the
+ * files on start, so reading logs of a resource only touches records of that resource.
+ *
+ * A record is [int length][long time][byte type][byte level][short uuid length][uuid]
+ * [int content length][content]. Type and level are stored by their codes, not ordinals.
+ * The length is written last, a record torn by a crash reads as length 0 and ends the segment.
+ *
+ * Reading before start() only maps the existing segments; no file or directory is created
+ * until the backend is started.
+ *
+ * A periodic maintenance deletes segments older than LogFacade.fileBackend.retentionDays
+ * and compacts segments that are only partially expired.
+ */
+public class FileLogBackend implements LogBackend {
+    private static final CLogger logger = Utils.getLogger(FileLogBackend.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String PREFIX = "segment-";
+    private static final String SUFFIX = ".log";
+    private static final int HEADER_SIZE = 4 + 8 + 1 + 1 + 2 + 4;
+
+    @Autowired
+    private ThreadFacade thdf;
+
+    private volatile boolean isStarted;
+    private boolean isLoaded;
+    private File dir;
+    private long lastId;
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private Segment active;
+    private BlockingQueue queue = new LinkedBlockingQueue();
+    private QuitToken quitToken = new QuitToken();
+    private Future<Void> maintenanceTask;
+
+    class QuitToken {
+    }
+
+    private static class OffsetList {
+        private int[] offsets = new int[4];
+        private int size;
+
+        void add(int offset) {
+            if (size == offsets.length) {
+                offsets = Arrays.copyOf(offsets, size * 2);
+            }
+            offsets[size++] = offset;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(offsets, size);
+        }
+    }
+
+    private static class Segment {
+        final long id;
+        final File file;
+        ByteBuffer buffer;
+        int size;
+        long minTime = Long.MAX_VALUE;
+        long maxTime = 0;
+        Map<String, OffsetList> index = new HashMap<String, OffsetList>();
+
+        Segment(long id, File file) {
+            this.id = id;
+            this.file = file;
+        }
+
+        void indexRecord(String resourceUuid, int offset, long time) {
+            OffsetList l = index.get(resourceUuid);
+            if (l == null) {
+                l = new OffsetList();
+                index.put(resourceUuid, l);
+            }
+            l.add(offset);
+            minTime = Math.min(minTime, time);
+            maxTime = Math.max(maxTime, time);
+        }
+    }
+
+    private static long segmentId(File f) {
+        String name = f.getName();
+        return Long.valueOf(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    private File segmentFile(long id) {
+        return new File(dir, String.format("%s%s%s", PREFIX, id, SUFFIX));
+    }
+
+    private static ByteBuffer map(File f, FileChannel.MapMode mode, long size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw");
+        try {
+            return raf.getChannel().map(mode, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static LogVO decode(ByteBuffer buf, int offset) {
+        int p = offset + 4;
+        LogVO vo = new LogVO();
+        vo.setCreateDate(new Timestamp(buf.getLong(p)));
+        vo.setLastOpDate(vo.getCreateDate());
+        p += 8;
+        vo.setType(LogType.fromCode(buf.get(p)));
+        p += 1;
+        vo.setLevel(LogLevel.fromCode(buf.get(p)));
+        p += 1;
+        short uuidLen = buf.getShort(p);
+        p += 2;
+        vo.setResourceUuid(readString(buf, p, uuidLen));
+        p += uuidLen;
+        int contentLen = buf.getInt(p);
+        p += 4;
+        vo.setContent(readString(buf, p, contentLen));
+        return vo;
+    }
+
+    private static String readString(ByteBuffer buf, int start, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer dup = buf.duplicate();
+        dup.position(start);
+        dup.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    private static void scan(Segment seg) {
+        ByteBuffer buf = seg.buffer;
+        int p = 0;
+        while (p + 4 <= buf.limit()) {
+            int len = buf.getInt(p);
+            if (len <= 0 || p + 4 + len > buf.limit()) {
+                break;
+            }
+
+            int up = p + 4 + 8 + 1 + 1;
+            seg.indexRecord(readString(buf, up + 2, buf.getShort(up)), p, buf.getLong(p + 4));
+            p += 4 + len;
+        }
+        seg.size = p;
+    }
+
+    private Segment openSealed(File f) throws IOException {
+        Segment seg = new Segment(segmentId(f), f);
+        seg.buffer = map(f, FileChannel.MapMode.READ_ONLY, f.length());
+        scan(seg);
+        return seg;
+    }
+
+    private static void syncDirectory(File d) throws IOException {
+        // makes a created or renamed file durable, not only its content
+        FileChannel ch = FileChannel.open(d.toPath(), StandardOpenOption.READ);
+        try {
+            ch.force(true);
+        } finally {
+            ch.close();
+        }
+    }
+
+    private Segment newActive(long id) throws IOException {
+        Segment seg = new Segment(id, segmentFile(id));
+        seg.buffer = map(seg.file, FileChannel.MapMode.READ_WRITE, LogGlobalProperty.FILE_BACKEND_SEGMENT_SIZE);
+        syncDirectory(dir);
+        return seg;
+    }
+
+    // must be called with this locked
+    private void seal(Segment seg) throws IOException {
+        ((MappedByteBuffer) seg.buffer).force();
+        if (seg.size == 0) {
+            segments.remove(seg);
+            seg.file.delete();
+            return;
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(seg.file, "rw");
+        try {
+            raf.setLength(seg.size);
+        } finally {
+            raf.close();
+        }
+        seg.buffer = map(seg.file, FileChannel.MapMode.READ_ONLY, seg.size);
+    }
+
+    private synchronized void ensureLoaded() {
+        if (isLoaded) {
+            return;
+        }
+
+        // not created here, a read on a backend never started must leave no file behind
+        dir = new File(PathUtil.join(PathUtil.getZStackHomeFolder(), LogGlobalProperty.FILE_BACKEND_DIR));
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File d, String name) {
+                return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+            }
+        });
+
+        List<File> lst = files == null ? new ArrayList<File>() : Arrays.asList(files);
+        Collections.sort(lst, new Comparator<File>() {
+            @Override
+            public int compare(File o1, File o2) {
+                return Long.valueOf(segmentId(o1)).compareTo(segmentId(o2));
+            }
+        });
+
+        try {
+            for (File f : lst) {
+                segments.add(openSealed(f));
+                lastId = segmentId(f);
+            }
+        } catch (IOException e) {
+            throw new CloudRuntimeException(String.format("unable to load log segments in %s", dir.getAbsolutePath()), e);
+        }
+
+        logger.debug(String.format("loaded %s log segments from %s", segments.size(), dir.getAbsolutePath()));
+        isLoaded = true;
+    }
+
+    private synchronized void ensureWritable() {
+        ensureLoaded();
+        if (active != null) {
+            return;
+        }
+
+        try {
+            if (!dir.exists() && !dir.mkdirs()) {
+                throw new IOException(String.format("unable to create directory %s", dir.getAbsolutePath()));
+            }
+
+            for (Segment seg : new ArrayList<Segment>(segments)) {
+                // the previous active segment is still at its preallocated size
+                if (seg.size < seg.file.length()) {
+                    seal(seg);
+                }
+            }
+
+            active = newActive(lastId + 1);
+            segments.add(active);
+        } catch (IOException e) {
+            throw new CloudRuntimeException(String.format("unable to open log segments in %s", dir.getAbsolutePath()), e);
+        }
+    }
+
+    private byte[] encode(LogVO log, long time) {
+        byte[] uuid = log.getResourceUuid().getBytes(UTF8);
+        byte[] content = log.getContent() == null ? new byte[0] : log.getContent().getBytes(UTF8);
+        long max = LogGlobalProperty.FILE_BACKEND_SEGMENT_SIZE - HEADER_SIZE - uuid.length;
+        if (content.length > max) {
+            logger.warn(String.format("log of resource[uuid:%s] is larger than a log segment, truncated to %s bytes", log.getResourceUuid(), max));
+            content = Arrays.copyOf(content, (int) max);
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + uuid.length + content.length);
+        buf.putInt(0);
+        buf.putLong(time);
+        buf.put((byte) log.getType().getCode());
+        buf.put((byte) log.getLevel().getCode());
+        buf.putShort((short) uuid.length);
+        buf.put(uuid);
+        buf.putInt(content.length);
+        buf.put(content);
+        return buf.array();
+    }
+
+    private synchronized void append(LogVO log) throws IOException {
+        long time = System.currentTimeMillis();
+        byte[] record = encode(log, time);
+        if (active.size + record.length > active.buffer.capacity()) {
+            seal(active);
+            active = newActive(active.id + 1);
+            segments.add(active);
+        }
+
+        int offset = active.size;
+        ByteBuffer dup = active.buffer.duplicate();
+        dup.position(offset + 4);
+        dup.put(record, 4, record.length - 4);
+        // publish the record by writing its length last
+        active.buffer.putInt(offset, record.length - 4);
+        active.size += record.length;
+        active.indexRecord(log.getResourceUuid(), offset, time);
+    }
+
+    @Override
+    public void write(LogVO log) {
+        if (!isStarted) {
+            return;
+        }
+
+        try {
+            queue.offer(log, 60, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            logger.warn(String.format("unable to write log of resource[uuid:%s]", log.getResourceUuid()), e);
+        }
+    }
+
+    @Override
+    public void read(String resourceUuid, LogVisitor visitor) {
+        ensureLoaded();
+
+        List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+        List<int[]> offsets = new ArrayList<int[]>();
+        synchronized (this) {
+            for (Segment seg : segments) {
+                OffsetList l = seg.index.get(resourceUuid);
+                if (l != null) {
+                    buffers.add(seg.buffer.duplicate());
+                    offsets.add(l.toArray());
+                }
+            }
+        }
+
+        for (int i=0; i<buffers.size(); i++) {
+            for (int offset : offsets.get(i)) {
+                if (!visitor.visit(decode(buffers.get(i), offset))) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void batchWrite(List lst) {
+        for (Object obj : lst) {
+            if (!(obj instanceof LogVO)) {
+                continue;
+            }
+
+            try {
+                append((LogVO) obj);
+            } catch (Throwable t) {
+                logger.warn(String.format("unable to write log of resource[uuid:%s]", ((LogVO) obj).getResourceUuid()), t);
+            }
+        }
+    }
+
+    private void consume() throws InterruptedException {
+        while (true) {
+            List lst = new ArrayList();
+            lst.add(queue.take());
+            queue.drainTo(lst);
+            batchWrite(lst);
+            if (lst.contains(quitToken)) {
+                synchronized (this) {
+                    ((MappedByteBuffer) active.buffer).force();
+                }
+                return;
+            }
+        }
+    }
+
+    private Segment compact(Segment seg, long cutoff) throws IOException {
+        File tmp = new File(dir, seg.file.getName() + ".compact");
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        try {
+            FileChannel ch = raf.getChannel();
+            ByteBuffer buf = seg.buffer.duplicate();
+            int p = 0;
+            while (p < seg.size) {
+                int len = buf.getInt(p);
+                if (buf.getLong(p + 4) >= cutoff) {
+                    ByteBuffer rec = seg.buffer.duplicate();
+                    rec.position(p);
+                    rec.limit(p + 4 + len);
+                    ch.write(rec);
+                }
+                p += 4 + len;
+            }
+            ch.force(true);
+        } finally {
+            raf.close();
+        }
+
+        if (!tmp.renameTo(seg.file)) {
+            tmp.delete();
+            throw new CloudRuntimeException(String.format("unable to replace %s with its compacted copy", seg.file.getAbsolutePath()));
+        }
+        // the rename is lost on a crash unless the directory is synced
+        syncDirectory(dir);
+        return openSealed(seg.file);
+    }
+
+    private void maintain() {
+        long cutoff = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(LogGlobalProperty.FILE_BACKEND_RETENTION_DAYS);
+        List<Segment> sealed;
+        synchronized (this) {
+            sealed = new ArrayList<Segment>(segments);
+            sealed.remove(active);
+        }
+
+        int deleted = 0;
+        int compacted = 0;
+        for (Segment seg : sealed) {
+            try {
+                if (seg.maxTime < cutoff) {
+                    synchronized (this) {
+                        segments.remove(seg);
+                    }
+                    seg.file.delete();
+                    deleted ++;
+                } else if (seg.minTime < cutoff) {
+                    // sealed segments are immutable, rewrite them without holding the lock
+                    Segment c = compact(seg, cutoff);
+                    synchronized (this) {
+                        segments.set(segments.indexOf(seg), c);
+                    }
+                    compacted ++;
+                }
+            } catch (Throwable t) {
+                logger.warn(String.format("unable to apply retention to log segment[%s]", seg.file.getAbsolutePath()), t);
+            }
+        }
+
+        if (deleted > 0 || compacted > 0) {
+            logger.debug(String.format("log retention deleted %s segments and compacted %s segments", deleted, compacted));
+        }
+    }
+
+    @Override
+    public String getLogBackendType() {
+        return LogConstant.FILE_BACKEND_TYPE;
+    }
+
+    @Override
+    public void start() {
+        ensureWritable();
+        isStarted = true;
+        thdf.submit(new Task<Void>() {
+            @Override
+            public String getName() {
+                return "file-log-thread";
+            }
+
+            @Override
+            public Void call() throws Exception {
+                consume();
+                return null;
+            }
+        });
+
+        maintenanceTask = thdf.submitPeriodicTask(new PeriodicTask() {
+            @Override
+            public TimeUnit getTimeUnit() {
+                return TimeUnit.SECONDS;
+            }
+
+            @Override
+            public long getInterval() {
+                return LogGlobalProperty.FILE_BACKEND_MAINTENANCE_INTERVAL;
+            }
+
+            @Override
+            public String getName() {
+                return "file-log-maintenance";
+            }
+
+            @Override
+            public void run() {
+                maintain();
+            }
+        });
+    }
+
+    @Override
+    public void stop() {
+        isStarted = false;
+        if (maintenanceTask != null) {
+            maintenanceTask.cancel(true);
+        }
+
+        try {
+            queue.offer(quitToken, 60, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            logger.warn(e.getMessage(), e);
+        }
+    }
+}
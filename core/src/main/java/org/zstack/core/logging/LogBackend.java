@@ -5,6 +5,8 @@ package org.zstack.core.logging;
 public interface LogBackend {
     void write(LogVO log);
 
+    void read(String resourceUuid, LogVisitor visitor);
+
     String getLogBackendType();
 
     void start();
@@ -4,4 +4,5 @@ package org.zstack.core.logging;
  */
 public class LogConstant {
     public final static String MYSQL_BACKEND_TYPE = "mysql";
+    public final static String FILE_BACKEND_TYPE = "file";
 }
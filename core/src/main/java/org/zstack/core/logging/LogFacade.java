@@ -10,4 +10,9 @@ public interface LogFacade {
     void warn(String resourceUuid, String info);
 
     void error(String resourceUuid, String info);
+
+    /**
+     * streams logs of the resource, oldest first, from the configured backend
+     */
+    void read(String resourceUuid, LogVisitor visitor);
 }
@@ -54,6 +54,11 @@ public class LogFacadeImpl implements LogFacade, Component {
         write(resourceUuid, LogType.Text, LogLevel.Error, info);
     }
 
+    @Override
+    public void read(String resourceUuid, LogVisitor visitor) {
+        backend.read(resourceUuid, visitor);
+    }
+
     @Override
     public boolean start() {
         for (LogBackend bkd : pluginRgty.getExtensionList(LogBackend.class)) {
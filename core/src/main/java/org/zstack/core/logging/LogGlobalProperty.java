@@ -9,4 +9,12 @@ import org.zstack.core.GlobalPropertyDefinition;
 public class LogGlobalProperty {
     @GlobalProperty(name="LogFacade.backend", defaultValue = LogConstant.MYSQL_BACKEND_TYPE)
     public static String LOG_FACADE_BACKEND_TYPE;
+    @GlobalProperty(name="LogFacade.fileBackend.dir", defaultValue = "resourceLogs")
+    public static String FILE_BACKEND_DIR;
+    @GlobalProperty(name="LogFacade.fileBackend.segmentSize", defaultValue = "67108864")
+    public static long FILE_BACKEND_SEGMENT_SIZE;
+    @GlobalProperty(name="LogFacade.fileBackend.retentionDays", defaultValue = "30")
+    public static int FILE_BACKEND_RETENTION_DAYS;
+    @GlobalProperty(name="LogFacade.fileBackend.maintenanceInterval", defaultValue = "3600")
+    public static long FILE_BACKEND_MAINTENANCE_INTERVAL;
 }
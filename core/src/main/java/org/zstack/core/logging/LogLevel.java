@@ -3,7 +3,27 @@ package org.zstack.core.logging;
 /**
  */
 public enum LogLevel {
-    Info,
-    Warn,
-    Error,
+    Info(0),
+    Warn(1),
+    Error(2);
+
+    // stored in log files, never change the code of an existing value
+    private final int code;
+
+    private LogLevel(int code) {
+        this.code = code;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    public static LogLevel fromCode(int code) {
+        for (LogLevel v : values()) {
+            if (v.code == code) {
+                return v;
+            }
+        }
+        throw new IllegalArgumentException(String.format("unknown LogLevel code[%s]", code));
+    }
 }
@@ -3,6 +3,26 @@ package org.zstack.core.logging;
 /**
  */
 public enum LogType {
-    Text,
-    Json,
+    Text(0),
+    Json(1);
+
+    // stored in log files, never change the code of an existing value
+    private final int code;
+
+    private LogType(int code) {
+        this.code = code;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    public static LogType fromCode(int code) {
+        for (LogType v : values()) {
+            if (v.code == code) {
+                return v;
+            }
+        }
+        throw new IllegalArgumentException(String.format("unknown LogType code[%s]", code));
+    }
 }
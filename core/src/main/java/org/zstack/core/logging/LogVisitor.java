@@ -0,0 +1,10 @@
+package org.zstack.core.logging;
+
+/**
+ */
+public interface LogVisitor {
+    /**
+     * @return false to stop reading
+     */
+    boolean visit(LogVO log);
+}
@@ -3,6 +3,7 @@ package org.zstack.core.logging;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.transaction.annotation.Transactional;
 import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.db.SimpleQuery;
 import org.zstack.core.thread.Task;
 import org.zstack.core.thread.ThreadFacade;
 import org.zstack.utils.CollectionUtils;
@@ -21,6 +22,7 @@ import java.util.concurrent.TimeUnit;
  */
 public class MysqlLogBackend implements LogBackend {
     private static final CLogger logger = Utils.getLogger(MysqlLogBackend.class);
+    private static final int READ_PAGE_SIZE = 1000;
 
     @Autowired
     private DatabaseFacade dbf;
@@ -47,6 +49,29 @@ public class MysqlLogBackend implements LogBackend {
         }
     }
 
+    @Override
+    public void read(String resourceUuid, LogVisitor visitor) {
+        long lastId = 0;
+        while (true) {
+            SimpleQuery<LogVO> q = dbf.createQuery(LogVO.class);
+            q.add(LogVO_.resourceUuid, SimpleQuery.Op.EQ, resourceUuid);
+            q.add(LogVO_.id, SimpleQuery.Op.GT, lastId);
+            q.orderBy(LogVO_.id, SimpleQuery.Od.ASC);
+            q.setLimit(READ_PAGE_SIZE);
+            List<LogVO> vos = q.list();
+            for (LogVO vo : vos) {
+                if (!visitor.visit(vo)) {
+                    return;
+                }
+                lastId = vo.getId();
+            }
+
+            if (vos.size() < READ_PAGE_SIZE) {
+                return;
+            }
+        }
+    }
+
     @Override
     public String getLogBackendType() {
         return LogConstant.MYSQL_BACKEND_TYPE;
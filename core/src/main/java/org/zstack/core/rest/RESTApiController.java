@@ -77,4 +77,20 @@ public class RESTApiController {
             response.sendError(HttpStatus.SC_INTERNAL_SERVER_ERROR, sb.toString());
         }
     }
+
+    @RequestMapping(value = RESTConstant.REST_API_QUERY_STREAM, method = { RequestMethod.POST, RequestMethod.PUT })
+    public void streamQuery(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        HttpEntity<String> entity = restf.httpServletRequestToHttpEntity(request);
+        try {
+            response.setStatus(HttpStatus.SC_OK);
+            response.setContentType("application/json");
+            // no content length, the servlet container sends the replies in chunks
+            restApi.streamQuery(entity.getBody(), response.getWriter());
+        } catch (Throwable t) {
+            logger.debug(String.format("Error when calling %s, body: %s", request.getRequestURI(), entity.getBody()), t);
+            if (!response.isCommitted()) {
+                response.sendError(HttpStatus.SC_INTERNAL_SERVER_ERROR, t.getMessage());
+            }
+        }
+    }
 }
@@ -6,12 +6,17 @@ import org.springframework.context.annotation.ClassPathScanningCandidateComponen
 import org.springframework.core.type.filter.AnnotationTypeFilter;
 import org.springframework.core.type.filter.AssignableTypeFilter;
 import org.springframework.stereotype.Controller;
+import org.zstack.core.Platform;
 import org.zstack.core.cloudbus.CloudBus;
 import org.zstack.core.cloudbus.CloudBusEventListener;
+import org.zstack.core.errorcode.ErrorFacade;
 import org.zstack.header.apimediator.ApiMediatorConstant;
 import org.zstack.header.exception.CloudRuntimeException;
 import org.zstack.header.message.*;
+import org.zstack.header.query.APIQueryMessage;
+import org.zstack.header.query.APIQueryReply;
 import org.zstack.header.rest.RESTApiFacade;
+import org.zstack.header.rest.RESTConstant;
 import org.zstack.header.rest.RestAPIResponse;
 import org.zstack.header.rest.RestAPIState;
 import org.zstack.header.rest.RestAPIVO;
@@ -23,6 +28,8 @@ import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.EntityTransaction;
 import javax.persistence.Query;
+import java.io.IOException;
+import java.io.Writer;
 import java.util.*;
 
 public class RESTApiFacadeImpl implements RESTApiFacade, CloudBusEventListener {
@@ -35,6 +42,8 @@ public class RESTApiFacadeImpl implements RESTApiFacade, CloudBusEventListener {
 
     @Autowired
     private CloudBus bus;
+    @Autowired
+    private ErrorFacade errf;
 
     void init() throws ClassNotFoundException, InstantiationException, IllegalAccessException {
         Set<APIEvent> boundEvents = new HashSet<APIEvent>(100);
@@ -110,6 +119,60 @@ public class RESTApiFacadeImpl implements RESTApiFacade, CloudBusEventListener {
         return rsp;
     }
 
+    private APIQueryMessage loadQueryMessage(String body, String continuationToken) {
+        Message msg = RESTApiDecoder.loads(body);
+        if (!(msg instanceof APIQueryMessage)) {
+            throw new IllegalArgumentException(String.format("only query APIs can be streamed, but got %s", msg.getMessageName()));
+        }
+
+        APIQueryMessage qmsg = (APIQueryMessage) msg;
+        // every page is a new message
+        qmsg.setId(Platform.getUuid());
+        qmsg.setKeysetPaging(true);
+        if (qmsg.getLimit() == null) {
+            qmsg.setLimit(RESTConstant.REST_API_QUERY_STREAM_PAGE_SIZE);
+        }
+        qmsg.setContinuationToken(continuationToken);
+        qmsg.setServiceId(ApiMediatorConstant.SERVICE_ID);
+        return qmsg;
+    }
+
+    @Override
+    public void streamQuery(String body, Writer writer) throws IOException {
+        APIQueryMessage msg = loadQueryMessage(body, null);
+        writer.write("[");
+        boolean first = true;
+        try {
+            while (true) {
+                MessageReply reply = bus.call(msg);
+                String page = RESTApiDecoder.dump(reply);
+                writer.write(first ? page : "," + page);
+                writer.flush();
+                first = false;
+
+                String token = reply.isSuccess() && reply instanceof APIQueryReply ? ((APIQueryReply) reply).getContinuationToken() : null;
+                if (token == null) {
+                    break;
+                }
+
+                msg = loadQueryMessage(body, token);
+            }
+        } catch (IOException e) {
+            // the client is gone, nothing can be written any more
+            throw e;
+        } catch (Throwable t) {
+            // the response is committed by now, end the array with the error so the client
+            // can tell a failed stream from a complete one
+            logger.warn(String.format("failed to stream query, body: %s", body), t);
+            APIReply reply = new APIReply();
+            reply.setError(errf.throwableToInternalError(t));
+            String page = RESTApiDecoder.dump(reply);
+            writer.write(first ? page : "," + page);
+        }
+        writer.write("]");
+        writer.flush();
+    }
+
     private RestAPIVO find(String uuid) {
         EntityManager mgr = getEntityManager();
         EntityTransaction tran = mgr.getTransaction();
@@ -0,0 +1,410 @@
+package org.zstack.core.thread;
+
+import org.zstack.utils.DebugUtils;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * a DispatchQueue without global monitors.
+ *
+ * Every sync signature owns a queue in a concurrent map. Tasks are enqueued and
+ * dequeued lock-free; the number of workers of a queue is bounded by its sync level
+ * through CAS. A queue counts its unfinished tasks and retires itself when the count
+ * drops to zero, a submitter finding a retired queue replaces it with a new one.
+ */
+class ConcurrentDispatchQueueImpl implements DispatchQueue {
+    private static final CLogger logger = Utils.getLogger(ConcurrentDispatchQueueImpl.class);
+
+    private static final String SYNC_QUEUE = "sync";
+    private static final String CHAIN_QUEUE = "chain";
+
+    private final ThreadFacade thdf;
+    private final ConcurrentMap<String, SignatureQueue> syncQueues = new ConcurrentHashMap<String, SignatureQueue>();
+    private final ConcurrentMap<String, SignatureQueue> chainQueues = new ConcurrentHashMap<String, SignatureQueue>();
+
+    ConcurrentDispatchQueueImpl(ThreadFacade thdf) {
+        this.thdf = thdf;
+    }
+
+    private interface QueuedFuture {
+        void setEnqueueTime(long time);
+
+        long getEnqueueTime();
+    }
+
+    private class SyncTaskFuture<T> extends AbstractFuture<T> implements QueuedFuture {
+        private long enqueueTime;
+
+        public SyncTaskFuture(SyncTask<T> task) {
+            super(task);
+        }
+
+        private SyncTask getTask() {
+            return (SyncTask) task;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            cancel();
+            return true;
+        }
+
+        void run() {
+            if (isCancelled()) {
+                return;
+            }
+
+            try {
+                ret = (T) getTask().call();
+            } catch (Throwable t) {
+                logger.warn(String.format("unhandled exception happened when calling sync task[name:%s, class:%s]",
+                        getTask().getName(), getTask().getClass().getName()), t);
+                exception = t;
+            }
+
+            done();
+        }
+
+        @Override
+        public void setEnqueueTime(long time) {
+            enqueueTime = time;
+        }
+
+        @Override
+        public long getEnqueueTime() {
+            return enqueueTime;
+        }
+    }
+
+    private class ChainFuture extends AbstractFuture implements QueuedFuture {
+        private AtomicBoolean isNextCalled = new AtomicBoolean(false);
+        private long enqueueTime;
+
+        public ChainFuture(ChainTask task) {
+            super(task);
+        }
+
+        private ChainTask getTask() {
+            return (ChainTask) task;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            cancel();
+            return true;
+        }
+
+        private void callNext(SyncTaskChain chain) {
+            if (!isNextCalled.compareAndSet(false, true)) {
+                return;
+            }
+
+            chain.next();
+        }
+
+        void run(final SyncTaskChain chain) {
+            if (isCancelled()) {
+                callNext(chain);
+                return;
+            }
+
+            try {
+                getTask().run(new SyncTaskChain() {
+                    @Override
+                    public void next() {
+                        try {
+                            done();
+                        } finally {
+                            callNext(chain);
+                        }
+                    }
+                });
+            } catch (Throwable t) {
+                try {
+                    logger.warn(String.format("unhandled exception happened when calling %s", task.getClass().getName()), t);
+                    done();
+                } finally {
+                    callNext(chain);
+                }
+            }
+        }
+
+        @Override
+        public void setEnqueueTime(long time) {
+            enqueueTime = time;
+        }
+
+        @Override
+        public long getEnqueueTime() {
+            return enqueueTime;
+        }
+    }
+
+    private abstract class SignatureQueue {
+        final String syncSignature;
+        final int maxThreadNum;
+        final ConcurrentMap<String, SignatureQueue> owner;
+        final ConcurrentLinkedQueue<QueuedFuture> tasks = new ConcurrentLinkedQueue<QueuedFuture>();
+        // tasks enqueued but not finished; -1 means the queue is retired
+        final AtomicInteger unfinished = new AtomicInteger(0);
+        final AtomicInteger workers = new AtomicInteger(0);
+        final WaitTimeHistogram waitTime = new WaitTimeHistogram();
+
+        SignatureQueue(String syncSignature, int maxThreadNum, ConcurrentMap<String, SignatureQueue> owner) {
+            this.syncSignature = syncSignature;
+            this.maxThreadNum = maxThreadNum;
+            this.owner = owner;
+        }
+
+        boolean offer(QueuedFuture f) {
+            while (true) {
+                int n = unfinished.get();
+                if (n < 0) {
+                    return false;
+                }
+
+                if (unfinished.compareAndSet(n, n + 1)) {
+                    break;
+                }
+            }
+
+            f.setEnqueueTime(System.nanoTime());
+            tasks.offer(f);
+            return true;
+        }
+
+        QueuedFuture poll() {
+            QueuedFuture f = tasks.poll();
+            if (f != null) {
+                waitTime.record(System.nanoTime() - f.getEnqueueTime());
+            }
+            return f;
+        }
+
+        boolean tryAcquireWorker() {
+            while (true) {
+                int n = workers.get();
+                if (n >= maxThreadNum) {
+                    return false;
+                }
+
+                if (workers.compareAndSet(n, n + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void startWorkerIfNeeded() {
+            if (tryAcquireWorker()) {
+                startWorker();
+            }
+        }
+
+        /**
+         * called by a worker that found the queue empty. Returns true if a task slipped
+         * in meanwhile and the caller got the worker slot back to run it.
+         */
+        boolean releaseWorker() {
+            workers.decrementAndGet();
+            return !tasks.isEmpty() && tryAcquireWorker();
+        }
+
+        void taskDone() {
+            if (unfinished.decrementAndGet() == 0 && unfinished.compareAndSet(0, -1)) {
+                owner.remove(syncSignature, this);
+            }
+        }
+
+        abstract String getQueueType();
+
+        abstract void startWorker();
+
+        DispatchQueueStatistic getStatistic() {
+            return new DispatchQueueStatistic(
+                    syncSignature,
+                    getQueueType(),
+                    maxThreadNum,
+                    workers.get(),
+                    tasks.size(),
+                    waitTime.snapshot()
+            );
+        }
+    }
+
+    private class SyncTaskQueue extends SignatureQueue {
+        SyncTaskQueue(String syncSignature, int maxThreadNum) {
+            super(syncSignature, maxThreadNum, syncQueues);
+        }
+
+        @Override
+        String getQueueType() {
+            return SYNC_QUEUE;
+        }
+
+        @Override
+        void startWorker() {
+            thdf.submit(new Task<Void>() {
+                @Override
+                public String getName() {
+                    return syncSignature;
+                }
+
+                @Override
+                public Void call() throws Exception {
+                    do {
+                        QueuedFuture f;
+                        while ((f = poll()) != null) {
+                            try {
+                                ((SyncTaskFuture) f).run();
+                            } finally {
+                                taskDone();
+                            }
+                        }
+                    } while (releaseWorker());
+
+                    return null;
+                }
+            });
+        }
+    }
+
+    private class ChainTaskQueue extends SignatureQueue {
+        ChainTaskQueue(String syncSignature, int maxThreadNum) {
+            super(syncSignature, maxThreadNum, chainQueues);
+        }
+
+        @Override
+        String getQueueType() {
+            return CHAIN_QUEUE;
+        }
+
+        @Override
+        void startWorker() {
+            // start a new thread every time to avoid stack overflow
+            thdf.submit(new Task<Void>() {
+                @Override
+                public String getName() {
+                    return "sync-chain-thread";
+                }
+
+                @Override
+                public Void call() throws Exception {
+                    runQueue();
+                    return null;
+                }
+            });
+        }
+
+        private void runQueue() {
+            ChainFuture cf = (ChainFuture) poll();
+            if (cf == null) {
+                if (releaseWorker()) {
+                    startWorker();
+                }
+                return;
+            }
+
+            cf.run(new SyncTaskChain() {
+                @Override
+                public void next() {
+                    taskDone();
+                    startWorker();
+                }
+            });
+        }
+    }
+
+    private void enqueue(ConcurrentMap<String, SignatureQueue> queues, String signature, int syncLevel, QueuedFuture f) {
+        while (true) {
+            SignatureQueue q = queues.get(signature);
+            if (q == null) {
+                SignatureQueue nq = queues == syncQueues ? new SyncTaskQueue(signature, syncLevel) : new ChainTaskQueue(signature, syncLevel);
+                q = queues.putIfAbsent(signature, nq);
+                if (q == null) {
+                    q = nq;
+                }
+            }
+
+            if (q.offer(f)) {
+                q.startWorkerIfNeeded();
+                return;
+            }
+
+            // the queue retired between get() and offer(), help removing it and retry
+            queues.remove(signature, q);
+        }
+    }
+
+    @Override
+    public <T> Future<T> syncSubmit(SyncTask<T> task) {
+        if (task.getSyncLevel() <= 0) {
+            return thdf.submit(task);
+        }
+
+        assert task.getSyncSignature() != null : "How can you submit a sync task without sync signature ???";
+        SyncTaskFuture<T> f = new SyncTaskFuture<T>(task);
+        enqueue(syncQueues, task.getSyncSignature(), task.getSyncLevel(), f);
+        return f;
+    }
+
+    @Override
+    public Future<Void> chainSubmit(ChainTask task) {
+        assert task.getSyncSignature() != null : "How can you submit a chain task without sync signature ???";
+        DebugUtils.Assert(task.getSyncLevel() >= 1, String.format("getSyncLevel() must return more than 1"));
+
+        ChainFuture f = new ChainFuture(task);
+        enqueue(chainQueues, task.getSyncSignature(), task.getSyncLevel(), f);
+        return f;
+    }
+
+    @Override
+    public Map<String, SyncTaskStatistic> getSyncTaskStatistics() {
+        Map<String, SyncTaskStatistic> ret = new HashMap<String, SyncTaskStatistic>();
+        for (SignatureQueue q : syncQueues.values()) {
+            SyncTaskStatistic statistic = new SyncTaskStatistic(
+                    q.syncSignature,
+                    q.maxThreadNum,
+                    q.workers.get(),
+                    q.tasks.size()
+            );
+            ret.put(statistic.getSyncSignature(), statistic);
+        }
+        return ret;
+    }
+
+    @Override
+    public Map<String, ChainTaskStatistic> getChainTaskStatistics() {
+        Map<String, ChainTaskStatistic> ret = new HashMap<String, ChainTaskStatistic>();
+        for (SignatureQueue q : chainQueues.values()) {
+            ChainTaskStatistic statistic = new ChainTaskStatistic(
+                    q.syncSignature,
+                    q.maxThreadNum,
+                    q.workers.get(),
+                    q.tasks.size()
+            );
+            ret.put(statistic.getSyncSignature(), statistic);
+        }
+        return ret;
+    }
+
+    @Override
+    public Map<String, DispatchQueueStatistic> getDispatchQueueStatistics() {
+        Map<String, DispatchQueueStatistic> ret = new HashMap<String, DispatchQueueStatistic>();
+        for (SignatureQueue q : syncQueues.values()) {
+            ret.put(String.format("%s:%s", SYNC_QUEUE, q.syncSignature), q.getStatistic());
+        }
+        for (SignatureQueue q : chainQueues.values()) {
+            ret.put(String.format("%s:%s", CHAIN_QUEUE, q.syncSignature), q.getStatistic());
+        }
+        return ret;
+    }
+}
@@ -343,4 +343,35 @@ class DispatchQueueImpl implements DispatchQueue {
         }
         return ret;
     }
+
+    @Override
+    public Map<String, DispatchQueueStatistic> getDispatchQueueStatistics() {
+        // this queue doesn't record wait time
+        Map<String, DispatchQueueStatistic> ret = new HashMap<String, DispatchQueueStatistic>();
+        synchronized (syncTasks) {
+            for (SyncTaskQueueWrapper wrapper : syncTasks.values()) {
+                ret.put(String.format("sync:%s", wrapper.syncSignature), new DispatchQueueStatistic(
+                        wrapper.syncSignature,
+                        "sync",
+                        wrapper.maxThreadNum,
+                        wrapper.counter.intValue(),
+                        wrapper.queue.size(),
+                        new long[0]
+                ));
+            }
+        }
+        synchronized (chainTasks) {
+            for (ChainTaskQueueWrapper wrapper : chainTasks.values()) {
+                ret.put(String.format("chain:%s", wrapper.syncSignature), new DispatchQueueStatistic(
+                        wrapper.syncSignature,
+                        "chain",
+                        wrapper.maxThreadNum,
+                        wrapper.counter.intValue(),
+                        wrapper.queue.size(),
+                        new long[0]
+                ));
+            }
+        }
+        return ret;
+    }
 }
@@ -0,0 +1,51 @@
+package org.zstack.core.thread;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * waitTimeHistogram[0] counts tasks that waited less than 1 millisecond in the queue,
+ * waitTimeHistogram[i] counts tasks that waited [2^(i-1), 2^i) milliseconds, the last
+ * bucket counts everything longer.
+ */
+public class DispatchQueueStatistic {
+    private String syncSignature;
+    private String queueType;
+    private int syncLevel;
+    private int currentRunningThreadNum;
+    private long pendingTaskNum;
+    private long[] waitTimeHistogram;
+
+    @ConstructorProperties({"syncSignature", "queueType", "syncLevel", "currentRunningThreadNum", "pendingTaskNum", "waitTimeHistogram"})
+    public DispatchQueueStatistic(String syncSignature, String queueType, int syncLevel, int currentRunningThreadNum, long pendingTaskNum, long[] waitTimeHistogram) {
+        this.syncSignature = syncSignature;
+        this.queueType = queueType;
+        this.syncLevel = syncLevel;
+        this.currentRunningThreadNum = currentRunningThreadNum;
+        this.pendingTaskNum = pendingTaskNum;
+        this.waitTimeHistogram = waitTimeHistogram;
+    }
+
+    public String getSyncSignature() {
+        return syncSignature;
+    }
+
+    public String getQueueType() {
+        return queueType;
+    }
+
+    public int getSyncLevel() {
+        return syncLevel;
+    }
+
+    public int getCurrentRunningThreadNum() {
+        return currentRunningThreadNum;
+    }
+
+    public long getPendingTaskNum() {
+        return pendingTaskNum;
+    }
+
+    public long[] getWaitTimeHistogram() {
+        return waitTimeHistogram;
+    }
+}
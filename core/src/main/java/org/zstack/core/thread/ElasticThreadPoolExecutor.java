@@ -0,0 +1,90 @@
+package org.zstack.core.thread;
+
+import org.zstack.utils.logging.CLogger;
+import org.zstack.utils.logging.CLoggerImpl;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * a work pool that grows to maxPoolSize before queuing and shrinks back to
+ * corePoolSize when threads are idle for a minute.
+ *
+ * ThreadPoolExecutor only adds threads beyond the core size when the queue refuses
+ * a task, so the queue here refuses whenever no thread is idle and the pool can still
+ * grow; once the pool is at its maximum, tasks are queued. Idle threads are known by
+ * comparing the count of submitted but unfinished tasks with the pool size, the count
+ * is kept by execute() and afterExecute() so a submission doesn't walk the workers.
+ * ThreadAroundHooks are shared with the scheduler pool.
+ */
+public class ElasticThreadPoolExecutor extends ThreadPoolExecutor {
+    private static final CLogger _logger = CLoggerImpl.getLogger(ElasticThreadPoolExecutor.class);
+
+    private final ScheduledThreadPoolExecutorExt hookHolder;
+    private final AtomicInteger submittedCount = new AtomicInteger(0);
+
+    private static class ElasticTaskQueue extends LinkedBlockingQueue<Runnable> {
+        private ElasticThreadPoolExecutor executor;
+
+        @Override
+        public boolean offer(Runnable r) {
+            int poolSize = executor.getPoolSize();
+            if (poolSize >= executor.getMaximumPoolSize()) {
+                return super.offer(r);
+            }
+
+            if (executor.submittedCount.get() <= poolSize) {
+                // the task is counted already, an idle thread will take it
+                return super.offer(r);
+            }
+
+            return false;
+        }
+
+        boolean force(Runnable r) {
+            return super.offer(r);
+        }
+    }
+
+    public ElasticThreadPoolExecutor(int corePoolSize, int maxPoolSize, ThreadFactory threadFactory, ScheduledThreadPoolExecutorExt hookHolder) {
+        super(corePoolSize, maxPoolSize, 60, TimeUnit.SECONDS, new ElasticTaskQueue(), threadFactory);
+        this.hookHolder = hookHolder;
+        ((ElasticTaskQueue) getQueue()).executor = this;
+
+        setRejectedExecutionHandler(new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                if (executor.isShutdown()) {
+                    submittedCount.decrementAndGet();
+                    _logger.warn(String.format("Task %s got rejected by the elastic thread pool, the pool has been shut down", r.getClass().getSimpleName()));
+                    return;
+                }
+
+                // the pool reached its maximum between offer() and addWorker()
+                ((ElasticTaskQueue) executor.getQueue()).force(r);
+            }
+        });
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        submittedCount.incrementAndGet();
+        try {
+            super.execute(command);
+        } catch (RuntimeException e) {
+            submittedCount.decrementAndGet();
+            throw e;
+        }
+    }
+
+    @Override
+    protected void beforeExecute(Thread t, Runnable r) {
+        hookHolder.beforeExecute(t, r);
+    }
+
+    @Override
+    protected void afterExecute(Runnable r, Throwable t) {
+        submittedCount.decrementAndGet();
+        hookHolder.afterExecute(r, t);
+    }
+}
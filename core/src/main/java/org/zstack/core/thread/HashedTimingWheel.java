@@ -0,0 +1,270 @@
+package org.zstack.core.thread;
+
+import org.zstack.core.thread.ThreadFacadeImpl.TimeoutTaskReceipt;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * a hashed timing wheel for timeouts.
+ *
+ * A single ticker thread advances the wheel every tick. Scheduling and cancelling
+ * only touch lock-free queues, the ticker moves new timeouts into their buckets and
+ * unlinks cancelled ones on the next tick, so cancelled timeouts never pile up the way
+ * they do in java.util.Timer. A timeout further away than one revolution waits in its
+ * bucket for the remaining rounds. Expired tasks run on the given executor, never on
+ * the ticker thread.
+ */
+class HashedTimingWheel {
+    private static final CLogger logger = Utils.getLogger(HashedTimingWheel.class);
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Executor executor;
+
+    private final ConcurrentLinkedQueue<WheelTimeout> toAdd = new ConcurrentLinkedQueue<WheelTimeout>();
+    private final ConcurrentLinkedQueue<WheelTimeout> toCancel = new ConcurrentLinkedQueue<WheelTimeout>();
+
+    private final AtomicLong pendingNum = new AtomicLong(0);
+    private final AtomicLong scheduledNum = new AtomicLong(0);
+    private final AtomicLong expiredNum = new AtomicLong(0);
+    private final AtomicLong cancelledNum = new AtomicLong(0);
+
+    private final Thread ticker;
+    private volatile boolean stopped = false;
+    private final long startTime;
+    private long tick;
+
+    private static final int ST_INIT = 0;
+    private static final int ST_CANCELLED = 1;
+    private static final int ST_EXPIRED = 2;
+
+    private class WheelTimeout implements TimeoutTaskReceipt {
+        final Runnable task;
+        // nanoseconds since startTime
+        final long deadline;
+        long remainingRounds;
+        final AtomicInteger state = new AtomicInteger(ST_INIT);
+
+        WheelTimeout prev;
+        WheelTimeout next;
+        Bucket bucket;
+
+        WheelTimeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public boolean cancel() {
+            if (!state.compareAndSet(ST_INIT, ST_CANCELLED)) {
+                return false;
+            }
+
+            pendingNum.decrementAndGet();
+            cancelledNum.incrementAndGet();
+            toCancel.offer(this);
+            return true;
+        }
+
+        void expire() {
+            if (!state.compareAndSet(ST_INIT, ST_EXPIRED)) {
+                return;
+            }
+
+            pendingNum.decrementAndGet();
+            expiredNum.incrementAndGet();
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } catch (Throwable t) {
+                        logger.warn(String.format("Unhandled exception happened when running %s", task.getClass().getName()), t);
+                    }
+                }
+            });
+        }
+    }
+
+    private static class Bucket {
+        WheelTimeout head;
+        WheelTimeout tail;
+
+        void add(WheelTimeout t) {
+            t.bucket = this;
+            if (head == null) {
+                head = tail = t;
+            } else {
+                tail.next = t;
+                t.prev = tail;
+                tail = t;
+            }
+        }
+
+        WheelTimeout remove(WheelTimeout t) {
+            WheelTimeout next = t.next;
+            if (t.prev != null) {
+                t.prev.next = next;
+            }
+            if (t.next != null) {
+                t.next.prev = t.prev;
+            }
+            if (t == head) {
+                head = next;
+            }
+            if (t == tail) {
+                tail = t.prev;
+            }
+            t.prev = null;
+            t.next = null;
+            t.bucket = null;
+            return next;
+        }
+    }
+
+    HashedTimingWheel(long tickDuration, TimeUnit unit, int wheelSize, Executor executor) {
+        int size = 1;
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+
+        this.tickNanos = Math.max(unit.toNanos(tickDuration), TimeUnit.MILLISECONDS.toNanos(1));
+        this.wheel = new Bucket[size];
+        for (int i=0; i<size; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+        this.executor = executor;
+        this.startTime = System.nanoTime();
+
+        ticker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runTicker();
+            }
+        }, "zs-timing-wheel");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    TimeoutTaskReceipt newTimeout(Runnable task, long delay, TimeUnit unit) {
+        long deadline = System.nanoTime() - startTime + unit.toNanos(Math.max(delay, 0));
+        WheelTimeout t = new WheelTimeout(task, deadline);
+        pendingNum.incrementAndGet();
+        scheduledNum.incrementAndGet();
+        toAdd.offer(t);
+        return t;
+    }
+
+    void stop() {
+        stopped = true;
+        ticker.interrupt();
+    }
+
+    long getPendingTimerNum() {
+        return pendingNum.get();
+    }
+
+    long getScheduledTimerNum() {
+        return scheduledNum.get();
+    }
+
+    long getExpiredTimerNum() {
+        return expiredNum.get();
+    }
+
+    long getCancelledTimerNum() {
+        return cancelledNum.get();
+    }
+
+    private void runTicker() {
+        while (!stopped) {
+            long deadline = waitForNextTick();
+            if (deadline < 0) {
+                continue;
+            }
+
+            try {
+                removeCancelled();
+                transferNewTimeouts();
+                expire(wheel[(int) (tick & mask)], deadline);
+            } catch (Throwable t) {
+                logger.warn("unhandled exception in timing wheel ticker", t);
+            }
+
+            tick ++;
+        }
+    }
+
+    private long waitForNextTick() {
+        long deadline = tickNanos * (tick + 1);
+        while (true) {
+            long current = System.nanoTime() - startTime;
+            long sleepMs = TimeUnit.NANOSECONDS.toMillis(deadline - current + 999999);
+            if (sleepMs <= 0) {
+                return current;
+            }
+
+            try {
+                Thread.sleep(sleepMs);
+            } catch (InterruptedException e) {
+                if (stopped) {
+                    return -1;
+                }
+            }
+        }
+    }
+
+    private void removeCancelled() {
+        WheelTimeout t;
+        while ((t = toCancel.poll()) != null) {
+            // a timeout cancelled before it reached a bucket is dropped by transferNewTimeouts()
+            if (t.bucket != null) {
+                t.bucket.remove(t);
+            }
+        }
+    }
+
+    private void transferNewTimeouts() {
+        WheelTimeout t;
+        while ((t = toAdd.poll()) != null) {
+            if (t.state.get() != ST_INIT) {
+                continue;
+            }
+
+            long calculated = t.deadline / tickNanos;
+            t.remainingRounds = (calculated - tick) / wheel.length;
+            // a deadline already in the past goes to the current bucket
+            long ticks = Math.max(calculated, tick);
+            wheel[(int) (ticks & mask)].add(t);
+        }
+    }
+
+    private void expire(Bucket bucket, long now) {
+        WheelTimeout t = bucket.head;
+        while (t != null) {
+            if (t.state.get() != ST_INIT) {
+                t = bucket.remove(t);
+            } else if (t.remainingRounds <= 0) {
+                WheelTimeout next = bucket.remove(t);
+                if (t.deadline <= now) {
+                    t.expire();
+                } else {
+                    // not expected, the timeout was placed in a wrong bucket; put it back to the next tick
+                    wheel[(int) ((tick + 1) & mask)].add(t);
+                }
+                t = next;
+            } else {
+                t.remainingRounds --;
+                t = t.next;
+            }
+        }
+    }
+}
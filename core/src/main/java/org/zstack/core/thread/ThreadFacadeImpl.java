@@ -10,18 +10,31 @@ import org.zstack.utils.logging.CLoggerImpl;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ThreadFacadeImpl implements ThreadFacade, ThreadFactory, RejectedExecutionHandler, ThreadFacadeMXBean {
 	private static final CLogger _logger = CLoggerImpl.getLogger(ThreadFacadeImpl.class);
 
 	private int totalThreadNum;
 
-	private Map<PeriodicTask, ScheduledFuture<?>> _periodicTasks = new ConcurrentHashMap<PeriodicTask, ScheduledFuture<?>>();
-	private Map<CancelablePeriodicTask, ScheduledFuture<?>> cancelablePeriodicTasks = new ConcurrentHashMap<CancelablePeriodicTask, ScheduledFuture<?>>();
+	private Map<PeriodicTask, Future<?>> _periodicTasks = new ConcurrentHashMap<PeriodicTask, Future<?>>();
+	private Map<CancelablePeriodicTask, Future<?>> cancelablePeriodicTasks = new ConcurrentHashMap<CancelablePeriodicTask, Future<?>>();
 	private static AtomicInteger seqNum = new AtomicInteger(0);
 	private ScheduledThreadPoolExecutorExt _pool;
+	// runs Task/SyncTask/ChainTask bodies; it's _pool itself in fixed mode
+	private ThreadPoolExecutor workPool;
 	private DispatchQueue dpq;
-    private TimerPool timerPool = new TimerPool(5);
+    private TimerPool timerPool;
+    // replaces timerPool and drives periodic tasks when ThreadFacade.timer is timingWheel
+    private HashedTimingWheel timingWheel;
+    private final AtomicLong scheduledTimerNum = new AtomicLong(0);
+    private final AtomicLong expiredTimerNum = new AtomicLong(0);
+    private final AtomicLong cancelledTimerNum = new AtomicLong(0);
+
+    private static final String CONCURRENT_DISPATCH_QUEUE = "concurrent";
+    private static final String ELASTIC_EXECUTION_MODE = "elastic";
+    private static final String TIMING_WHEEL_TIMER = "timingWheel";
+    private static final String TIMER_POOL_TIMER = "timerPool";
 
     @Autowired
     private JmxFacade jmxf;
@@ -73,6 +86,59 @@ public class ThreadFacadeImpl implements ThreadFacade, ThreadFactory, RejectedEx
         }
     }
 
+    private abstract class WheelPeriodicFuture extends AbstractFuture<Void> {
+        private final long intervalNanos;
+        private long nextRunTime;
+        private volatile TimeoutTaskReceipt receipt;
+
+        WheelPeriodicFuture(Object task, long delay, long interval, TimeUnit unit) {
+            super(task);
+            intervalNanos = unit.toNanos(interval);
+            nextRunTime = System.nanoTime() + unit.toNanos(delay);
+        }
+
+        void schedule() {
+            receipt = timingWheel.newTimeout(new Runnable() {
+                @Override
+                public void run() {
+                    fire();
+                }
+            }, nextRunTime - System.nanoTime(), TimeUnit.NANOSECONDS);
+
+            if (isCancelled()) {
+                receipt.cancel();
+            }
+        }
+
+        private void fire() {
+            if (isCancelled()) {
+                return;
+            }
+
+            if (runTask()) {
+                cancel(true);
+                return;
+            }
+
+            // fixed rate as scheduleAtFixedRate, and a run never overlaps the previous one
+            nextRunTime += intervalNanos;
+            schedule();
+        }
+
+        // returns true if the task should not run any more
+        abstract boolean runTask();
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            cancel();
+            TimeoutTaskReceipt r = receipt;
+            if (r != null) {
+                r.cancel();
+            }
+            return true;
+        }
+    }
+
     @Override
     public Map<String, SyncTaskStatistic> getSyncTaskStatistics() {
         return dpq.getSyncTaskStatistics();
@@ -83,21 +149,44 @@ public class ThreadFacadeImpl implements ThreadFacade, ThreadFactory, RejectedEx
         return dpq.getChainTaskStatistics();
     }
 
+    @Override
+    public Map<String, DispatchQueueStatistic> getDispatchQueueStatistics() {
+        return dpq.getDispatchQueueStatistics();
+    }
+
     @Override
     public ThreadPoolStatistic getThreadPoolStatistic() {
-        long completedTask = _pool.getCompletedTaskCount();
-        long pendingTask = _pool.getTaskCount() - completedTask;
+        long completedTask = workPool.getCompletedTaskCount();
+        long pendingTask = workPool.getTaskCount() - completedTask;
         return new ThreadPoolStatistic(
-                _pool.getPoolSize(),
-                _pool.getActiveCount(),
+                workPool.getPoolSize(),
+                workPool.getActiveCount(),
                 completedTask,
                 pendingTask,
-                _pool.getCorePoolSize(),
-                _pool.getMaximumPoolSize(),
-                _pool.getQueue().size()
+                workPool.getCorePoolSize(),
+                workPool.getMaximumPoolSize(),
+                workPool.getQueue().size()
         );
     }
 
+    @Override
+    public TimerStatistic getTimerStatistic() {
+        if (timingWheel != null) {
+            return new TimerStatistic(
+                    TIMING_WHEEL_TIMER,
+                    timingWheel.getPendingTimerNum(),
+                    timingWheel.getScheduledTimerNum(),
+                    timingWheel.getExpiredTimerNum(),
+                    timingWheel.getCancelledTimerNum()
+            );
+        }
+
+        long scheduled = scheduledTimerNum.get();
+        long expired = expiredTimerNum.get();
+        long cancelled = cancelledTimerNum.get();
+        return new TimerStatistic(TIMER_POOL_TIMER, scheduled - expired - cancelled, scheduled, expired, cancelled);
+    }
+
     public static class Worker<T> implements Callable<T> {
 		private final Task<T> _task;
 
@@ -126,20 +215,51 @@ public class ThreadFacadeImpl implements ThreadFacade, ThreadFactory, RejectedEx
             _logger.warn(String.format("ThreadFacade.maxThreadNum is configured to %s, which is too small for running zstack. Change it to 10", ThreadGlobalProperty.MAX_THREAD_NUM));
             totalThreadNum = 10;
         }
-		_pool = new ScheduledThreadPoolExecutorExt(totalThreadNum, this, this);
-        _logger.debug(String.format("create ThreadFacade with max thread number:%s", totalThreadNum));
-		dpq = new DispatchQueueImpl();
+        if (ELASTIC_EXECUTION_MODE.equals(ThreadGlobalProperty.EXECUTION_MODE)) {
+            int maxThreadNum = Math.max(totalThreadNum, ThreadGlobalProperty.ELASTIC_MAX_THREAD_NUM);
+            int schedulerThreadNum = Math.max(1, ThreadGlobalProperty.SCHEDULER_THREAD_NUM);
+            // scheduled and periodic tasks get their own threads, blocking task bodies
+            // cannot delay them, and the work pool grows under load instead of queuing
+            _pool = new ScheduledThreadPoolExecutorExt(schedulerThreadNum, this, this);
+            workPool = new ElasticThreadPoolExecutor(totalThreadNum, maxThreadNum, this, _pool);
+            _logger.debug(String.format("create ThreadFacade in elastic mode with core thread number:%s, max thread number:%s, scheduler thread number:%s",
+                    totalThreadNum, maxThreadNum, schedulerThreadNum));
+        } else {
+            _pool = new ScheduledThreadPoolExecutorExt(totalThreadNum, this, this);
+            workPool = _pool;
+            _logger.debug(String.format("create ThreadFacade with max thread number:%s", totalThreadNum));
+        }
+        if (CONCURRENT_DISPATCH_QUEUE.equals(ThreadGlobalProperty.DISPATCH_QUEUE)) {
+            dpq = new ConcurrentDispatchQueueImpl(this);
+        } else {
+            dpq = new DispatchQueueImpl();
+        }
+        _logger.debug(String.format("use dispatch queue[%s]", dpq.getClass().getSimpleName()));
+        if (TIMING_WHEEL_TIMER.equals(ThreadGlobalProperty.TIMER)) {
+            timingWheel = new HashedTimingWheel(ThreadGlobalProperty.TIMING_WHEEL_TICK_MS, TimeUnit.MILLISECONDS,
+                    ThreadGlobalProperty.TIMING_WHEEL_SIZE, workPool);
+            _logger.debug(String.format("use timing wheel with tick:%sms, wheel size:%s",
+                    ThreadGlobalProperty.TIMING_WHEEL_TICK_MS, ThreadGlobalProperty.TIMING_WHEEL_SIZE));
+        } else {
+            timerPool = new TimerPool(5);
+        }
 
         jmxf.registerBean("ThreadFacade", this);
 	}
 
 	public void destroy() {
 		_pool.shutdownNow();
+		if (workPool != _pool) {
+			workPool.shutdownNow();
+		}
+		if (timingWheel != null) {
+			timingWheel.stop();
+		}
 	}
 
 	@Override
 	public <T> Future<T> submit(Task<T> task) {
-		return _pool.submit(new Worker<T>(task));
+		return workPool.submit(new Worker<T>(task));
 	}
 
 	@Override
@@ -154,7 +274,7 @@ public class ThreadFacadeImpl implements ThreadFacade, ThreadFactory, RejectedEx
 		_logger.warn(warn.toString());
 	}
 
-	private Map<PeriodicTask, ScheduledFuture<?>> getPeriodicTasks() {
+	private Map<PeriodicTask, Future<?>> getPeriodicTasks() {
 		return _periodicTasks;
 	}
 
@@ -163,14 +283,33 @@ public class ThreadFacadeImpl implements ThreadFacade, ThreadFactory, RejectedEx
 		assert task.getInterval() != 0;
 		assert task.getTimeUnit() != null;
 
+		if (timingWheel != null) {
+			WheelPeriodicFuture ret = new WheelPeriodicFuture(task, delay, task.getInterval(), task.getTimeUnit()) {
+				@Override
+				boolean runTask() {
+					try {
+						task.run();
+						return false;
+					} catch (Throwable e) {
+						_logger.warn("An unhandled exception happened during executing periodic task: " + task.getName() + ", cancel it", e);
+						_periodicTasks.remove(task);
+						return true;
+					}
+				}
+			};
+			_periodicTasks.put(task, ret);
+			ret.schedule();
+			return ret;
+		}
+
 		ScheduledFuture<Void> ret = (ScheduledFuture<Void>) _pool.scheduleAtFixedRate(new Runnable() {
 			public void run() {
 				try {
 					task.run();
 				} catch (Throwable e) {
 					_logger.warn("An unhandled exception happened during executing periodic task: " + task.getName() + ", cancel it", e);
-					final Map<PeriodicTask, ScheduledFuture<?>> periodicTasks = getPeriodicTasks();
-					final ScheduledFuture<?> ft = periodicTasks.get(task);
+					final Map<PeriodicTask, Future<?>> periodicTasks = getPeriodicTasks();
+					final Future<?> ft = periodicTasks.get(task);
 					if (ft != null) {
 						ft.cancel(true);
 						periodicTasks.remove(task);
@@ -224,12 +363,17 @@ public class ThreadFacadeImpl implements ThreadFacade, ThreadFactory, RejectedEx
 
 	@Override
 	public TimeoutTaskReceipt submitTimeoutTask(final Runnable task, TimeUnit unit, long delay) {
+        if (timingWheel != null) {
+            return timingWheel.newTimeout(task, delay, unit);
+        }
+
         final TimerWrapper timer = timerPool.getTimer();
 
         class TimerTaskWorker extends TimerTask implements TimeoutTaskReceipt {
             @Override
             @AsyncThread
             public void run() {
+                expiredTimerNum.incrementAndGet();
                 try {
                     task.run();
                 } catch (Throwable t) {
@@ -242,6 +386,9 @@ public class ThreadFacadeImpl implements ThreadFacade, ThreadFactory, RejectedEx
             @Override
             public boolean cancel() {
                 boolean ret = super.cancel();
+                if (ret) {
+                    cancelledTimerNum.incrementAndGet();
+                }
                 timer.notifyCancel();
                 return ret;
             }
@@ -249,6 +396,7 @@ public class ThreadFacadeImpl implements ThreadFacade, ThreadFactory, RejectedEx
 
         TimerTaskWorker worker = new TimerTaskWorker();
 		timer.schedule(worker, unit.toMillis(delay));
+		scheduledTimerNum.incrementAndGet();
 		return worker;
 	}
 
@@ -260,7 +408,15 @@ public class ThreadFacadeImpl implements ThreadFacade, ThreadFactory, RejectedEx
 	@Override
 	public boolean stop() {
 		_pool.shutdown();
-        timerPool.stop();
+		if (workPool != _pool) {
+			workPool.shutdown();
+		}
+        if (timerPool != null) {
+            timerPool.stop();
+        }
+        if (timingWheel != null) {
+            timingWheel.stop();
+        }
 		return true;
 	}
 
@@ -271,9 +427,32 @@ public class ThreadFacadeImpl implements ThreadFacade, ThreadFactory, RejectedEx
 
 	@Override
 	public Future<Void> submitCancelablePeriodicTask(final CancelablePeriodicTask task, long delay) {
+		if (timingWheel != null) {
+			WheelPeriodicFuture ret = new WheelPeriodicFuture(task, delay, task.getInterval(), task.getTimeUnit()) {
+				@Override
+				boolean runTask() {
+					boolean cancel;
+					try {
+						cancel = task.run();
+					} catch (Throwable e) {
+						_logger.warn("An unhandled exception happened during executing periodic task: " + task.getName() + ", cancel it", e);
+						cancel = true;
+					}
+
+					if (cancel) {
+						cancelablePeriodicTasks.remove(task);
+					}
+					return cancel;
+				}
+			};
+			cancelablePeriodicTasks.put(task, ret);
+			ret.schedule();
+			return ret;
+		}
+
 		ScheduledFuture<Void> ret = (ScheduledFuture<Void>) _pool.scheduleAtFixedRate(new Runnable() {
 			private void cancelTask() {
-				ScheduledFuture<?> ft = cancelablePeriodicTasks.get(task);
+				Future<?> ft = cancelablePeriodicTasks.get(task);
 				if (ft != null) {
 					ft.cancel(true);
 					cancelablePeriodicTasks.remove(task);
@@ -9,5 +9,9 @@ public interface ThreadFacadeMXBean {
 
     Map<String, ChainTaskStatistic> getChainTaskStatistics();
 
+    Map<String, DispatchQueueStatistic> getDispatchQueueStatistics();
+
     ThreadPoolStatistic getThreadPoolStatistic();
+
+    TimerStatistic getTimerStatistic();
 }
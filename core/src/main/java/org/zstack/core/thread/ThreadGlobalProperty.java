@@ -9,4 +9,18 @@ import org.zstack.core.GlobalPropertyDefinition;
 public class ThreadGlobalProperty {
     @GlobalProperty(name="ThreadFacade.maxThreadNum", defaultValue = "100")
     public static int MAX_THREAD_NUM;
+    @GlobalProperty(name="ThreadFacade.dispatchQueue", defaultValue = "default")
+    public static String DISPATCH_QUEUE;
+    @GlobalProperty(name="ThreadFacade.executionMode", defaultValue = "fixed")
+    public static String EXECUTION_MODE;
+    @GlobalProperty(name="ThreadFacade.elasticMaxThreadNum", defaultValue = "1000")
+    public static int ELASTIC_MAX_THREAD_NUM;
+    @GlobalProperty(name="ThreadFacade.schedulerThreadNum", defaultValue = "10")
+    public static int SCHEDULER_THREAD_NUM;
+    @GlobalProperty(name="ThreadFacade.timer", defaultValue = "timerPool")
+    public static String TIMER;
+    @GlobalProperty(name="ThreadFacade.timingWheelTickMs", defaultValue = "10")
+    public static int TIMING_WHEEL_TICK_MS;
+    @GlobalProperty(name="ThreadFacade.timingWheelSize", defaultValue = "1024")
+    public static int TIMING_WHEEL_SIZE;
 }
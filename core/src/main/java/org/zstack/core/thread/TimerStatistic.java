@@ -0,0 +1,42 @@
+package org.zstack.core.thread;
+
+import java.beans.ConstructorProperties;
+
+/**
+ */
+public class TimerStatistic {
+    private String timerType;
+    private long pendingTimerNum;
+    private long scheduledTimerNum;
+    private long expiredTimerNum;
+    private long cancelledTimerNum;
+
+    @ConstructorProperties({"timerType", "pendingTimerNum", "scheduledTimerNum", "expiredTimerNum", "cancelledTimerNum"})
+    public TimerStatistic(String timerType, long pendingTimerNum, long scheduledTimerNum, long expiredTimerNum, long cancelledTimerNum) {
+        this.timerType = timerType;
+        this.pendingTimerNum = pendingTimerNum;
+        this.scheduledTimerNum = scheduledTimerNum;
+        this.expiredTimerNum = expiredTimerNum;
+        this.cancelledTimerNum = cancelledTimerNum;
+    }
+
+    public String getTimerType() {
+        return timerType;
+    }
+
+    public long getPendingTimerNum() {
+        return pendingTimerNum;
+    }
+
+    public long getScheduledTimerNum() {
+        return scheduledTimerNum;
+    }
+
+    public long getExpiredTimerNum() {
+        return expiredTimerNum;
+    }
+
+    public long getCancelledTimerNum() {
+        return cancelledTimerNum;
+    }
+}
@@ -0,0 +1,27 @@
+package org.zstack.core.thread;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * power-of-two millisecond buckets, see DispatchQueueStatistic for the layout
+ */
+class WaitTimeHistogram {
+    static final int BUCKET_NUM = 16;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_NUM);
+
+    void record(long nanos) {
+        long ms = TimeUnit.NANOSECONDS.toMillis(nanos);
+        int index = ms <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(ms);
+        buckets.incrementAndGet(Math.min(index, BUCKET_NUM - 1));
+    }
+
+    long[] snapshot() {
+        long[] ret = new long[BUCKET_NUM];
+        for (int i=0; i<BUCKET_NUM; i++) {
+            ret[i] = buckets.get(i);
+        }
+        return ret;
+    }
+}
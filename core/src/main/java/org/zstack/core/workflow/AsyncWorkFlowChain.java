@@ -5,9 +5,6 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Configurable;
 import org.zstack.core.Platform;
 import org.zstack.core.db.DatabaseFacade;
-import org.zstack.core.db.SimpleQuery;
-import org.zstack.core.db.SimpleQuery.Od;
-import org.zstack.core.db.SimpleQuery.Op;
 import org.zstack.core.errorcode.ErrorFacade;
 import org.zstack.core.statemachine.StateMachine;
 import org.zstack.header.errorcode.ErrorCode;
@@ -46,6 +43,8 @@ public class AsyncWorkFlowChain {
     protected DatabaseFacade dbf;
     @Autowired
     protected ErrorFacade errf;
+    @Autowired
+    protected WorkFlowStore store;
 
     protected String name;
     protected String owner;
@@ -118,7 +117,7 @@ public class AsyncWorkFlowChain {
             throw new IllegalArgumentException("WorkFlowChain cannot run before WorkFlowChain.build() is called");
         }
 
-        dbf.removeByPrimaryKey(getUuid(), WorkFlowChainVO.class);
+        store.removeChain(getUuid());
         WorkFlowChainVO cvo = new WorkFlowChainVO();
         cvo.setName(getName());
         cvo.setOwner(owner);
@@ -126,7 +125,7 @@ public class AsyncWorkFlowChain {
         cvo.setState(WorkFlowChainState.Processing);
         cvo.setCurrentPosition(0);
         cvo.setTotalWorkFlows(flows.size());
-        chainvo = dbf.persistAndRefresh(cvo);
+        chainvo = store.persistChain(cvo);
     }
     
     protected void processFlow(AsyncWorkFlow flow, WorkFlowContext ctx, WorkFlowVO vo, int position) {
@@ -138,7 +137,7 @@ public class AsyncWorkFlowChain {
         vo.setState(WorkFlowState.Processing);
         vo.setContext(ctx.toBytes());
         vo.setPosition(position);
-        vo = dbf.updateAndRefresh(vo);
+        vo = store.updateFlow(vo);
         try {
             flow.process(ctx, this);
         } catch (WorkFlowException e) {
@@ -159,10 +158,7 @@ public class AsyncWorkFlowChain {
     }
     
     private WorkFlowVO getFlowVOByPosition(int position) {
-        SimpleQuery<WorkFlowVO> query = dbf.createQuery(WorkFlowVO.class);
-        query.add(WorkFlowVO_.position, Op.EQ, position);
-        query.add(WorkFlowVO_.chainUuid, Op.EQ, chainvo.getUuid());
-        WorkFlowVO vo = query.find();
+        WorkFlowVO vo = store.findFlow(chainvo.getUuid(), position);
         assert vo != null : "Where is WorkFlowVO for position: " + position;
         return vo;
     }
@@ -191,17 +187,17 @@ public class AsyncWorkFlowChain {
         WorkFlowVO vo = getFlowVOByPosition(currentPosition);
         vo.setState(flowState.getNextState(vo.getState(), WorkFlowStateEvent.done));
         vo.setContext(ctx.toBytes());
-        dbf.update(vo);
+        store.updateFlow(vo);
         logger.debug(String.format("Successfully processed workflow[%s] in chain[%s]", vo.getName(), getName()));
         currentPosition++;
         if (currentPosition < flows.size()) {
             chainvo.setCurrentPosition(currentPosition);
-            chainvo = dbf.updateAndRefresh(chainvo);
+            chainvo = store.updateChain(chainvo);
             AsyncWorkFlow flow = flows.get(currentPosition);
             processFlow(flow, ctx, null, currentPosition);
         } else {
             chainvo.setState(WorkFlowChainState.ProcessDone);
-            chainvo = dbf.updateAndRefresh(chainvo);
+            chainvo = store.updateChain(chainvo);
             tellCallbackSuccess(ctx);
         }
     }
@@ -216,14 +212,11 @@ public class AsyncWorkFlowChain {
             logger.warn(String.format("Unhandled exception happend while rolling back AsyncWorkFlow[%s] in chain[%s]", flow.getName(), getName()), t);
         }
         vo.setState(flowState.getNextState(vo.getState(), WorkFlowStateEvent.rollbackDone));
-        dbf.update(vo);
+        store.updateFlow(vo);
     }
     
     public void rollback() {
-        SimpleQuery<WorkFlowVO> query = dbf.createQuery(WorkFlowVO.class);
-        query.add(WorkFlowVO_.chainUuid, Op.EQ, chainvo.getUuid());
-        query.orderBy(WorkFlowVO_.position, Od.DESC);
-        List<WorkFlowVO> vos = query.list();
+        List<WorkFlowVO> vos = store.listFlows(chainvo.getUuid());
         logger.debug(String.format("starting to rollback AsyncWorkFlowChain[name: %s, owner: %s]", name, owner));
         for (WorkFlowVO vo : vos) {
             if (vo.getState() == WorkFlowState.RollbackDone) {
@@ -233,7 +226,7 @@ public class AsyncWorkFlowChain {
             rollbackFlow(vo);
         }
         chainvo.setState(chainStates.getNextState(chainvo.getState(), WorkFlowChainStateEvent.rollbackDone));
-        chainvo = dbf.updateAndRefresh(chainvo);
+        chainvo = store.updateChain(chainvo);
         logger.debug(String.format("Rolled back all flows in AsyncWorkFlow chain[%s]", getName()));
     }
     
@@ -241,12 +234,12 @@ public class AsyncWorkFlowChain {
         vo.setReason(err.toString());
         vo.setState(flowState.getNextState(vo.getState(), WorkFlowStateEvent.failed));
         logger.debug(String.format("workflow[%s] in chain[%s] failed because %s", vo.getName(), getName(), err));
-        dbf.update(vo);
+        store.updateFlow(vo);
         
         chainvo.setReason(err.toString());
         chainvo.setState(chainStates.getNextState(chainvo.getState(), WorkFlowChainStateEvent.failed));
         chainvo.setCurrentPosition(vo.getPosition());
-        chainvo = dbf.updateAndRefresh(chainvo);
+        chainvo = store.updateChain(chainvo);
         rollback();
         WorkFlowContext ctx = WorkFlowContext.fromBytes(vo.getContext());
         tellCallbackFailure(ctx, err);
@@ -284,10 +277,7 @@ public class AsyncWorkFlowChain {
         } else if (chainvo.getState() == WorkFlowChainState.ProcessFailed) {
             return ContinueStrategy.Rollback;
         } else if (chainvo.getState() == WorkFlowChainState.Processing) {
-            SimpleQuery<WorkFlowVO> query = dbf.createQuery(WorkFlowVO.class);
-            query.add(WorkFlowVO_.chainUuid, Op.EQ, chainvo.getUuid());
-            query.orderBy(WorkFlowVO_.position, Od.DESC);
-            List<WorkFlowVO> vos = query.list();
+            List<WorkFlowVO> vos = store.listFlows(chainvo.getUuid());
             if (vos.isEmpty()) {
                 return ContinueStrategy.Restart;
             }
@@ -313,9 +303,7 @@ public class AsyncWorkFlowChain {
             throw new IllegalArgumentException("callback can not be null");
         }
         
-        SimpleQuery<WorkFlowChainVO> query = dbf.createQuery(WorkFlowChainVO.class);
-        query.add(WorkFlowChainVO_.uuid, Op.EQ, chainUuid);
-        chainvo = query.find();
+        chainvo = store.findChain(chainUuid);
         if (chainvo == null) {
             throw new IllegalArgumentException(String.format("Cannot find workflow chain[uuid:%s]", chainUuid));
         }
@@ -338,10 +326,7 @@ public class AsyncWorkFlowChain {
     
     protected void carryOnRollback() {
         logger.debug(String.format("Restart to roll back flows in work AsyncWorkFlowChain[uuid:%s]", chainvo.getUuid()));
-        SimpleQuery<WorkFlowVO> query = dbf.createQuery(WorkFlowVO.class);
-        query.add(WorkFlowVO_.chainUuid, Op.EQ, chainvo.getUuid());
-        query.add(WorkFlowVO_.reason, Op.NOT_NULL);
-        WorkFlowVO failedFlow = query.find();
+        WorkFlowVO failedFlow = store.findFailedFlow(chainvo.getUuid());
         rollback();
         WorkFlowContext ctx = WorkFlowContext.fromBytes(failedFlow.getContext());
         ErrorCode err = ErrorCode.fromString(failedFlow.getReason());
@@ -349,10 +334,7 @@ public class AsyncWorkFlowChain {
     }
     
     protected void carryOnRestart() throws WorkFlowException {
-        SimpleQuery<WorkFlowVO> query = dbf.createQuery(WorkFlowVO.class);
-        query.add(WorkFlowVO_.chainUuid, Op.EQ, chainvo.getUuid());
-        query.orderBy(WorkFlowVO_.position, Od.DESC);
-        List<WorkFlowVO>  vos = query.list();
+        List<WorkFlowVO>  vos = store.listFlows(chainvo.getUuid());
         WorkFlowVO last = vos.get(0);
         assert last.getState() == WorkFlowState.Done || last.getState() == WorkFlowState.Processing : String.format("How can work flow[%s] in %s state when restart workflow chain[uuid:%s] !!?", last.getName(), last.getState(), chainvo.getUuid());
         int startPosition;
@@ -5,9 +5,6 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Configurable;
 import org.zstack.core.Platform;
 import org.zstack.core.db.DatabaseFacade;
-import org.zstack.core.db.SimpleQuery;
-import org.zstack.core.db.SimpleQuery.Od;
-import org.zstack.core.db.SimpleQuery.Op;
 import org.zstack.core.errorcode.ErrorFacade;
 import org.zstack.core.statemachine.StateMachine;
 import org.zstack.header.errorcode.ErrorCode;
@@ -47,6 +44,8 @@ public class WorkFlowChain {
     protected DatabaseFacade dbf;
     @Autowired
     protected ErrorFacade errf;
+    @Autowired
+    protected WorkFlowStore store;
 
     protected String name;
     protected String owner;
@@ -123,7 +122,7 @@ public class WorkFlowChain {
         cvo.setState(WorkFlowChainState.Processing);
         cvo.setCurrentPosition(0);
         cvo.setTotalWorkFlows(flows.size());
-        chainvo = dbf.persistAndRefresh(cvo);
+        chainvo = store.persistChain(cvo);
     }
 
     protected ErrorCode processFlow(WorkFlow flow, WorkFlowVO vo, int position) {
@@ -135,26 +134,26 @@ public class WorkFlowChain {
         vo.setState(WorkFlowState.Processing);
         vo.setContext(context.toBytes());
         vo.setPosition(position);
-        vo = dbf.updateAndRefresh(vo);
+        vo = store.updateFlow(vo);
         try {
             flow.process(context);
             vo.setState(flowState.getNextState(vo.getState(), WorkFlowStateEvent.done));
             vo.setContext(context.toBytes());
-            dbf.update(vo);
+            store.updateFlow(vo);
             logger.debug(String.format("Successfully processed workflow[%s] in chain[%s]", flow.getName(), getName()));
             return null;
         } catch (WorkFlowException e) {
             vo.setReason(e.getErrorCode().toString());
             vo.setState(flowState.getNextState(vo.getState(), WorkFlowStateEvent.failed));
             logger.debug(String.format("workflow[%s] in chain[%s] failed because %s", flow.getName(), getName(), e.getErrorCode()));
-            dbf.update(vo);
+            store.updateFlow(vo);
             return e.getErrorCode();
         } catch (Throwable t) {
             ErrorCode err = errf.throwableToInternalError(t);
             vo.setReason(err.toString());
             vo.setState(flowState.getNextState(vo.getState(), WorkFlowStateEvent.failed));
             logger.debug(String.format("workflow[%s] in chain[%s] failed because of an unhandle exception", flow.getName(), getName()), t);
-            dbf.update(vo);
+            store.updateFlow(vo);
             return err;
         }
     }
@@ -169,14 +168,11 @@ public class WorkFlowChain {
             logger.warn(String.format("Unhandled exception happend while rolling back workflow[%s] in chain[%s]", flow.getName(), getName()), t);
         }
         vo.setState(flowState.getNextState(vo.getState(), WorkFlowStateEvent.rollbackDone));
-        dbf.update(vo);
+        store.updateFlow(vo);
     }
 
     protected void rollback() {
-        SimpleQuery<WorkFlowVO> query = dbf.createQuery(WorkFlowVO.class);
-        query.add(WorkFlowVO_.chainUuid, Op.EQ, chainvo.getUuid());
-        query.orderBy(WorkFlowVO_.position, Od.DESC);
-        List<WorkFlowVO> vos = query.list();
+        List<WorkFlowVO> vos = store.listFlows(chainvo.getUuid());
         for (WorkFlowVO vo : vos) {
             if (vo.getState() == WorkFlowState.RollbackDone) {
                 /* when this is called from carryOn(), some flows may have been rolled back, skip them */
@@ -185,7 +181,7 @@ public class WorkFlowChain {
             rollbackFlow(vo);
         }
         chainvo.setState(chainStates.getNextState(chainvo.getState(), WorkFlowChainStateEvent.rollbackDone));
-        chainvo = dbf.updateAndRefresh(chainvo);
+        chainvo = store.updateChain(chainvo);
         logger.debug(String.format("Rolled back all flows in workflow chain[%s]", getName()));
     }
 
@@ -209,11 +205,11 @@ public class WorkFlowChain {
                 chainvo.setReason(err.toString());
                 chainvo.setState(chainStates.getNextState(chainvo.getState(), WorkFlowChainStateEvent.failed));
                 chainvo.setCurrentPosition(i);
-                chainvo = dbf.updateAndRefresh(chainvo);
+                chainvo = store.updateChain(chainvo);
                 break;
             } else {
                 chainvo.setCurrentPosition(i);
-                chainvo = dbf.updateAndRefresh(chainvo);
+                chainvo = store.updateChain(chainvo);
             }
         }
 
@@ -223,7 +219,7 @@ public class WorkFlowChain {
             throw new WorkFlowException(err);
         } else {
             chainvo.setState(WorkFlowChainState.ProcessDone);
-            chainvo = dbf.updateAndRefresh(chainvo);
+            chainvo = store.updateChain(chainvo);
         }
 
         return this.context;
@@ -247,11 +243,11 @@ public class WorkFlowChain {
                 chainvo.setReason(err.toString());
                 chainvo.setState(chainStates.getNextState(chainvo.getState(), WorkFlowChainStateEvent.failed));
                 chainvo.setCurrentPosition(i);
-                chainvo = dbf.updateAndRefresh(chainvo);
+                chainvo = store.updateChain(chainvo);
                 break;
             } else {
                 chainvo.setCurrentPosition(i);
-                chainvo = dbf.updateAndRefresh(chainvo);
+                chainvo = store.updateChain(chainvo);
             }
         }
 
@@ -261,7 +257,7 @@ public class WorkFlowChain {
             throw new WorkFlowException(err);
         } else {
             chainvo.setState(WorkFlowChainState.ProcessDone);
-            chainvo = dbf.updateAndRefresh(chainvo);
+            chainvo = store.updateChain(chainvo);
         }
 
         return this.context;
@@ -273,10 +269,7 @@ public class WorkFlowChain {
         } else if (chainvo.getState() == WorkFlowChainState.ProcessFailed) {
             return ContinueStrategy.Rollback;
         } else if (chainvo.getState() == WorkFlowChainState.Processing) {
-            SimpleQuery<WorkFlowVO> query = dbf.createQuery(WorkFlowVO.class);
-            query.add(WorkFlowVO_.chainUuid, Op.EQ, chainvo.getUuid());
-            query.orderBy(WorkFlowVO_.position, Od.DESC);
-            List<WorkFlowVO> vos = query.list();
+            List<WorkFlowVO> vos = store.listFlows(chainvo.getUuid());
             if (vos.isEmpty()) {
                 return ContinueStrategy.Restart;
             }
@@ -298,9 +291,7 @@ public class WorkFlowChain {
     }
 
     public WorkFlowContext carryOn(String chainUuid) throws WorkFlowException {
-        SimpleQuery<WorkFlowChainVO> query = dbf.createQuery(WorkFlowChainVO.class);
-        query.add(WorkFlowChainVO_.uuid, Op.EQ, chainUuid);
-        chainvo = query.find();
+        chainvo = store.findChain(chainUuid);
         if (chainvo == null) {
             throw new IllegalArgumentException(String.format("Cannot find workflow chain[uuid:%s]", chainUuid));
         }
@@ -328,10 +319,7 @@ public class WorkFlowChain {
     }
 
     protected WorkFlowContext carryOnRestart() throws WorkFlowException {
-        SimpleQuery<WorkFlowVO> query = dbf.createQuery(WorkFlowVO.class);
-        query.add(WorkFlowVO_.chainUuid, Op.EQ, chainvo.getUuid());
-        query.orderBy(WorkFlowVO_.position, Od.DESC);
-        List<WorkFlowVO>  vos = query.list();
+        List<WorkFlowVO>  vos = store.listFlows(chainvo.getUuid());
         WorkFlowVO last = vos.get(0);
         assert last.getState() == WorkFlowState.Done || last.getState() == WorkFlowState.Processing : String.format("How can work flow[%s] in %s state when restart workflow chain[uuid:%s] !!?", last.getName(), last.getState(), chainvo.getUuid());
         return run(WorkFlowContext.fromBytes(last.getContext()), last);
@@ -340,10 +328,7 @@ public class WorkFlowChain {
     protected WorkFlowContext carryOnNothing() {
         logger.debug(String.format("Noting to carry on for work flow chain[uuid:%s]", chainvo.getUuid()));
         if (chainvo.getState() == WorkFlowChainState.ProcessDone) {
-            SimpleQuery<WorkFlowVO> query = dbf.createQuery(WorkFlowVO.class);
-            query.add(WorkFlowVO_.chainUuid, Op.EQ, chainvo.getUuid());
-            query.add(WorkFlowVO_.position, Op.EQ, chainvo.getTotalWorkFlows() - 1);
-            WorkFlowVO vo = query.find();
+            WorkFlowVO vo = store.findFlow(chainvo.getUuid(), chainvo.getTotalWorkFlows() - 1);
             return WorkFlowContext.fromBytes(vo.getContext());
         } else if (chainvo.getState() == WorkFlowChainState.RollbackDone) {
             return null;
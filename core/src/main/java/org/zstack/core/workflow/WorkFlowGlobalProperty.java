@@ -0,0 +1,16 @@
+package org.zstack.core.workflow;
+
+import org.zstack.core.GlobalProperty;
+import org.zstack.core.GlobalPropertyDefinition;
+
+/**
+ */
+@GlobalPropertyDefinition
+public class WorkFlowGlobalProperty {
+    @GlobalProperty(name = "WorkFlow.persistenceMode", defaultValue = WorkFlowStore.DATABASE_MODE)
+    public static String PERSISTENCE_MODE;
+    @GlobalProperty(name = "WorkFlow.journalDir", defaultValue = "workflow-journal")
+    public static String JOURNAL_DIR;
+    @GlobalProperty(name = "WorkFlow.journalCheckpointInterval", defaultValue = "5")
+    public static int JOURNAL_CHECKPOINT_INTERVAL;
+}
@@ -0,0 +1,253 @@
+package org.zstack.core.workflow;
+
+import org.zstack.header.exception.CloudRuntimeException;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * an append-only journal of lines with group commit.
+ *
+ * Appenders queue their lines and wait; a single writer thread writes everything queued
+ * so far and forces the file once for the whole batch. rotate() switches to a new file
+ * so the old one can be deleted once its content is checkpointed elsewhere.
+ *
+ * stop() lets the writer finish everything queued before it, and fails entries that
+ * could not be written, so no appender waits forever; appends after stop() are rejected.
+ */
+class WorkFlowJournal {
+    private static final CLogger logger = Utils.getLogger(WorkFlowJournal.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String PREFIX = "journal-";
+    private static final String SUFFIX = ".log";
+    private static final long STOP_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+
+    private final File dir;
+    private final BlockingQueue<Entry> queue = new LinkedBlockingQueue<Entry>();
+    private FileOutputStream out;
+    private FileChannel channel;
+    private File current;
+    private long seq;
+    private Thread writer;
+    private boolean stopped = false;
+    private final Entry stopMark = new Entry(null, false);
+
+    class Entry {
+        private final byte[] line;
+        private final boolean rotate;
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private File rotated;
+        private IOException error;
+
+        private Entry(byte[] line, boolean rotate) {
+            this.line = line;
+            this.rotate = rotate;
+        }
+
+        void await() {
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CloudRuntimeException("interrupted while waiting for the workflow journal", e);
+            }
+
+            if (error != null) {
+                throw new CloudRuntimeException(String.format("unable to write workflow journal[%s]", current), error);
+            }
+        }
+
+        File getRotated() {
+            return rotated;
+        }
+    }
+
+    WorkFlowJournal(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * journal files left by the previous run, oldest first
+     */
+    List<File> listJournalFiles() {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File d, String name) {
+                return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+            }
+        });
+
+        List<File> ret = files == null ? new ArrayList<File>() : new ArrayList<File>(Arrays.asList(files));
+        Collections.sort(ret, new Comparator<File>() {
+            @Override
+            public int compare(File o1, File o2) {
+                return Long.valueOf(fileSeq(o1)).compareTo(fileSeq(o2));
+            }
+        });
+        return ret;
+    }
+
+    private static long fileSeq(File f) {
+        String name = f.getName();
+        return Long.valueOf(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    /**
+     * lines of a journal file; a torn last line left by a crash is dropped by the caller
+     * as it fails to parse
+     */
+    static List<String> readLines(File f) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(f), UTF8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    lines.add(line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+
+    void start(long lastSeq) throws IOException {
+        seq = lastSeq;
+        openNext();
+
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "zs-workflow-journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    long lastSeq(List<File> files) {
+        return files.isEmpty() ? 0 : fileSeq(files.get(files.size() - 1));
+    }
+
+    private void openNext() throws IOException {
+        seq ++;
+        current = new File(dir, String.format("%s%s%s", PREFIX, seq, SUFFIX));
+        out = new FileOutputStream(current, true);
+        channel = out.getChannel();
+    }
+
+    private void closeCurrent() throws IOException {
+        channel.force(false);
+        out.close();
+    }
+
+    private synchronized Entry offer(Entry e) {
+        if (stopped) {
+            throw new CloudRuntimeException(String.format("the workflow journal[%s] is stopped", dir.getAbsolutePath()));
+        }
+
+        queue.offer(e);
+        return e;
+    }
+
+    Entry append(String line) {
+        return offer(new Entry((line + "\n").getBytes(UTF8), false));
+    }
+
+    Entry rotate() {
+        return offer(new Entry(null, true));
+    }
+
+    private static void release(List<Entry> entries, IOException error) {
+        for (Entry e : entries) {
+            e.error = error;
+            e.latch.countDown();
+        }
+    }
+
+    private void writeLoop() {
+        List<Entry> batch = new ArrayList<Entry>();
+        boolean done = false;
+        while (!done) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                // only stop() ends the loop, after the entries queued before it are written
+                continue;
+            }
+
+            queue.drainTo(batch);
+            // nothing is queued after the stop mark, offer() rejects appends once it is queued
+            done = batch.remove(stopMark);
+            IOException error = null;
+            try {
+                for (Entry e : batch) {
+                    if (e.rotate) {
+                        e.rotated = current;
+                        closeCurrent();
+                        openNext();
+                    } else {
+                        channel.write(ByteBuffer.wrap(e.line));
+                    }
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                logger.warn(String.format("unable to write workflow journal[%s]", current), e);
+                error = e;
+            }
+
+            release(batch, error);
+            batch.clear();
+        }
+    }
+
+    void stop() {
+        synchronized (this) {
+            if (stopped) {
+                return;
+            }
+
+            stopped = true;
+            queue.offer(stopMark);
+        }
+
+        boolean writerDone = writer == null;
+        if (writer != null) {
+            try {
+                writer.join(STOP_TIMEOUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            writerDone = !writer.isAlive();
+        }
+
+        // the writer is stuck or never started, fail what is left instead of blocking appenders
+        List<Entry> left = new ArrayList<Entry>();
+        queue.drainTo(left);
+        left.remove(stopMark);
+        release(left, new IOException("the workflow journal is stopped before the record is written"));
+
+        if (!writerDone) {
+            logger.warn(String.format("the writer of workflow journal[%s] doesn't stop in %sms, leave the file open", current, STOP_TIMEOUT));
+            return;
+        }
+
+        try {
+            if (out != null) {
+                closeCurrent();
+            }
+        } catch (IOException e) {
+            logger.warn(String.format("unable to close workflow journal[%s]", current), e);
+        }
+    }
+}
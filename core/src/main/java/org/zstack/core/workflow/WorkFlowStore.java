@@ -0,0 +1,33 @@
+package org.zstack.core.workflow;
+
+import java.util.List;
+
+/**
+ * persists the state of WorkFlowChain and AsyncWorkFlowChain.
+ *
+ * In Database mode every call goes to the database synchronously. In Journal mode
+ * calls are appended to a local journal and checkpointed to the database in batches.
+ */
+public interface WorkFlowStore {
+    String DATABASE_MODE = "Database";
+    String JOURNAL_MODE = "Journal";
+
+    WorkFlowChainVO persistChain(WorkFlowChainVO vo);
+
+    WorkFlowChainVO updateChain(WorkFlowChainVO vo);
+
+    void removeChain(String chainUuid);
+
+    WorkFlowVO updateFlow(WorkFlowVO vo);
+
+    WorkFlowChainVO findChain(String chainUuid);
+
+    WorkFlowVO findFlow(String chainUuid, int position);
+
+    WorkFlowVO findFailedFlow(String chainUuid);
+
+    /**
+     * flows of the chain ordered by position descending
+     */
+    List<WorkFlowVO> listFlows(String chainUuid);
+}
@@ -0,0 +1,593 @@
+package org.zstack.core.workflow;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.annotation.Transactional;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.db.SimpleQuery;
+import org.zstack.core.db.SimpleQuery.Od;
+import org.zstack.core.db.SimpleQuery.Op;
+import org.zstack.core.thread.PeriodicTask;
+import org.zstack.core.thread.ThreadFacade;
+import org.zstack.header.Component;
+import org.zstack.header.exception.CloudRuntimeException;
+import org.zstack.utils.Utils;
+import org.zstack.utils.gson.JSONObjectUtil;
+import org.zstack.utils.logging.CLogger;
+import org.zstack.utils.path.PathUtil;
+
+import javax.persistence.Query;
+import javax.xml.bind.DatatypeConverter;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In Journal mode the latest state of active chains lives in memory. Every change is
+ * appended to WorkFlowJournal before the call returns, and a periodic checkpoint writes
+ * the changed chain rows and flow rows to the database in one transaction, then drops the
+ * journal file and the chains that haven't changed since. On start, journal files left by
+ * a crash are replayed on top of the database and checkpointed.
+ *
+ * The first record of a chain in a journal file carries the fingerprint of the chain as
+ * the database has it, or will have it after the pending checkpoint. On replay the records
+ * of a chain in a file are applied only if the fingerprint matches the chain as replayed so
+ * far, or as in the database. So a file already checkpointed before a crash is skipped, and
+ * a chain carried on by another node while this one was down is not overwritten.
+ */
+public class WorkFlowStoreImpl implements WorkFlowStore, Component {
+    private static final CLogger logger = Utils.getLogger(WorkFlowStoreImpl.class);
+
+    private static final String OP_PERSIST_CHAIN = "persistChain";
+    private static final String OP_UPDATE_CHAIN = "updateChain";
+    private static final String OP_REMOVE_CHAIN = "removeChain";
+    private static final String OP_UPDATE_FLOW = "updateFlow";
+
+    @Autowired
+    private DatabaseFacade dbf;
+    @Autowired
+    private ThreadFacade thdf;
+
+    private boolean journalMode;
+    private WorkFlowJournal journal;
+    private Future<Void> checkpointTask;
+    private final Map<String, ChainState> chains = new HashMap<String, ChainState>();
+    private final Object checkpointLock = new Object();
+
+    private static class ChainState {
+        WorkFlowChainVO chain;
+        TreeMap<Integer, WorkFlowVO> flows = new TreeMap<Integer, WorkFlowVO>();
+        boolean removed;
+        long version;
+        // what the next checkpoint has to write
+        boolean chainDirty;
+        boolean flowsReset;
+        Set<Integer> dirtyFlows = new HashSet<Integer>();
+        // the fingerprint is in the current journal file
+        boolean fingerprinted;
+    }
+
+    private static class JournalRecord {
+        String op;
+        String chainUuid;
+        WorkFlowChainVO chain;
+        WorkFlowVO flow;
+        String flowContext;
+        String base;
+    }
+
+    private static WorkFlowChainVO copy(WorkFlowChainVO vo) {
+        WorkFlowChainVO c = new WorkFlowChainVO();
+        c.setUuid(vo.getUuid());
+        c.setName(vo.getName());
+        c.setOwner(vo.getOwner());
+        c.setState(vo.getState());
+        c.setReason(vo.getReason());
+        c.setTotalWorkFlows(vo.getTotalWorkFlows());
+        c.setCurrentPosition(vo.getCurrentPosition());
+        c.setOperationDate(vo.getOperationDate());
+        return c;
+    }
+
+    private static WorkFlowVO copy(WorkFlowVO vo) {
+        WorkFlowVO c = new WorkFlowVO();
+        c.setId(vo.getId());
+        c.setChainUuid(vo.getChainUuid());
+        c.setName(vo.getName());
+        c.setState(vo.getState());
+        c.setReason(vo.getReason());
+        c.setPosition(vo.getPosition());
+        c.setContext(vo.getContext());
+        c.setOperationDate(vo.getOperationDate());
+        return c;
+    }
+
+    private static List<WorkFlowVO> copyDesc(ChainState s) {
+        List<WorkFlowVO> ret = new ArrayList<WorkFlowVO>();
+        for (WorkFlowVO vo : s.flows.descendingMap().values()) {
+            ret.add(copy(vo));
+        }
+        return ret;
+    }
+
+    private SimpleQuery<WorkFlowVO> flowQuery(String chainUuid) {
+        SimpleQuery<WorkFlowVO> query = dbf.createQuery(WorkFlowVO.class);
+        query.add(WorkFlowVO_.chainUuid, Op.EQ, chainUuid);
+        return query;
+    }
+
+    private WorkFlowChainVO findChainInDb(String chainUuid) {
+        SimpleQuery<WorkFlowChainVO> query = dbf.createQuery(WorkFlowChainVO.class);
+        query.add(WorkFlowChainVO_.uuid, Op.EQ, chainUuid);
+        return query.find();
+    }
+
+    private List<WorkFlowVO> listFlowsInDb(String chainUuid) {
+        SimpleQuery<WorkFlowVO> query = flowQuery(chainUuid);
+        query.orderBy(WorkFlowVO_.position, Od.DESC);
+        return query.list();
+    }
+
+    private static String fingerprint(WorkFlowChainVO chain, Collection<WorkFlowVO> flows) {
+        if (chain == null) {
+            return "none";
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(chain.getState()).append("|").append(chain.getCurrentPosition()).append("|").append(chain.getTotalWorkFlows())
+                .append("|").append(chain.getReason() == null ? 0 : chain.getReason().hashCode());
+        for (WorkFlowVO vo : flows) {
+            sb.append("|").append(vo.getPosition()).append(":").append(vo.getState())
+                    .append(":").append(vo.getReason() == null ? 0 : vo.getReason().hashCode());
+        }
+        return sb.toString();
+    }
+
+    private String fingerprintInDb(String chainUuid) {
+        TreeMap<Integer, WorkFlowVO> flows = new TreeMap<Integer, WorkFlowVO>();
+        for (WorkFlowVO vo : listFlowsInDb(chainUuid)) {
+            if (!flows.containsKey(vo.getPosition())) {
+                flows.put(vo.getPosition(), vo);
+            }
+        }
+        return fingerprint(findChainInDb(chainUuid), flows.values());
+    }
+
+    private String replayedFingerprint(String chainUuid) {
+        synchronized (chains) {
+            ChainState s = chains.get(chainUuid);
+            if (s != null) {
+                return fingerprint(s.removed ? null : s.chain, s.flows.values());
+            }
+        }
+        return fingerprintInDb(chainUuid);
+    }
+
+    // must be called with chains locked; a chain not in memory is loaded from the database
+    private ChainState stateOf(String chainUuid) {
+        ChainState s = chains.get(chainUuid);
+        if (s == null) {
+            s = new ChainState();
+            s.chain = findChainInDb(chainUuid);
+            s.removed = s.chain == null;
+            for (WorkFlowVO vo : listFlowsInDb(chainUuid)) {
+                if (!s.flows.containsKey(vo.getPosition())) {
+                    s.flows.put(vo.getPosition(), vo);
+                }
+            }
+            chains.put(chainUuid, s);
+        }
+        return s;
+    }
+
+    private void apply(JournalRecord r) {
+        ChainState s;
+        if (OP_PERSIST_CHAIN.equals(r.op)) {
+            ChainState old = chains.get(r.chainUuid);
+            s = new ChainState();
+            s.chain = copy(r.chain);
+            s.chainDirty = true;
+            // flows of a chain of the same uuid removed before the checkpoint must go
+            s.flowsReset = old != null;
+            s.fingerprinted = old != null && old.fingerprinted;
+            s.version = old == null ? 0 : old.version;
+            chains.put(r.chainUuid, s);
+        } else if (OP_UPDATE_CHAIN.equals(r.op)) {
+            s = stateOf(r.chainUuid);
+            s.chain = copy(r.chain);
+            s.removed = false;
+            s.chainDirty = true;
+        } else if (OP_REMOVE_CHAIN.equals(r.op)) {
+            s = stateOf(r.chainUuid);
+            s.chain = null;
+            s.flows.clear();
+            s.dirtyFlows.clear();
+            s.removed = true;
+            s.chainDirty = true;
+        } else if (OP_UPDATE_FLOW.equals(r.op)) {
+            s = stateOf(r.chainUuid);
+            WorkFlowVO vo = copy(r.flow);
+            if (r.flowContext != null) {
+                vo.setContext(DatatypeConverter.parseBase64Binary(r.flowContext));
+            }
+            s.flows.put(vo.getPosition(), vo);
+            s.dirtyFlows.add(vo.getPosition());
+        } else {
+            throw new CloudRuntimeException(String.format("unknown workflow journal record[%s]", r.op));
+        }
+
+        s.version ++;
+    }
+
+    private void journal(JournalRecord r) {
+        WorkFlowJournal.Entry e;
+        synchronized (chains) {
+            ChainState s = OP_PERSIST_CHAIN.equals(r.op) ? chains.get(r.chainUuid) : stateOf(r.chainUuid);
+            if (s == null || !s.fingerprinted) {
+                r.base = s == null ? fingerprint(null, null) : fingerprint(s.removed ? null : s.chain, s.flows.values());
+            }
+
+            // appended before applied, a rejected append leaves the memory untouched
+            e = journal.append(JSONObjectUtil.toJsonString(r));
+            apply(r);
+            chains.get(r.chainUuid).fingerprinted = true;
+        }
+        // wait for the group commit outside the lock so concurrent chains share one fsync
+        e.await();
+    }
+
+    private JournalRecord chainRecord(String op, WorkFlowChainVO vo) {
+        JournalRecord r = new JournalRecord();
+        r.op = op;
+        r.chainUuid = vo.getUuid();
+        r.chain = copy(vo);
+        return r;
+    }
+
+    @Override
+    public WorkFlowChainVO persistChain(WorkFlowChainVO vo) {
+        if (!journalMode) {
+            return dbf.persistAndRefresh(vo);
+        }
+
+        journal(chainRecord(OP_PERSIST_CHAIN, vo));
+        return copy(vo);
+    }
+
+    @Override
+    public WorkFlowChainVO updateChain(WorkFlowChainVO vo) {
+        if (!journalMode) {
+            return dbf.updateAndRefresh(vo);
+        }
+
+        journal(chainRecord(OP_UPDATE_CHAIN, vo));
+        return copy(vo);
+    }
+
+    @Override
+    public void removeChain(String chainUuid) {
+        if (!journalMode) {
+            dbf.removeByPrimaryKey(chainUuid, WorkFlowChainVO.class);
+            return;
+        }
+
+        JournalRecord r = new JournalRecord();
+        r.op = OP_REMOVE_CHAIN;
+        r.chainUuid = chainUuid;
+        journal(r);
+    }
+
+    @Override
+    public WorkFlowVO updateFlow(WorkFlowVO vo) {
+        if (!journalMode) {
+            return dbf.updateAndRefresh(vo);
+        }
+
+        JournalRecord r = new JournalRecord();
+        r.op = OP_UPDATE_FLOW;
+        r.chainUuid = vo.getChainUuid();
+        r.flow = copy(vo);
+        r.flow.setContext(null);
+        r.flowContext = vo.getContext() == null ? null : DatatypeConverter.printBase64Binary(vo.getContext());
+        journal(r);
+        return copy(vo);
+    }
+
+    @Override
+    public WorkFlowChainVO findChain(String chainUuid) {
+        if (!journalMode) {
+            return findChainInDb(chainUuid);
+        }
+
+        synchronized (chains) {
+            ChainState s = chains.get(chainUuid);
+            if (s != null) {
+                return s.removed ? null : copy(s.chain);
+            }
+        }
+        return findChainInDb(chainUuid);
+    }
+
+    @Override
+    public WorkFlowVO findFlow(String chainUuid, int position) {
+        if (!journalMode) {
+            SimpleQuery<WorkFlowVO> query = flowQuery(chainUuid);
+            query.add(WorkFlowVO_.position, Op.EQ, position);
+            return query.find();
+        }
+
+        synchronized (chains) {
+            WorkFlowVO vo = stateOf(chainUuid).flows.get(position);
+            return vo == null ? null : copy(vo);
+        }
+    }
+
+    @Override
+    public WorkFlowVO findFailedFlow(String chainUuid) {
+        if (!journalMode) {
+            SimpleQuery<WorkFlowVO> query = flowQuery(chainUuid);
+            query.add(WorkFlowVO_.reason, Op.NOT_NULL);
+            return query.find();
+        }
+
+        synchronized (chains) {
+            for (WorkFlowVO vo : stateOf(chainUuid).flows.values()) {
+                if (vo.getReason() != null) {
+                    return copy(vo);
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public List<WorkFlowVO> listFlows(String chainUuid) {
+        if (!journalMode) {
+            return listFlowsInDb(chainUuid);
+        }
+
+        synchronized (chains) {
+            return copyDesc(stateOf(chainUuid));
+        }
+    }
+
+    @Transactional
+    private void writeCheckpoint(Map<String, ChainState> snapshot) {
+        for (Map.Entry<String, ChainState> e : snapshot.entrySet()) {
+            String chainUuid = e.getKey();
+            ChainState s = e.getValue();
+
+            if (s.removed || s.flowsReset) {
+                Query q = dbf.getEntityManager().createQuery("delete from WorkFlowVO vo where vo.chainUuid = :uuid");
+                q.setParameter("uuid", chainUuid);
+                q.executeUpdate();
+            }
+
+            if (s.removed) {
+                Query q = dbf.getEntityManager().createQuery("delete from WorkFlowChainVO vo where vo.uuid = :uuid");
+                q.setParameter("uuid", chainUuid);
+                q.executeUpdate();
+                continue;
+            }
+
+            if (s.chainDirty) {
+                dbf.getEntityManager().merge(s.chain);
+            }
+
+            // only flows changed since the last checkpoint are in the snapshot
+            for (WorkFlowVO vo : s.flows.values()) {
+                Query q = dbf.getEntityManager().createQuery("update WorkFlowVO vo set vo.name = :name, vo.state = :state, vo.reason = :reason," +
+                        " vo.context = :context where vo.chainUuid = :uuid and vo.position = :position");
+                q.setParameter("name", vo.getName());
+                q.setParameter("state", vo.getState());
+                q.setParameter("reason", vo.getReason());
+                q.setParameter("context", vo.getContext());
+                q.setParameter("uuid", chainUuid);
+                q.setParameter("position", vo.getPosition());
+                if (q.executeUpdate() == 0) {
+                    vo.setId(0);
+                    dbf.getEntityManager().persist(vo);
+                }
+            }
+        }
+    }
+
+    private void checkpoint() {
+        synchronized (checkpointLock) {
+            Map<String, ChainState> snapshot = new HashMap<String, ChainState>();
+            Map<String, Long> versions = new HashMap<String, Long>();
+            WorkFlowJournal.Entry rotation;
+            synchronized (chains) {
+                for (Map.Entry<String, ChainState> e : chains.entrySet()) {
+                    ChainState s = e.getValue();
+                    versions.put(e.getKey(), s.version);
+                    // records after the rotation go to a new file, which needs its own fingerprint
+                    s.fingerprinted = false;
+                    if (!s.chainDirty && !s.flowsReset && s.dirtyFlows.isEmpty()) {
+                        // loaded from the database by a read or unchanged since the last checkpoint
+                        continue;
+                    }
+
+                    ChainState c = new ChainState();
+                    c.removed = s.removed;
+                    c.chainDirty = s.chainDirty;
+                    c.flowsReset = s.flowsReset;
+                    c.chain = s.chain == null ? null : copy(s.chain);
+                    for (Integer pos : s.dirtyFlows) {
+                        c.flows.put(pos, copy(s.flows.get(pos)));
+                    }
+                    c.dirtyFlows.addAll(s.dirtyFlows);
+                    snapshot.put(e.getKey(), c);
+
+                    s.chainDirty = false;
+                    s.flowsReset = false;
+                    s.dirtyFlows.clear();
+                }
+
+                // records after this point go to a new file, the old one is covered by the snapshot
+                rotation = journal.rotate();
+            }
+
+            try {
+                rotation.await();
+                if (!snapshot.isEmpty()) {
+                    writeCheckpoint(snapshot);
+                }
+            } catch (RuntimeException e) {
+                // keep the changes dirty for the next checkpoint, the old file stays for replay
+                synchronized (chains) {
+                    for (Map.Entry<String, ChainState> se : snapshot.entrySet()) {
+                        ChainState s = chains.get(se.getKey());
+                        if (s != null) {
+                            s.chainDirty |= se.getValue().chainDirty;
+                            s.flowsReset |= se.getValue().flowsReset;
+                            s.dirtyFlows.addAll(se.getValue().dirtyFlows);
+                            if (s.removed) {
+                                s.dirtyFlows.clear();
+                            }
+                        }
+                    }
+                }
+                throw e;
+            }
+
+            synchronized (chains) {
+                for (Map.Entry<String, Long> e : versions.entrySet()) {
+                    ChainState s = chains.get(e.getKey());
+                    if (s != null && s.version == e.getValue()) {
+                        chains.remove(e.getKey());
+                    }
+                }
+            }
+
+            File old = rotation.getRotated();
+            if (old != null && !old.delete()) {
+                logger.warn(String.format("unable to delete checkpointed workflow journal[%s]", old.getAbsolutePath()));
+            }
+
+            if (!snapshot.isEmpty()) {
+                logger.debug(String.format("checkpointed %s workflow chains from journal", snapshot.size()));
+            }
+        }
+    }
+
+    private void replay(List<File> files) throws IOException {
+        int num = 0;
+        for (File f : files) {
+            // whether records of a chain in this file are replayed, decided by its first record
+            Map<String, Boolean> owned = new HashMap<String, Boolean>();
+            for (String line : WorkFlowJournal.readLines(f)) {
+                JournalRecord r;
+                try {
+                    r = JSONObjectUtil.toObject(line, JournalRecord.class);
+                } catch (Exception e) {
+                    // a torn write of the last group commit before crash
+                    logger.warn(String.format("skip unreadable record in workflow journal[%s]: %s", f.getAbsolutePath(), line));
+                    continue;
+                }
+
+                Boolean own = owned.get(r.chainUuid);
+                if (own == null) {
+                    own = r.base == null || r.base.equals(replayedFingerprint(r.chainUuid));
+                    owned.put(r.chainUuid, own);
+                    if (!own) {
+                        logger.warn(String.format("workflow chain[uuid:%s] doesn't match the journal[%s], it's either checkpointed already" +
+                                " or carried on by another management node, skip its records in the file", r.chainUuid, f.getAbsolutePath()));
+                    }
+                }
+
+                if (!own) {
+                    continue;
+                }
+
+                synchronized (chains) {
+                    apply(r);
+                }
+                num ++;
+            }
+        }
+
+        logger.debug(String.format("replayed %s records from %s workflow journal files", num, files.size()));
+    }
+
+    private void startJournal() {
+        File dir = new File(PathUtil.getFolderUnderZStackHomeFolder(WorkFlowGlobalProperty.JOURNAL_DIR));
+        journal = new WorkFlowJournal(dir);
+        List<File> files = journal.listJournalFiles();
+        try {
+            replay(files);
+            journal.start(journal.lastSeq(files));
+        } catch (IOException e) {
+            throw new CloudRuntimeException(String.format("unable to open workflow journal in %s", dir.getAbsolutePath()), e);
+        }
+
+        // the replayed state is in memory now; the first checkpoint writes it and the files
+        // of the previous run can go
+        checkpoint();
+        for (File f : files) {
+            if (!f.delete()) {
+                logger.warn(String.format("unable to delete replayed workflow journal[%s]", f.getAbsolutePath()));
+            }
+        }
+
+        checkpointTask = thdf.submitPeriodicTask(new PeriodicTask() {
+            @Override
+            public TimeUnit getTimeUnit() {
+                return TimeUnit.SECONDS;
+            }
+
+            @Override
+            public long getInterval() {
+                return WorkFlowGlobalProperty.JOURNAL_CHECKPOINT_INTERVAL;
+            }
+
+            @Override
+            public String getName() {
+                return "workflow-journal-checkpoint";
+            }
+
+            @Override
+            public void run() {
+                try {
+                    checkpoint();
+                } catch (Throwable t) {
+                    logger.warn("unable to checkpoint workflow journal", t);
+                }
+            }
+        });
+    }
+
+    @Override
+    public boolean start() {
+        journalMode = JOURNAL_MODE.equals(WorkFlowGlobalProperty.PERSISTENCE_MODE);
+        if (!journalMode && !DATABASE_MODE.equals(WorkFlowGlobalProperty.PERSISTENCE_MODE)) {
+            throw new CloudRuntimeException(String.format("unknown WorkFlow.persistenceMode[%s], valid values are %s, %s",
+                    WorkFlowGlobalProperty.PERSISTENCE_MODE, DATABASE_MODE, JOURNAL_MODE));
+        }
+
+        if (journalMode) {
+            startJournal();
+        }
+        return true;
+    }
+
+    @Override
+    public boolean stop() {
+        if (!journalMode) {
+            return true;
+        }
+
+        if (checkpointTask != null) {
+            checkpointTask.cancel(true);
+        }
+
+        try {
+            checkpoint();
+        } catch (Throwable t) {
+            logger.warn("unable to checkpoint workflow journal when stopping, it will be replayed on next start", t);
+        }
+        journal.stop();
+        return true;
+    }
+}
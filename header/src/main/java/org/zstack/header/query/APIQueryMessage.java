@@ -18,6 +18,13 @@ public abstract class APIQueryMessage extends APISyncCallMessage {
     @APIParam(required = false, validValues = {"asc", "desc"})
     private String sortDirection = "asc";
     private List<String> fields;
+    /**
+     * page by the sort key and the primary key instead of start, the reply carries
+     * a continuation token for the next page
+     */
+    private boolean keysetPaging;
+    private String continuationToken;
+    private boolean approximateCount;
 
     public List<QueryCondition> getConditions() {
         if (conditions == null) {
@@ -70,6 +77,30 @@ public abstract class APIQueryMessage extends APISyncCallMessage {
         this.limit = limit;
     }
 
+    public boolean isKeysetPaging() {
+        return keysetPaging || continuationToken != null;
+    }
+
+    public void setKeysetPaging(boolean keysetPaging) {
+        this.keysetPaging = keysetPaging;
+    }
+
+    public String getContinuationToken() {
+        return continuationToken;
+    }
+
+    public void setContinuationToken(String continuationToken) {
+        this.continuationToken = continuationToken;
+    }
+
+    public boolean isApproximateCount() {
+        return approximateCount;
+    }
+
+    public void setApproximateCount(boolean approximateCount) {
+        this.approximateCount = approximateCount;
+    }
+
     public Integer getStart() {
         return start;
     }
@@ -6,6 +6,8 @@ import java.util.Map;
 public interface QueryBuilder {
     <T> List<T> query(APIQueryMessage msg, Class<T> inventoryClass);
 
+    <T> QueryPage<T> queryPage(APIQueryMessage msg, Class<T> inventoryClass);
+
     long count(APIQueryMessage msg, Class inventoryClass);
 
     Map<String, List<String>> populateQueryableFields();
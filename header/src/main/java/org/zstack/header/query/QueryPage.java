@@ -0,0 +1,25 @@
+package org.zstack.header.query;
+
+import java.util.List;
+
+/**
+ * a page of query results. continuationToken is set in keyset paging when
+ * more results may follow, pass it in APIQueryMessage to get the next page.
+ */
+public class QueryPage<T> {
+    private List<T> inventories;
+    private String continuationToken;
+
+    public QueryPage(List<T> inventories, String continuationToken) {
+        this.inventories = inventories;
+        this.continuationToken = continuationToken;
+    }
+
+    public List<T> getInventories() {
+        return inventories;
+    }
+
+    public String getContinuationToken() {
+        return continuationToken;
+    }
+}
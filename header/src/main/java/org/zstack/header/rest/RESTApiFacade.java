@@ -2,10 +2,22 @@ package org.zstack.header.rest;
 
 import org.zstack.header.message.APIMessage;
 
+import java.io.IOException;
+import java.io.Writer;
+
 public interface RESTApiFacade {
     RestAPIResponse send(APIMessage msg);
     
     RestAPIResponse call(APIMessage msg);
     
     RestAPIResponse getResult(String uuid);
+
+    /**
+     * calls the query API in the body page by page in keyset paging, the limit of the
+     * query is the size of a page, or REST_API_QUERY_STREAM_PAGE_SIZE if no limit is given.
+     * Replies are written as elements of a JSON array as soon as they come, so the whole
+     * result is never held in memory. If a page fails after the array is started, a failed
+     * APIReply carrying the error is written as the last element and the array is closed.
+     */
+    void streamQuery(String body, Writer writer) throws IOException;
 }
@@ -7,4 +7,6 @@ public interface RESTConstant {
     public static final String CALLBACK_URL = "callbackurl";
     public static final String REST_API_RESULT = "/api/result/";
     public static final String REST_API_CALL = "/api";
+    public static final String REST_API_QUERY_STREAM = "/api/query/stream";
+    public static final int REST_API_QUERY_STREAM_PAGE_SIZE = 1000;
 }
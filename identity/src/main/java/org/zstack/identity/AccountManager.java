@@ -10,4 +10,11 @@ public interface AccountManager {
     boolean isResourceHavingAccountReference(Class entityClass);
 
     List<String> getResourceUuidsCanAccessByAccount(String accountUuid, Class resourceType);
+
+    /**
+     * drops cached policy decisions of the users, on this and other management nodes
+     *
+     * @param userUuids null for all users
+     */
+    void policyChanged(List<String> userUuids);
 }
@@ -5,10 +5,14 @@ import org.apache.commons.lang.StringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.security.authentication.BadCredentialsException;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.zstack.core.Platform;
 import org.zstack.core.cascade.CascadeConstant;
 import org.zstack.core.cascade.CascadeFacade;
 import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.cloudbus.EventCallback;
+import org.zstack.core.cloudbus.EventFacade;
 import org.zstack.core.cloudbus.MessageSafe;
 import org.zstack.core.componentloader.PluginRegistry;
 import org.zstack.core.config.GlobalConfigFacade;
@@ -44,7 +48,10 @@ import org.zstack.header.message.APIParam;
 import org.zstack.header.message.Message;
 import org.zstack.header.search.APIGetMessage;
 import org.zstack.header.search.APISearchMessage;
+import org.zstack.identity.IdentityCanonicalEvents.PolicyChangedData;
+import org.zstack.identity.PolicyDecisionEngine.Decision;
 import org.zstack.utils.BeanUtils;
+import org.zstack.utils.CollectionDSL;
 import org.zstack.utils.DebugUtils;
 import org.zstack.utils.FieldUtils;
 import org.zstack.utils.Utils;
@@ -62,10 +69,9 @@ import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import static org.zstack.utils.CollectionDSL.list;
+import static org.zstack.utils.StringDSL.s;
 
 public class AccountManagerImpl extends AbstractService implements AccountManager, PrepareDbInitialValueExtensionPoint,
         SoftDeleteEntityExtensionPoint, HardDeleteEntityExtensionPoint, GlobalApiMessageInterceptor, ApiMessageInterceptor {
@@ -85,12 +91,35 @@ public class AccountManagerImpl extends AbstractService implements AccountManage
     private PluginRegistry pluginRgty;
     @Autowired
     private GlobalConfigFacade gcf;
+    @Autowired
+    private EventFacade evtf;
 
     private List<String> resourceTypeForAccountRef;
     private List<Class> resourceTypes;
     private Map<String, SessionInventory> sessions = new ConcurrentHashMap<String, SessionInventory>();
     private Map<Class, Quota> messageQuotaMap = new HashMap<Class, Quota>();
 
+    private PolicyDecisionEngine policyEngine = new PolicyDecisionEngine() {
+        @Override
+        @Transactional(readOnly = true)
+        protected List<PolicyInventory> loadUserPolicies(String userUuid) {
+            String sql = "select p from PolicyVO p, UserPolicyRefVO ref where ref.userUuid = :uuid and ref.policyUuid = p.uuid";
+            TypedQuery<PolicyVO> q = dbf.getEntityManager().createQuery(sql, PolicyVO.class);
+            q.setParameter("uuid", userUuid);
+            return PolicyInventory.valueOf(q.getResultList());
+        }
+
+        @Override
+        @Transactional(readOnly = true)
+        protected List<PolicyInventory> loadGroupPolicies(String userUuid) {
+            String sql = "select p from PolicyVO p, UserGroupUserRefVO ref, UserGroupPolicyRefVO gref where" +
+                    " p.uuid = gref.policyUuid and gref.groupUuid = ref.groupUuid and ref.userUuid = :uuid";
+            TypedQuery<PolicyVO> q = dbf.getEntityManager().createQuery(sql, PolicyVO.class);
+            q.setParameter("uuid", userUuid);
+            return PolicyInventory.valueOf(q.getResultList());
+        }
+    };
+
     class AccountCheckField {
         Field field;
         APIParam param;
@@ -416,9 +445,46 @@ public class AccountManagerImpl extends AbstractService implements AccountManage
         } catch (Exception e) {
             throw new CloudRuntimeException(e);
         }
+
+        evtf.on(IdentityCanonicalEvents.POLICY_CHANGED_PATH, new EventCallback() {
+            @Override
+            public void run(Map tokens, Object data) {
+                if (Platform.getManagementServerId().equals(tokens.get("nodeUuid"))) {
+                    return;
+                }
+
+                policyEngine.invalidate(((PolicyChangedData) data).getUserUuids());
+            }
+        });
+
         return true;
     }
 
+    private void firePolicyChanged(List<String> userUuids) {
+        PolicyChangedData data = new PolicyChangedData();
+        data.setUserUuids(userUuids);
+        evtf.fire(s(IdentityCanonicalEvents.POLICY_CHANGED_PATH).formatByMap(CollectionDSL.map(
+                CollectionDSL.e("nodeUuid", Platform.getManagementServerId())
+        )), data);
+    }
+
+    @Override
+    public void policyChanged(final List<String> userUuids) {
+        policyEngine.invalidate(userUuids);
+        if (TransactionSynchronizationManager.isActualTransactionActive()) {
+            // invalidate again after the transaction, checks may have cached its uncommitted policies
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCompletion(int status) {
+                    policyEngine.invalidate(userUuids);
+                    firePolicyChanged(userUuids);
+                }
+            });
+        } else {
+            firePolicyChanged(userUuids);
+        }
+    }
+
     private void collectDefaultQuota() {
         Map<String, Long> defaultQuota = new HashMap<String, Long>();
 
@@ -803,8 +869,8 @@ public class AccountManagerImpl extends AbstractService implements AccountManage
             }
         }
 
-        private void useDecision(Decision d, boolean userPolicy) {
-            String policyCategory = userPolicy ? "user policy" : "group policy";
+        private void useDecision(Decision d) {
+            String policyCategory = d.userPolicy ? "user policy" : "group policy";
 
             if (d.effect == StatementEffect.Allow) {
                 logger.debug(String.format("API[name: %s, action: %s] is approved by a %s[name: %s, uuid: %s]," +
@@ -864,17 +930,9 @@ public class AccountManagerImpl extends AbstractService implements AccountManage
             uq.add(UserVO_.uuid, Op.EQ, session.getUserUuid());
             username = uq.findValue();
 
-            List<PolicyInventory> userPolicies = getUserPolicies();
-            Decision d = decide(userPolicies);
+            Decision d = policyEngine.decide(session.getUserUuid(), msg.getClass(), action.actions);
             if (d != null) {
-                useDecision(d, true);
-                return;
-            }
-
-            List<PolicyInventory> groupPolicies = getGroupPolicies();
-            d = decide(groupPolicies);
-            if (d != null) {
-                useDecision(d, false);
+                useDecision(d);
                 return;
             }
 
@@ -920,62 +978,6 @@ public class AccountManagerImpl extends AbstractService implements AccountManage
             return pairs;
         }
 
-        @Transactional(readOnly = true)
-        private List<PolicyInventory> getGroupPolicies() {
-            String sql = "select p from PolicyVO p, UserGroupUserRefVO ref, UserGroupPolicyRefVO gref where" +
-                    " p.uuid = gref.policyUuid and gref.groupUuid = ref.groupUuid and ref.userUuid = :uuid";
-            TypedQuery<PolicyVO> q = dbf.getEntityManager().createQuery(sql, PolicyVO.class);
-            q.setParameter("uuid", session.getUserUuid());
-            return PolicyInventory.valueOf(q.getResultList());
-        }
-
-        class Decision {
-            PolicyInventory policy;
-            String action;
-            Statement statement;
-            String actionRule;
-            StatementEffect effect;
-        }
-
-        private Decision decide(List<PolicyInventory> userPolicies) {
-            for (String a : action.actions) {
-                for (PolicyInventory p : userPolicies) {
-                    for (Statement s : p.getStatements()) {
-                        for (String ac : s.getActions()) {
-                            Pattern pattern = Pattern.compile(ac);
-                            Matcher m = pattern.matcher(a);
-                            boolean ret = m.matches();
-                            if (ret) {
-                                Decision d = new Decision();
-                                d.policy = p;
-                                d.action = a;
-                                d.statement = s;
-                                d.actionRule = ac;
-                                d.effect = s.getEffect();
-                                return d;
-                            }
-
-                            if (logger.isTraceEnabled()) {
-                                logger.trace(String.format("API[name: %s, action: %s] is not matched by policy[name: %s, uuid: %s" +
-                                        ", statement[name: %s, action: %s, effect: %s]", msg.getClass().getSimpleName(), a, p.getName(),
-                                        p.getUuid(), s.getName(), ac, s.getEffect()));
-                            }
-                        }
-                    }
-                }
-            }
-
-            return null;
-        }
-
-        @Transactional(readOnly = true)
-        private List<PolicyInventory> getUserPolicies() {
-            String sql = "select p from PolicyVO p, UserPolicyRefVO ref where ref.userUuid = :uuid and ref.policyUuid = p.uuid";
-            TypedQuery<PolicyVO> q = dbf.getEntityManager().createQuery(sql, PolicyVO.class);
-            q.setParameter("uuid", session.getUserUuid());
-            return PolicyInventory.valueOf(q.getResultList());
-        }
-
         private void sessionCheck() {
             if (msg.getSession() == null) {
                 throw new ApiMessageInterceptionException(errf.instantiateErrorCode(IdentityErrors.INVALID_SESSION,
@@ -0,0 +1,25 @@
+package org.zstack.identity;
+
+import org.zstack.header.message.NeedJsonSchema;
+
+import java.util.List;
+
+/**
+ */
+public class IdentityCanonicalEvents {
+    public static final String POLICY_CHANGED_PATH = "/identity/policy/changed/{nodeUuid}";
+
+    @NeedJsonSchema
+    public static class PolicyChangedData {
+        // null means policies of all users
+        private List<String> userUuids;
+
+        public List<String> getUserUuids() {
+            return userUuids;
+        }
+
+        public void setUserUuids(List<String> userUuids) {
+            this.userUuids = userUuids;
+        }
+    }
+}
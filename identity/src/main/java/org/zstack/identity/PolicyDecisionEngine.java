@@ -0,0 +1,229 @@
+package org.zstack.identity;
+
+import org.zstack.header.identity.AccountConstant.StatementEffect;
+import org.zstack.header.identity.PolicyInventory;
+import org.zstack.header.identity.PolicyInventory.Statement;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * decides API actions against the policies of users.
+ *
+ * Policies of a user and of the user's groups are compiled once into a rule set: action
+ * rules without regex syntax go to a hash map, rules of the form "prefix.*" go to a trie
+ * and only the remaining rules are kept as patterns. A rule set memoizes the first matching
+ * rule of every action, and a user memoizes the decision of every API message class, so
+ * the cost of a check doesn't grow with the number of attached policies.
+ *
+ * The order of rules is the order the policies, statements and actions are evaluated in;
+ * the first matching rule wins, user policies before group policies.
+ */
+abstract class PolicyDecisionEngine {
+    static class Decision {
+        PolicyInventory policy;
+        String action;
+        Statement statement;
+        String actionRule;
+        StatementEffect effect;
+        boolean userPolicy;
+    }
+
+    private static final Decision NO_DECISION = new Decision();
+    private static final Rule NO_RULE = new Rule();
+    private static final Pattern REGEX_CHARS = Pattern.compile("[\\\\.\\[\\]{}()*+?^$|]");
+
+    private static class Rule {
+        int order;
+        PolicyInventory policy;
+        Statement statement;
+        String actionRule;
+        Pattern pattern;
+    }
+
+    private static class TrieNode {
+        Map<Character, TrieNode> children = new HashMap<Character, TrieNode>();
+        Rule rule;
+    }
+
+    private static class RuleSet {
+        final Map<String, Rule> literals = new HashMap<String, Rule>();
+        final TrieNode prefixes = new TrieNode();
+        final List<Rule> patterns = new ArrayList<Rule>();
+        final ConcurrentMap<String, Rule> matches = new ConcurrentHashMap<String, Rule>();
+
+        RuleSet(List<PolicyInventory> policies) {
+            int order = 0;
+            for (PolicyInventory p : policies) {
+                for (Statement s : p.getStatements()) {
+                    for (String ac : s.getActions()) {
+                        Rule r = new Rule();
+                        r.order = order ++;
+                        r.policy = p;
+                        r.statement = s;
+                        r.actionRule = ac;
+                        add(r);
+                    }
+                }
+            }
+        }
+
+        private void add(Rule r) {
+            String ac = r.actionRule;
+            if (!REGEX_CHARS.matcher(ac).find()) {
+                if (!literals.containsKey(ac)) {
+                    literals.put(ac, r);
+                }
+                return;
+            }
+
+            String prefix = ac.endsWith(".*") ? ac.substring(0, ac.length() - 2) : null;
+            if (prefix != null && !REGEX_CHARS.matcher(prefix).find()) {
+                TrieNode n = prefixes;
+                for (char c : prefix.toCharArray()) {
+                    TrieNode child = n.children.get(c);
+                    if (child == null) {
+                        child = new TrieNode();
+                        n.children.put(c, child);
+                    }
+                    n = child;
+                }
+                if (n.rule == null) {
+                    n.rule = r;
+                }
+                return;
+            }
+
+            r.pattern = Pattern.compile(ac);
+            patterns.add(r);
+        }
+
+        private static Rule earlier(Rule a, Rule b) {
+            if (a == null) {
+                return b;
+            }
+            if (b == null) {
+                return a;
+            }
+            return a.order <= b.order ? a : b;
+        }
+
+        private Rule compute(String action) {
+            Rule best = literals.get(action);
+
+            TrieNode n = prefixes;
+            best = earlier(best, n.rule);
+            for (int i=0; i<action.length() && n != null; i++) {
+                n = n.children.get(action.charAt(i));
+                if (n != null) {
+                    best = earlier(best, n.rule);
+                }
+            }
+
+            for (Rule r : patterns) {
+                if (best != null && r.order >= best.order) {
+                    break;
+                }
+                if (r.pattern.matcher(action).matches()) {
+                    best = r;
+                    break;
+                }
+            }
+
+            return best;
+        }
+
+        Rule match(String action) {
+            Rule r = matches.get(action);
+            if (r == null) {
+                r = compute(action);
+                matches.put(action, r == null ? NO_RULE : r);
+            }
+            return r == NO_RULE ? null : r;
+        }
+
+        Decision decide(List<String> actions, boolean userPolicy) {
+            for (String a : actions) {
+                Rule r = match(a);
+                if (r != null) {
+                    Decision d = new Decision();
+                    d.policy = r.policy;
+                    d.action = a;
+                    d.statement = r.statement;
+                    d.actionRule = r.actionRule;
+                    d.effect = r.statement.getEffect();
+                    d.userPolicy = userPolicy;
+                    return d;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static class UserPolicies {
+        RuleSet userRules;
+        RuleSet groupRules;
+        final ConcurrentMap<Class, Decision> decisions = new ConcurrentHashMap<Class, Decision>();
+    }
+
+    private final ConcurrentMap<String, UserPolicies> users = new ConcurrentHashMap<String, UserPolicies>();
+    private final AtomicLong version = new AtomicLong(0);
+
+    protected abstract List<PolicyInventory> loadUserPolicies(String userUuid);
+
+    protected abstract List<PolicyInventory> loadGroupPolicies(String userUuid);
+
+    private UserPolicies getUserPolicies(String userUuid) {
+        UserPolicies up = users.get(userUuid);
+        if (up != null) {
+            return up;
+        }
+
+        long v = version.get();
+        up = new UserPolicies();
+        up.userRules = new RuleSet(loadUserPolicies(userUuid));
+        up.groupRules = new RuleSet(loadGroupPolicies(userUuid));
+        synchronized (users) {
+            // don't cache policies loaded before an invalidation
+            if (v == version.get()) {
+                users.put(userUuid, up);
+            }
+        }
+        return up;
+    }
+
+    /**
+     * @return null if no policy of the user has a rule for the actions
+     */
+    Decision decide(String userUuid, Class msgClass, List<String> actions) {
+        UserPolicies up = getUserPolicies(userUuid);
+        Decision d = up.decisions.get(msgClass);
+        if (d == null) {
+            d = up.userRules.decide(actions, true);
+            if (d == null) {
+                d = up.groupRules.decide(actions, false);
+            }
+            up.decisions.put(msgClass, d == null ? NO_DECISION : d);
+        }
+        return d == NO_DECISION ? null : d;
+    }
+
+    /**
+     * @param userUuids null to invalidate all users
+     */
+    void invalidate(Collection<String> userUuids) {
+        synchronized (users) {
+            version.incrementAndGet();
+            if (userUuids == null) {
+                users.clear();
+            } else {
+                for (String uuid : userUuids) {
+                    users.remove(uuid);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package org.zstack.network.l3;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.zstack.core.db.SimpleQuery;
+import org.zstack.core.db.SimpleQuery.Op;
+import org.zstack.header.network.l3.*;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+import org.zstack.utils.network.NetworkUtils;
+
+import java.util.List;
+
+/**
+ * allocates ips from in-memory bitmaps of ip ranges instead of loading
+ * used ips from database for every allocation, see IpRangeBitmapCache.
+ *
+ * Only the management node owning the l3 network keeps bitmaps; on other nodes
+ * the allocation is done by RandomIpAllocatorStrategy, which queries used ips
+ * step by step instead of loading a whole range.
+ */
+public class BitmapIpAllocatorStrategy extends AbstractIpAllocatorStrategy {
+    private static final CLogger logger = Utils.getLogger(BitmapIpAllocatorStrategy.class);
+    public static final IpAllocatorType type = new IpAllocatorType(L3NetworkConstant.BITMAP_IP_ALLOCATOR_STRATEGY);
+
+    @Autowired
+    private IpRangeBitmapCache bitmapCache;
+
+    @Override
+    public IpAllocatorType getType() {
+        return type;
+    }
+
+    private long countUsedIp(IpRangeVO vo) {
+        SimpleQuery<UsedIpVO> q = dbf.createQuery(UsedIpVO.class);
+        q.add(UsedIpVO_.ipRangeUuid, Op.EQ, vo.getUuid());
+        return q.count();
+    }
+
+    private UsedIpInventory allocateIp(IpRangeVO vo, IpRangeBitmap bitmap) {
+        IpRangeInventory ipr = IpRangeInventory.valueOf(vo);
+        boolean recounted = false;
+
+        while (true) {
+            long ip = bitmap.allocate();
+            if (ip == -1) {
+                if (recounted || countUsedIp(vo) >= bitmap.getSize()) {
+                    logger.debug(String.format("Ip range[uuid:%s, name: %s] is exhausted, try next one", vo.getUuid(), vo.getName()));
+                    return null;
+                }
+
+                // ips were returned without us seeing it
+                bitmap = bitmapCache.rebuild(vo);
+                if (bitmap == null) {
+                    // the l3 network has moved to another node
+                    return null;
+                }
+                recounted = true;
+                continue;
+            }
+
+            UsedIpInventory inv;
+            try {
+                inv = l3NwMgr.reserveIp(ipr, NetworkUtils.longToIpv4String(ip));
+            } catch (RuntimeException e) {
+                bitmap.markFree(ip);
+                throw e;
+            }
+
+            if (inv != null) {
+                return inv;
+            }
+
+            // the ip has been taken behind the bitmap, it stays marked as used
+        }
+    }
+
+    private UsedIpInventory allocateByQuery(IpAllocateMessage msg) {
+        return l3NwMgr.getIpAllocatorStrategy(RandomIpAllocatorStrategy.type).allocateIp(msg);
+    }
+
+    @Override
+    public UsedIpInventory allocateIp(IpAllocateMessage msg) {
+        if (msg.getRequiredIp() != null) {
+            return allocateRequiredIp(msg);
+        }
+
+        if (!bitmapCache.isManagedByUs(msg.getL3NetworkUuid())) {
+            return allocateByQuery(msg);
+        }
+
+        SimpleQuery<IpRangeVO> query = dbf.createQuery(IpRangeVO.class);
+        query.add(IpRangeVO_.l3NetworkUuid, Op.EQ, msg.getL3NetworkUuid());
+        List<IpRangeVO> ranges = query.list();
+        for (IpRangeVO r : ranges) {
+            IpRangeBitmap bitmap = bitmapCache.getBitmap(r);
+            if (bitmap == null) {
+                return allocateByQuery(msg);
+            }
+
+            UsedIpInventory inv = allocateIp(r, bitmap);
+            if (inv != null) {
+                return inv;
+            }
+
+            if (!bitmapCache.isManagedByUs(msg.getL3NetworkUuid())) {
+                return allocateByQuery(msg);
+            }
+        }
+
+        /* No available ip in ranges */
+        return null;
+    }
+}
@@ -0,0 +1,76 @@
+package org.zstack.network.l3;
+
+import java.util.BitSet;
+import java.util.Collection;
+
+/**
+ * used ips of an ip range as a bitmap, a /16 range takes 8K bytes.
+ *
+ * Allocation is next-fit: searching starts from the bit after the last
+ * allocated one, so consecutive allocations don't rescan the used head
+ * of the range.
+ */
+class IpRangeBitmap {
+    private final long startIp;
+    private final int size;
+    private final BitSet used;
+    private int usedNum;
+    private int cursor;
+
+    IpRangeBitmap(long startIp, long endIp, Collection<Long> usedIps) {
+        this.startIp = startIp;
+        this.size = (int) (endIp - startIp + 1);
+        this.used = new BitSet(size);
+        for (Long ip : usedIps) {
+            markUsed(ip);
+        }
+    }
+
+    private int indexOf(long ip) {
+        long index = ip - startIp;
+        return index < 0 || index >= size ? -1 : (int) index;
+    }
+
+    /**
+     * @return the allocated ip, or -1 if all ips are used
+     */
+    synchronized long allocate() {
+        if (usedNum >= size) {
+            return -1;
+        }
+
+        int index = used.nextClearBit(cursor);
+        if (index >= size) {
+            index = used.nextClearBit(0);
+        }
+
+        used.set(index);
+        usedNum ++;
+        cursor = index + 1 >= size ? 0 : index + 1;
+        return startIp + index;
+    }
+
+    synchronized void markUsed(long ip) {
+        int index = indexOf(ip);
+        if (index != -1 && !used.get(index)) {
+            used.set(index);
+            usedNum ++;
+        }
+    }
+
+    synchronized void markFree(long ip) {
+        int index = indexOf(ip);
+        if (index != -1 && used.get(index)) {
+            used.clear(index);
+            usedNum --;
+        }
+    }
+
+    synchronized int getUsedNum() {
+        return usedNum;
+    }
+
+    int getSize() {
+        return size;
+    }
+}
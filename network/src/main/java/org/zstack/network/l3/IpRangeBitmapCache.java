@@ -0,0 +1,127 @@
+package org.zstack.network.l3;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.zstack.core.cloudbus.ResourceDestinationMaker;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.db.SimpleQuery;
+import org.zstack.core.db.SimpleQuery.Op;
+import org.zstack.header.managementnode.ManagementNodeChangeListener;
+import org.zstack.header.network.l3.IpRangeVO;
+import org.zstack.header.network.l3.UsedIpVO;
+import org.zstack.header.network.l3.UsedIpVO_;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+import org.zstack.utils.network.NetworkUtils;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * in-memory used ip bitmaps of ip ranges, built lazily from UsedIpVO.
+ *
+ * Messages of a l3 network are handled by the management node the l3 network uuid
+ * hashes to, so that node sees every reserved and returned ip of the network and is
+ * the only one caching its ranges. Other nodes get no bitmap and allocate by querying
+ * used ips as before. The cache is dropped whenever management nodes join or leave, as
+ * the ownership may have moved.
+ *
+ * A bitmap may still lag behind the database, e.g. an ip is reserved by another path
+ * during building; callers treat a duplicate ip as used and retry, and recount a range
+ * before reporting it full.
+ */
+public class IpRangeBitmapCache implements ManagementNodeChangeListener {
+    private static final CLogger logger = Utils.getLogger(IpRangeBitmapCache.class);
+
+    @Autowired
+    private DatabaseFacade dbf;
+    @Autowired
+    private ResourceDestinationMaker destMaker;
+
+    private ConcurrentMap<String, IpRangeBitmap> bitmaps = new ConcurrentHashMap<String, IpRangeBitmap>();
+
+    private IpRangeBitmap load(IpRangeVO range) {
+        SimpleQuery<UsedIpVO> q = dbf.createQuery(UsedIpVO.class);
+        q.select(UsedIpVO_.ipInLong);
+        q.add(UsedIpVO_.ipRangeUuid, Op.EQ, range.getUuid());
+        List<Long> used = q.listValue();
+        return new IpRangeBitmap(NetworkUtils.ipv4StringToLong(range.getStartIp()),
+                NetworkUtils.ipv4StringToLong(range.getEndIp()), used);
+    }
+
+    boolean isManagedByUs(String l3NetworkUuid) {
+        return destMaker.isManagedByUs(l3NetworkUuid);
+    }
+
+    /**
+     * @return null if the l3 network of the range is not managed by this node
+     */
+    IpRangeBitmap getBitmap(IpRangeVO range) {
+        if (!destMaker.isManagedByUs(range.getL3NetworkUuid())) {
+            // not our network, don't keep a bitmap that nobody will update
+            bitmaps.remove(range.getUuid());
+            return null;
+        }
+
+        IpRangeBitmap bitmap = bitmaps.get(range.getUuid());
+        if (bitmap == null) {
+            bitmap = load(range);
+            IpRangeBitmap old = bitmaps.putIfAbsent(range.getUuid(), bitmap);
+            if (old != null) {
+                bitmap = old;
+            } else {
+                logger.debug(String.format("built used ip bitmap for ip range[uuid:%s], %s of %s ips are used",
+                        range.getUuid(), bitmap.getUsedNum(), bitmap.getSize()));
+            }
+        }
+
+        return bitmap;
+    }
+
+    IpRangeBitmap rebuild(IpRangeVO range) {
+        bitmaps.remove(range.getUuid());
+        return getBitmap(range);
+    }
+
+    boolean isEmpty() {
+        return bitmaps.isEmpty();
+    }
+
+    void ipReserved(String ipRangeUuid, long ip) {
+        IpRangeBitmap bitmap = bitmaps.get(ipRangeUuid);
+        if (bitmap != null) {
+            bitmap.markUsed(ip);
+        }
+    }
+
+    void ipReturned(String ipRangeUuid, long ip) {
+        IpRangeBitmap bitmap = bitmaps.get(ipRangeUuid);
+        if (bitmap != null) {
+            bitmap.markFree(ip);
+        }
+    }
+
+    void evict(String ipRangeUuid) {
+        bitmaps.remove(ipRangeUuid);
+    }
+
+    @Override
+    public void nodeJoin(String nodeId) {
+        bitmaps.clear();
+    }
+
+    @Override
+    public void nodeLeft(String nodeId) {
+        bitmaps.clear();
+    }
+
+    @Override
+    public void iAmDead(String nodeId) {
+        bitmaps.clear();
+    }
+
+    @Override
+    public void iJoin(String nodeId) {
+        bitmaps.clear();
+    }
+}
@@ -61,6 +61,8 @@ public class L3BasicNetwork implements L3Network {
     protected ErrorFacade errf;
     @Autowired
     protected TagManager tagMgr;
+    @Autowired
+    protected IpRangeBitmapCache ipBitmapCache;
 
     private L3NetworkVO self;
 
@@ -141,6 +143,7 @@ public class L3BasicNetwork implements L3Network {
         IpRangeDeletionReply reply = new IpRangeDeletionReply();
         IpRangeVO iprvo = dbf.findByUuid(msg.getIpRangeUuid(), IpRangeVO.class);
         deleteIpRangeHook(IpRangeInventory.valueOf(iprvo));
+        ipBitmapCache.evict(msg.getIpRangeUuid());
         bus.reply(msg, reply);
     }
 
@@ -160,13 +163,18 @@ public class L3BasicNetwork implements L3Network {
 
     private void handle(ReturnIpMsg msg) {
         ReturnIpReply reply = new ReturnIpReply();
+        // the range and ip are only needed when some bitmap is cached
+        UsedIpVO ipvo = ipBitmapCache.isEmpty() ? null : dbf.findByUuid(msg.getUsedIpUuid(), UsedIpVO.class);
         dbf.removeByPrimaryKey(msg.getUsedIpUuid(), UsedIpVO.class);
+        if (ipvo != null) {
+            ipBitmapCache.ipReturned(ipvo.getIpRangeUuid(), ipvo.getIpInLong());
+        }
         logger.debug(String.format("Successfully released used ip[%s]", msg.getUsedIpUuid()));
         bus.reply(msg, reply);
     }
 
     private void handle(AllocateIpMsg msg) {
-        IpAllocatorType strategyType = msg.getAllocatorStrategy() == null ? RandomIpAllocatorStrategy.type : IpAllocatorType.valueOf(msg.getAllocatorStrategy());
+        IpAllocatorType strategyType = msg.getAllocatorStrategy() == null ? IpAllocatorType.valueOf(L3NetworkGlobalProperty.DEFAULT_IP_ALLOCATOR_STRATEGY) : IpAllocatorType.valueOf(msg.getAllocatorStrategy());
         IpAllocatorStrategy ias = l3NwMgr.getIpAllocatorStrategy(strategyType);
         AllocateIpReply reply = new AllocateIpReply();
         UsedIpInventory ip = ias.allocateIp(msg);
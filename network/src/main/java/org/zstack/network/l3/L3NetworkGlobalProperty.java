@@ -0,0 +1,12 @@
+package org.zstack.network.l3;
+
+import org.zstack.core.GlobalProperty;
+import org.zstack.core.GlobalPropertyDefinition;
+
+/**
+ */
+@GlobalPropertyDefinition
+public class L3NetworkGlobalProperty {
+    @GlobalProperty(name="L3Network.defaultIpAllocatorStrategy", defaultValue = "RandomIpAllocatorStrategy")
+    public static String DEFAULT_IP_ALLOCATOR_STRATEGY;
+}
@@ -61,6 +61,8 @@ public class L3NetworkManagerImpl extends AbstractService implements L3NetworkMa
     private ErrorFacade errf;
     @Autowired
     private TagManager tagMgr;
+    @Autowired
+    private IpRangeBitmapCache ipBitmapCache;
 
     private Map<String, L3NetworkFactory> l3NetworkFactories = Collections.synchronizedMap(new HashMap<String, L3NetworkFactory>());
     private Map<String, IpAllocatorStrategy> ipAllocatorStrategies = Collections.synchronizedMap(new HashMap<String, IpAllocatorStrategy>());
@@ -352,9 +354,11 @@ public class L3NetworkManagerImpl extends AbstractService implements L3NetworkMa
             vo.setNetmask(ipRange.getNetmask());
             vo.setGateway(ipRange.getGateway());
             vo = dbf.persistAndRefresh(vo);
+            ipBitmapCache.ipReserved(vo.getIpRangeUuid(), vo.getIpInLong());
             return UsedIpInventory.valueOf(vo);
         } catch (JpaSystemException e) {
             if (e.getRootCause() instanceof MySQLIntegrityConstraintViolationException) {
+                ipBitmapCache.ipReserved(ipRange.getUuid(), NetworkUtils.ipv4StringToLong(ip));
                 logger.debug(String.format("Concurrent ip allocation. Ip[%s] in ip range[uuid:%s] has been allocated, try allocating another one. The error[Duplicate entry] printed by jdbc.spi.SqlExceptionHelper is no harm, we will try finding another ip", ip, ipRange.getUuid()));
                 logger.trace("", e);
             } else {
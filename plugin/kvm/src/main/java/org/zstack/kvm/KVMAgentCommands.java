@@ -685,10 +685,24 @@ public class KVMAgentCommands {
     
     
     public static class VmSyncCmd extends AgentCommand {
+        // generation of the vm states the management node has, null for all states
+        private Long generation;
+
+        public Long getGeneration() {
+            return generation;
+        }
+
+        public void setGeneration(Long generation) {
+            this.generation = generation;
+        }
     }
     
     public static class VmSyncResponse extends AgentResponse {
         private HashMap<String, String> states;
+        // true if states only contains vms changed since the generation in VmSyncCmd
+        private boolean delta;
+        private List<String> removedVmUuids;
+        private Long generation;
 
         public HashMap<String, String> getStates() {
             return states;
@@ -696,6 +710,30 @@ public class KVMAgentCommands {
         public void setStates(HashMap<String, String> states) {
             this.states = states;
         }
+
+        public boolean isDelta() {
+            return delta;
+        }
+
+        public void setDelta(boolean delta) {
+            this.delta = delta;
+        }
+
+        public List<String> getRemovedVmUuids() {
+            return removedVmUuids;
+        }
+
+        public void setRemovedVmUuids(List<String> removedVmUuids) {
+            this.removedVmUuids = removedVmUuids;
+        }
+
+        public Long getGeneration() {
+            return generation;
+        }
+
+        public void setGeneration(Long generation) {
+            this.generation = generation;
+        }
     }
     
     public static class RefreshAllRulesOnHostCmd extends AgentCommand {
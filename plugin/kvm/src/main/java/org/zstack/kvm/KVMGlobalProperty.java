@@ -15,4 +15,8 @@ public class KVMGlobalProperty {
     public static String AGENT_URL_SCHEME;
     @GlobalProperty(name="KvmAgent.port", defaultValue = "7070")
     public static int AGENT_PORT;
+    @GlobalProperty(name="KvmAgent.vmSyncDelta", defaultValue = "false")
+    public static boolean VM_SYNC_DELTA;
+    @GlobalProperty(name="KvmAgent.vmSyncFullTraceInterval", defaultValue = "10")
+    public static int VM_SYNC_FULL_TRACE_INTERVAL;
 }
@@ -15,9 +15,11 @@ import org.zstack.utils.logging.CLogger;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
-public class KvmVmSyncPingTask extends VmTracer implements HostPingTaskExtensionPoint, KVMHostConnectExtensionPoint, HostConnectionReestablishExtensionPoint {
+public class KvmVmSyncPingTask extends VmTracer implements HostPingTaskExtensionPoint, KVMHostConnectExtensionPoint,
+        HostConnectionReestablishExtensionPoint, HostDeleteExtensionPoint {
     private static final CLogger logger = Utils.getLogger(KvmVmSyncPingTask.class);
     
     @Autowired
@@ -25,8 +27,65 @@ public class KvmVmSyncPingTask extends VmTracer implements HostPingTaskExtension
     @Autowired
     private KVMHostFactory factory;
 
+    /**
+     * vm states of a host as of a generation of the agent. With KvmAgent.vmSyncDelta on,
+     * the generation is sent in VmSyncCmd and an agent knowing it replies only vms changed
+     * since then; an agent not knowing it, or not supporting delta sync, replies all vms.
+     */
+    private static class HostVmStates {
+        long generation;
+        Map<String, String> states;
+        int unchangedSyncs;
+    }
+
+    private Map<String, HostVmStates> hostVmStates = new ConcurrentHashMap<String, HostVmStates>();
+
+    /**
+     * @return all vm states of the host, or null if nothing changed on the host since the last trace
+     */
+    private Map<String, String> mergeVmStates(String hostUuid, HostVmStates last, VmSyncResponse ret) {
+        Map<String, String> states;
+        boolean changed;
+        if (ret.isDelta() && last != null) {
+            states = new HashMap<String, String>(last.states);
+            if (ret.getStates() != null) {
+                states.putAll(ret.getStates());
+            }
+            if (ret.getRemovedVmUuids() != null) {
+                for (String vmUuid : ret.getRemovedVmUuids()) {
+                    states.remove(vmUuid);
+                }
+            }
+            changed = !states.equals(last.states);
+        } else {
+            states = ret.getStates();
+            changed = true;
+        }
+
+        if (!KVMGlobalProperty.VM_SYNC_DELTA || ret.getGeneration() == null) {
+            hostVmStates.remove(hostUuid);
+            return states;
+        }
+
+        HostVmStates current = new HostVmStates();
+        current.generation = ret.getGeneration();
+        current.states = states;
+        current.unchangedSyncs = changed ? 0 : last.unchangedSyncs + 1;
+        // still trace periodically, vm states in database may drift without the host changing
+        if (current.unchangedSyncs >= KVMGlobalProperty.VM_SYNC_FULL_TRACE_INTERVAL) {
+            current.unchangedSyncs = 0;
+            changed = true;
+        }
+        hostVmStates.put(hostUuid, current);
+
+        return changed ? states : null;
+    }
+
     private void syncVm(final KVMHostContext host) {
+        final String hostUuid = host.getInventory().getUuid();
+        final HostVmStates last = KVMGlobalProperty.VM_SYNC_DELTA ? hostVmStates.get(hostUuid) : null;
         VmSyncCmd cmd = new VmSyncCmd();
+        cmd.setGeneration(last == null ? null : last.generation);
         restf.asyncJsonPost(host.buildUrl(KVMConstant.KVM_VM_SYNC_PATH), cmd, new JsonAsyncRESTCallback<VmSyncResponse>() {
             @Override
             public void fail(ErrorCode err) {
@@ -36,15 +95,20 @@ public class KvmVmSyncPingTask extends VmTracer implements HostPingTaskExtension
             @Override
             public void success(VmSyncResponse ret) {
                 if (ret.isSuccess()) {
-                    Map<String, VmInstanceState> states = new HashMap<String, VmInstanceState>(ret.getStates().size());
-                    for (Map.Entry<String, String> e : ret.getStates().entrySet()) {
+                    Map<String, String> vms = mergeVmStates(hostUuid, last, ret);
+                    if (vms == null) {
+                        return;
+                    }
+
+                    Map<String, VmInstanceState> states = new HashMap<String, VmInstanceState>(vms.size());
+                    for (Map.Entry<String, String> e : vms.entrySet()) {
                         VmInstanceState state = KvmVmState.valueOf(e.getValue()).toVmInstanceState();
                         if (state == VmInstanceState.Running || state == VmInstanceState.Unknown) {
                             states.put(e.getKey(), state);
                         }
                     }
 
-                    reportVmState(host.getInventory().getUuid(), states);
+                    reportVmState(hostUuid, states);
                 } else {
                     logger.warn(String.format("unable to do vm sync on host[uuid:%s, ip:%s] because %s", host.getInventory().getUuid(), host.getInventory().getManagementIp(), ret.getError()));
                 }
@@ -72,11 +136,13 @@ public class KvmVmSyncPingTask extends VmTracer implements HostPingTaskExtension
 
     @Override
     public void kvmHostConnected(KVMHostConnectedContext context) throws KVMHostConnectException {
+        hostVmStates.remove(context.getInventory().getUuid());
         syncVm(context);
     }
 
     @Override
     public void connectionReestablished(HostInventory inv) throws HostException {
+        hostVmStates.remove(inv.getUuid());
         syncVm(factory.getHostContext(inv.getUuid()));
     }
 
@@ -84,4 +150,17 @@ public class KvmVmSyncPingTask extends VmTracer implements HostPingTaskExtension
     public HypervisorType getHypervisorTypeForReestablishExtensionPoint() {
         return HypervisorType.valueOf(KVMConstant.KVM_HYPERVISOR_TYPE);
     }
+
+    @Override
+    public void preDeleteHost(HostInventory inventory) throws HostException {
+    }
+
+    @Override
+    public void beforeDeleteHost(HostInventory inventory) {
+    }
+
+    @Override
+    public void afterDeleteHost(HostInventory inventory) {
+        hostVmStates.remove(inventory.getUuid());
+    }
 }
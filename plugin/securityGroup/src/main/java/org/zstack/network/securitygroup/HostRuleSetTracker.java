@@ -0,0 +1,131 @@
+package org.zstack.network.securitygroup;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.zstack.utils.gson.JSONObjectUtil;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * materialized rule sets of hosts.
+ *
+ * For every host the tracker remembers a digest of the rules last pushed to each vm nic,
+ * and a version bumped on every push. delta() strips nics whose rules didn't change from
+ * a HostRuleTO, so only chains that differ are rewritten on the host. A host whose push
+ * failed is diverged: what the tracker knows about it is dropped and the next push, the
+ * full refresh done by the failure host worker, materializes it again.
+ */
+class HostRuleSetTracker {
+    private static class HostRuleSet {
+        long version;
+        Map<String, String> nicDigests = new HashMap<String, String>();
+    }
+
+    private final Map<String, HostRuleSet> hostRuleSets = new HashMap<String, HostRuleSet>();
+    // which host a vm nic's rules were last pushed to
+    private final Map<String, String> nicHosts = new HashMap<String, String>();
+
+    private static String digest(SecurityGroupRuleTO sgto) {
+        return DigestUtils.md5Hex(JSONObjectUtil.toJsonString(sgto));
+    }
+
+    private void forgetNic(String nicUuid) {
+        String hostUuid = nicHosts.remove(nicUuid);
+        if (hostUuid == null) {
+            return;
+        }
+
+        HostRuleSet set = hostRuleSets.get(hostUuid);
+        if (set != null) {
+            set.nicDigests.remove(nicUuid);
+        }
+    }
+
+    /**
+     * @return the HostRuleTO to push, or null if rules on the host are already up to date
+     */
+    synchronized HostRuleTO delta(HostRuleTO hto) {
+        HostRuleSet set = hostRuleSets.get(hto.getHostUuid());
+        if (set == null || hto.isRefreshHost()) {
+            // a full refresh replaces whatever the host had; an unknown host takes the push as it is
+            long version = set == null ? 1 : set.version + 1;
+            diverge(hto.getHostUuid());
+            set = new HostRuleSet();
+            set.version = version;
+            hostRuleSets.put(hto.getHostUuid(), set);
+            record(hto.getHostUuid(), set, hto.getRules());
+            return hto;
+        }
+
+        List<SecurityGroupRuleTO> changed = new ArrayList<SecurityGroupRuleTO>();
+        for (SecurityGroupRuleTO sgto : hto.getRules()) {
+            if (SecurityGroupRuleTO.ACTION_CODE_DELETE_CHAIN.equals(sgto.getActionCode())) {
+                changed.add(sgto);
+                continue;
+            }
+
+            String d = digest(sgto);
+            if (!d.equals(set.nicDigests.get(sgto.getVmNicUuid()))) {
+                changed.add(sgto);
+            }
+        }
+
+        if (changed.isEmpty()) {
+            return null;
+        }
+
+        set.version ++;
+        record(hto.getHostUuid(), set, changed);
+
+        HostRuleTO ret = new HostRuleTO();
+        ret.setHostUuid(hto.getHostUuid());
+        ret.setHypervisorType(hto.getHypervisorType());
+        ret.setRules(changed);
+        return ret;
+    }
+
+    private void record(String hostUuid, HostRuleSet set, Collection<SecurityGroupRuleTO> sgtos) {
+        for (SecurityGroupRuleTO sgto : sgtos) {
+            forgetNic(sgto.getVmNicUuid());
+            if (SecurityGroupRuleTO.ACTION_CODE_DELETE_CHAIN.equals(sgto.getActionCode())) {
+                continue;
+            }
+
+            set.nicDigests.put(sgto.getVmNicUuid(), digest(sgto));
+            nicHosts.put(sgto.getVmNicUuid(), hostUuid);
+        }
+    }
+
+    synchronized long getVersion(String hostUuid) {
+        HostRuleSet set = hostRuleSets.get(hostUuid);
+        return set == null ? 0 : set.version;
+    }
+
+    /**
+     * rules of the vm nics may have been lost on their hosts, e.g. the vm restarted or migrated
+     */
+    synchronized void forget(Collection<String> nicUuids) {
+        for (String nicUuid : nicUuids) {
+            forgetNic(nicUuid);
+        }
+    }
+
+    synchronized void diverge(String hostUuid) {
+        HostRuleSet set = hostRuleSets.remove(hostUuid);
+        if (set == null) {
+            return;
+        }
+
+        for (String nicUuid : set.nicDigests.keySet()) {
+            nicHosts.remove(nicUuid);
+        }
+    }
+
+    synchronized void clear() {
+        hostRuleSets.clear();
+        nicHosts.clear();
+    }
+}
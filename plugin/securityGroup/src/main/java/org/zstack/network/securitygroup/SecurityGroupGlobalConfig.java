@@ -20,4 +20,8 @@ public class SecurityGroupGlobalConfig {
     public static GlobalConfig INGRESS_RULE_DEFAULT_POLICY = new GlobalConfig(CATEGORY, "ingress.defaultPolicy");
     @GlobalConfigValidation(validValues = {"accept", "deny"})
     public static GlobalConfig EGRESS_RULE_DEFAULT_POLICY = new GlobalConfig(CATEGORY, "egress.defaultPolicy");
+    @GlobalConfigValidation(validValues = {"true", "false"})
+    public static GlobalConfig DELTA_PUSH = new GlobalConfig(CATEGORY, "rule.deltaPush");
+    @GlobalConfigValidation(numberGreaterThan = -1)
+    public static GlobalConfig COALESCE_INTERVAL = new GlobalConfig(CATEGORY, "rule.coalesceInterval");
 }
@@ -83,6 +83,9 @@ public class SecurityGroupManagerImpl extends AbstractService implements Securit
     private int failureHostWorkerInterval;
     private int failureHostEachTimeTake;
     private Future<Void> failureHostCopingThread;
+    private HostRuleSetTracker hostRuleSets = new HostRuleSetTracker();
+    // rules waiting in the coalescing window, by host uuid
+    private final Map<String, HostRuleTO> pendingHostRules = new HashMap<String, HostRuleTO>();
 
     @Override
     public List<Quota> reportQuota() {
@@ -133,6 +136,8 @@ public class SecurityGroupManagerImpl extends AbstractService implements Securit
         private List<String> securityGroupUuids;
         private List<String> hostUuids;
         private List<VmInstanceState> vmStates;
+        // rules of a security group on a l3 network are the same for all its nics, calculate them once
+        private Map<String, List<RuleTO>> sgRuleTOs = new HashMap<String, List<RuleTO>>();
 
         List<HostRuleTO> calculate() {
             if (vmNicUuids != null) {
@@ -226,6 +231,16 @@ public class SecurityGroupManagerImpl extends AbstractService implements Securit
             List<RuleTO> ret = new ArrayList<RuleTO>();
 
             for (String sgUuid : sgUuids) {
+                String key = String.format("%s-%s", sgUuid, l3Uuid);
+                List<RuleTO> rtos = sgRuleTOs.get(key);
+                if (rtos != null) {
+                    ret.addAll(rtos);
+                    continue;
+                }
+
+                rtos = new ArrayList<RuleTO>();
+                sgRuleTOs.put(key, rtos);
+
                 String sql = "select r from SecurityGroupRuleVO r where r.securityGroupUuid = :sgUuid";
                 TypedQuery<SecurityGroupRuleVO> q = dbf.getEntityManager().createQuery(sql, SecurityGroupRuleVO.class);
                 q.setParameter("sgUuid", sgUuid);
@@ -257,8 +272,9 @@ public class SecurityGroupManagerImpl extends AbstractService implements Securit
                     rto.setStartPort(r.getStartPort());
                     rto.setType(r.getType().toString());
                     rto.setAllowedInternalIpRange(internalIpRanges);
-                    ret.add(rto);
+                    rtos.add(rto);
                 }
+                ret.addAll(rtos);
             }
 
             if (logger.isTraceEnabled()) {
@@ -434,6 +450,9 @@ public class SecurityGroupManagerImpl extends AbstractService implements Securit
             return;
         }
 
+        // the vm started, stopped or rebooted, rules of its nics on the host are no longer known
+        hostRuleSets.forget(nicUuids);
+
         Collection<HostRuleTO> htos;
         if (msg.isDeleteAllRules()) {
             RuleCalculator cal = new RuleCalculator();
@@ -831,27 +850,102 @@ public class SecurityGroupManagerImpl extends AbstractService implements Securit
     }
 
     private void applyRules(Collection<HostRuleTO> htos) {
-        for (final HostRuleTO h : htos) {
-            SecurityGroupHypervisorBackend bkend = hypervisorBackends.get(h.getHypervisorType());
-            bkend.applyRules(h, new Completion() {
-                private void copeWithFailureHost() {
-                    createFailureHostTask(h.getHostUuid());
-                }
+        if (!SecurityGroupGlobalConfig.DELTA_PUSH.value(Boolean.class)) {
+            for (HostRuleTO h : htos) {
+                pushRules(h);
+            }
+            return;
+        }
 
-                @Override
-                public void success() {
-                    logger.debug(String.format("successfully applied security rules on host[uuid:%s]", h.getHostUuid()));
+        long interval = SecurityGroupGlobalConfig.COALESCE_INTERVAL.value(Long.class);
+        for (HostRuleTO h : htos) {
+            if (interval == 0) {
+                pushDelta(h);
+            } else {
+                coalesce(h, interval);
+            }
+        }
+    }
+
+    private void coalesce(HostRuleTO hto, long interval) {
+        final String hostUuid = hto.getHostUuid();
+        boolean schedule = false;
+        synchronized (pendingHostRules) {
+            HostRuleTO pending = pendingHostRules.get(hostUuid);
+            if (pending == null) {
+                pending = new HostRuleTO();
+                pending.setHostUuid(hostUuid);
+                pending.setHypervisorType(hto.getHypervisorType());
+                pendingHostRules.put(hostUuid, pending);
+                schedule = true;
+            }
+
+            // the latest rules of a nic win
+            for (SecurityGroupRuleTO sgto : hto.getRules()) {
+                Iterator<SecurityGroupRuleTO> it = pending.getRules().iterator();
+                while (it.hasNext()) {
+                    if (it.next().getVmNicUuid().equals(sgto.getVmNicUuid())) {
+                        it.remove();
+                    }
                 }
+                pending.getRules().add(sgto);
+            }
+            pending.setRefreshHost(pending.isRefreshHost() || hto.isRefreshHost());
+        }
 
+        if (schedule) {
+            thdf.submitTimeoutTask(new Runnable() {
                 @Override
-                public void fail(ErrorCode errorCode) {
-                    logger.debug(String.format("failed to apply security rules on host[uuid:%s], because %s, will try it later", h.getHostUuid(), errorCode));
-                    copeWithFailureHost();
+                public void run() {
+                    HostRuleTO pending;
+                    synchronized (pendingHostRules) {
+                        pending = pendingHostRules.remove(hostUuid);
+                    }
+
+                    if (pending != null) {
+                        pushDelta(pending);
+                    }
                 }
-            });
+            }, TimeUnit.MILLISECONDS, interval);
         }
     }
 
+    private void pushDelta(HostRuleTO hto) {
+        HostRuleTO delta = hostRuleSets.delta(hto);
+        if (delta == null) {
+            logger.debug(String.format("security group rules on host[uuid:%s] are up to date, skip pushing", hto.getHostUuid()));
+            return;
+        }
+
+        if (logger.isTraceEnabled()) {
+            logger.trace(String.format("push rules of %s/%s vm nics to host[uuid:%s], rule set version: %s", delta.getRules().size(),
+                    hto.getRules().size(), hto.getHostUuid(), hostRuleSets.getVersion(hto.getHostUuid())));
+        }
+        pushRules(delta);
+    }
+
+    private void pushRules(final HostRuleTO h) {
+        SecurityGroupHypervisorBackend bkend = hypervisorBackends.get(h.getHypervisorType());
+        bkend.applyRules(h, new Completion() {
+            private void copeWithFailureHost() {
+                // rules on the host are unknown now, the failure host worker will push all of them
+                hostRuleSets.diverge(h.getHostUuid());
+                createFailureHostTask(h.getHostUuid());
+            }
+
+            @Override
+            public void success() {
+                logger.debug(String.format("successfully applied security rules on host[uuid:%s]", h.getHostUuid()));
+            }
+
+            @Override
+            public void fail(ErrorCode errorCode) {
+                logger.debug(String.format("failed to apply security rules on host[uuid:%s], because %s, will try it later", h.getHostUuid(), errorCode));
+                copeWithFailureHost();
+            }
+        });
+    }
+
     private void handle(APIAddSecurityGroupRuleMsg msg) {
         APIAddSecurityGroupRuleEvent evt = new APIAddSecurityGroupRuleEvent(msg.getId());
 
@@ -961,6 +1055,14 @@ public class SecurityGroupManagerImpl extends AbstractService implements Securit
         SecurityGroupGlobalConfig.FAILURE_HOST_WORKER_INTERVAL.installUpdateExtension(onUpdate);
         SecurityGroupGlobalConfig.FAILURE_HOST_EACH_TIME_TO_TAKE.installUpdateExtension(onUpdate);
         SecurityGroupGlobalConfig.DELAY_REFRESH_INTERVAL.installUpdateExtension(onUpdate);
+
+        SecurityGroupGlobalConfig.DELTA_PUSH.installUpdateExtension(new GlobalConfigUpdateExtensionPoint() {
+            @Override
+            public void updateGlobalConfig(GlobalConfig oldConfig, GlobalConfig newConfig) {
+                // rule sets are only maintained in delta mode, they are stale once it's turned off
+                hostRuleSets.clear();
+            }
+        });
     }
 
     public boolean start() {
@@ -999,6 +1101,7 @@ public class SecurityGroupManagerImpl extends AbstractService implements Securit
                 return arg.getUuid();
             }
         });
+        hostRuleSets.forget(cal.vmNicUuids);
         cal.vmStates = Arrays.asList(VmInstanceState.Running);
         List<HostRuleTO> htos = cal.calculate();
         applyRules(htos);
@@ -1015,6 +1118,7 @@ public class SecurityGroupManagerImpl extends AbstractService implements Securit
             public void fail(ErrorCode errorCode) {
                 logger.debug(String.format("vm[uuid:%s, name:%s] migrated to host[uuid:%s], failed to cleanup its old rules on host[uuid:%s] if needed",
                         inv.getUuid(), inv.getName(), destHostUuid, inv.getLastHostUuid()));
+                hostRuleSets.diverge(inv.getLastHostUuid());
                 createFailureHostTask(inv.getLastHostUuid());
             }
         });
@@ -1030,6 +1134,7 @@ public class SecurityGroupManagerImpl extends AbstractService implements Securit
             }
         });
         cal.vmStates = Arrays.asList(VmInstanceState.Unknown);
+        hostRuleSets.forget(cal.vmNicUuids);
         List<HostRuleTO> htos = cal.calculate();
 
         logger.debug(String.format("vm[uuid:%s, name:%s] failed to migrate to host[uuid:%s], recover its rules on previous host[uuid:%s]",
@@ -1111,6 +1216,10 @@ public class SecurityGroupManagerImpl extends AbstractService implements Securit
                 List<HostRuleTO> htos = cal.calculate();
                 final HostRuleTO hto = htos.get(0);
                 hto.setRefreshHost(true);
+                if (SecurityGroupGlobalConfig.DELTA_PUSH.value(Boolean.class)) {
+                    // materialize the host's rule set from the full push
+                    hostRuleSets.delta(hto);
+                }
                 SecurityGroupHypervisorBackend bd = getHypervisorBackend(hto.getHypervisorType());
                 bd.applyRules(hto, new Completion() {
                     @Override
@@ -1122,6 +1231,7 @@ public class SecurityGroupManagerImpl extends AbstractService implements Securit
                     @Override
                     public void fail(ErrorCode errorCode) {
                         logger.debug(String.format("failed to re-apply security group rules to host[uuid:%s], because %s, try it later", hto.getHostUuid(), errorCode));
+                        hostRuleSets.diverge(hto.getHostUuid());
                         copeWithFailureHost(vo);
                     }
                 });
@@ -0,0 +1,284 @@
+package org.zstack.portal.apimediator;
+
+import org.zstack.core.thread.Task;
+import org.zstack.core.thread.ThreadFacade;
+import org.zstack.header.apimediator.APIIsReadyToGoMsg;
+import org.zstack.header.identity.SessionInventory;
+import org.zstack.header.message.APIListMessage;
+import org.zstack.header.message.APIMessage;
+import org.zstack.header.message.Message;
+import org.zstack.header.query.APIQueryMessage;
+import org.zstack.header.search.APIGetMessage;
+import org.zstack.header.search.APISearchMessage;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * admits API messages to the API workers through lanes.
+ *
+ * Every API is classified into a lane, each lane has its own concurrency and a bounded queue;
+ * an API arriving at a full queue is rejected at once instead of waiting behind others. Queued
+ * APIs of a lane are taken round-robin by account, so one account flooding a lane doesn't
+ * starve the others. Accounts are known by the session carried in the message, the session uuid
+ * is used when the account uuid is absent.
+ */
+public class ApiAdmissionController {
+    private static final CLogger logger = Utils.getLogger(ApiAdmissionController.class);
+
+    public enum Lane {
+        Query,
+        Mutate,
+        Admin,
+        LongRunning
+    }
+
+    private enum Admission {
+        Run,
+        Queued,
+        Rejected
+    }
+
+    public interface ApiHandler {
+        void handle(Message msg);
+
+        void reject(Message msg, String reason);
+    }
+
+    private class Pending {
+        final Message msg;
+        final long queuedAt = System.nanoTime();
+
+        Pending(Message msg) {
+            this.msg = msg;
+        }
+    }
+
+    private class LaneState {
+        final Lane lane;
+        final int concurrency;
+        final int queueSize;
+        int running;
+        int queued;
+        // queues of accounts in round-robin order
+        final LinkedHashMap<String, LinkedList<Pending>> queues = new LinkedHashMap<String, LinkedList<Pending>>();
+
+        long admitted;
+        long rejected;
+        long started;
+        long completed;
+        long totalWaitTime;
+        long maxWaitTime;
+        long totalExecutionTime;
+        long maxExecutionTime;
+
+        LaneState(Lane lane, int concurrency, int queueSize) {
+            this.lane = lane;
+            this.concurrency = concurrency;
+            this.queueSize = queueSize;
+        }
+
+        private Pending poll() {
+            Iterator<Map.Entry<String, LinkedList<Pending>>> it = queues.entrySet().iterator();
+            if (!it.hasNext()) {
+                return null;
+            }
+
+            Map.Entry<String, LinkedList<Pending>> e = it.next();
+            it.remove();
+            Pending p = e.getValue().poll();
+            if (!e.getValue().isEmpty()) {
+                // the account goes to the end of the round
+                queues.put(e.getKey(), e.getValue());
+            }
+            queued --;
+            return p;
+        }
+
+        synchronized Admission admit(Message msg) {
+            if (running < concurrency) {
+                running ++;
+                admitted ++;
+                started ++;
+                return Admission.Run;
+            }
+
+            if (queued >= queueSize) {
+                rejected ++;
+                return Admission.Rejected;
+            }
+
+            String account = getAccount(msg);
+            LinkedList<Pending> q = queues.get(account);
+            if (q == null) {
+                q = new LinkedList<Pending>();
+                queues.put(account, q);
+            }
+            q.add(new Pending(msg));
+            queued ++;
+            admitted ++;
+            return Admission.Queued;
+        }
+
+        /**
+         * @return the next message to run, or null if the slot is released
+         */
+        synchronized Pending done(long executionTime) {
+            completed ++;
+            totalExecutionTime += executionTime;
+            maxExecutionTime = Math.max(maxExecutionTime, executionTime);
+
+            Pending p = poll();
+            if (p == null) {
+                running --;
+                return null;
+            }
+
+            started ++;
+            long waitTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - p.queuedAt);
+            totalWaitTime += waitTime;
+            maxWaitTime = Math.max(maxWaitTime, waitTime);
+            return p;
+        }
+
+        synchronized String getUsage() {
+            return String.format("running: %s/%s, queued: %s/%s", running, concurrency, queued, queueSize);
+        }
+
+        synchronized ApiLaneStatistic getStatistic() {
+            ApiLaneStatistic s = new ApiLaneStatistic();
+            s.setLaneName(lane.toString());
+            s.setConcurrency(concurrency);
+            s.setRunning(running);
+            s.setQueued(queued);
+            s.setAdmitted(admitted);
+            s.setRejected(rejected);
+            s.setCompleted(completed);
+            s.setAverageWaitTime(started == 0 ? 0 : totalWaitTime / started);
+            s.setMaxWaitTime(maxWaitTime);
+            s.setAverageExecutionTime(completed == 0 ? 0 : totalExecutionTime / completed);
+            s.setMaxExecutionTime(maxExecutionTime);
+            return s;
+        }
+    }
+
+    private final ThreadFacade thdf;
+    private final ApiHandler handler;
+    private final Map<Lane, LaneState> lanes = new EnumMap<Lane, LaneState>(Lane.class);
+    private final Map<String, Lane> laneOfApis = new HashMap<String, Lane>();
+
+    public ApiAdmissionController(ThreadFacade thdf, ApiHandler handler) {
+        this.thdf = thdf;
+        this.handler = handler;
+    }
+
+    public void setLane(Lane lane, int concurrency, int queueSize) {
+        lanes.put(lane, new LaneState(lane, concurrency, queueSize));
+    }
+
+    /**
+     * @param apiNames comma separated simple class names of API messages
+     */
+    public void assignApis(Lane lane, String apiNames) {
+        if (apiNames == null) {
+            return;
+        }
+
+        for (String name : apiNames.split(",")) {
+            name = name.trim();
+            if (!name.isEmpty()) {
+                laneOfApis.put(name, lane);
+            }
+        }
+    }
+
+    public Lane classify(Message msg) {
+        Lane lane = laneOfApis.get(msg.getClass().getSimpleName());
+        if (lane != null) {
+            return lane;
+        }
+
+        if (msg instanceof APIIsReadyToGoMsg) {
+            return Lane.Admin;
+        }
+
+        if (msg instanceof APIQueryMessage || msg instanceof APISearchMessage || msg instanceof APIGetMessage
+                || msg instanceof APIListMessage) {
+            return Lane.Query;
+        }
+
+        String name = msg.getClass().getSimpleName();
+        if (name.startsWith("APIQuery") || name.startsWith("APIGet") || name.startsWith("APIList")) {
+            return Lane.Query;
+        }
+
+        return Lane.Mutate;
+    }
+
+    private static String getAccount(Message msg) {
+        if (!(msg instanceof APIMessage)) {
+            return "";
+        }
+
+        SessionInventory session = ((APIMessage) msg).getSession();
+        if (session == null) {
+            return "";
+        }
+
+        if (session.getAccountUuid() != null) {
+            return session.getAccountUuid();
+        }
+        return session.getUuid() == null ? "" : session.getUuid();
+    }
+
+    public void submit(Message msg) {
+        Lane lane = classify(msg);
+        LaneState state = lanes.get(lane);
+        Admission a = state.admit(msg);
+        if (a == Admission.Run) {
+            run(state, msg);
+        } else if (a == Admission.Rejected) {
+            String reason = String.format("the %s lane of API is full[%s], API[%s] is rejected, please retry later",
+                    lane, state.getUsage(), msg.getClass().getSimpleName());
+            logger.warn(reason);
+            handler.reject(msg, reason);
+        }
+    }
+
+    private void run(final LaneState state, final Message msg) {
+        thdf.submit(new Task<Void>() {
+            @Override
+            public String getName() {
+                return String.format("api.worker.%s", state.lane);
+            }
+
+            @Override
+            public Void call() throws Exception {
+                Message m = msg;
+                while (m != null) {
+                    long start = System.nanoTime();
+                    try {
+                        handler.handle(m);
+                    } catch (Throwable t) {
+                        logger.warn(String.format("unhandled exception when handling API[%s]", m.getClass().getName()), t);
+                    }
+
+                    // keep the slot to run the next queued API of the lane, if any
+                    Pending next = state.done(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                    m = next == null ? null : next.msg;
+                }
+                return null;
+            }
+        });
+    }
+
+    public Map<String, ApiLaneStatistic> getStatistics() {
+        Map<String, ApiLaneStatistic> ret = new HashMap<String, ApiLaneStatistic>();
+        for (LaneState s : lanes.values()) {
+            ret.put(s.lane.toString(), s.getStatistic());
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,140 @@
+package org.zstack.portal.apimediator;
+
+import org.zstack.header.core.AbstractCompositeType;
+import org.zstack.header.exception.CloudRuntimeException;
+
+import javax.management.MXBean;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+
+/**
+ * times are in milliseconds; wait time is the time an API spends queued in its lane
+ */
+@MXBean
+public class ApiLaneStatistic extends AbstractCompositeType {
+    private String laneName;
+    private long concurrency;
+    private long running;
+    private long queued;
+    private long admitted;
+    private long rejected;
+    private long completed;
+    private long averageWaitTime;
+    private long maxWaitTime;
+    private long averageExecutionTime;
+    private long maxExecutionTime;
+
+    static String[] fieldNames = new String[] {"laneName", "concurrency", "running", "queued", "admitted", "rejected", "completed",
+            "averageWaitTime", "maxWaitTime", "averageExecutionTime", "maxExecutionTime"};
+
+    public String getLaneName() {
+        return laneName;
+    }
+
+    public void setLaneName(String laneName) {
+        this.laneName = laneName;
+    }
+
+    public long getConcurrency() {
+        return concurrency;
+    }
+
+    public void setConcurrency(long concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    public long getRunning() {
+        return running;
+    }
+
+    public void setRunning(long running) {
+        this.running = running;
+    }
+
+    public long getQueued() {
+        return queued;
+    }
+
+    public void setQueued(long queued) {
+        this.queued = queued;
+    }
+
+    public long getAdmitted() {
+        return admitted;
+    }
+
+    public void setAdmitted(long admitted) {
+        this.admitted = admitted;
+    }
+
+    public long getRejected() {
+        return rejected;
+    }
+
+    public void setRejected(long rejected) {
+        this.rejected = rejected;
+    }
+
+    public long getCompleted() {
+        return completed;
+    }
+
+    public void setCompleted(long completed) {
+        this.completed = completed;
+    }
+
+    public long getAverageWaitTime() {
+        return averageWaitTime;
+    }
+
+    public void setAverageWaitTime(long averageWaitTime) {
+        this.averageWaitTime = averageWaitTime;
+    }
+
+    public long getMaxWaitTime() {
+        return maxWaitTime;
+    }
+
+    public void setMaxWaitTime(long maxWaitTime) {
+        this.maxWaitTime = maxWaitTime;
+    }
+
+    public long getAverageExecutionTime() {
+        return averageExecutionTime;
+    }
+
+    public void setAverageExecutionTime(long averageExecutionTime) {
+        this.averageExecutionTime = averageExecutionTime;
+    }
+
+    public long getMaxExecutionTime() {
+        return maxExecutionTime;
+    }
+
+    public void setMaxExecutionTime(long maxExecutionTime) {
+        this.maxExecutionTime = maxExecutionTime;
+    }
+
+    @Override
+    protected String[] getFieldNames() {
+        return fieldNames;
+    }
+
+    @Override
+    public CompositeType getCompositeType() {
+        try {
+            return new CompositeType(
+                    "ApiLaneStatistic",
+                    "API admission lane statistic struct",
+                    fieldNames,
+                    fieldNames,
+                    new OpenType[] {SimpleType.STRING, SimpleType.LONG, SimpleType.LONG, SimpleType.LONG, SimpleType.LONG, SimpleType.LONG,
+                            SimpleType.LONG, SimpleType.LONG, SimpleType.LONG, SimpleType.LONG, SimpleType.LONG}
+            );
+        } catch (OpenDataException e) {
+            throw new CloudRuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package org.zstack.portal.apimediator;
+
+import org.zstack.header.message.NeedJsonSchema;
+
+import java.util.List;
+
+/**
+ */
+public class ApiMediatorCanonicalEvents {
+    public static final String RESOURCE_DELETED_PATH = "/apiMediator/resource/deleted/{nodeUuid}";
+
+    @NeedJsonSchema
+    public static class ResourceDeletedData {
+        private List<String> resourceUuids;
+
+        public List<String> getResourceUuids() {
+            return resourceUuids;
+        }
+
+        public void setResourceUuids(List<String> resourceUuids) {
+            this.resourceUuids = resourceUuids;
+        }
+    }
+}
@@ -1,11 +1,17 @@
 package org.zstack.portal.apimediator;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.zstack.core.Platform;
 import org.zstack.core.cloudbus.CloudBus;
 import org.zstack.core.cloudbus.CloudBusCallBack;
+import org.zstack.core.cloudbus.EventCallback;
+import org.zstack.core.cloudbus.EventFacade;
+import org.zstack.core.db.HardDeleteEntityExtensionPoint;
+import org.zstack.core.db.SoftDeleteEntityExtensionPoint;
 import org.zstack.core.errorcode.ErrorFacade;
-import org.zstack.core.thread.SyncTask;
+import org.zstack.core.jmx.JmxFacade;
 import org.zstack.core.thread.ThreadFacade;
 import org.zstack.header.AbstractService;
 import org.zstack.header.apimediator.*;
@@ -13,6 +19,8 @@ import org.zstack.header.errorcode.SysErrors;
 import org.zstack.header.managementnode.IsManagementNodeReadyMsg;
 import org.zstack.header.managementnode.IsManagementNodeReadyReply;
 import org.zstack.header.managementnode.ManagementNodeConstant;
+import org.zstack.portal.apimediator.ApiAdmissionController.Lane;
+import org.zstack.portal.apimediator.ApiMediatorCanonicalEvents.ResourceDeletedData;
 import org.zstack.header.message.APICreateMessage;
 import org.zstack.header.message.APIMessage;
 import org.zstack.header.message.Message;
@@ -23,14 +31,17 @@ import org.zstack.utils.gson.JSONObjectUtil;
 import org.zstack.utils.logging.CLogger;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import static org.zstack.utils.CollectionDSL.e;
 import static org.zstack.utils.CollectionDSL.map;
+import static org.zstack.utils.StringDSL.s;
 
-public class ApiMediatorImpl extends AbstractService implements ApiMediator, GlobalApiMessageInterceptor {
+public class ApiMediatorImpl extends AbstractService implements ApiMediator, GlobalApiMessageInterceptor,
+        SoftDeleteEntityExtensionPoint, HardDeleteEntityExtensionPoint, ApiMediatorMXBean {
     private static final CLogger logger = Utils.getLogger(ApiMediator.class);
 
     @Autowired
@@ -39,11 +50,24 @@ public class ApiMediatorImpl extends AbstractService implements ApiMediator, Glo
     private ThreadFacade thdf;
     @Autowired
     private ErrorFacade errf;
+    @Autowired
+    private JmxFacade jmxf;
+    @Autowired
+    private EventFacade evtf;
 
     private ApiMessageProcessor processor;
 
     private List<String> serviceConfigFolders;
     private int apiWorkerNum = 5;
+    private int queryApiWorkerNum = 5;
+    private int adminApiWorkerNum = 2;
+    private int longRunningApiWorkerNum = 2;
+    private int apiQueueSize = 1000;
+    private String adminApis;
+    private String longRunningApis;
+    private ApiAdmissionController admission;
+    private long resourceExistenceCacheTimeout = 0;
+    private ResourceExistenceCache existenceCache;
 
     private void dispatchMessage(APIMessage msg) {
         ApiMessageDescriptor desc = processor.getApiMessageDescriptor(msg);
@@ -82,40 +106,22 @@ public class ApiMediatorImpl extends AbstractService implements ApiMediator, Glo
     }
 
 
-    @Override
-    public void handleMessage(final Message msg) {
-        thdf.syncSubmit(new SyncTask<Object>() {
-            @Override
-            public String getSyncSignature() {
-                return "api.worker";
-            }
-
-            @Override
-            public int getSyncLevel() {
-                return apiWorkerNum;
-            }
-
-            @Override
-            public String getName() {
-                return "api.worker";
+    private void handleApiMessage(Message msg) {
+        if (msg.getClass() == APIIsReadyToGoMsg.class) {
+            handle((APIIsReadyToGoMsg) msg);
+        } else {
+            try {
+                dispatchMessage((APIMessage) msg);
+            } catch (Throwable t) {
+                bus.logExceptionWithMessageDump(msg, t);
+                bus.replyErrorByMessageType(msg, errf.throwableToInternalError(t));
             }
+        }
+    }
 
-            @Override
-            public Object call() throws Exception {
-                if (msg.getClass() == APIIsReadyToGoMsg.class) {
-                    handle((APIIsReadyToGoMsg) msg);
-                } else {
-                    try {
-                        dispatchMessage((APIMessage) msg);
-                    } catch (Throwable t) {
-                        bus.logExceptionWithMessageDump(msg, t);
-                        bus.replyErrorByMessageType(msg, errf.throwableToInternalError(t));
-                    }
-                }
-
-                return null;
-            }
-        });
+    @Override
+    public void handleMessage(final Message msg) {
+        admission.submit(msg);
     }
 
     private void handle(final APIIsReadyToGoMsg msg) {
@@ -158,11 +164,53 @@ public class ApiMediatorImpl extends AbstractService implements ApiMediator, Glo
     public boolean start() {
         Map<String, Object> config = new HashMap<String, Object>();
         config.put("serviceConfigFolders", serviceConfigFolders);
+        existenceCache = new ResourceExistenceCache(resourceExistenceCacheTimeout);
+        config.put("resourceExistenceCache", existenceCache);
         processor = new ApiMessageProcessorImpl(config);
+        if (existenceCache.isEnabled()) {
+            evtf.on(ApiMediatorCanonicalEvents.RESOURCE_DELETED_PATH, new EventCallback() {
+                @Override
+                public void run(Map tokens, Object data) {
+                    if (Platform.getManagementServerId().equals(tokens.get("nodeUuid"))) {
+                        return;
+                    }
+
+                    existenceCache.evict(((ResourceDeletedData) data).getResourceUuids());
+                }
+            });
+        }
+        buildAdmissionController();
+        jmxf.registerBean("ApiMediator", this);
         bus.registerService(this);
         return true;
     }
 
+    private void buildAdmissionController() {
+        admission = new ApiAdmissionController(thdf, new ApiAdmissionController.ApiHandler() {
+            @Override
+            public void handle(Message msg) {
+                handleApiMessage(msg);
+            }
+
+            @Override
+            public void reject(Message msg, String reason) {
+                bus.replyErrorByMessageType(msg, errf.instantiateErrorCode(PortalErrors.API_LANE_FULL, reason));
+            }
+        });
+
+        admission.setLane(Lane.Query, queryApiWorkerNum, apiQueueSize);
+        admission.setLane(Lane.Mutate, apiWorkerNum, apiQueueSize);
+        admission.setLane(Lane.Admin, adminApiWorkerNum, apiQueueSize);
+        admission.setLane(Lane.LongRunning, longRunningApiWorkerNum, apiQueueSize);
+        admission.assignApis(Lane.Admin, adminApis);
+        admission.assignApis(Lane.LongRunning, longRunningApis);
+    }
+
+    @Override
+    public Map<String, ApiLaneStatistic> getApiLaneStatistics() {
+        return admission.getStatistics();
+    }
+
     @Override
     public boolean stop() {
         bus.unregisterService(this);
@@ -177,6 +225,91 @@ public class ApiMediatorImpl extends AbstractService implements ApiMediator, Glo
         this.apiWorkerNum = apiWorkerNum;
     }
 
+    public void setQueryApiWorkerNum(int queryApiWorkerNum) {
+        this.queryApiWorkerNum = queryApiWorkerNum;
+    }
+
+    public void setAdminApiWorkerNum(int adminApiWorkerNum) {
+        this.adminApiWorkerNum = adminApiWorkerNum;
+    }
+
+    public void setLongRunningApiWorkerNum(int longRunningApiWorkerNum) {
+        this.longRunningApiWorkerNum = longRunningApiWorkerNum;
+    }
+
+    public void setApiQueueSize(int apiQueueSize) {
+        this.apiQueueSize = apiQueueSize;
+    }
+
+    public void setAdminApis(String adminApis) {
+        this.adminApis = adminApis;
+    }
+
+    public void setLongRunningApis(String longRunningApis) {
+        this.longRunningApis = longRunningApis;
+    }
+
+    public void setResourceExistenceCacheTimeout(long resourceExistenceCacheTimeout) {
+        this.resourceExistenceCacheTimeout = resourceExistenceCacheTimeout;
+    }
+
+    private void fireResourceDeleted(List<String> resourceUuids) {
+        ResourceDeletedData data = new ResourceDeletedData();
+        data.setResourceUuids(resourceUuids);
+        evtf.fire(s(ApiMediatorCanonicalEvents.RESOURCE_DELETED_PATH).formatByMap(map(
+                e("nodeUuid", Platform.getManagementServerId())
+        )), data);
+    }
+
+    private void resourceDeleted(Collection entityIds) {
+        if (existenceCache == null || !existenceCache.isEnabled()) {
+            return;
+        }
+
+        final List<String> uuids = new ArrayList<String>();
+        for (Object id : entityIds) {
+            if (id instanceof String) {
+                uuids.add((String) id);
+            }
+        }
+        if (uuids.isEmpty()) {
+            return;
+        }
+
+        existenceCache.evict(uuids);
+        if (TransactionSynchronizationManager.isActualTransactionActive()) {
+            // other nodes may see the resource until the deleting transaction commits
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCompletion(int status) {
+                    fireResourceDeleted(uuids);
+                }
+            });
+        } else {
+            fireResourceDeleted(uuids);
+        }
+    }
+
+    @Override
+    public List<Class> getEntityClassForSoftDeleteEntityExtension() {
+        return null;
+    }
+
+    @Override
+    public void postSoftDelete(Collection entityIds, Class entityClass) {
+        resourceDeleted(entityIds);
+    }
+
+    @Override
+    public List<Class> getEntityClassForHardDeleteEntityExtension() {
+        return null;
+    }
+
+    @Override
+    public void postHardDelete(Collection entityIds, Class entityClass) {
+        resourceDeleted(entityIds);
+    }
+
     @Override
     public List<Class> getMessageClassToIntercept() {
         List<Class> lst = new ArrayList<Class>();
@@ -0,0 +1,9 @@
+package org.zstack.portal.apimediator;
+
+import java.util.Map;
+
+/**
+ */
+public interface ApiMediatorMXBean {
+    Map<String, ApiLaneStatistic> getApiLaneStatistics();
+}
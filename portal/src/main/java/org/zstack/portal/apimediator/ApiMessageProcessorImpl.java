@@ -4,7 +4,6 @@ import org.springframework.beans.factory.NoSuchBeanDefinitionException;
 import org.springframework.beans.factory.annotation.Autowire;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Configurable;
-import org.springframework.transaction.annotation.Transactional;
 import org.zstack.core.CoreGlobalProperty;
 import org.zstack.core.Platform;
 import org.zstack.core.componentloader.ComponentLoader;
@@ -12,7 +11,6 @@ import org.zstack.core.componentloader.PluginRegistry;
 import org.zstack.core.db.DatabaseFacade;
 import org.zstack.core.errorcode.ErrorFacade;
 import org.zstack.header.apimediator.GlobalApiMessageInterceptor.InterceptorPosition;
-import org.zstack.header.errorcode.SysErrors;
 import org.zstack.header.apimediator.ApiMessageInterceptionException;
 import org.zstack.header.apimediator.ApiMessageInterceptor;
 import org.zstack.header.apimediator.GlobalApiMessageInterceptor;
@@ -20,20 +18,16 @@ import org.zstack.header.exception.CloudRuntimeException;
 import org.zstack.header.identity.AccountConstant;
 import org.zstack.header.identity.NeedRoles;
 import org.zstack.header.message.APIMessage;
-import org.zstack.header.message.APIParam;
 import org.zstack.header.message.Message;
 import org.zstack.portal.apimediator.schema.Service;
 import org.zstack.utils.*;
-import org.zstack.utils.function.FunctionNoArg;
 import org.zstack.utils.logging.CLogger;
 import org.zstack.utils.path.PathUtil;
 
-import javax.persistence.TypedQuery;
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Unmarshaller;
 import java.io.File;
-import java.lang.reflect.Field;
 import java.util.*;
 
 /**
@@ -58,6 +52,7 @@ public class ApiMessageProcessorImpl implements ApiMessageProcessor {
 
     private boolean unitTestOn;
     private List<String> configFolders;
+    private ApiParamValidator paramValidator;
 
     private void dump() {
         StringBuilder sb = new StringBuilder();
@@ -82,6 +77,11 @@ public class ApiMessageProcessorImpl implements ApiMessageProcessor {
     public ApiMessageProcessorImpl(Map<String, Object> config) {
         this.unitTestOn = CoreGlobalProperty.UNIT_TEST_ON;
         this.configFolders = (List <String>)config.get("serviceConfigFolders");
+        ResourceExistenceCache existenceCache = (ResourceExistenceCache) config.get("resourceExistenceCache");
+        if (existenceCache == null) {
+            existenceCache = new ResourceExistenceCache(0);
+        }
+        this.paramValidator = new ApiParamValidator(dbf, errf, existenceCache);
 
         populateGlobalInterceptors();
 
@@ -207,6 +207,7 @@ public class ApiMessageProcessorImpl implements ApiMessageProcessor {
 
             prepareRoles(desc, mschema);
             prepareInterceptors(desc, mschema, schema);
+            paramValidator.prepare(msgClz);
 
             descriptors.put(msgClz, desc);
         }
@@ -214,109 +215,8 @@ public class ApiMessageProcessorImpl implements ApiMessageProcessor {
 
 
     private void apiParamValidation(Message msg) {
-        List<Field> fields = FieldUtils.getAnnotatedFields(APIParam.class, msg.getClass());
-        if (fields.isEmpty()) {
-            return;
-        }
-
         try {
-            for (Field f : fields) {
-                f.setAccessible(true);
-                final APIParam at = f.getAnnotation(APIParam.class);
-                Object value = f.get(msg);
-
-                if (value != null && at.maxLength() != Integer.MIN_VALUE && (value instanceof String)) {
-                    String str = (String) value;
-                    if (str.length() > at.maxLength()) {
-                        throw new ApiMessageInterceptionException(errf.instantiateErrorCode(SysErrors.INVALID_ARGUMENT_ERROR,
-                                String.format("field[%s] of message[%s] exceeds max length of string. expected was <= %s, actual was %s",
-                                        f.getName(), msg.getClass().getName(), at.maxLength(), str.length())
-                        ));
-                    }
-                }
-
-                if (at.required() && value == null) {
-                    throw new ApiMessageInterceptionException(errf.instantiateErrorCode(SysErrors.INVALID_ARGUMENT_ERROR,
-                            String.format("field[%s] of message[%s] is mandatory, can not be null", f.getName(), msg.getClass().getName())
-                    ));
-                }
-
-                if (value != null && at.validValues().length > 0) {
-                    List vals = Arrays.asList(at.validValues());
-
-                    if (!vals.contains(value.toString())) {
-                        throw new ApiMessageInterceptionException(errf.instantiateErrorCode(SysErrors.INVALID_ARGUMENT_ERROR,
-                                String.format("valid value for field[%s] of message[%s] are %s, but actual is %s", f.getName(),
-                                        msg.getClass().getName(), vals, value)
-                        ));
-                    }
-                }
-
-                if (value !=null && at.nonempty() && value instanceof Collection) {
-                    Collection col = (Collection) value;
-                    if (col.isEmpty()) {
-                        throw new  ApiMessageInterceptionException(errf.instantiateErrorCode(SysErrors.INVALID_ARGUMENT_ERROR,
-                                String.format("field[%s] must be a nonempty list", f.getName())
-                        ));
-                    }
-                }
-
-                if (value != null && at.numberRange().length > 0 && TypeUtils.isTypeOf(value, Integer.TYPE, Integer.class, Long.TYPE, Long.class)) {
-                    DebugUtils.Assert(at.numberRange().length == 2, String.format("invalid field[%s], APIParam.numberRange must have and only have 2 items", f.getName()));
-                    long low = at.numberRange()[0];
-                    long high = at.numberRange()[1];
-                    long val = Long.valueOf(((Number) value).longValue());
-                    if (val < low || val > high) {
-                        throw new ApiMessageInterceptionException(errf.instantiateErrorCode(SysErrors.INVALID_ARGUMENT_ERROR,
-                                String.format("field[%s] must be in range of [%s, %s]", f.getName(), low, high)
-                        ));
-                    }
-                }
-
-                if (value != null && at.resourceType() != Object.class) {
-                    if (value instanceof Collection) {
-                        final Collection col = (Collection) value;
-                        if (!col.isEmpty()) {
-                            List<String> uuids = new FunctionNoArg<List<String>>() {
-                                @Override
-                                @Transactional(readOnly = true)
-                                public List<String> call() {
-                                    String sql = String.format("select e.uuid from %s e where e.uuid in (:uuids)", at.resourceType().getSimpleName());
-                                    TypedQuery<String> q = dbf.getEntityManager().createQuery(sql, String.class);
-                                    q.setParameter("uuids", col);
-                                    return q.getResultList();
-                                }
-                            }.call();
-
-                            if (uuids.size() != col.size()) {
-                                List<String> invalids = new ArrayList<String>();
-                                for (Object o : col)  {
-                                    String uuid = (String)o;
-                                    if (!uuids.contains(uuid)) {
-                                        invalids.add(uuid);
-                                    }
-                                }
-
-                                if (!invalids.isEmpty()) {
-                                    throw new ApiMessageInterceptionException(errf.instantiateErrorCode(SysErrors.RESOURCE_NOT_FOUND,
-                                            String.format("invalid field[%s], resource[uuids:%s, type:%s] not found", f.getName(), invalids, at.resourceType().getSimpleName())
-                                    ));
-                                }
-                            }
-                        }
-
-                    } else {
-                        DebugUtils.Assert(String.class.isAssignableFrom(f.getType()), String.format("field[%s] of message[%s] has APIParam.resourceType specified, then the field must be uuid which is a String, but actual is %s",
-                                f.getName(), msg.getClass().getName(), f.getType()));
-
-                        if (!dbf.isExist((String) value, at.resourceType())) {
-                            throw new ApiMessageInterceptionException(errf.instantiateErrorCode(SysErrors.RESOURCE_NOT_FOUND,
-                                    String.format("invalid field[%s], resource[uuid:%s, type:%s] not found", f.getName(), value, at.resourceType().getSimpleName())
-                            ));
-                        }
-                    }
-                }
-            }
+            paramValidator.validate(msg);
         } catch (ApiMessageInterceptionException ae) {
             throw ae;
         } catch (Exception e) {
@@ -0,0 +1,241 @@
+package org.zstack.portal.apimediator;
+
+import org.springframework.transaction.annotation.Transactional;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.errorcode.ErrorFacade;
+import org.zstack.header.apimediator.ApiMessageInterceptionException;
+import org.zstack.header.errorcode.SysErrors;
+import org.zstack.header.message.APIParam;
+import org.zstack.header.message.Message;
+import org.zstack.utils.DebugUtils;
+import org.zstack.utils.FieldUtils;
+import org.zstack.utils.TypeUtils;
+
+import javax.persistence.Id;
+import javax.persistence.TypedQuery;
+import java.lang.reflect.Field;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * validates @APIParam fields of API messages.
+ *
+ * Fields and annotation values of a message class are resolved once into a plan, normally
+ * when the message descriptors are built at start. Resource existence checks of all fields
+ * are collected while validating and done with one query per resource type.
+ */
+public class ApiParamValidator {
+    private final DatabaseFacade dbf;
+    private final ErrorFacade errf;
+    private final ResourceExistenceCache existenceCache;
+    private final Map<Class, List<ParamRule>> plans = new ConcurrentHashMap<Class, List<ParamRule>>();
+
+    private static class ParamRule {
+        Field field;
+        String name;
+        boolean required;
+        Integer maxLength;
+        List<String> validValues;
+        boolean nonempty;
+        boolean hasNumberRange;
+        boolean validNumberRange;
+        long low;
+        long high;
+        Class resourceType;
+        // primary key of the resource type, the uuid
+        String resourceKey;
+        boolean stringField;
+
+        ParamRule(Field f) {
+            f.setAccessible(true);
+            APIParam at = f.getAnnotation(APIParam.class);
+            field = f;
+            name = f.getName();
+            required = at.required();
+            maxLength = at.maxLength() != Integer.MIN_VALUE ? at.maxLength() : null;
+            validValues = at.validValues().length > 0 ? Arrays.asList(at.validValues()) : null;
+            nonempty = at.nonempty();
+            hasNumberRange = at.numberRange().length > 0;
+            validNumberRange = at.numberRange().length == 2;
+            if (validNumberRange) {
+                low = at.numberRange()[0];
+                high = at.numberRange()[1];
+            }
+            resourceType = at.resourceType() != Object.class ? at.resourceType() : null;
+            if (resourceType != null) {
+                Field key = FieldUtils.getAnnotatedField(Id.class, resourceType);
+                resourceKey = key != null ? key.getName() : "uuid";
+            }
+            stringField = String.class.isAssignableFrom(f.getType());
+        }
+    }
+
+    private static class ResourceCheck {
+        ParamRule rule;
+        Collection<String> uuids;
+        boolean collection;
+    }
+
+    public ApiParamValidator(DatabaseFacade dbf, ErrorFacade errf, ResourceExistenceCache existenceCache) {
+        this.dbf = dbf;
+        this.errf = errf;
+        this.existenceCache = existenceCache;
+    }
+
+    private List<ParamRule> compile(Class msgClass) {
+        List<ParamRule> plan = plans.get(msgClass);
+        if (plan != null) {
+            return plan;
+        }
+
+        plan = new ArrayList<ParamRule>();
+        for (Field f : FieldUtils.getAnnotatedFields(APIParam.class, msgClass)) {
+            plan.add(new ParamRule(f));
+        }
+        plans.put(msgClass, plan);
+        return plan;
+    }
+
+    void prepare(Class msgClass) {
+        compile(msgClass);
+    }
+
+    private ApiMessageInterceptionException invalidArgument(String err) {
+        return new ApiMessageInterceptionException(errf.instantiateErrorCode(SysErrors.INVALID_ARGUMENT_ERROR, err));
+    }
+
+    private void check(ParamRule r, Object value, Message msg) {
+        if (value != null && r.maxLength != null && (value instanceof String)) {
+            String str = (String) value;
+            if (str.length() > r.maxLength) {
+                throw invalidArgument(String.format("field[%s] of message[%s] exceeds max length of string. expected was <= %s, actual was %s",
+                        r.name, msg.getClass().getName(), r.maxLength, str.length()));
+            }
+        }
+
+        if (r.required && value == null) {
+            throw invalidArgument(String.format("field[%s] of message[%s] is mandatory, can not be null", r.name, msg.getClass().getName()));
+        }
+
+        if (value != null && r.validValues != null && !r.validValues.contains(value.toString())) {
+            throw invalidArgument(String.format("valid value for field[%s] of message[%s] are %s, but actual is %s", r.name,
+                    msg.getClass().getName(), r.validValues, value));
+        }
+
+        if (value != null && r.nonempty && value instanceof Collection && ((Collection) value).isEmpty()) {
+            throw invalidArgument(String.format("field[%s] must be a nonempty list", r.name));
+        }
+
+        if (value != null && r.hasNumberRange && TypeUtils.isTypeOf(value, Integer.TYPE, Integer.class, Long.TYPE, Long.class)) {
+            DebugUtils.Assert(r.validNumberRange, String.format("invalid field[%s], APIParam.numberRange must have and only have 2 items", r.name));
+            long val = ((Number) value).longValue();
+            if (val < r.low || val > r.high) {
+                throw invalidArgument(String.format("field[%s] must be in range of [%s, %s]", r.name, r.low, r.high));
+            }
+        }
+    }
+
+    public void validate(Message msg) throws IllegalAccessException {
+        List<ParamRule> plan = compile(msg.getClass());
+        if (plan.isEmpty()) {
+            return;
+        }
+
+        List<ResourceCheck> checks = null;
+        for (ParamRule r : plan) {
+            Object value = r.field.get(msg);
+            check(r, value, msg);
+
+            if (value == null || r.resourceType == null) {
+                continue;
+            }
+
+            ResourceCheck c = new ResourceCheck();
+            c.rule = r;
+            if (value instanceof Collection) {
+                if (((Collection) value).isEmpty()) {
+                    continue;
+                }
+                c.uuids = (Collection<String>) value;
+                c.collection = true;
+            } else {
+                DebugUtils.Assert(r.stringField, String.format("field[%s] of message[%s] has APIParam.resourceType specified, then the field must be uuid which is a String, but actual is %s",
+                        r.name, msg.getClass().getName(), r.field.getType()));
+                c.uuids = Arrays.asList((String) value);
+            }
+
+            if (checks == null) {
+                checks = new ArrayList<ResourceCheck>();
+            }
+            checks.add(c);
+        }
+
+        if (checks != null) {
+            checkResourcesExisting(checks);
+        }
+    }
+
+    private void checkResourcesExisting(List<ResourceCheck> checks) {
+        Map<Class, Set<String>> uuidsByType = new HashMap<Class, Set<String>>();
+        Map<Class, String> keys = new HashMap<Class, String>();
+        for (ResourceCheck c : checks) {
+            Set<String> uuids = uuidsByType.get(c.rule.resourceType);
+            if (uuids == null) {
+                uuids = new HashSet<String>();
+                uuidsByType.put(c.rule.resourceType, uuids);
+                keys.put(c.rule.resourceType, c.rule.resourceKey);
+            }
+
+            for (String uuid : c.uuids) {
+                if (!existenceCache.exists(uuid, c.rule.resourceType)) {
+                    uuids.add(uuid);
+                }
+            }
+        }
+
+        Map<Class, Set<String>> missing = new HashMap<Class, Set<String>>();
+        for (Map.Entry<Class, Set<String>> e : uuidsByType.entrySet()) {
+            Set<String> uuids = e.getValue();
+            if (uuids.isEmpty()) {
+                continue;
+            }
+
+            List<String> found = findExisting(e.getKey(), keys.get(e.getKey()), uuids);
+            existenceCache.put(found, e.getKey());
+            uuids.removeAll(found);
+            missing.put(e.getKey(), uuids);
+        }
+
+        // report the first field having resources not found, in the order of fields
+        for (ResourceCheck c : checks) {
+            Set<String> miss = missing.get(c.rule.resourceType);
+            if (miss == null || miss.isEmpty()) {
+                continue;
+            }
+
+            List<String> invalids = new ArrayList<String>();
+            for (String uuid : c.uuids) {
+                if (miss.contains(uuid)) {
+                    invalids.add(uuid);
+                }
+            }
+
+            if (invalids.isEmpty()) {
+                continue;
+            }
+
+            String err = c.collection ?
+                    String.format("invalid field[%s], resource[uuids:%s, type:%s] not found", c.rule.name, invalids, c.rule.resourceType.getSimpleName()) :
+                    String.format("invalid field[%s], resource[uuid:%s, type:%s] not found", c.rule.name, invalids.get(0), c.rule.resourceType.getSimpleName());
+            throw new ApiMessageInterceptionException(errf.instantiateErrorCode(SysErrors.RESOURCE_NOT_FOUND, err));
+        }
+    }
+
+    @Transactional(readOnly = true)
+    private List<String> findExisting(Class resourceType, String key, Collection<String> uuids) {
+        String sql = String.format("select e.%s from %s e where e.%s in (:uuids)", key, resourceType.getSimpleName(), key);
+        TypedQuery<String> q = dbf.getEntityManager().createQuery(sql, String.class);
+        q.setParameter("uuids", uuids);
+        return q.getResultList();
+    }
+}
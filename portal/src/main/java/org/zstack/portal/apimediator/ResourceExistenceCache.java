@@ -0,0 +1,113 @@
+package org.zstack.portal.apimediator;
+
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * remembers for a short time that a resource exists, so API parameter validation
+ * can skip the database for resources recently checked.
+ *
+ * Only existence is cached; deletions made through DatabaseFacade evict the resource, and
+ * are published to other management nodes by a canonical event to evict their caches.
+ * Deletions by bulk JPQL are covered by the timeout. A timeout of 0 disables the cache.
+ */
+public class ResourceExistenceCache {
+    private static final int SWEEP_THRESHOLD = 10000;
+
+    private final long timeoutNanos;
+    private final ConcurrentMap<String, ConcurrentMap<Class, Long>> resources = new ConcurrentHashMap<String, ConcurrentMap<Class, Long>>();
+
+    public ResourceExistenceCache(long timeoutInMillis) {
+        timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutInMillis);
+    }
+
+    public boolean isEnabled() {
+        return timeoutNanos > 0;
+    }
+
+    public boolean exists(String uuid, Class resourceType) {
+        if (!isEnabled()) {
+            return false;
+        }
+
+        Map<Class, Long> types = resources.get(uuid);
+        if (types == null) {
+            return false;
+        }
+
+        Long expiredAt = types.get(resourceType);
+        return expiredAt != null && expiredAt - System.nanoTime() > 0;
+    }
+
+    public void put(Collection<String> uuids, Class resourceType) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        if (resources.size() > SWEEP_THRESHOLD) {
+            sweep();
+        }
+
+        long expiredAt = System.nanoTime() + timeoutNanos;
+        for (String uuid : uuids) {
+            ConcurrentMap<Class, Long> types = resources.get(uuid);
+            if (types == null) {
+                types = new ConcurrentHashMap<Class, Long>();
+                ConcurrentMap<Class, Long> old = resources.putIfAbsent(uuid, types);
+                if (old != null) {
+                    types = old;
+                }
+            }
+            types.put(resourceType, expiredAt);
+        }
+    }
+
+    private void sweep() {
+        long now = System.nanoTime();
+        Iterator<Map.Entry<String, ConcurrentMap<Class, Long>>> it = resources.entrySet().iterator();
+        while (it.hasNext()) {
+            Map<Class, Long> types = it.next().getValue();
+            boolean expired = true;
+            for (Long expiredAt : types.values()) {
+                if (expiredAt - now > 0) {
+                    expired = false;
+                    break;
+                }
+            }
+
+            if (expired) {
+                it.remove();
+            }
+        }
+    }
+
+    private void doEvict(Collection ids) {
+        for (Object id : ids) {
+            resources.remove(String.valueOf(id));
+        }
+    }
+
+    public void evict(final Collection ids) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        doEvict(ids);
+        if (TransactionSynchronizationManager.isActualTransactionActive()) {
+            // evict again after the transaction, a check may have seen the resource before the deletion committed
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCompletion(int status) {
+                    doEvict(ids);
+                }
+            });
+        }
+    }
+}
@@ -9,6 +9,7 @@ import org.springframework.transaction.annotation.Transactional;
 import org.zstack.core.componentloader.PluginRegistry;
 import org.zstack.core.db.DatabaseFacade;
 import org.zstack.core.errorcode.ErrorFacade;
+import org.zstack.core.jmx.JmxFacade;
 import org.zstack.header.Component;
 import org.zstack.header.apimediator.ApiMessageInterceptionException;
 import org.zstack.header.apimediator.GlobalApiMessageInterceptor;
@@ -29,18 +30,22 @@ import org.zstack.utils.logging.CLogger;
 
 import javax.persistence.*;
 import javax.persistence.metamodel.StaticMetamodel;
+import javax.xml.bind.DatatypeConverter;
+import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.sql.Timestamp;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.zstack.utils.StringDSL.s;
 
 /**
  */
-public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalApiMessageInterceptor, PythonApiBindingWriter {
+public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalApiMessageInterceptor, PythonApiBindingWriter,
+        QueryPlanCacheMXBean {
     private static final CLogger logger = Utils.getLogger(MysqlQueryBuilderImpl3.class);
 
     @Autowired
@@ -49,6 +54,8 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
     private ErrorFacade errf;
     @Autowired
     private PluginRegistry pluginRgty;
+    @Autowired
+    private JmxFacade jmxf;
 
     private Objenesis objenesis = new ObjenesisStd();
 
@@ -142,6 +149,8 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
         ObjectInstantiator objectInstantiator;
         Map<String, Field> allFieldsMap = new HashMap<String, Field>();
         Map<String, ExpandedQueryAliasInfo> aliases = new HashMap<String, ExpandedQueryAliasInfo>();
+        // eagerly fetched associations of the entity, loaded by join fetch in batch mode
+        List<String> eagerAssociations = new ArrayList<String>();
 
         EntityInfo(Class invClass) throws NoSuchMethodException {
             inventoryAnnotation = (Inventory) invClass.getAnnotation(Inventory.class);
@@ -199,6 +208,8 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
                 }
             }
 
+            collectEagerAssociations();
+
             objectInstantiator = objenesis.getInstantiatorOf(inventoryClass);
             List<Field> allFields = FieldUtils.getAllFields(inventoryClass);
             for (Field f : allFields) {
@@ -215,6 +226,80 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
             }
         }
 
+        private void collectEagerAssociations() {
+            boolean hasBag = false;
+            for (Field f : FieldUtils.getAllFields(entityClass)) {
+                FetchType fetch = null;
+                boolean collection = false;
+                if (f.isAnnotationPresent(OneToMany.class)) {
+                    fetch = f.getAnnotation(OneToMany.class).fetch();
+                    collection = true;
+                } else if (f.isAnnotationPresent(ManyToMany.class)) {
+                    fetch = f.getAnnotation(ManyToMany.class).fetch();
+                    collection = true;
+                } else if (f.isAnnotationPresent(ElementCollection.class)) {
+                    fetch = f.getAnnotation(ElementCollection.class).fetch();
+                    collection = true;
+                } else if (f.isAnnotationPresent(OneToOne.class)) {
+                    fetch = f.getAnnotation(OneToOne.class).fetch();
+                } else if (f.isAnnotationPresent(ManyToOne.class)) {
+                    fetch = f.getAnnotation(ManyToOne.class).fetch();
+                }
+
+                if (fetch != FetchType.EAGER) {
+                    continue;
+                }
+
+                if (collection && !Set.class.isAssignableFrom(f.getType())) {
+                    // hibernate cannot join fetch more than one bag at a time
+                    if (hasBag) {
+                        continue;
+                    }
+                    hasBag = true;
+                }
+
+                eagerAssociations.add(f.getName());
+            }
+        }
+
+        /**
+         * loads the entities with their eager associations in one statement per batch,
+         * instead of one statement per entity per association
+         */
+        List fetchByPrimaryKeys(List priKeys) {
+            if (priKeys.isEmpty()) {
+                return new ArrayList();
+            }
+
+            StringBuilder sb = new StringBuilder(String.format("select distinct e from %s e", entityClass.getSimpleName()));
+            for (String assoc : eagerAssociations) {
+                sb.append(String.format(" left join fetch e.%s", assoc));
+            }
+            sb.append(String.format(" where e.%s in (:ids)", primaryKey));
+            String jpql = sb.toString();
+
+            Map<Object, Object> vos = new HashMap<Object, Object>(priKeys.size());
+            int batchSize = QueryGlobalProperty.BATCH_FETCH_SIZE;
+            for (int i = 0; i < priKeys.size(); i += batchSize) {
+                List ids = priKeys.subList(i, Math.min(i + batchSize, priKeys.size()));
+                Query q = dbf.getEntityManager().createQuery(jpql);
+                q.setParameter("ids", ids);
+                for (Object vo : q.getResultList()) {
+                    vos.put(getPrimaryKeyValue(vo), vo);
+                }
+            }
+
+            List ret = new ArrayList(priKeys.size());
+            for (Object priKey : priKeys) {
+                Object vo = vos.get(priKey);
+                // the entity may be deleted between the two queries
+                if (vo != null) {
+                    ret.add(vo);
+                }
+            }
+            return ret;
+        }
+
         void buildFlatTypeEntityMap() {
             for (EntityInfo e : children) {
                 Parent pat = e.inventoryAnnotation.parent()[0];
@@ -282,6 +367,82 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
     private Map<Class, List<ExpandedQueryAliasInfo>> aliasInfos = new HashMap<Class, List<ExpandedQueryAliasInfo>>();
     private Map<Class, Class> inventoryQueryMessageMap = new HashMap<Class, Class>();
 
+    // key: inventory class and shape of the query, see QueryContext.makePlanKey()
+    private final Map<String, QueryPlan> planCache = Collections.synchronizedMap(new LinkedHashMap<String, QueryPlan>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, QueryPlan> eldest) {
+            return size() > QueryGlobalProperty.PLAN_CACHE_SIZE;
+        }
+    });
+    private final AtomicLong planCacheHitNum = new AtomicLong(0);
+    private final AtomicLong planCacheMissNum = new AtomicLong(0);
+
+    private class ParameterBinding {
+        String name;
+        MetaCondition condition;
+        // index of the condition carrying the value, in QueryContext.conditions
+        int sourceIndex;
+    }
+
+    /**
+     * a planned query: the JPQL and where the value of each parameter comes from.
+     * Plans only depend on the shape of a query, values are bound per query.
+     */
+    private class QueryPlan {
+        String jpql;
+        List<ParameterBinding> bindings = new ArrayList<ParameterBinding>();
+    }
+
+    private static final String KEYSET_SORT_VALUE = "keyset_sort_value";
+    private static final String KEYSET_KEY = "keyset_key";
+
+    /**
+     * position of the last row of a page in keyset paging, sent to users as an opaque token
+     */
+    private static class KeysetCursor {
+        String inventory;
+        String sortBy;
+        String sortDirection;
+        String sortValue;
+        String key;
+
+        String toToken() {
+            try {
+                return DatatypeConverter.printBase64Binary(JSONObjectUtil.toJsonString(this).getBytes("UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                throw new CloudRuntimeException(e);
+            }
+        }
+
+        static KeysetCursor fromToken(String token) {
+            try {
+                return JSONObjectUtil.toObject(new String(DatatypeConverter.parseBase64Binary(token), "UTF-8"), KeysetCursor.class);
+            } catch (Exception e) {
+                return null;
+            }
+        }
+    }
+
+    private static Object stringToEntityValue(String value, Class entityType) throws Exception {
+        if (Timestamp.class.isAssignableFrom(entityType)) {
+            return Timestamp.valueOf(value);
+        } else if (Enum.class.isAssignableFrom(entityType)) {
+            Method valueOf = entityType.getMethod("valueOf", String.class);
+            return valueOf.invoke(entityType, value);
+        } else if (Boolean.class.isAssignableFrom(entityType) || Boolean.TYPE.isAssignableFrom(entityType)) {
+            return Boolean.valueOf(value);
+        } else {
+            return TypeUtils.stringToValue(value, entityType);
+        }
+    }
+
+    private static String entityValueToString(Object value) {
+        if (value == null) {
+            return null;
+        }
+        return value instanceof Enum ? ((Enum) value).name() : value.toString();
+    }
+
     private EntityInfo buildEntityInfo(Class invClass) throws NoSuchMethodException {
         EntityInfo info = entityInfos.get(invClass);
         if (info != null) {
@@ -329,6 +490,7 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
         Class inventoryClass;
         String attrValueName;
         boolean skipInventoryCheck;
+        int sourceIndex;
 
         private Field entityField;
 
@@ -353,23 +515,17 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
 
         private Object doNormalizeValue(String value) {
             try {
-                Class entityType = getEntityFieldType();
-                if (Timestamp.class.isAssignableFrom(entityType)) {
-                    return Timestamp.valueOf(value);
-                } else if (Enum.class.isAssignableFrom(entityType)) {
-                    Method valueOf = entityType.getMethod("valueOf", String.class);
-                    return valueOf.invoke(entityType, value);
-                } else if (Boolean.class.isAssignableFrom(entityType) || Boolean.TYPE.isAssignableFrom(entityType)) {
-                    return Boolean.valueOf(value);
-                } else {
-                    return TypeUtils.stringToValue(value, entityType);
-                }
+                return stringToEntityValue(value, getEntityFieldType());
             } catch (Exception e) {
                 throw new CloudRuntimeException(String.format("failed to parse value[%s]", value), e);
             }
         }
 
         Object normalizeValue() {
+            return normalizeValue(value);
+        }
+
+        Object normalizeValue(String value) {
             if (QueryOp.IS_NULL.equals(op) || QueryOp.NOT_NULL.equals(op)) {
                 return null;
             }
@@ -483,6 +639,11 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
         List<QueryObject> children = new ArrayList<QueryObject>();
         SubQueryInfo subQueryInfo;
         APIQueryMessage msg;
+        boolean selectPrimaryKey;
+        List<String> extensionSubqueries = new ArrayList<String>();
+        boolean keysetPaging;
+        // rows after the cursor, null on the first page
+        String keysetCondition;
 
         // NOTE: we hard code tag specific logic here because we think current query model is not sustainable,
         // it worth nothing to waste effort on making this as extension point; we will switch the entire
@@ -662,11 +823,9 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
                 throw new CloudRuntimeException("cannot be here");
             } else {
                 // this is root query
-                for (MysqlQuerySubQueryExtension ext : subQueryExtensions) {
-                    String sub = ext.makeSubquery(msg, info.inventoryClass);
-                    if (sub != null) {
-                        where.add(sub);
-                    }
+                where.addAll(extensionSubqueries);
+                if (!isCount && keysetCondition != null) {
+                    where.add(keysetCondition);
                 }
 
                 String entityName = info.inventoryClass.getSimpleName().toLowerCase();
@@ -686,7 +845,16 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
                         for (String f : msg.getFields()) {
                             ss.add(String.format("%s.%s", entityName, f));
                         }
+                        if (keysetPaging) {
+                            // columns to make the continuation token, not part of the inventory
+                            ss.add(String.format("%s.%s", entityName, info.primaryKey));
+                            if (msg.getSortBy() != null) {
+                                ss.add(String.format("%s.%s", entityName, msg.getSortBy()));
+                            }
+                        }
                         selector = StringUtils.join(ss, ",");
+                    } else if (selectPrimaryKey) {
+                        selector = String.format("%s.%s", entityName, info.primaryKey);
                     } else {
                         selector = entityName;
                     }
@@ -704,6 +872,12 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
 
                         ret = String.format("%s order by %s.%s %s", ret, entityName, msg.getSortBy(), msg.getSortDirection().toUpperCase());
                     }
+
+                    if (keysetPaging) {
+                        // the primary key makes the order total
+                        ret = String.format("%s %s %s.%s %s", ret, msg.getSortBy() == null ? "order by" : ",",
+                                entityName, info.primaryKey, msg.getSortDirection().toUpperCase());
+                    }
                     return ret;
                 }
             }
@@ -715,6 +889,12 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
         private Class inventoryClass;
         private QueryObject root;
         private Map<Class, QueryObject> tmpMap = new HashMap<Class, QueryObject>();
+        private QueryPlan plan;
+        // conditions of the message followed by extra conditions from extensions
+        private List<QueryCondition> conditions = new ArrayList<QueryCondition>();
+        private int extraConditionStart;
+        private int currentSourceIndex;
+        private KeysetCursor cursor;
 
         private MetaCondition buildCondition(QueryCondition qcond, EntityInfo info) {
             MetaCondition mcond = new MetaCondition();
@@ -722,6 +902,7 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
             mcond.op = qcond.getOp();
             mcond.inventoryClass = info.inventoryClass;
             mcond.value = qcond.getValue();
+            mcond.sourceIndex = currentSourceIndex;
             return mcond;
         }
 
@@ -814,57 +995,225 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
             buildMetaCondition(qcond, info, false);
         }
 
-        private String build(boolean isCount) {
-            root = new QueryObject();
-            root.msg = msg;
-            root.info = entityInfos.get(inventoryClass);
-            DebugUtils.Assert(root.info!=null, String.format("class[%s] is not annotated by @Inventory", inventoryClass.getName()));
-            tmpMap.put(root.info.entityClass, root);
-
+        private void collectConditions() {
             for (QueryCondition qcond : msg.getConditions()) {
-                if (escapeConditionNames.contains(qcond.getName())) {
-                    continue;
-                }
-
-                if (!qcond.getName().contains(".")) {
-                    buildMetaCondition(qcond, root.info);
-                } else {
-                    buildSubQuery(qcond, root);
+                if (!escapeConditionNames.contains(qcond.getName())) {
+                    conditions.add(qcond);
                 }
             }
 
+            extraConditionStart = conditions.size();
             List<AddExtraConditionToQueryExtensionPoint> exts = extraConditionsExts.get(msg.getClass());
             if (exts != null) {
                 for (AddExtraConditionToQueryExtensionPoint ext : exts) {
                     try {
-                        for (QueryCondition cond : ext.getExtraQueryConditionForMessage(msg)) {
-                            buildMetaCondition(cond, root.info, true);
-                        }
+                        conditions.addAll(ext.getExtraQueryConditionForMessage(msg));
                     } catch (Throwable t) {
                         logger.warn(String.format("unhandled exception when calling %s", ext.getClass().getName()), t);
                     }
                 }
             }
+        }
 
-            return root.toJpql(isCount);
+        private boolean isTagCondition(String name) {
+            return name.endsWith(USER_TAG) || name.endsWith(SYSTEM_TAG);
         }
 
-        private void setQueryValue(Query q, QueryObject qobj) {
+        private String makePlanKey(boolean isCount) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(inventoryClass.getName()).append("|").append(msg.getClass().getName());
+            sb.append("|").append(isCount).append("|").append(root.selectPrimaryKey);
+            if (msg.isFieldQuery()) {
+                sb.append("|fields:").append(StringUtils.join(msg.getFields(), ","));
+            }
+            if (msg.getSortBy() != null) {
+                sb.append("|sort:").append(msg.getSortBy()).append(" ").append(msg.getSortDirection());
+            }
+
+            for (int i = 0; i < conditions.size(); i++) {
+                QueryCondition qcond = conditions.get(i);
+                sb.append(i < extraConditionStart ? "|" : "|+").append(qcond.getName()).append(" ").append(qcond.getOp());
+                // tag conditions are rendered with their values
+                if (isTagCondition(qcond.getName())) {
+                    sb.append(" ").append(qcond.getValue());
+                }
+            }
+
+            // sub queries from extensions are rendered with their values
+            for (String sub : root.extensionSubqueries) {
+                sb.append("|").append(sub);
+            }
+
+            if (root.keysetPaging) {
+                sb.append("|keyset:").append(cursor == null ? "first" : cursor.sortValue == null ? "null" : "value");
+            }
+            return sb.toString();
+        }
+
+        private void parseContinuationToken() {
+            if (msg.getContinuationToken() == null) {
+                return;
+            }
+
+            cursor = KeysetCursor.fromToken(msg.getContinuationToken());
+            if (cursor == null || !inventoryClass.getName().equals(cursor.inventory) || cursor.key == null
+                    || !StringUtils.equals(msg.getSortBy(), cursor.sortBy) || !msg.getSortDirection().equals(cursor.sortDirection)) {
+                throw new OperationFailureException(errf.stringToInvalidArgumentError(
+                        String.format("invalid continuation token[%s], it must come from a reply of the same query", msg.getContinuationToken())
+                ));
+            }
+        }
+
+        private String makeKeysetCondition() {
+            String entityName = inventoryClass.getSimpleName().toLowerCase();
+            boolean asc = "asc".equals(msg.getSortDirection());
+            String key = String.format("%s.%s %s :%s", entityName, root.info.primaryKey, asc ? ">" : "<", KEYSET_KEY);
+            if (msg.getSortBy() == null) {
+                return key;
+            }
+
+            // MySQL puts NULLs first in ascending order and last in descending order
+            String sort = String.format("%s.%s", entityName, msg.getSortBy());
+            if (cursor.sortValue == null) {
+                return asc ? String.format("((%s is null and %s) or %s is not null)", sort, key, sort)
+                        : String.format("(%s is null and %s)", sort, key);
+            }
+
+            String ret = String.format("(%s %s :%s or (%s = :%s and %s)", sort, asc ? ">" : "<", KEYSET_SORT_VALUE, sort, KEYSET_SORT_VALUE, key);
+            return asc ? ret + ")" : String.format("%s or %s is null)", ret, sort);
+        }
+
+        private Field getSortField() {
+            Field f = FieldUtils.getField(msg.getSortBy(), root.info.entityClass);
+            if (f == null) {
+                throw new IllegalArgumentException(String.format("illegal sortBy[%s], entity[%s] doesn't have this field", msg.getSortBy(), root.info.entityClass.getName()));
+            }
+            f.setAccessible(true);
+            return f;
+        }
+
+        private void setKeysetValue(Query q) {
+            if (cursor == null) {
+                return;
+            }
+
+            try {
+                q.setParameter(KEYSET_KEY, stringToEntityValue(cursor.key, root.info.entityPrimaryKeyField.getType()));
+                if (msg.getSortBy() != null && cursor.sortValue != null) {
+                    q.setParameter(KEYSET_SORT_VALUE, stringToEntityValue(cursor.sortValue, getSortField().getType()));
+                }
+            } catch (Exception e) {
+                throw new OperationFailureException(errf.stringToInvalidArgumentError(
+                        String.format("invalid continuation token[%s], %s", msg.getContinuationToken(), e.getMessage())
+                ));
+            }
+        }
+
+        private String makeContinuationToken(Object last) {
+            KeysetCursor c = new KeysetCursor();
+            c.inventory = inventoryClass.getName();
+            c.sortBy = msg.getSortBy();
+            c.sortDirection = msg.getSortDirection();
+            try {
+                if (msg.isFieldQuery()) {
+                    // see the selector of QueryObject.toJpql()
+                    Tuple t = (Tuple) last;
+                    int index = msg.getFields().size();
+                    c.key = entityValueToString(t.get(index));
+                    if (msg.getSortBy() != null) {
+                        c.sortValue = entityValueToString(t.get(index + 1));
+                    }
+                } else {
+                    c.key = entityValueToString(root.info.entityPrimaryKeyField.get(last));
+                    if (msg.getSortBy() != null) {
+                        c.sortValue = entityValueToString(getSortField().get(last));
+                    }
+                }
+            } catch (IllegalAccessException e) {
+                throw new CloudRuntimeException(e);
+            }
+            return c.toToken();
+        }
+
+        private void collectBindings(QueryObject qobj) {
             for (MetaCondition mcond : qobj.conditions) {
-                if (USER_TAG.equals(mcond.attr) || SYSTEM_TAG.equals(mcond.attr)) {
+                if (USER_TAG.equals(mcond.attr) || SYSTEM_TAG.equals(mcond.attr) || mcond.attrValueName == null) {
                     continue;
                 }
 
-                Object val = mcond.normalizeValue();
-                if (val != null) {
-                    q.setParameter(mcond.attrValueName, val);
-                }
+                ParameterBinding b = new ParameterBinding();
+                b.name = mcond.attrValueName;
+                b.condition = mcond;
+                b.sourceIndex = mcond.sourceIndex;
+                plan.bindings.add(b);
             }
             for (QueryObject child : qobj.children) {
-                setQueryValue(q, child);
+                collectBindings(child);
             }
         }
 
+        private String build(boolean isCount) {
+            root = new QueryObject();
+            root.msg = msg;
+            root.selectPrimaryKey = isBatchFetch();
+            root.info = entityInfos.get(inventoryClass);
+            DebugUtils.Assert(root.info!=null, String.format("class[%s] is not annotated by @Inventory", inventoryClass.getName()));
+            tmpMap.put(root.info.entityClass, root);
+            root.keysetPaging = msg.isKeysetPaging();
+            parseContinuationToken();
+
+            collectConditions();
+            for (MysqlQuerySubQueryExtension ext : subQueryExtensions) {
+                String sub = ext.makeSubquery(msg, inventoryClass);
+                if (sub != null) {
+                    root.extensionSubqueries.add(sub);
+                }
+            }
+
+            String key = null;
+            if (QueryGlobalProperty.PLAN_CACHE_SIZE > 0) {
+                key = makePlanKey(isCount);
+                plan = planCache.get(key);
+                if (plan != null) {
+                    planCacheHitNum.incrementAndGet();
+                    return plan.jpql;
+                }
+                planCacheMissNum.incrementAndGet();
+            }
+
+            for (int i = 0; i < conditions.size(); i++) {
+                QueryCondition qcond = conditions.get(i);
+                currentSourceIndex = i;
+                if (i >= extraConditionStart) {
+                    buildMetaCondition(qcond, root.info, true);
+                } else if (!qcond.getName().contains(".")) {
+                    buildMetaCondition(qcond, root.info);
+                } else {
+                    buildSubQuery(qcond, root);
+                }
+            }
+
+            if (cursor != null) {
+                root.keysetCondition = makeKeysetCondition();
+            }
+
+            plan = new QueryPlan();
+            plan.jpql = root.toJpql(isCount);
+            collectBindings(root);
+            if (key != null) {
+                planCache.put(key, plan);
+            }
+            return plan.jpql;
+        }
+
+        private void setQueryValue(Query q) {
+            for (ParameterBinding b : plan.bindings) {
+                Object val = b.condition.normalizeValue(conditions.get(b.sourceIndex).getValue());
+                if (val != null) {
+                    q.setParameter(b.name, val);
+                }
+            }
+        }
 
         public List convertVOsToInventories(final List vos) {
             try {
@@ -921,6 +1270,15 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
                                 break;
                             }
 
+                            if (isBatchFetch()) {
+                                for (Object vo : sql.entityInfo.fetchByPrimaryKeys(new ArrayList(primaryKeysNeedResolve))) {
+                                    Object priKey = sql.entityInfo.getPrimaryKeyValue(vo);
+                                    flatMap.put(priKey, sql.entityInfo.inventoryValueOf.invoke(sql.entityInfo.inventoryClass, vo));
+                                    primaryKeysNeedResolve.remove(priKey);
+                                }
+                                continue;
+                            }
+
                             TypedQuery<Tuple> q = dbf.getEntityManager().createQuery(sql.sql, Tuple.class);
                             q.setParameter("ids", primaryKeysNeedResolve);
                             List<Tuple> res = q.getResultList();
@@ -999,8 +1357,12 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
             return ret;
         }
 
+        private boolean isBatchFetch() {
+            return QueryGlobalProperty.BATCH_FETCH && !msg.isFieldQuery();
+        }
+
         @Transactional(readOnly = true)
-        List query() {
+        QueryPage query() {
             if (msg.isFieldQuery()) {
                 validateFields();
             }
@@ -1012,32 +1374,66 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
                 org.hibernate.Query hq = q.unwrap(org.hibernate.Query.class);
                 logger.trace(hq.getQueryString());
             }
-            setQueryValue(q, root);
+            setQueryValue(q);
+            setKeysetValue(q);
+            boolean keysetLimit = msg.isKeysetPaging() && msg.getLimit() != null;
             if (msg.getLimit() != null) {
-                q.setMaxResults(msg.getLimit());
+                // in keyset paging, one more row tells if there is a next page
+                q.setMaxResults(keysetLimit ? msg.getLimit() + 1 : msg.getLimit());
             }
             if (msg.getStart() != null) {
                 q.setFirstResult(msg.getStart());
             }
 
             List vos = q.getResultList();
+            boolean hasMore = keysetLimit && vos.size() > msg.getLimit();
+            if (hasMore) {
+                vos = new ArrayList(vos.subList(0, msg.getLimit()));
+            }
 
+            if (isBatchFetch()) {
+                // the query above only selected primary keys in the requested order
+                vos = root.info.fetchByPrimaryKeys(vos);
+            }
+
+            String token = hasMore && !vos.isEmpty() ? makeContinuationToken(vos.get(vos.size() - 1)) : null;
             if (msg.isFieldQuery()) {
-                return convertFieldsTOPartialInventories(vos);
+                return new QueryPage(convertFieldsTOPartialInventories(vos), token);
             } else {
-                return convertVOsToInventories(vos);
+                return new QueryPage(convertVOsToInventories(vos), token);
+            }
+        }
+
+        private Long approximateCount() {
+            Table at = (Table) root.info.entityClass.getAnnotation(Table.class);
+            String tableName = at != null && !"".equals(at.name()) ? at.name() : root.info.entityClass.getSimpleName();
+            Query q = dbf.getEntityManager().createNativeQuery("select TABLE_ROWS from information_schema.TABLES where TABLE_SCHEMA = database() and TABLE_NAME = :name");
+            q.setParameter("name", tableName);
+            List rows = q.getResultList();
+            // views, which most VOs are mapped to, have no row statistics
+            if (rows.isEmpty() || rows.get(0) == null) {
+                return null;
             }
+            return ((Number) rows.get(0)).longValue();
         }
 
         @Transactional(readOnly = true)
         long count() {
             String jpql = build(true);
+            if (msg.isApproximateCount() && conditions.isEmpty() && root.extensionSubqueries.isEmpty()) {
+                // the table statistics are an estimate, good enough to show the number of pages
+                Long count = approximateCount();
+                if (count != null) {
+                    return count;
+                }
+            }
+
             Query q = dbf.getEntityManager().createQuery(jpql);
             if (logger.isTraceEnabled()) {
                 org.hibernate.Query hq = q.unwrap(org.hibernate.Query.class);
                 logger.trace(hq.getQueryString());
             }
-            setQueryValue(q, root);
+            setQueryValue(q);
             return (Long)q.getSingleResult();
         }
     }
@@ -1151,6 +1547,7 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
             completeAliasInfo();
             inheritExpandedQueryAndAliases();
             removeSuppressedExpandedQuery();
+            jmxf.registerBean("QueryPlanCache", this);
         } catch (Exception e) {
             throw new CloudRuntimeException(e);
         }
@@ -1256,12 +1653,41 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
         return true;
     }
 
+    @Override
+    public long getPlanCacheHitNum() {
+        return planCacheHitNum.get();
+    }
+
+    @Override
+    public long getPlanCacheMissNum() {
+        return planCacheMissNum.get();
+    }
+
+    @Override
+    public int getPlanCacheSize() {
+        return planCache.size();
+    }
+
+    @Override
+    public void clearPlanCache() {
+        planCache.clear();
+    }
+
     @Override
     public <T> List<T> query(APIQueryMessage msg, Class<T> inventoryClass) {
         QueryContext context = new QueryContext();
         context.msg = msg;
         context.inventoryClass = selectInventoryClass(msg, inventoryClass);
 
+        return context.query().getInventories();
+    }
+
+    @Override
+    public <T> QueryPage<T> queryPage(APIQueryMessage msg, Class<T> inventoryClass) {
+        QueryContext context = new QueryContext();
+        context.msg = msg;
+        context.inventoryClass = selectInventoryClass(msg, inventoryClass);
+
         return context.query();
     }
 
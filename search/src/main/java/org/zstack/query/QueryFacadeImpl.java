@@ -57,6 +57,15 @@ public class QueryFacadeImpl extends AbstractService implements QueryFacade, Glo
         return builder.query(msg, inventoryClass);
     }
 
+    @Override
+    public <T> QueryPage<T> queryPage(APIQueryMessage msg, Class<T> inventoryClass) {
+        validateConditions(msg.getConditions());
+
+        QueryBuilderFactory factory = getFactory(queryBuilderType);
+        QueryBuilder builder = factory.createQueryBuilder();
+        return builder.queryPage(msg, inventoryClass);
+    }
+
     @Override
     public long count(APIQueryMessage msg, Class inventoryClass) {
         validateConditions(msg.getConditions());
@@ -198,10 +207,12 @@ public class QueryFacadeImpl extends AbstractService implements QueryFacade, Glo
                 reply.setTotal(count);
                 bus.reply(msg, reply);
             } else {
-                List invs = query(msg, inventoryClass);
-                setter.invoke(reply, invs);
+                QueryPage page = queryPage(msg, inventoryClass);
+                setter.invoke(reply, page.getInventories());
+                reply.setContinuationToken(page.getContinuationToken());
                 //TODO: merge this into mysql query builder
-                if (msg.isReplyWithCount()) {
+                // in keyset paging, the total is only counted for the first page
+                if (msg.isReplyWithCount() && msg.getContinuationToken() == null) {
                     long count = count(msg, inventoryClass);
                     reply.setTotal(count);
                 }
@@ -253,6 +264,10 @@ public class QueryFacadeImpl extends AbstractService implements QueryFacade, Glo
             }
         }
 
+        if (qmsg.isKeysetPaging() && qmsg.getStart() != null) {
+            throw new ApiMessageInterceptionException(errf.stringToInvalidArgumentError("'start' cannot be used with keyset paging, use 'continuationToken' to get the next page"));
+        }
+
         return msg;
     }
 }
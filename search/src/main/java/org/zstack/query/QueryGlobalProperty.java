@@ -0,0 +1,16 @@
+package org.zstack.query;
+
+import org.zstack.core.GlobalProperty;
+import org.zstack.core.GlobalPropertyDefinition;
+
+/**
+ */
+@GlobalPropertyDefinition
+public class QueryGlobalProperty {
+    @GlobalProperty(name="Query.batchFetch", defaultValue = "false")
+    public static boolean BATCH_FETCH;
+    @GlobalProperty(name="Query.batchFetchSize", defaultValue = "1000")
+    public static int BATCH_FETCH_SIZE;
+    @GlobalProperty(name="Query.planCacheSize", defaultValue = "1000")
+    public static int PLAN_CACHE_SIZE;
+}
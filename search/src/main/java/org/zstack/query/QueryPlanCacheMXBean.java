@@ -0,0 +1,13 @@
+package org.zstack.query;
+
+/**
+ */
+public interface QueryPlanCacheMXBean {
+    long getPlanCacheHitNum();
+
+    long getPlanCacheMissNum();
+
+    int getPlanCacheSize();
+
+    void clearPlanCache();
+}
@@ -4,8 +4,10 @@ import com.google.gson.Gson;
 import org.zstack.header.search.InventoryDoc;
 import org.zstack.utils.gson.GsonUtil;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -21,6 +23,14 @@ public class ESBulkBuilder {
     private class Delete {
         private Bulk delete;
     }
+
+    static class BulkOperation {
+        boolean delete;
+        String indexName;
+        String typeName;
+        String id;
+        String doc;
+    }
     
     private static Gson gson;
     static {
@@ -29,6 +39,7 @@ public class ESBulkBuilder {
     }
     
     private Map<Object, String> bulks = new HashMap<Object, String>(20);
+    private List<BulkOperation> operations = new ArrayList<BulkOperation>(20);
     private Set<String> toIndexName = new HashSet<String>(5);
     private Set<String> toDeleteName = new HashSet<String>(5);
     private boolean empty = true;
@@ -41,11 +52,22 @@ public class ESBulkBuilder {
         return b;
     }
     
+    private BulkOperation createOperation(boolean delete, String indexName, String typeName, String id, String doc) {
+        BulkOperation op = new BulkOperation();
+        op.delete = delete;
+        op.indexName = indexName;
+        op.typeName = typeName;
+        op.id = id;
+        op.doc = doc;
+        return op;
+    }
+
     public ESBulkBuilder addIndexBulk(String indexName, String typeName, InventoryDoc doc) {
         Bulk b = createBulk(indexName, typeName, doc.getIndexId());
         Index i = new Index();
         i.index = b;
         bulks.put(i, doc.getDoc());
+        operations.add(createOperation(false, indexName, typeName, doc.getIndexId(), doc.getDoc()));
         toIndexName.add(typeName);
         empty = false;
         return this;
@@ -56,6 +78,7 @@ public class ESBulkBuilder {
         Delete d = new Delete();
         d.delete = b;
         bulks.put(d, "");
+        operations.add(createOperation(true, indexName, typeName, id, null));
         toDeleteName.add(typeName);
         empty = false;
         return this;
@@ -86,6 +109,10 @@ public class ESBulkBuilder {
         return sb.toString();
     }
 
+    List<BulkOperation> getOperations() {
+        return operations;
+    }
+
     public boolean isEmpty() {
         return empty;
     }
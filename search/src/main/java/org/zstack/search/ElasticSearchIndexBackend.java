@@ -0,0 +1,234 @@
+package org.zstack.search;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.*;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.zstack.header.exception.CloudRuntimeException;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+
+/**
+ * talks to an external elasticsearch through its HTTP API
+ */
+public class ElasticSearchIndexBackend implements SearchIndexBackend {
+    private static final CLogger logger = Utils.getLogger(ElasticSearchIndexBackend.class);
+
+    public static final String TYPE = "elasticsearch";
+
+    private final String baseUrl;
+    private HttpClient httpClient;
+    private URI bulkUri;
+
+    public ElasticSearchIndexBackend(String baseUrl) {
+        this.baseUrl = baseUrl;
+    }
+
+    private URI makeURI(String...paths) throws URISyntaxException {
+        StringBuilder sb = new StringBuilder();
+        for (String p : paths) {
+            sb.append(p);
+            sb.append("/");
+        }
+        return new URI(sb.toString().replaceAll("(?<!:)//", "/"));
+    }
+
+    @Override
+    public String getBackendType() {
+        return TYPE;
+    }
+
+    @Override
+    public void start() {
+        try {
+            httpClient = new DefaultHttpClient(new PoolingClientConnectionManager());
+            bulkUri = makeURI(baseUrl, "_bulk");
+        } catch (URISyntaxException e) {
+            throw new CloudRuntimeException(e);
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (httpClient != null) {
+            httpClient.getConnectionManager().shutdown();
+        }
+    }
+
+    private JSONObject createIndexSetting() throws JSONException {
+        JSONObject root = new JSONObject();
+        root.put(
+                "settings",
+                new JSONObject().put(
+                        "index",
+                        new JSONObject().put("analysis",
+                                new JSONObject().put("analyzer", new JSONObject().put("default", new JSONObject().put("type", "keyword")))).put(
+                                "refresh_interval", "500")));
+        return root;
+    }
+
+    @Override
+    public void createIndexIfNotExists(String inventoryName) throws Exception {
+        final String indexName = inventoryName.toLowerCase();
+        URI uri = makeURI(baseUrl, indexName);
+        HttpHead head = new HttpHead(uri);
+        ResponseHandler<Boolean> rspHandler = new ResponseHandler<Boolean>() {
+            @Override
+            public Boolean handleResponse(HttpResponse rsp) throws ClientProtocolException, IOException {
+                if (rsp.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
+                    return true;
+                } else if (rsp.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_FOUND) {
+                    return false;
+                } else {
+                    throw new ClientProtocolException(String.format("Failed to check index[%s] existence", indexName));
+                }
+            }
+        };
+
+        boolean ret = httpClient.execute(head, rspHandler);
+        if (!ret) {
+            HttpPut put = new HttpPut(uri);
+            String body = createIndexSetting().toString();
+            put.setEntity(new StringEntity(body));
+            ResponseHandler<Void> putHandler = new ResponseHandler<Void>() {
+                @Override
+                public Void handleResponse(HttpResponse rsp) throws ClientProtocolException, IOException {
+                    if (rsp.getStatusLine().getStatusCode() != HttpStatus.SC_OK && rsp.getStatusLine().getStatusCode() != HttpStatus.SC_CREATED) {
+                        throw new ClientProtocolException(String.format("Cannot create index[%s] beacuse %s, %s", indexName, rsp.getStatusLine(),
+                                EntityUtils.toString(rsp.getEntity())));
+                    } else {
+                        logger.debug(String.format("Successfully created index[%s]", indexName));
+                    }
+                    return null;
+                }
+            };
+            httpClient.execute(put, putHandler);
+        }
+    }
+
+    @Override
+    public void deleteIndex(String indexName) throws Exception {
+        if (indexName == null) {
+            indexName = "_all";
+        }
+
+        final String name = indexName.toLowerCase();
+        URI uri = makeURI(baseUrl, name);
+        final HttpDelete del = new HttpDelete(uri);
+        ResponseHandler<Void> rspHandler = new ResponseHandler<Void>() {
+            @Override
+            public Void handleResponse(HttpResponse rsp) throws ClientProtocolException, IOException {
+                if (rsp.getStatusLine().getStatusCode() != HttpStatus.SC_OK && rsp.getStatusLine().getStatusCode() != HttpStatus.SC_CREATED) {
+                    logger.warn(String.format("Failed to delete index[%s] , because: \nstatus line: %s\nbody: %s", del.getURI().toASCIIString(),
+                            rsp.getStatusLine(), EntityUtils.toString(rsp.getEntity())));
+                } else {
+                    logger.trace(String.format("Successfully delete index[%s]", name));
+                }
+                return null;
+            }
+        };
+        httpClient.execute(del, rspHandler);
+    }
+
+    @Override
+    public boolean bulk(ESBulkBuilder bulk) {
+        final String requestBody = bulk.toString();
+        final String inventoryName = bulk.getAffectedInventoryNames();
+        try {
+            HttpPost post = new HttpPost(bulkUri);
+            StringEntity body = new StringEntity(requestBody);
+            logger.trace(String.format("%s:\n%s", inventoryName, requestBody));
+            body.setChunked(false);
+            post.setEntity(body);
+            ResponseHandler<Boolean> rspHandler = new ResponseHandler<Boolean>() {
+                @Override
+                public Boolean handleResponse(HttpResponse rsp) throws ClientProtocolException, IOException {
+                    if (rsp.getStatusLine().getStatusCode() != HttpStatus.SC_OK && rsp.getStatusLine().getStatusCode() != HttpStatus.SC_CREATED) {
+                        logger.warn(String.format("Failed to do bulk operation on[%s] , because: \nstatus line: %s\nresponse body: %s\nrequest body: %s",
+                                inventoryName, rsp.getStatusLine(), EntityUtils.toString(rsp.getEntity()), requestBody));
+                        return false;
+                    } else {
+                        logger.trace(String.format("Successfully did bulk operation on[%s], %s", inventoryName, EntityUtils.toString(rsp.getEntity())));
+                        return true;
+                    }
+                }
+            };
+            return httpClient.execute(post, rspHandler);
+        } catch (Exception e) {
+            logger.warn(String.format("Failed to do bulk operation on inventory[%s]", inventoryName), e);
+            return false;
+        }
+    }
+
+    @Override
+    public String search(final String inventoryName, final String query) throws Exception {
+        URI uri = new URI(String.format("%s/%s/%s/_search", baseUrl, inventoryName.toLowerCase(), inventoryName).replaceAll("(?<!:)//", "/"));
+        HttpPost post = new HttpPost(uri);
+        logger.trace(String.format("executing elasticsearch query as:\n%s", query));
+        StringEntity body = new StringEntity(query);
+        body.setChunked(false);
+        post.setEntity(body);
+        ResponseHandler<String> rspHandler = new ResponseHandler<String>() {
+            @Override
+            public String handleResponse(HttpResponse rsp) throws ClientProtocolException, IOException {
+                String res;
+                if (rsp.getStatusLine().getStatusCode() != HttpStatus.SC_OK && rsp.getStatusLine().getStatusCode() != HttpStatus.SC_CREATED) {
+                    logger.warn(String.format("Failed to search index[%s] , because: \nstatus line: %s\nbody: %s\nrequest body: %s",
+                            inventoryName, rsp.getStatusLine(), EntityUtils.toString(rsp.getEntity()), query));
+                    throw new IOException(String.format("Failed to search index[%s] because %s", inventoryName, rsp.getStatusLine()));
+                } else {
+                    res = EntityUtils.toString(rsp.getEntity());
+                    logger.trace(String.format("Successfully search index[%s], %s", inventoryName, res));
+                }
+
+                return res;
+            }
+        };
+
+        return httpClient.execute(post, rspHandler);
+    }
+
+    @Override
+    public String get(String inventoryName, String uuid) throws Exception {
+        final String url = String.format("%s/%s/%s/%s", baseUrl, inventoryName.toLowerCase(), inventoryName, uuid);
+        HttpGet get = new HttpGet(url);
+        ResponseHandler<String> rspHandler = new ResponseHandler<String>() {
+            @Override
+            public String handleResponse(HttpResponse rsp) throws ClientProtocolException, IOException {
+                String res = null;
+                if (rsp.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_FOUND) {
+                    logger.trace(String.format("failed to call %s, 404 not found, the entity queryed doesn't exist", url));
+                } else if (rsp.getStatusLine().getStatusCode() != HttpStatus.SC_OK && rsp.getStatusLine().getStatusCode() != HttpStatus.SC_CREATED) {
+                    String err = String.format("Failed to call %s, because: \nstatus line: %s\nbody: %s\n",
+                            url, rsp.getStatusLine(), EntityUtils.toString(rsp.getEntity()));
+                    logger.warn(err);
+                    throw new IOException(err);
+                } else {
+                    res = EntityUtils.toString(rsp.getEntity());
+                    logger.trace(String.format("Successfully call %s, %s", url, res));
+                }
+
+                return res;
+            }
+        };
+
+        String res = httpClient.execute(get, rspHandler);
+        if (res == null) {
+            return null;
+        }
+
+        return new JSONObject(res).getString("_source");
+    }
+}
@@ -0,0 +1,68 @@
+package org.zstack.search;
+
+import java.beans.ConstructorProperties;
+
+/**
+ */
+public class IndexerStatistic {
+    private boolean async;
+    private int queuedSignalNum;
+    private long droppedSignalNum;
+    private long batchNum;
+    private long failedBatchNum;
+    private long indexedDocNum;
+    private long deletedDocNum;
+    private long lastLagMs;
+    private long maxLagMs;
+
+    @ConstructorProperties({"async", "queuedSignalNum", "droppedSignalNum", "batchNum", "failedBatchNum", "indexedDocNum",
+            "deletedDocNum", "lastLagMs", "maxLagMs"})
+    public IndexerStatistic(boolean async, int queuedSignalNum, long droppedSignalNum, long batchNum, long failedBatchNum,
+                            long indexedDocNum, long deletedDocNum, long lastLagMs, long maxLagMs) {
+        this.async = async;
+        this.queuedSignalNum = queuedSignalNum;
+        this.droppedSignalNum = droppedSignalNum;
+        this.batchNum = batchNum;
+        this.failedBatchNum = failedBatchNum;
+        this.indexedDocNum = indexedDocNum;
+        this.deletedDocNum = deletedDocNum;
+        this.lastLagMs = lastLagMs;
+        this.maxLagMs = maxLagMs;
+    }
+
+    public boolean isAsync() {
+        return async;
+    }
+
+    public int getQueuedSignalNum() {
+        return queuedSignalNum;
+    }
+
+    public long getDroppedSignalNum() {
+        return droppedSignalNum;
+    }
+
+    public long getBatchNum() {
+        return batchNum;
+    }
+
+    public long getFailedBatchNum() {
+        return failedBatchNum;
+    }
+
+    public long getIndexedDocNum() {
+        return indexedDocNum;
+    }
+
+    public long getDeletedDocNum() {
+        return deletedDocNum;
+    }
+
+    public long getLastLagMs() {
+        return lastLagMs;
+    }
+
+    public long getMaxLagMs() {
+        return maxLagMs;
+    }
+}
@@ -1,21 +1,6 @@
 package org.zstack.search;
 
 import org.apache.commons.io.FileUtils;
-import org.apache.http.HttpResponse;
-import org.apache.http.HttpStatus;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.ResponseHandler;
-import org.apache.http.client.methods.HttpDelete;
-import org.apache.http.client.methods.HttpHead;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.client.methods.HttpPut;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.PoolingClientConnectionManager;
-import org.apache.http.util.EntityUtils;
-import org.json.JSONException;
-import org.json.JSONObject;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.config.BeanDefinition;
 import org.springframework.context.annotation.ClassPathScanningCandidateComponentProvider;
@@ -24,10 +9,14 @@ import org.springframework.stereotype.Controller;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.cloudbus.ResourceDestinationMaker;
 import org.zstack.core.componentloader.PluginExtension;
 import org.zstack.core.componentloader.PluginRegistry;
 import org.zstack.core.db.DatabaseFacade;
 import org.zstack.core.db.TransactionalCallback;
+import org.zstack.core.jmx.JmxFacade;
+import org.zstack.core.thread.SyncTask;
+import org.zstack.core.thread.ThreadFacade;
 import org.zstack.header.AbstractService;
 import org.zstack.header.exception.CloudRuntimeException;
 import org.zstack.header.message.APIMessage;
@@ -43,17 +32,22 @@ import sun.net.www.content.text.plain;
 
 import javax.persistence.*;
 import java.io.File;
-import java.io.IOException;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
-import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.*;
 import java.util.Map.Entry;
-
-public class InventoryIndexManagerImpl extends AbstractService implements InventoryIndexManager, TransactionalCallback {
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class InventoryIndexManagerImpl extends AbstractService implements InventoryIndexManager, TransactionalCallback,
+        InventoryIndexManagerMXBean {
     private static final CLogger logger = Utils.getLogger(InventoryIndexManagerImpl.class);
     @Autowired
     private DatabaseFacade dbf;
@@ -61,13 +55,18 @@ public class InventoryIndexManagerImpl extends AbstractService implements Invent
     private CloudBus bus;
     @Autowired
     private PluginRegistry rgty;
+    @Autowired
+    private ThreadFacade thdf;
+    @Autowired
+    private JmxFacade jmxf;
+    @Autowired
+    private ResourceDestinationMaker destMaker;
 
     private Map<String, IndexerInfo> voClassToIndexerMapping = new HashMap<String, IndexerInfo>();
     private Set<Class<?>> triggerVOs = new HashSet<Class<?>>();
     private Set<String> basePkgNames;
     private String elasticSearchBaseUrl = "http://localhost:9200/";
-    private HttpClient httpClient;
-    private URI bulkUri;
+    private SearchIndexBackend backend;
     private boolean stopIfCreateIndexFailed = false;
     private boolean deleteAllIndexWhenStart = false;
     // key: parent class, value: children classes
@@ -78,6 +77,7 @@ public class InventoryIndexManagerImpl extends AbstractService implements Invent
     // key: parent class, value: children class names
     private Map<Class<?>, List<String>> deleteVOTriggerClassNames = new HashMap<Class<?>, List<String>>();
     private List<SearchIndexRecreateExtensionPoint> reindexExts = new ArrayList<SearchIndexRecreateExtensionPoint>();
+    private AsyncIndexer asyncIndexer;
 
     private class IndexerInfo {
         String url;
@@ -220,69 +220,10 @@ public class InventoryIndexManagerImpl extends AbstractService implements Invent
         this.basePkgNames = basePkgNames;
     }
 
-    private URI makeURI(String... paths) throws URISyntaxException {
-        StringBuilder sb = new StringBuilder();
-        for (String p : paths) {
-            sb.append(p);
-            sb.append("/");
-        }
-        return new URI(sb.toString().replaceAll("(?<!:)//", "/"));
-    }
-
-    private JSONObject createIndexSetting() throws JSONException {
-        JSONObject root = new JSONObject();
-        root.put(
-                "settings",
-                new JSONObject().put(
-                        "index",
-                        new JSONObject().put("analysis",
-                                new JSONObject().put("analyzer", new JSONObject().put("default", new JSONObject().put("type", "keyword")))).put(
-                                "refresh_interval", "500")));
-        return root;
-    }
-
-    private void doCreateIndexIfNotExists(String inventoryName) throws URISyntaxException, ClientProtocolException, IOException, JSONException {
-        final String indexName = inventoryName.toLowerCase();
-        URI uri = makeURI(elasticSearchBaseUrl, indexName);
-        HttpHead head = new HttpHead(uri);
-        ResponseHandler<Boolean> rspHandler = new ResponseHandler<Boolean>() {
-            @Override
-            public Boolean handleResponse(HttpResponse rsp) throws ClientProtocolException, IOException {
-                if (rsp.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
-                    return true;
-                } else if (rsp.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_FOUND) {
-                    return false;
-                } else {
-                    throw new ClientProtocolException(String.format("Failed to check index[%s] existence", indexName));
-                }
-            }
-        };
-
-        boolean ret = httpClient.execute(head, rspHandler);
-        if (!ret) {
-            HttpPut put = new HttpPut(uri);
-            String body = createIndexSetting().toString();
-            put.setEntity(new StringEntity(body));
-            ResponseHandler<Void> putHandler = new ResponseHandler<Void>() {
-                @Override
-                public Void handleResponse(HttpResponse rsp) throws ClientProtocolException, IOException {
-                    if (rsp.getStatusLine().getStatusCode() != HttpStatus.SC_OK && rsp.getStatusLine().getStatusCode() != HttpStatus.SC_CREATED) {
-                        throw new ClientProtocolException(String.format("Cannot create index[%s] beacuse %s, %s", indexName, rsp.getStatusLine(),
-                                EntityUtils.toString(rsp.getEntity())));
-                    } else {
-                        logger.debug(String.format("Successfully created index[%s]", indexName));
-                    }
-                    return null;
-                }
-            };
-            httpClient.execute(put, putHandler);
-        }
-    }
-
     private void createIndexIfNotExists() throws Exception {
         for (IndexerInfo info : voClassToIndexerMapping.values()) {
             try {
-                doCreateIndexIfNotExists(info.inventoryName);
+                backend.createIndexIfNotExists(info.inventoryName);
             } catch (Exception ex) {
                 if (stopIfCreateIndexFailed) {
                     throw ex;
@@ -300,8 +241,8 @@ public class InventoryIndexManagerImpl extends AbstractService implements Invent
     @Override
     public boolean start() {
         try {
-            httpClient = new DefaultHttpClient(new PoolingClientConnectionManager());
-            bulkUri = makeURI(elasticSearchBaseUrl, "_bulk");
+            backend = createBackend();
+            backend.start();
 
             /* only for debugging */
             if (deleteAllIndexWhenStart) {
@@ -318,6 +259,12 @@ public class InventoryIndexManagerImpl extends AbstractService implements Invent
             dumpInventoryIndexer();
             createIndexIfNotExists();
             bus.registerService(this);
+            jmxf.registerBean("InventoryIndexManager", this);
+
+            if (SearchGlobalProperty.ASYNC_INDEXER) {
+                asyncIndexer = new AsyncIndexer();
+                asyncIndexer.start();
+            }
         } catch (Exception e) {
             throw new CloudRuntimeException(e);
         }
@@ -326,8 +273,11 @@ public class InventoryIndexManagerImpl extends AbstractService implements Invent
 
     @Override
     public boolean stop() {
-        if (httpClient != null) {
-            httpClient.getConnectionManager().shutdown();
+        if (asyncIndexer != null) {
+            asyncIndexer.stop();
+        }
+        if (backend != null) {
+            backend.stop();
         }
         bus.unregisterService(this);
         return true;
@@ -354,31 +304,6 @@ public class InventoryIndexManagerImpl extends AbstractService implements Invent
     public void beforeCompletion(Operation op, Class<?>... entityClass) {
     }
 
-    private void sendBulk(final String requestBody, final String inventoryName) {
-        try {
-            HttpPost post = new HttpPost(bulkUri);
-            StringEntity body = new StringEntity(requestBody);
-            logger.trace(String.format("%s:\n%s", inventoryName, requestBody));
-            body.setChunked(false);
-            post.setEntity(body);
-            ResponseHandler<Void> rspHandler = new ResponseHandler<Void>() {
-                @Override
-                public Void handleResponse(HttpResponse rsp) throws ClientProtocolException, IOException {
-                    if (rsp.getStatusLine().getStatusCode() != HttpStatus.SC_OK && rsp.getStatusLine().getStatusCode() != HttpStatus.SC_CREATED) {
-                        logger.warn(String.format("Failed to do bulk operation on[%s] , because: \nstatus line: %s\nresponse body: %s\nrequest body: %s",
-                                inventoryName, rsp.getStatusLine(), EntityUtils.toString(rsp.getEntity()), requestBody));
-                    } else {
-                        logger.trace(String.format("Successfully did bulk operation on[%s], %s", inventoryName, EntityUtils.toString(rsp.getEntity())));
-                    }
-                    return null;
-                }
-            };
-            httpClient.execute(post, rspHandler);
-        } catch (Exception e) {
-            logger.warn(String.format("Failed to do bulk operation on inventory[%s]", inventoryName), e);
-        }
-    }
-
     @Transactional(propagation = Propagation.REQUIRES_NEW)
     private List<InsertVO> takeInsertVO(Class<?> triggeredVO) {
     	List<String> voNames = insertVOTriggerClassNames.get(triggeredVO);
@@ -461,71 +386,56 @@ public class InventoryIndexManagerImpl extends AbstractService implements Invent
         return ret;
     }
 
-    private Map<String, Set<String>> getUuidsOfVOToIndexFromInsertVOUpdateVO(Class<?> triggeredVO, Operation op) {
-        Map<String, Set<String>> ret = new HashMap<String, Set<String>>();
-        if (op == Operation.PERSIST) {
-            List<InsertVO> ivos = takeInsertVO(triggeredVO);
-            for (InsertVO ivo : ivos) {
-                Set<String> self = ret.get(ivo.getVoName());
-                if (self == null) {
-                    self = new HashSet<String>();
-                    ret.put(ivo.getVoName(), self);
-                }
-                self.add(ivo.getUuid());
+    private static void addUuid(Map<String, Set<String>> map, String voName, String uuid) {
+        Set<String> uuids = map.get(voName);
+        if (uuids == null) {
+            uuids = new HashSet<String>();
+            map.put(voName, uuids);
+        }
+        uuids.add(uuid);
+    }
 
-                if (ivo.getForeignVOName() != null && ivo.getForeignVOUuid() != null) {
-                    Set<String> foreign = ret.get(ivo.getForeignVOName());
-                    if (foreign == null) {
-                        foreign = new HashSet<String>();
-                        ret.put(ivo.getForeignVOName(), foreign);
-                    }
-                    foreign.add(ivo.getForeignVOUuid());
-                }
+    private void collectInsertVO(Collection<InsertVO> ivos, Map<String, Set<String>> toIndex) {
+        for (InsertVO ivo : ivos) {
+            addUuid(toIndex, ivo.getVoName(), ivo.getUuid());
+
+            if (ivo.getForeignVOName() != null && ivo.getForeignVOUuid() != null) {
+                addUuid(toIndex, ivo.getForeignVOName(), ivo.getForeignVOUuid());
             }
-        } else if (op == Operation.UPDATE) {
-            List<UpdateVO> uvos = takeUpdateVO(triggeredVO);
-            for (UpdateVO uvo : uvos) {
-                Set<String> self = ret.get(uvo.getVoName());
-                if (self == null) {
-                    self = new HashSet<String>();
-                    ret.put(uvo.getVoName(), self);
-                }
-                self.add(uvo.getUuid());
+        }
+    }
 
-                if (uvo.getForeignVOName() != null) {
-                    if (uvo.getForeignVOUuid() == null) {
-                        String err = String.format("%s[uuid:%s]'s foreignVOname[%s] is not null but foreignVOUuid is null. This is largely the foreignVOname which foreignVOUuid points to has been deleted. otherwise some bug happened", uvo.getVoName(), uvo.getUuid(),
-                                uvo.getForeignVOName());
-                        logger.warn(err);
-                        continue;
-                    }
+    private void collectUpdateVO(Collection<UpdateVO> uvos, Map<String, Set<String>> toIndex) {
+        for (UpdateVO uvo : uvos) {
+            addUuid(toIndex, uvo.getVoName(), uvo.getUuid());
 
-                    Set<String> foreign = ret.get(uvo.getForeignVOName());
-                    if (foreign == null) {
-                        foreign = new HashSet<String>();
-                        ret.put(uvo.getForeignVOName(), foreign);
-                    }
-                    foreign.add(uvo.getForeignVOUuid());
+            if (uvo.getForeignVOName() != null) {
+                if (uvo.getForeignVOUuid() == null) {
+                    String err = String.format("%s[uuid:%s]'s foreignVOname[%s] is not null but foreignVOUuid is null. This is largely the foreignVOname which foreignVOUuid points to has been deleted. otherwise some bug happened", uvo.getVoName(), uvo.getUuid(),
+                            uvo.getForeignVOName());
+                    logger.warn(err);
+                    continue;
                 }
+
+                addUuid(toIndex, uvo.getForeignVOName(), uvo.getForeignVOUuid());
             }
         }
+    }
+
+    private Map<String, Set<String>> getUuidsOfVOToIndexFromInsertVOUpdateVO(Class<?> triggeredVO, Operation op) {
+        Map<String, Set<String>> ret = new HashMap<String, Set<String>>();
+        if (op == Operation.PERSIST) {
+            collectInsertVO(takeInsertVO(triggeredVO), ret);
+        } else if (op == Operation.UPDATE) {
+            collectUpdateVO(takeUpdateVO(triggeredVO), ret);
+        }
 
         return ret;
     }
 
-    private Pair<Map<String, Set<String>>, Map<String, Set<String>>> getVOUuidsToDeleteOrIndexFromDeleteVO(Class<?> triggeredVO) {
-        Pair<Map<String, Set<String>>, Map<String, Set<String>>> pair = new Pair<Map<String, Set<String>>, Map<String, Set<String>>>();
-        Map<String, Set<String>> toIndex = new HashMap<String, Set<String>>();
-        Map<String, Set<String>> toDelete = new HashMap<String, Set<String>>();
-
-        List<DeleteVO> dvos = takeDeleteVO(triggeredVO);
+    private void collectDeleteVO(Collection<DeleteVO> dvos, Map<String, Set<String>> toDelete, Map<String, Set<String>> toIndex) {
         for (DeleteVO dvo : dvos) {
-            Set<String> self = toDelete.get(dvo.getVoName());
-            if (self == null) {
-                self = new HashSet<String>();
-                toDelete.put(dvo.getVoName(), self);
-            }
-            self.add(dvo.getUuid());
+            addUuid(toDelete, dvo.getVoName(), dvo.getUuid());
 
             if (dvo.getForeignVOToDeleteName() != null) {
                 if (dvo.getForeignVOToDeleteUuid() == null) {
@@ -533,12 +443,7 @@ public class InventoryIndexManagerImpl extends AbstractService implements Invent
                             dvo.getUuid(), dvo.getForeignVOToDeleteName());
                     logger.debug(err);
                 }
-                Set<String> duuids = toDelete.get(dvo.getForeignVOToDeleteName());
-                if (duuids == null) {
-                    duuids = new HashSet<String>();
-                    toDelete.put(dvo.getForeignVOToDeleteName(), duuids);
-                }
-                duuids.add(dvo.getForeignVOToDeleteUuid());
+                addUuid(toDelete, dvo.getForeignVOToDeleteName(), dvo.getForeignVOToDeleteUuid());
             }
 
             if (dvo.getForeignVOName() != null) {
@@ -548,15 +453,16 @@ public class InventoryIndexManagerImpl extends AbstractService implements Invent
                     logger.debug(err);
                 }
 
-                Set<String> foreign = toIndex.get(dvo.getForeignVOName());
-                if (foreign == null) {
-                    foreign = new HashSet<String>();
-                    toIndex.put(dvo.getForeignVOName(), foreign);
-                }
-                foreign.add(dvo.getForeignVOUuid());
+                addUuid(toIndex, dvo.getForeignVOName(), dvo.getForeignVOUuid());
             }
         }
+    }
 
+    private Pair<Map<String, Set<String>>, Map<String, Set<String>>> getVOUuidsToDeleteOrIndexFromDeleteVO(Class<?> triggeredVO) {
+        Pair<Map<String, Set<String>>, Map<String, Set<String>>> pair = new Pair<Map<String, Set<String>>, Map<String, Set<String>>>();
+        Map<String, Set<String>> toIndex = new HashMap<String, Set<String>>();
+        Map<String, Set<String>> toDelete = new HashMap<String, Set<String>>();
+        collectDeleteVO(takeDeleteVO(triggeredVO), toDelete, toIndex);
         pair.set(toDelete, toIndex);
         return pair;
     }
@@ -659,7 +565,7 @@ public class InventoryIndexManagerImpl extends AbstractService implements Invent
         }
         
         if (!bbuilder.isEmpty()) {
-            sendBulk(bbuilder.toString(), bbuilder.getAffectedInventoryNames());
+            backend.bulk(bbuilder);
             logger.debug(String.format("successfully reindex all data for inventory[%s]", inventoryName));
         }
     }
@@ -683,6 +589,11 @@ public class InventoryIndexManagerImpl extends AbstractService implements Invent
 
     @Override
     public void afterCommit(Operation op, Class<?>... entityClass) {
+        if (asyncIndexer != null) {
+            asyncIndexer.signal(entityClass);
+            return;
+        }
+
         ESBulkBuilder bbuilder = new ESBulkBuilder();
 
         for (Class<?> vo : entityClass) {
@@ -704,7 +615,7 @@ public class InventoryIndexManagerImpl extends AbstractService implements Invent
         }
 
         if (!bbuilder.isEmpty()) {
-            sendBulk(bbuilder.toString(), bbuilder.getAffectedInventoryNames());
+            backend.bulk(bbuilder);
         }
     }
 
@@ -1011,37 +922,18 @@ public class InventoryIndexManagerImpl extends AbstractService implements Invent
         return names;
     }
 
-    private void deleteIndex(String indexName) throws URISyntaxException, ClientProtocolException, IOException {
-        if (indexName == null) {
-            indexName = "_all";
-        }
-
-        final String name = indexName.toLowerCase();
-        URI uri = makeURI(elasticSearchBaseUrl, name);
-        final HttpDelete del = new HttpDelete(uri);
-        ResponseHandler<Void> rspHandler = new ResponseHandler<Void>() {
-            @Override
-            public Void handleResponse(HttpResponse rsp) throws ClientProtocolException, IOException {
-                if (rsp.getStatusLine().getStatusCode() != HttpStatus.SC_OK && rsp.getStatusLine().getStatusCode() != HttpStatus.SC_CREATED) {
-                    logger.warn(String.format("Failed to delete index[%s] , because: \nstatus line: %s\nbody: %s", del.getURI().toASCIIString(),
-                            rsp.getStatusLine(), EntityUtils.toString(rsp.getEntity())));
-                } else {
-                    logger.trace(String.format("Successfully delete index[%s]", name));
-                }
-                return null;
-            }
-        };
-        httpClient.execute(del, rspHandler);
+    private void deleteIndex(String indexName) throws Exception {
+        backend.deleteIndex(indexName);
     }
 
-    private void deleteAllIndex() throws ClientProtocolException, URISyntaxException, IOException {
+    private void deleteAllIndex() throws Exception {
         Set<String> invnames = getAllInventoryNames();
         for (String invname : invnames) {
             deleteIndex(invname);
         }
     }
     
-    private void handle(final APIDeleteSearchIndexMsg msg) throws URISyntaxException, ClientProtocolException, IOException {
+    private void handle(final APIDeleteSearchIndexMsg msg) throws Exception {
         if (msg.getIndexName() != null) {
             deleteIndex(msg.getIndexName());
         } else {
@@ -1058,13 +950,23 @@ public class InventoryIndexManagerImpl extends AbstractService implements Invent
     }
 
     @Override
-    public HttpClient getHttpClient() {
-        return httpClient;
+    public SearchIndexBackend getBackend() {
+        return backend;
     }
 
-    @Override
-    public String getElasticSearchBaseUrl() {
-        return elasticSearchBaseUrl;
+    private SearchIndexBackend createBackend() {
+        if (ElasticSearchIndexBackend.TYPE.equals(SearchGlobalProperty.BACKEND)) {
+            return new ElasticSearchIndexBackend(elasticSearchBaseUrl);
+        } else if (LocalSearchIndexBackend.TYPE.equals(SearchGlobalProperty.BACKEND)) {
+            String dataDir = SearchGlobalProperty.LOCAL_INDEX_DATA_DIR;
+            if (dataDir == null || "".equals(dataDir)) {
+                dataDir = PathUtil.getFolderUnderZStackHomeFolder("search-index");
+            }
+            return new LocalSearchIndexBackend(dataDir, SearchGlobalProperty.LOCAL_INDEX_COMPACT_THRESHOLD);
+        } else {
+            throw new CloudRuntimeException(String.format("unknown search backend[%s], valid backends are %s, %s", SearchGlobalProperty.BACKEND,
+                    ElasticSearchIndexBackend.TYPE, LocalSearchIndexBackend.TYPE));
+        }
     }
 
     public void setStopIfCreateIndexFailed(boolean stopIfCreateIndexFailed) {
@@ -1074,4 +976,453 @@ public class InventoryIndexManagerImpl extends AbstractService implements Invent
     public void setDeleteAllIndexWhenStart(boolean deleteAllIndexWhenStart) {
         this.deleteAllIndexWhenStart = deleteAllIndexWhenStart;
     }
+
+    @Override
+    public IndexerStatistic getIndexerStatistic() {
+        if (asyncIndexer == null) {
+            return new IndexerStatistic(false, 0, 0, 0, 0, 0, 0, 0, 0);
+        }
+
+        return asyncIndexer.getStatistic();
+    }
+
+    @Transactional(readOnly = true)
+    private <T> List<T> peekTriggerVO(Class<T> triggerVOClass, List<String> voNames, long afterId, int limit) {
+        String sql = String.format("select i from %s i where i.voName in (:voNames) and i.id > :afterId order by i.id", triggerVOClass.getSimpleName());
+        TypedQuery<T> query = dbf.getEntityManager().createQuery(sql, triggerVOClass);
+        query.setParameter("voNames", voNames);
+        query.setParameter("afterId", afterId);
+        query.setMaxResults(limit);
+        return query.getResultList();
+    }
+
+    private void removeTriggerVO(Class<?> triggerVOClass, Collection<Long> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+
+        String sql = String.format("delete from %s i where i.id in (:ids)", triggerVOClass.getSimpleName());
+        Query query = dbf.getEntityManager().createQuery(sql);
+        query.setParameter("ids", ids);
+        query.executeUpdate();
+    }
+
+    /**
+     * deletes the trigger rows of a finished batch, and hands the documents owned by other
+     * management nodes to them as new UpdateVO/DeleteVO rows, in one transaction
+     */
+    @Transactional
+    private void completeTriggerVO(Collection<Long> ivoIds, Collection<Long> uvoIds, Collection<Long> dvoIds,
+                                   Map<String, Set<String>> forwardToIndex, Map<String, Set<String>> forwardToDelete) {
+        removeTriggerVO(InsertVO.class, ivoIds);
+        removeTriggerVO(UpdateVO.class, uvoIds);
+        removeTriggerVO(DeleteVO.class, dvoIds);
+
+        Date now = new Date();
+        for (Map.Entry<String, Set<String>> e : forwardToIndex.entrySet()) {
+            for (String uuid : e.getValue()) {
+                UpdateVO uvo = new UpdateVO();
+                uvo.setVoName(e.getKey());
+                uvo.setUuid(uuid);
+                uvo.setUpdateDate(now);
+                dbf.getEntityManager().persist(uvo);
+            }
+        }
+        for (Map.Entry<String, Set<String>> e : forwardToDelete.entrySet()) {
+            for (String uuid : e.getValue()) {
+                DeleteVO dvo = new DeleteVO();
+                dvo.setVoName(e.getKey());
+                dvo.setUuid(uuid);
+                dvo.setDeletedDate(now);
+                dbf.getEntityManager().persist(dvo);
+            }
+        }
+    }
+
+    private static final int MAX_PEEK_PAGES = 10;
+
+    private static long getTriggerVOId(Object row) {
+        if (row instanceof InsertVO) {
+            return ((InsertVO) row).getId();
+        } else if (row instanceof UpdateVO) {
+            return ((UpdateVO) row).getId();
+        } else {
+            return ((DeleteVO) row).getId();
+        }
+    }
+
+    private static String getTriggerVOUuid(Object row) {
+        if (row instanceof InsertVO) {
+            return ((InsertVO) row).getUuid();
+        } else if (row instanceof UpdateVO) {
+            return ((UpdateVO) row).getUuid();
+        } else {
+            return ((DeleteVO) row).getUuid();
+        }
+    }
+
+    private static class IndexSignal {
+        Class<?> voClass;
+        long time;
+
+        IndexSignal(Class<?> voClass, long time) {
+            this.voClass = voClass;
+            this.time = time;
+        }
+    }
+
+    /**
+     * indexes out of the commit path.
+     *
+     * afterCommit() only queues a signal. A single thread drains the signals every batch
+     * window, reads at most Search.indexer.batchSize rows per trigger table for the signalled
+     * classes, builds the documents in parallel and sends them in one bulk request. Trigger
+     * rows are deleted only after the bulk succeeded, they are the durable journal of
+     * pending work: a dropped signal, a failed bulk or a restart is recovered by the periodic
+     * sweep over all trigger classes.
+     *
+     * Every management node runs its own indexer, so a document is only written by the node
+     * managing its uuid per ResourceDestinationMaker, otherwise two nodes could build the same
+     * document at different times and the older one could land last. A node takes the trigger
+     * rows whose uuid it manages; a foreign document such a row points to is handed to its
+     * owner as a new trigger row instead of being written here.
+     */
+    private class AsyncIndexer implements Runnable {
+        private final BlockingQueue<IndexSignal> signals = new LinkedBlockingQueue<IndexSignal>(SearchGlobalProperty.INDEXER_QUEUE_SIZE);
+        private final Thread thread;
+        private volatile boolean stopped = false;
+        private long lastSweepTime;
+
+        private final AtomicLong droppedSignalNum = new AtomicLong(0);
+        private final AtomicLong batchNum = new AtomicLong(0);
+        private final AtomicLong failedBatchNum = new AtomicLong(0);
+        private final AtomicLong indexedDocNum = new AtomicLong(0);
+        private final AtomicLong deletedDocNum = new AtomicLong(0);
+        private volatile long lastLagMs;
+        private volatile long maxLagMs;
+        // per trigger table and vo names, the id up to which all rows were found owned by other nodes
+        private final Map<String, Long> peekCursors = new HashMap<String, Long>();
+
+        private class Batch {
+            Map<Long, InsertVO> ivos = new LinkedHashMap<Long, InsertVO>();
+            Map<Long, UpdateVO> uvos = new LinkedHashMap<Long, UpdateVO>();
+            Map<Long, DeleteVO> dvos = new LinkedHashMap<Long, DeleteVO>();
+            // some trigger table has more rows than a batch can take
+            boolean full;
+
+            boolean isEmpty() {
+                return ivos.isEmpty() && uvos.isEmpty() && dvos.isEmpty();
+            }
+        }
+
+        AsyncIndexer() {
+            thread = new Thread(this, "zs-search-indexer");
+            thread.setDaemon(true);
+        }
+
+        void start() {
+            lastSweepTime = System.currentTimeMillis();
+            // rows left by the last run of the management node
+            for (Class<?> vo : triggerVOs) {
+                signals.offer(new IndexSignal(vo, lastSweepTime));
+            }
+            thread.start();
+        }
+
+        void stop() {
+            stopped = true;
+            thread.interrupt();
+        }
+
+        void signal(Class<?>... entityClass) {
+            long now = System.currentTimeMillis();
+            for (Class<?> vo : entityClass) {
+                if (!triggerVOs.contains(vo)) {
+                    continue;
+                }
+
+                try {
+                    // block the committer a little when the indexer falls behind
+                    if (!signals.offer(new IndexSignal(vo, now), SearchGlobalProperty.INDEXER_MAX_ENQUEUE_WAIT_MS, TimeUnit.MILLISECONDS)) {
+                        // the trigger rows are in database, the sweep will pick them up
+                        droppedSignalNum.incrementAndGet();
+                    }
+                } catch (InterruptedException e) {
+                    droppedSignalNum.incrementAndGet();
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+
+        IndexerStatistic getStatistic() {
+            return new IndexerStatistic(
+                    true,
+                    signals.size(),
+                    droppedSignalNum.get(),
+                    batchNum.get(),
+                    failedBatchNum.get(),
+                    indexedDocNum.get(),
+                    deletedDocNum.get(),
+                    lastLagMs,
+                    maxLagMs
+            );
+        }
+
+        @Override
+        public void run() {
+            while (!stopped) {
+                try {
+                    Map<Class<?>, Long> todo = collectSignals();
+                    if (todo.isEmpty()) {
+                        continue;
+                    }
+
+                    if (!index(todo)) {
+                        // put the work back and give elasticsearch a break
+                        resignal(todo);
+                        TimeUnit.MILLISECONDS.sleep(SearchGlobalProperty.INDEXER_BATCH_INTERVAL_MS * 10);
+                    }
+                } catch (InterruptedException e) {
+                    if (stopped) {
+                        return;
+                    }
+                } catch (Throwable t) {
+                    logger.warn("unhandled exception happened in search indexer", t);
+                }
+            }
+        }
+
+        private void resignal(Map<Class<?>, Long> todo) {
+            for (Map.Entry<Class<?>, Long> e : todo.entrySet()) {
+                if (!signals.offer(new IndexSignal(e.getKey(), e.getValue()))) {
+                    droppedSignalNum.incrementAndGet();
+                }
+            }
+        }
+
+        private Map<Class<?>, Long> collectSignals() throws InterruptedException {
+            Map<Class<?>, Long> todo = new HashMap<Class<?>, Long>();
+            long now = System.currentTimeMillis();
+            if (now - lastSweepTime >= TimeUnit.SECONDS.toMillis(SearchGlobalProperty.INDEXER_SWEEP_INTERVAL_SEC)) {
+                lastSweepTime = now;
+                for (Class<?> vo : triggerVOs) {
+                    todo.put(vo, now);
+                }
+            }
+
+            IndexSignal s = signals.poll(SearchGlobalProperty.INDEXER_BATCH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            if (s == null) {
+                return todo;
+            }
+
+            // let the batch window fill up so signals of a burst are coalesced
+            TimeUnit.MILLISECONDS.sleep(SearchGlobalProperty.INDEXER_BATCH_INTERVAL_MS);
+
+            List<IndexSignal> lst = new ArrayList<IndexSignal>();
+            lst.add(s);
+            signals.drainTo(lst);
+            for (IndexSignal sig : lst) {
+                Long t = todo.get(sig.voClass);
+                if (t == null || t > sig.time) {
+                    todo.put(sig.voClass, sig.time);
+                }
+            }
+            return todo;
+        }
+
+        /**
+         * takes at most INDEXER_BATCH_SIZE rows managed by us from a trigger table, skipping rows
+         * of other nodes; reads at most MAX_PEEK_PAGES pages per call.
+         *
+         * The scan starts after the rows found foreign by the previous calls, so rows of other nodes
+         * piling up at the head of the table are read once rather than every round, and can't keep
+         * our rows behind them out of reach. The cursor goes back to the head when a scan reaches the
+         * end of the table, rows before it may have become ours when management nodes changed.
+         *
+         * @return true if more rows of us may be waiting
+         */
+        private <T> boolean peekOwned(Class<T> triggerVOClass, List<String> voNames, Map<Long, T> rows) {
+            String cursorKey = String.format("%s-%s", triggerVOClass.getSimpleName(), voNames);
+            Long cursor = peekCursors.get(cursorKey);
+            long afterId = cursor == null ? 0 : cursor;
+            // stays at the last foreign row before the first row of us, which is read again if its batch fails
+            long foreignUntil = afterId;
+            int limit = SearchGlobalProperty.INDEXER_BATCH_SIZE;
+            int taken = 0;
+            for (int page = 0; page < MAX_PEEK_PAGES; page++) {
+                List<T> lst = peekTriggerVO(triggerVOClass, voNames, afterId, limit);
+                for (T row : lst) {
+                    long id = getTriggerVOId(row);
+                    afterId = id;
+                    if (destMaker.isManagedByUs(getTriggerVOUuid(row))) {
+                        rows.put(id, row);
+                        if (++taken == limit) {
+                            peekCursors.put(cursorKey, foreignUntil);
+                            return true;
+                        }
+                    } else if (taken == 0) {
+                        foreignUntil = id;
+                    }
+                }
+
+                if (lst.size() < limit) {
+                    peekCursors.remove(cursorKey);
+                    return false;
+                }
+            }
+
+            // pages run out before the end of the table, continue from here in the next round
+            peekCursors.put(cursorKey, foreignUntil);
+            return true;
+        }
+
+        private Batch peek(Set<Class<?>> vos) {
+            Batch batch = new Batch();
+            for (Class<?> vo : vos) {
+                boolean full = peekOwned(InsertVO.class, insertVOTriggerClassNames.get(vo), batch.ivos);
+                full = peekOwned(UpdateVO.class, Arrays.asList(vo.getSimpleName()), batch.uvos) || full;
+
+                List<String> deleteNames = deleteVOTriggerClassNames.get(vo);
+                if (deleteNames == null) {
+                    deleteNames = Arrays.asList(vo.getSimpleName());
+                }
+                full = peekOwned(DeleteVO.class, deleteNames, batch.dvos) || full;
+
+                batch.full = batch.full || full;
+            }
+            return batch;
+        }
+
+        /**
+         * moves uuids not managed by us from vmap to forward, only documents indexed here can be forwarded
+         */
+        private void splitForeign(Map<String, Set<String>> vmap, Map<String, Set<String>> forward) {
+            for (Map.Entry<String, Set<String>> e : vmap.entrySet()) {
+                Iterator<String> it = e.getValue().iterator();
+                while (it.hasNext()) {
+                    String uuid = it.next();
+                    if (uuid == null || destMaker.isManagedByUs(uuid)) {
+                        continue;
+                    }
+
+                    it.remove();
+                    if (voClassToIndexerMapping.containsKey(e.getKey())) {
+                        addUuid(forward, e.getKey(), uuid);
+                    }
+                }
+            }
+        }
+
+        private boolean index(Map<Class<?>, Long> todo) throws InterruptedException {
+            Batch batch = peek(todo.keySet());
+            if (batch.isEmpty()) {
+                return true;
+            }
+
+            Map<String, Set<String>> toIndex = new HashMap<String, Set<String>>();
+            Map<String, Set<String>> toDelete = new HashMap<String, Set<String>>();
+            collectInsertVO(batch.ivos.values(), toIndex);
+            collectUpdateVO(batch.uvos.values(), toIndex);
+            collectDeleteVO(batch.dvos.values(), toDelete, toIndex);
+            // a resource created and deleted within the same batch must not come back
+            for (Map.Entry<String, Set<String>> e : toDelete.entrySet()) {
+                Set<String> uuids = toIndex.get(e.getKey());
+                if (uuids != null) {
+                    uuids.removeAll(e.getValue());
+                }
+            }
+
+            Map<String, Set<String>> forwardToIndex = new HashMap<String, Set<String>>();
+            Map<String, Set<String>> forwardToDelete = new HashMap<String, Set<String>>();
+            splitForeign(toIndex, forwardToIndex);
+            splitForeign(toDelete, forwardToDelete);
+
+            ESBulkBuilder bbuilder = new ESBulkBuilder();
+            int docNum = addDocToESBuilderInParallel(bbuilder, toIndex);
+            int deleteNum = countUuids(toDelete);
+            addDocToDeleteToESBuilder(bbuilder, toDelete);
+
+            batchNum.incrementAndGet();
+            if (!bbuilder.isEmpty() && !backend.bulk(bbuilder)) {
+                failedBatchNum.incrementAndGet();
+                return false;
+            }
+
+            completeTriggerVO(batch.ivos.keySet(), batch.uvos.keySet(), batch.dvos.keySet(), forwardToIndex, forwardToDelete);
+
+            indexedDocNum.addAndGet(docNum);
+            deletedDocNum.addAndGet(deleteNum);
+            lastLagMs = System.currentTimeMillis() - Collections.min(todo.values());
+            maxLagMs = Math.max(maxLagMs, lastLagMs);
+
+            if (batch.full) {
+                // more rows are waiting, come back in next round
+                resignal(todo);
+            }
+
+            return true;
+        }
+
+        private int countUuids(Map<String, Set<String>> vmap) {
+            int num = 0;
+            for (Set<String> uuids : vmap.values()) {
+                num += uuids.size();
+            }
+            return num;
+        }
+
+        private int addDocToESBuilderInParallel(ESBulkBuilder bbuilder, Map<String, Set<String>> vmap) throws InterruptedException {
+            List<Future<List<InventoryDoc>>> futures = new ArrayList<Future<List<InventoryDoc>>>();
+            for (Map.Entry<String, Set<String>> e : vmap.entrySet()) {
+                final IndexerInfo info = voClassToIndexerMapping.get(e.getKey());
+                if (info == null || e.getValue().isEmpty()) {
+                    continue;
+                }
+
+                final Set<String> uuids = e.getValue();
+                futures.add(thdf.syncSubmit(new SyncTask<List<InventoryDoc>>() {
+                    @Override
+                    public String getSyncSignature() {
+                        return "search-indexer-build";
+                    }
+
+                    @Override
+                    public int getSyncLevel() {
+                        return SearchGlobalProperty.INDEXER_BUILD_THREAD_NUM;
+                    }
+
+                    @Override
+                    public String getName() {
+                        return String.format("build-search-doc-%s", info.inventoryName);
+                    }
+
+                    @Override
+                    public List<InventoryDoc> call() throws Exception {
+                        return buildDoc(info, uuids);
+                    }
+                }));
+            }
+
+            int num = 0;
+            for (Future<List<InventoryDoc>> f : futures) {
+                List<InventoryDoc> docs;
+                try {
+                    docs = f.get();
+                } catch (ExecutionException e) {
+                    throw new CloudRuntimeException(e.getCause());
+                }
+
+                if (docs == null) {
+                    throw new CloudRuntimeException("failed to build search documents, see the previous warning");
+                }
+
+                for (InventoryDoc doc : docs) {
+                    bbuilder.addIndexBulk(doc.getInventoryName().toLowerCase(), doc.getInventoryName(), doc);
+                }
+                num += docs.size();
+            }
+            return num;
+        }
+    }
 }
@@ -0,0 +1,7 @@
+package org.zstack.search;
+
+/**
+ */
+public interface InventoryIndexManagerMXBean {
+    IndexerStatistic getIndexerStatistic();
+}
@@ -0,0 +1,600 @@
+package org.zstack.search;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.zstack.header.exception.CloudRuntimeException;
+import org.zstack.search.ESBulkBuilder.BulkOperation;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * an in-process search index for deployments without an elasticsearch cluster.
+ *
+ * Every index keeps its documents and an inverted index of the flattened field values
+ * in memory; nested objects are named as "a.b" and array elements are indexed under the
+ * name of the array, the way elasticsearch does. The index itself is not memory-mapped:
+ * the segment file under the data dir is a write-ahead log of changes, fsync-ed on every
+ * bulk, memory-mapped only to be replayed at start, and rewritten when most of its records
+ * are dead. Queries are the filters built by QueryBuilder: and, or, not, term, terms,
+ * range and match_all.
+ */
+public class LocalSearchIndexBackend implements SearchIndexBackend {
+    private static final CLogger logger = Utils.getLogger(LocalSearchIndexBackend.class);
+
+    public static final String TYPE = "local";
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final byte OP_INDEX = 1;
+    private static final byte OP_DELETE = 2;
+    private static final int DEFAULT_SIZE = 10;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File dataDir;
+    private final int compactThreshold;
+    private final Map<String, LocalIndex> indexes = new ConcurrentHashMap<String, LocalIndex>();
+
+    private static void syncDirectory(File dir) throws IOException {
+        FileChannel ch = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+        try {
+            ch.force(true);
+        } finally {
+            ch.close();
+        }
+    }
+
+    public LocalSearchIndexBackend(String dataDir, int compactThreshold) {
+        this.dataDir = new File(dataDir);
+        this.compactThreshold = compactThreshold;
+    }
+
+    private static class Document {
+        final String id;
+        final String sourceText;
+        final JSONObject source;
+        final Map<String, Set<String>> fields = new HashMap<String, Set<String>>();
+
+        Document(String id, String sourceText) throws JSONException {
+            this.id = id;
+            this.sourceText = sourceText;
+            source = new JSONObject(sourceText);
+            flatten(null, source, fields);
+        }
+
+        private static void flatten(String path, Object val, Map<String, Set<String>> fields) throws JSONException {
+            if (val == null || val == JSONObject.NULL) {
+                return;
+            }
+
+            if (val instanceof JSONObject) {
+                JSONObject jo = (JSONObject) val;
+                Iterator it = jo.keys();
+                while (it.hasNext()) {
+                    String key = (String) it.next();
+                    flatten(path == null ? key : String.format("%s.%s", path, key), jo.get(key), fields);
+                }
+            } else if (val instanceof JSONArray) {
+                JSONArray arr = (JSONArray) val;
+                for (int i = 0; i < arr.length(); i++) {
+                    flatten(path, arr.get(i), fields);
+                }
+            } else {
+                Set<String> vals = fields.get(path);
+                if (vals == null) {
+                    vals = new HashSet<String>(1);
+                    fields.put(path, vals);
+                }
+                vals.add(val.toString());
+            }
+        }
+    }
+
+    private class LocalIndex {
+        final String name;
+        final File segment;
+        // sorted by id so paging is stable
+        final TreeMap<String, Document> docs = new TreeMap<String, Document>();
+        // field -> value -> document ids
+        final Map<String, Map<String, Set<String>>> postings = new HashMap<String, Map<String, Set<String>>>();
+        RandomAccessFile file;
+        long recordNum;
+
+        LocalIndex(String name) {
+            this.name = name;
+            segment = new File(dataDir, name + SEGMENT_SUFFIX);
+        }
+
+        synchronized void open() throws IOException {
+            boolean exists = segment.exists();
+            if (exists) {
+                load();
+            }
+
+            file = new RandomAccessFile(segment, "rw");
+            file.seek(file.length());
+            if (!exists) {
+                syncDirectory(dataDir);
+            }
+        }
+
+        synchronized void close() {
+            if (file == null) {
+                return;
+            }
+
+            try {
+                file.close();
+            } catch (IOException e) {
+                logger.warn(String.format("failed to close segment[%s]", segment.getAbsolutePath()), e);
+            }
+            file = null;
+        }
+
+        synchronized void drop() {
+            close();
+            docs.clear();
+            postings.clear();
+            if (segment.exists() && !segment.delete()) {
+                logger.warn(String.format("failed to delete segment[%s]", segment.getAbsolutePath()));
+            }
+        }
+
+        private String readString(ByteBuffer buf) {
+            int len = buf.getInt();
+            if (len < 0 || len > buf.remaining()) {
+                throw new BufferUnderflowException();
+            }
+
+            byte[] bytes = new byte[len];
+            buf.get(bytes);
+            return new String(bytes, UTF8);
+        }
+
+        private void load() throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+            try {
+                FileChannel ch = raf.getChannel();
+                long size = ch.size();
+                long valid = 0;
+                if (size > 0) {
+                    MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                    while (buf.hasRemaining()) {
+                        byte op;
+                        String id;
+                        String source;
+                        try {
+                            op = buf.get();
+                            id = readString(buf);
+                            source = readString(buf);
+                        } catch (BufferUnderflowException e) {
+                            break;
+                        }
+
+                        if (op == OP_INDEX) {
+                            try {
+                                put(new Document(id, source));
+                            } catch (JSONException e) {
+                                logger.warn(String.format("skip unparsable document[id:%s] in segment[%s]", id, segment.getAbsolutePath()), e);
+                            }
+                        } else if (op == OP_DELETE) {
+                            remove(id);
+                        } else {
+                            break;
+                        }
+
+                        recordNum ++;
+                        valid = buf.position();
+                    }
+                }
+
+                if (valid < size) {
+                    // a record torn by a crash, drop it
+                    logger.warn(String.format("truncate segment[%s] from %s bytes to %s bytes", segment.getAbsolutePath(), size, valid));
+                    ch.truncate(valid);
+                }
+            } finally {
+                raf.close();
+            }
+
+            logger.debug(String.format("loaded %s documents of index[%s] from %s records", docs.size(), name, recordNum));
+        }
+
+        private void put(Document doc) {
+            remove(doc.id);
+            docs.put(doc.id, doc);
+            for (Map.Entry<String, Set<String>> e : doc.fields.entrySet()) {
+                Map<String, Set<String>> values = postings.get(e.getKey());
+                if (values == null) {
+                    values = new HashMap<String, Set<String>>();
+                    postings.put(e.getKey(), values);
+                }
+
+                for (String v : e.getValue()) {
+                    Set<String> ids = values.get(v);
+                    if (ids == null) {
+                        ids = new HashSet<String>();
+                        values.put(v, ids);
+                    }
+                    ids.add(doc.id);
+                }
+            }
+        }
+
+        private void remove(String id) {
+            Document doc = docs.remove(id);
+            if (doc == null) {
+                return;
+            }
+
+            for (Map.Entry<String, Set<String>> e : doc.fields.entrySet()) {
+                Map<String, Set<String>> values = postings.get(e.getKey());
+                for (String v : e.getValue()) {
+                    Set<String> ids = values.get(v);
+                    ids.remove(id);
+                    if (ids.isEmpty()) {
+                        values.remove(v);
+                    }
+                }
+
+                if (values.isEmpty()) {
+                    postings.remove(e.getKey());
+                }
+            }
+        }
+
+        private void writeRecord(DataOutputStream out, byte op, String id, String source) throws IOException {
+            byte[] idBytes = id.getBytes(UTF8);
+            byte[] srcBytes = source == null ? new byte[0] : source.getBytes(UTF8);
+            out.writeByte(op);
+            out.writeInt(idBytes.length);
+            out.write(idBytes);
+            out.writeInt(srcBytes.length);
+            out.write(srcBytes);
+        }
+
+        synchronized void apply(List<BulkOperation> ops) throws IOException, JSONException {
+            // parse everything before touching the segment, a bad document fails the whole bulk
+            List<Document> parsed = new ArrayList<Document>(ops.size());
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bos);
+            for (BulkOperation op : ops) {
+                if (op.delete) {
+                    parsed.add(null);
+                    writeRecord(out, OP_DELETE, op.id, null);
+                } else {
+                    parsed.add(new Document(op.id, op.doc));
+                    writeRecord(out, OP_INDEX, op.id, op.doc);
+                }
+            }
+            out.flush();
+
+            FileChannel ch = file.getChannel();
+            ch.write(ByteBuffer.wrap(bos.toByteArray()));
+            ch.force(false);
+
+            for (int i = 0; i < ops.size(); i++) {
+                Document doc = parsed.get(i);
+                if (doc == null) {
+                    remove(ops.get(i).id);
+                } else {
+                    put(doc);
+                }
+            }
+
+            recordNum += ops.size();
+            if (recordNum > compactThreshold && recordNum > docs.size() * 2L) {
+                compact();
+            }
+        }
+
+        private void compact() throws IOException {
+            File tmp = new File(dataDir, name + SEGMENT_SUFFIX + ".tmp");
+            FileOutputStream fos = new FileOutputStream(tmp);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            try {
+                for (Document doc : docs.values()) {
+                    writeRecord(out, OP_INDEX, doc.id, doc.sourceText);
+                }
+                // the new segment must be on disk before it replaces the old one
+                out.flush();
+                fos.getFD().sync();
+            } finally {
+                out.close();
+            }
+
+            close();
+            if (!tmp.renameTo(segment)) {
+                throw new IOException(String.format("failed to rename %s to %s", tmp.getAbsolutePath(), segment.getAbsolutePath()));
+            }
+            // and the rename must be on disk before more records are appended to it
+            syncDirectory(dataDir);
+            file = new RandomAccessFile(segment, "rw");
+            file.seek(file.length());
+
+            logger.debug(String.format("compacted segment of index[%s] from %s records to %s", name, recordNum, docs.size()));
+            recordNum = docs.size();
+        }
+
+        synchronized String get(String id) {
+            Document doc = docs.get(id);
+            return doc == null ? null : doc.sourceText;
+        }
+
+        synchronized JSONObject search(JSONObject query) throws JSONException {
+            Collection<String> matched = query.has("filter") ? new TreeSet<String>(filter(query.getJSONObject("filter"))) : docs.keySet();
+            int from = query.optInt("from", 0);
+            int size = query.optInt("size", DEFAULT_SIZE);
+            JSONArray fields = query.optJSONArray("fields");
+
+            JSONArray hits = new JSONArray();
+            int i = 0;
+            for (String id : matched) {
+                if (i++ < from) {
+                    continue;
+                }
+                if (hits.length() >= size) {
+                    break;
+                }
+
+                Document doc = docs.get(id);
+                JSONObject hit = new JSONObject();
+                hit.put("_index", name);
+                hit.put("_id", id);
+                if (fields == null) {
+                    hit.put("_source", doc.source);
+                } else {
+                    JSONObject fs = new JSONObject();
+                    for (int j = 0; j < fields.length(); j++) {
+                        String f = fields.getString(j);
+                        Object v = doc.source.opt(f);
+                        if (v != null && v != JSONObject.NULL) {
+                            fs.put(f, v);
+                        }
+                    }
+                    hit.put("fields", fs);
+                }
+                hits.put(hit);
+            }
+
+            JSONObject ret = new JSONObject();
+            ret.put("hits", new JSONObject().put("total", matched.size()).put("hits", hits));
+            return ret;
+        }
+
+        private Set<String> all() {
+            return new HashSet<String>(docs.keySet());
+        }
+
+        private Set<String> lookup(String field, String value) {
+            Map<String, Set<String>> values = postings.get(field);
+            if (values == null) {
+                return new HashSet<String>();
+            }
+
+            Set<String> ids = values.get(value);
+            return ids == null ? new HashSet<String>() : new HashSet<String>(ids);
+        }
+
+        private Set<String> filter(JSONObject clause) throws JSONException {
+            Iterator it = clause.keys();
+            if (!it.hasNext()) {
+                return all();
+            }
+
+            String op = (String) it.next();
+            if ("and".equals(op)) {
+                JSONArray arr = clause.getJSONArray(op);
+                Set<String> ret = null;
+                for (int i = 0; i < arr.length(); i++) {
+                    Set<String> s = filter(arr.getJSONObject(i));
+                    if (ret == null) {
+                        ret = s;
+                    } else {
+                        ret.retainAll(s);
+                    }
+
+                    if (ret.isEmpty()) {
+                        break;
+                    }
+                }
+                return ret == null ? all() : ret;
+            } else if ("or".equals(op)) {
+                JSONArray arr = clause.getJSONArray(op);
+                Set<String> ret = new HashSet<String>();
+                for (int i = 0; i < arr.length(); i++) {
+                    ret.addAll(filter(arr.getJSONObject(i)));
+                }
+                return ret;
+            } else if ("not".equals(op)) {
+                Set<String> ret = all();
+                ret.removeAll(filter(clause.getJSONObject(op)));
+                return ret;
+            } else if ("term".equals(op)) {
+                JSONObject term = clause.getJSONObject(op);
+                String field = (String) term.keys().next();
+                return lookup(field, term.get(field).toString());
+            } else if ("terms".equals(op)) {
+                JSONObject terms = clause.getJSONObject(op);
+                String field = (String) terms.keys().next();
+                JSONArray vals = terms.getJSONArray(field);
+                Set<String> ret = new HashSet<String>();
+                for (int i = 0; i < vals.length(); i++) {
+                    ret.addAll(lookup(field, vals.get(i).toString()));
+                }
+                return ret;
+            } else if ("range".equals(op)) {
+                JSONObject range = clause.getJSONObject(op);
+                String field = (String) range.keys().next();
+                return range(field, range.getJSONObject(field));
+            } else if ("match_all".equals(op)) {
+                return all();
+            } else {
+                throw new CloudRuntimeException(String.format("local search index doesn't support query clause[%s]", op));
+            }
+        }
+
+        private Set<String> range(String field, JSONObject bounds) throws JSONException {
+            Set<String> ret = new HashSet<String>();
+            Map<String, Set<String>> values = postings.get(field);
+            if (values == null) {
+                return ret;
+            }
+
+            for (Map.Entry<String, Set<String>> e : values.entrySet()) {
+                if (inRange(e.getKey(), bounds)) {
+                    ret.addAll(e.getValue());
+                }
+            }
+            return ret;
+        }
+
+        private boolean inRange(String value, JSONObject bounds) throws JSONException {
+            if (bounds.has("gt") && compare(value, bounds.get("gt").toString()) <= 0) {
+                return false;
+            }
+            if (bounds.has("gte") && compare(value, bounds.get("gte").toString()) < 0) {
+                return false;
+            }
+            if (bounds.has("lt") && compare(value, bounds.get("lt").toString()) >= 0) {
+                return false;
+            }
+            if (bounds.has("lte") && compare(value, bounds.get("lte").toString()) > 0) {
+                return false;
+            }
+            return true;
+        }
+    }
+
+    private static int compare(String a, String b) {
+        try {
+            return Double.compare(Double.parseDouble(a), Double.parseDouble(b));
+        } catch (NumberFormatException e) {
+            return a.compareTo(b);
+        }
+    }
+
+    private LocalIndex getIndex(String inventoryName, boolean create) throws IOException {
+        String name = inventoryName.toLowerCase();
+        synchronized (indexes) {
+            LocalIndex index = indexes.get(name);
+            if (index == null && create) {
+                index = new LocalIndex(name);
+                index.open();
+                indexes.put(name, index);
+            }
+            return index;
+        }
+    }
+
+    @Override
+    public String getBackendType() {
+        return TYPE;
+    }
+
+    @Override
+    public void start() {
+        if (!dataDir.exists() && !dataDir.mkdirs()) {
+            throw new CloudRuntimeException(String.format("cannot create search index folder[%s]", dataDir.getAbsolutePath()));
+        }
+
+        File[] segments = dataDir.listFiles();
+        if (segments == null) {
+            return;
+        }
+
+        for (File f : segments) {
+            if (!f.getName().endsWith(SEGMENT_SUFFIX)) {
+                continue;
+            }
+
+            String name = f.getName().substring(0, f.getName().length() - SEGMENT_SUFFIX.length());
+            try {
+                getIndex(name, true);
+            } catch (IOException e) {
+                throw new CloudRuntimeException(String.format("failed to load search index segment[%s]", f.getAbsolutePath()), e);
+            }
+        }
+    }
+
+    @Override
+    public void stop() {
+        synchronized (indexes) {
+            for (LocalIndex index : indexes.values()) {
+                index.close();
+            }
+            indexes.clear();
+        }
+    }
+
+    @Override
+    public void createIndexIfNotExists(String inventoryName) throws Exception {
+        getIndex(inventoryName, true);
+    }
+
+    @Override
+    public void deleteIndex(String inventoryName) throws Exception {
+        synchronized (indexes) {
+            if (inventoryName == null) {
+                for (LocalIndex index : indexes.values()) {
+                    index.drop();
+                }
+                indexes.clear();
+            } else {
+                LocalIndex index = indexes.remove(inventoryName.toLowerCase());
+                if (index != null) {
+                    index.drop();
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean bulk(ESBulkBuilder bulk) {
+        Map<String, List<BulkOperation>> ops = new LinkedHashMap<String, List<BulkOperation>>();
+        for (BulkOperation op : bulk.getOperations()) {
+            List<BulkOperation> lst = ops.get(op.indexName);
+            if (lst == null) {
+                lst = new ArrayList<BulkOperation>();
+                ops.put(op.indexName, lst);
+            }
+            lst.add(op);
+        }
+
+        boolean success = true;
+        for (Map.Entry<String, List<BulkOperation>> e : ops.entrySet()) {
+            try {
+                getIndex(e.getKey(), true).apply(e.getValue());
+            } catch (Exception ex) {
+                logger.warn(String.format("Failed to do bulk operation on local index[%s]", e.getKey()), ex);
+                success = false;
+            }
+        }
+        return success;
+    }
+
+    @Override
+    public String search(String inventoryName, String query) throws Exception {
+        LocalIndex index = getIndex(inventoryName, false);
+        if (index == null) {
+            throw new CloudRuntimeException(String.format("Failed to search index[%s] because it doesn't exist", inventoryName));
+        }
+
+        return index.search(new JSONObject(query)).toString();
+    }
+
+    @Override
+    public String get(String inventoryName, String uuid) throws Exception {
+        LocalIndex index = getIndex(inventoryName, false);
+        return index == null ? null : index.get(uuid);
+    }
+}
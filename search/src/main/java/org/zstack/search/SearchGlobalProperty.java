@@ -0,0 +1,30 @@
+package org.zstack.search;
+
+import org.zstack.core.GlobalProperty;
+import org.zstack.core.GlobalPropertyDefinition;
+
+/**
+ */
+@GlobalPropertyDefinition
+public class SearchGlobalProperty {
+    @GlobalProperty(name="Search.backend", defaultValue = "elasticsearch")
+    public static String BACKEND;
+    @GlobalProperty(name="Search.local.dataDir", defaultValue = "")
+    public static String LOCAL_INDEX_DATA_DIR;
+    @GlobalProperty(name="Search.local.compactThreshold", defaultValue = "10000")
+    public static int LOCAL_INDEX_COMPACT_THRESHOLD;
+    @GlobalProperty(name="Search.asyncIndexer", defaultValue = "false")
+    public static boolean ASYNC_INDEXER;
+    @GlobalProperty(name="Search.indexer.queueSize", defaultValue = "10000")
+    public static int INDEXER_QUEUE_SIZE;
+    @GlobalProperty(name="Search.indexer.batchSize", defaultValue = "500")
+    public static int INDEXER_BATCH_SIZE;
+    @GlobalProperty(name="Search.indexer.batchIntervalMs", defaultValue = "200")
+    public static long INDEXER_BATCH_INTERVAL_MS;
+    @GlobalProperty(name="Search.indexer.sweepIntervalSec", defaultValue = "60")
+    public static long INDEXER_SWEEP_INTERVAL_SEC;
+    @GlobalProperty(name="Search.indexer.buildThreadNum", defaultValue = "4")
+    public static int INDEXER_BUILD_THREAD_NUM;
+    @GlobalProperty(name="Search.indexer.maxEnqueueWaitMs", defaultValue = "100")
+    public static long INDEXER_MAX_ENQUEUE_WAIT_MS;
+}
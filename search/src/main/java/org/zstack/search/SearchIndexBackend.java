@@ -0,0 +1,33 @@
+package org.zstack.search;
+
+/**
+ * the storage InventoryIndexManager indexes inventories into and SearchQuery/GetQuery
+ * read from.
+ *
+ * Queries are in the JSON built by QueryBuilder, search results are in the shape of
+ * elasticsearch's _search API, so a backend is free to be a remote cluster or an
+ * in-process index.
+ */
+public interface SearchIndexBackend {
+    String getBackendType();
+
+    void start();
+
+    void stop();
+
+    void createIndexIfNotExists(String inventoryName) throws Exception;
+
+    /**
+     * @param inventoryName null to delete all indexes
+     */
+    void deleteIndex(String inventoryName) throws Exception;
+
+    boolean bulk(ESBulkBuilder bulk);
+
+    String search(String inventoryName, String query) throws Exception;
+
+    /**
+     * @return the document source, or null if the document doesn't exist
+     */
+    String get(String inventoryName, String uuid) throws Exception;
+}
@@ -1,13 +1,6 @@
 package org.zstack.search;
 
 import com.google.gson.Gson;
-import org.apache.http.HttpResponse;
-import org.apache.http.HttpStatus;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.ResponseHandler;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.util.EntityUtils;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.springframework.beans.factory.annotation.Autowire;
@@ -23,9 +16,6 @@ import org.zstack.utils.Utils;
 import org.zstack.utils.gson.GsonUtil;
 import org.zstack.utils.logging.CLogger;
 
-import java.io.IOException;
-import java.net.URI;
-import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -44,7 +34,6 @@ public class SearchQuery<T> {
     @Autowired
     private GlobalConfigFacade gcf;
 
-    private URI uri;
     private QueryBuilder qb;
     private Class<?> inventoryClass;
     private int from;
@@ -54,14 +43,8 @@ public class SearchQuery<T> {
     private static int USE_DEFAULT_SIZE = -99999;
 
     public SearchQuery(Class<?> invClass) {
-        try {
-            inventoryClass = invClass;
-            uri = new URI(String.format("%s/%s/%s/_search", mgr.getElasticSearchBaseUrl(), invClass.getSimpleName().toLowerCase(), invClass.getSimpleName())
-                    .replaceAll("(?<!:)//", "/"));
-            qb = new QueryBuilder();
-        } catch (URISyntaxException e) {
-            throw new CloudRuntimeException(e);
-        }
+        inventoryClass = invClass;
+        qb = new QueryBuilder();
     }
 
     public SearchQuery<T> add(String name, SearchOp op, String val) {
@@ -142,34 +125,10 @@ public class SearchQuery<T> {
         }
     }
 
-    private String callElasticSearch() {
+    private String callSearchBackend() {
         try {
             build();
-            HttpPost post = new HttpPost(uri);
-            final String requestBody = qb.build();
-            logger.trace(String.format("executing elasticsearch query as:\n%s", requestBody));
-            StringEntity body = new StringEntity(requestBody);
-            body.setChunked(false);
-            post.setEntity(body);
-            ResponseHandler<String> rspHandler = new ResponseHandler<String>() {
-                @Override
-                public String handleResponse(HttpResponse rsp) throws ClientProtocolException, IOException {
-                    String res;
-                    if (rsp.getStatusLine().getStatusCode() != HttpStatus.SC_OK && rsp.getStatusLine().getStatusCode() != HttpStatus.SC_CREATED) {
-                        logger.warn(String.format("Failed to search index[%s] , because: \nstatus line: %s\nbody: %s\nrequest body: %s",
-                                inventoryClass.getSimpleName(), rsp.getStatusLine(), EntityUtils.toString(rsp.getEntity()), requestBody));
-                        throw new IOException(String.format("Failed to search index[%s] because %s", inventoryClass.getSimpleName(), rsp.getStatusLine()));
-                    } else {
-                        res = EntityUtils.toString(rsp.getEntity());
-                        logger.trace(String.format("Successfully search index[%s], %s", inventoryClass.getSimpleName(), res));
-                    }
-
-                    return res;
-                }
-            };
-
-            String res = mgr.getHttpClient().execute(post, rspHandler);
-            return res;
+            return mgr.getBackend().search(inventoryClass.getSimpleName(), qb.build());
         } catch (Exception e) {
             throw new CloudRuntimeException(e.getMessage(), e);
         }
@@ -182,7 +141,7 @@ public class SearchQuery<T> {
         }
 
         try {
-            String res = callElasticSearch();
+            String res = callSearchBackend();
             JSONArray jarr = new JSONObject(res).getJSONObject("hits").getJSONArray("hits");
             List<T> rlst = new ArrayList<T>(jarr.length());
             for (int i = 0; i < jarr.length(); i++) {
@@ -216,7 +175,7 @@ public class SearchQuery<T> {
         }
 
         try {
-            String res = callElasticSearch();
+            String res = callSearchBackend();
             JSONArray jarr = new JSONObject(res).getJSONObject("hits").getJSONArray("hits");
             List<ESTuple> rlst = new ArrayList<ESTuple>(jarr.length());
             for (int i = 0; i < jarr.length(); i++) {
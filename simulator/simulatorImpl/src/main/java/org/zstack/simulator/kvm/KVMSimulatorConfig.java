@@ -8,6 +8,7 @@ import org.zstack.utils.data.SizeUnit;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -47,6 +48,17 @@ public class KVMSimulatorConfig {
     public volatile Map<String, SecurityGroupRuleTO> securityGroups = new HashMap<String, SecurityGroupRuleTO>();
     public volatile List<RefreshAllRulesOnHostCmd> securityGroupRefreshAllRulesOnHostCmds = new ArrayList<RefreshAllRulesOnHostCmd>();
     public volatile Map<String, KvmVmState> vms = new HashMap<String, KvmVmState>();
+    public volatile boolean vmSyncDeltaSupported = true;
+    public volatile long vmSyncGeneration;
+    // vm states replied at each generation, all simulated hosts share them
+    public volatile Map<Long, Map<String, String>> vmSyncSnapshots = new LinkedHashMap<Long, Map<String, String>>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Map<String, String>> eldest) {
+            return size() > 64;
+        }
+    };
+    public volatile List<VmSyncCmd> vmSyncCmds = new ArrayList<VmSyncCmd>();
+    public volatile List<VmSyncResponse> vmSyncResponses = new ArrayList<VmSyncResponse>();
     public volatile int consolePort;
     public volatile KVMAgentCommands.StartVmCmd startVmCmd;
     public volatile Map<String, KVMAgentCommands.NicTO> attachedNics = new HashMap<String, KVMAgentCommands.NicTO>();
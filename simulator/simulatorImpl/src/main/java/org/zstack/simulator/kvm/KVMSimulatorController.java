@@ -23,7 +23,9 @@ import org.zstack.utils.gson.JSONObjectUtil;
 import org.zstack.utils.logging.CLogger;
 
 import javax.servlet.http.HttpServletRequest;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 @Controller
@@ -184,12 +186,45 @@ public class KVMSimulatorController {
     @AsyncThread
     private void doVmSync(HttpEntity<String> entity) {
         synchronized (config) {
+            VmSyncCmd cmd = JSONObjectUtil.toObject(entity.getBody(), VmSyncCmd.class);
+            config.vmSyncCmds.add(cmd);
             VmSyncResponse rsp = new VmSyncResponse();
+            config.vmSyncResponses.add(rsp);
             HashMap<String, String> vms = new HashMap<String, String>();
             for (Map.Entry<String, KvmVmState> e : config.vms.entrySet()) {
                 vms.put(e.getKey(), e.getValue().toString());
             }
-            rsp.setStates(vms);
+
+            if (!config.vmSyncDeltaSupported) {
+                rsp.setStates(vms);
+                reply(entity, rsp);
+                return;
+            }
+
+            Map<String, String> last = cmd.getGeneration() == null ? null : config.vmSyncSnapshots.get(cmd.getGeneration());
+            if (last == null) {
+                rsp.setStates(vms);
+            } else {
+                HashMap<String, String> changed = new HashMap<String, String>();
+                for (Map.Entry<String, String> e : vms.entrySet()) {
+                    if (!e.getValue().equals(last.get(e.getKey()))) {
+                        changed.put(e.getKey(), e.getValue());
+                    }
+                }
+                List<String> removed = new ArrayList<String>();
+                for (String vmUuid : last.keySet()) {
+                    if (!vms.containsKey(vmUuid)) {
+                        removed.add(vmUuid);
+                    }
+                }
+                rsp.setStates(changed);
+                rsp.setRemovedVmUuids(removed);
+                rsp.setDelta(true);
+            }
+
+            config.vmSyncGeneration ++;
+            config.vmSyncSnapshots.put(config.vmSyncGeneration, vms);
+            rsp.setGeneration(config.vmSyncGeneration);
             reply(entity, rsp);
         }
     }
@@ -7,14 +7,46 @@ import org.zstack.utils.TagUtils;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.regex.Pattern;
 
 import static org.zstack.utils.StringDSL.s;
 
 /**
  */
 public class PatternedSystemTag extends SystemTag {
+    private final TagUtils.TagFormat format;
+    // useTagFormat() as a regular expression, LIKE wildcards '%' and '_' become '.*' and '.'
+    private final Pattern storedTagPattern;
+
     public PatternedSystemTag(String tagFormat, Class resourceClass) {
         super(tagFormat, resourceClass);
+        format = TagUtils.compile(tagFormat);
+        storedTagPattern = likeToPattern(useTagFormat());
+    }
+
+    private static Pattern likeToPattern(String like) {
+        StringBuilder sb = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        for (char c : like.toCharArray()) {
+            if (c == '%' || c == '_') {
+                if (literal.length() > 0) {
+                    sb.append(Pattern.quote(literal.toString()));
+                    literal.setLength(0);
+                }
+                sb.append(c == '%' ? ".*" : ".");
+            } else {
+                literal.append(c);
+            }
+        }
+        if (literal.length() > 0) {
+            sb.append(Pattern.quote(literal.toString()));
+        }
+        return Pattern.compile(sb.toString(), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE | Pattern.DOTALL);
+    }
+
+    @Override
+    protected boolean isStoredTagMatch(String tag) {
+        return storedTagPattern.matcher(tag).matches();
     }
 
     @Override
@@ -29,11 +61,11 @@ public class PatternedSystemTag extends SystemTag {
 
     @Override
     public boolean isMatch(String tag) {
-        return TagUtils.isMatch(tagFormat, tag);
+        return format.isMatch(tag);
     }
 
     public Map<String, String> getTokensByTag(String tag) {
-        return TagUtils.parseIfMatch(tagFormat, tag);
+        return format.parseIfMatch(tag);
     }
 
     public String getTokenByTag(String tag, String tokenName) {
@@ -50,7 +82,7 @@ public class PatternedSystemTag extends SystemTag {
             return null;
         }
 
-        return TagUtils.parseIfMatch(tagFormat, tag);
+        return format.parseIfMatch(tag);
     }
 
     public List<Map<String, String>> getTokensOfTagsByResourceUuid(String resourceUuid) {
@@ -62,7 +94,7 @@ public class PatternedSystemTag extends SystemTag {
 
         List<String> tags = getTags(resourceUuid, resourceClass);
         for (String tag : tags) {
-            res.add(TagUtils.parseIfMatch(tagFormat, tag));
+            res.add(format.parseIfMatch(tag));
         }
 
         return res;
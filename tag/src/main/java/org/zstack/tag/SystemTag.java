@@ -6,19 +6,13 @@ import org.springframework.beans.factory.annotation.Configurable;
 import org.springframework.transaction.annotation.Transactional;
 import org.zstack.core.Platform;
 import org.zstack.core.db.DatabaseFacade;
-import org.zstack.core.db.SimpleQuery;
 import org.zstack.core.db.SimpleQuery.Op;
 import org.zstack.header.tag.*;
 import org.zstack.utils.DebugUtils;
 import org.zstack.utils.Utils;
 import org.zstack.utils.logging.CLogger;
 
-import javax.persistence.Query;
-import javax.persistence.Tuple;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 
 /**
  */
@@ -68,25 +62,25 @@ public class SystemTag {
         return Op.EQ;
     }
 
+    /**
+     * if a stored tag is selected by useOp() and useTagFormat(), the same way the
+     * database would do; the column is compared case insensitively
+     */
+    protected boolean isStoredTagMatch(String tag) {
+        return tagFormat.equalsIgnoreCase(tag);
+    }
+
     public boolean hasTag(String resourceUuid) {
         return hasTag(resourceUuid, resourceClass);
     }
 
     public boolean hasTag(String resourceUuid, Class resourceClass) {
-        SimpleQuery<SystemTagVO> q = dbf.createQuery(SystemTagVO.class);
-        q.add(SystemTagVO_.resourceType, Op.EQ, resourceClass.getSimpleName());
-        q.add(SystemTagVO_.resourceUuid, Op.EQ, resourceUuid);
-        q.add(SystemTagVO_.tag, useOp(), useTagFormat());
-        return q.isExists();
+        return !getTags(resourceUuid, resourceClass).isEmpty();
     }
 
     public List<String> getTags(String resourceUuid, Class resourceClass) {
-        SimpleQuery<SystemTagVO> q = dbf.createQuery(SystemTagVO.class);
-        q.select(SystemTagVO_.tag);
-        q.add(SystemTagVO_.resourceType, Op.EQ, resourceClass.getSimpleName());
-        q.add(SystemTagVO_.resourceUuid, Op.EQ, resourceUuid);
-        q.add(SystemTagVO_.tag, useOp(), useTagFormat());
-        return q.listValue();
+        List<String> tags = getTags(Arrays.asList(resourceUuid), resourceClass).get(resourceUuid);
+        return tags == null ? new ArrayList<String>() : tags;
     }
 
     public List<String> getTags(String resourceUuid) {
@@ -106,21 +100,21 @@ public class SystemTag {
     }
 
     public Map<String, List<String>> getTags(List<String> resourceUuids, Class resourceClass) {
-        SimpleQuery<SystemTagVO> q = dbf.createQuery(SystemTagVO.class);
-        q.select(SystemTagVO_.tag, SystemTagVO_.resourceUuid);
-        q.add(SystemTagVO_.resourceType, Op.EQ, resourceClass.getSimpleName());
-        q.add(SystemTagVO_.resourceUuid, Op.IN, resourceUuids);
-        q.add(SystemTagVO_.tag, useOp(), useTagFormat());
-        List<Tuple> ts = q.listTuple();
         Map<String, List<String>> ret = new HashMap<String, List<String>>();
-        for (Tuple t : ts) {
-            String uuid = t.get(1, String.class);
-            List<String> tags = ret.get(uuid);
-            if (tags == null) {
-                tags = new ArrayList<String>();
-                ret.put(uuid, tags);
+        Map<String, List<String>> all = tagMgr.findSystemTags(resourceUuids, resourceClass.getSimpleName());
+        for (Map.Entry<String, List<String>> e : all.entrySet()) {
+            List<String> tags = null;
+            for (String tag : e.getValue()) {
+                if (!isStoredTagMatch(tag)) {
+                    continue;
+                }
+
+                if (tags == null) {
+                    tags = new ArrayList<String>();
+                    ret.put(e.getKey(), tags);
+                }
+                tags.add(tag);
             }
-            tags.add(t.get(0, String.class));
         }
         return ret;
     }
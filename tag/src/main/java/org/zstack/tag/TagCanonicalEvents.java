@@ -0,0 +1,24 @@
+package org.zstack.tag;
+
+import org.zstack.header.message.NeedJsonSchema;
+
+import java.util.List;
+
+/**
+ */
+public class TagCanonicalEvents {
+    public static final String SYSTEM_TAG_CHANGED_PATH = "/systemTag/changed/{nodeUuid}";
+
+    @NeedJsonSchema
+    public static class SystemTagChangedData {
+        private List<String> resourceUuids;
+
+        public List<String> getResourceUuids() {
+            return resourceUuids;
+        }
+
+        public void setResourceUuids(List<String> resourceUuids) {
+            this.resourceUuids = resourceUuids;
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package org.zstack.tag;
+
+import org.zstack.core.GlobalProperty;
+import org.zstack.core.GlobalPropertyDefinition;
+
+/**
+ */
+@GlobalPropertyDefinition
+public class TagGlobalProperty {
+    // number of resources whose system tags are cached, 0 disables the cache
+    @GlobalProperty(name="Tag.systemTagCacheSize", defaultValue = "10000")
+    public static int SYSTEM_TAG_CACHE_SIZE;
+}
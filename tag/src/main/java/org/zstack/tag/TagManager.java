@@ -7,6 +7,7 @@ import org.zstack.header.tag.TagInventory;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 /**
  */
@@ -27,6 +28,12 @@ public interface TagManager {
 
     List<String> findSystemTags(String resourceUuid);
 
+    /**
+     * system tags of resources of the resource type, read from the system tag cache.
+     * Resources without system tags are not in the returned map
+     */
+    Map<String, List<String>> findSystemTags(Collection<String> resourceUuids, String resourceType);
+
     List<String> findUserTags(String resourceUuid);
 
     boolean hasSystemTag(String resourceUuid, String tag);
@@ -2,8 +2,12 @@ package org.zstack.tag;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.zstack.core.Platform;
 import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.cloudbus.EventCallback;
+import org.zstack.core.cloudbus.EventFacade;
 import org.zstack.core.cloudbus.MessageSafe;
 import org.zstack.core.componentloader.PluginRegistry;
 import org.zstack.core.db.DatabaseFacade;
@@ -34,17 +38,21 @@ import org.zstack.header.vm.VmInstanceVO;
 import org.zstack.header.volume.VolumeVO;
 import org.zstack.header.zone.ZoneVO;
 import org.zstack.query.QueryFacade;
+import org.zstack.tag.TagCanonicalEvents.SystemTagChangedData;
 import org.zstack.utils.*;
 import org.zstack.utils.logging.CLogger;
 
 import javax.persistence.Query;
+import javax.persistence.Tuple;
 import javax.persistence.TypedQuery;
 import javax.persistence.metamodel.EntityType;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.zstack.utils.CollectionUtils.removeDuplicateFromList;
+import static org.zstack.utils.StringDSL.s;
 
 public class TagManagerImpl extends AbstractService implements TagManager,
         SoftDeleteEntityExtensionPoint, GlobalApiMessageInterceptor, SystemTagLifeCycleExtension {
@@ -60,6 +68,8 @@ public class TagManagerImpl extends AbstractService implements TagManager,
     private ErrorFacade errf;
     @Autowired
     private PluginRegistry pluginRgty;
+    @Autowired
+    private EventFacade evtf;
 
     private List<SystemTag> systemTags = new ArrayList<SystemTag>();
     private Map<String, List<SystemTag>> resourceTypeSystemTagMap = new HashMap<String, List<SystemTag>>();
@@ -68,6 +78,28 @@ public class TagManagerImpl extends AbstractService implements TagManager,
     private Map<String, List<SystemTagCreateMessageValidator>> createMessageValidators = new HashMap<String, List<SystemTagCreateMessageValidator>>();
     private Map<String, List<SystemTagLifeCycleExtension>> lifeCycleExtensions = new HashMap<String, List<SystemTagLifeCycleExtension>>();
 
+    private static class CachedSystemTag {
+        final String resourceType;
+        final String tag;
+
+        CachedSystemTag(String resourceType, String tag) {
+            this.resourceType = resourceType;
+            this.tag = tag;
+        }
+    }
+
+    // system tags of a resource by resource uuid, an empty list means the resource has no system tag.
+    // All writes of SystemTagVO are in this class and evict the resources on every management node.
+    private final Map<String, List<CachedSystemTag>> systemTagCache = Collections.synchronizedMap(
+            new LinkedHashMap<String, List<CachedSystemTag>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, List<CachedSystemTag>> eldest) {
+                    return size() > TagGlobalProperty.SYSTEM_TAG_CACHE_SIZE;
+                }
+            });
+    // increased by every eviction, tags loaded across an eviction are not cached as they may be stale
+    private final AtomicLong systemTagCacheVersion = new AtomicLong(0);
+
     private void initSystemTags() throws IllegalAccessException {
         List<Class> classes = BeanUtils.scanClass("org.zstack", TagDefinition.class);
         for (Class clz : classes) {
@@ -120,6 +152,17 @@ public class TagManagerImpl extends AbstractService implements TagManager,
             logger.debug(String.format("discovered tag resource type[%s], class[%s]", name, type));
         }
 
+        evtf.on(TagCanonicalEvents.SYSTEM_TAG_CHANGED_PATH, new EventCallback() {
+            @Override
+            public void run(Map tokens, Object data) {
+                if (Platform.getManagementServerId().equals(tokens.get("nodeUuid"))) {
+                    return;
+                }
+
+                evictSystemTagCache(((SystemTagChangedData) data).getResourceUuids());
+            }
+        });
+
         try {
             // this makes sure DatabaseFacade is injected into every SystemTag object
             initSystemTags();
@@ -157,6 +200,119 @@ public class TagManagerImpl extends AbstractService implements TagManager,
         }
     }
 
+    private void evictSystemTagCache(Collection<String> resourceUuids) {
+        synchronized (systemTagCache) {
+            systemTagCacheVersion.incrementAndGet();
+            for (String uuid : resourceUuids) {
+                systemTagCache.remove(uuid);
+            }
+        }
+    }
+
+    private void fireSystemTagChanged(List<String> resourceUuids) {
+        SystemTagChangedData data = new SystemTagChangedData();
+        data.setResourceUuids(resourceUuids);
+        evtf.fire(s(TagCanonicalEvents.SYSTEM_TAG_CHANGED_PATH).formatByMap(CollectionDSL.map(
+                CollectionDSL.e("nodeUuid", Platform.getManagementServerId())
+        )), data);
+    }
+
+    private void systemTagChanged(Collection<String> resourceUuids) {
+        final List<String> uuids = removeDuplicateFromList(new ArrayList<String>(resourceUuids));
+        if (uuids.isEmpty()) {
+            return;
+        }
+
+        evictSystemTagCache(uuids);
+        if (TransactionSynchronizationManager.isActualTransactionActive()) {
+            // evict again after the transaction, readers may have cached its uncommitted or rolled back tags
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCompletion(int status) {
+                    evictSystemTagCache(uuids);
+                    fireSystemTagChanged(uuids);
+                }
+            });
+        } else {
+            fireSystemTagChanged(uuids);
+        }
+    }
+
+    @Transactional(readOnly = true)
+    private Map<String, List<CachedSystemTag>> loadSystemTags(Collection<String> resourceUuids) {
+        String sql = "select t.resourceUuid, t.resourceType, t.tag from SystemTagVO t where t.resourceUuid in (:uuids)";
+        TypedQuery<Tuple> q = dbf.getEntityManager().createQuery(sql, Tuple.class);
+        q.setParameter("uuids", resourceUuids);
+        Map<String, List<CachedSystemTag>> ret = new HashMap<String, List<CachedSystemTag>>();
+        for (Tuple t : q.getResultList()) {
+            String uuid = t.get(0, String.class);
+            List<CachedSystemTag> tags = ret.get(uuid);
+            if (tags == null) {
+                tags = new ArrayList<CachedSystemTag>();
+                ret.put(uuid, tags);
+            }
+            tags.add(new CachedSystemTag(t.get(1, String.class), t.get(2, String.class)));
+        }
+        return ret;
+    }
+
+    private Map<String, List<CachedSystemTag>> getSystemTags(Collection<String> resourceUuids) {
+        Map<String, List<CachedSystemTag>> ret = new HashMap<String, List<CachedSystemTag>>();
+        List<String> toLoad = new ArrayList<String>();
+        for (String uuid : resourceUuids) {
+            List<CachedSystemTag> tags = systemTagCache.get(uuid);
+            if (tags == null) {
+                toLoad.add(uuid);
+            } else {
+                ret.put(uuid, tags);
+            }
+        }
+
+        if (toLoad.isEmpty()) {
+            return ret;
+        }
+
+        long version = systemTagCacheVersion.get();
+        Map<String, List<CachedSystemTag>> loaded = loadSystemTags(toLoad);
+        synchronized (systemTagCache) {
+            boolean cache = TagGlobalProperty.SYSTEM_TAG_CACHE_SIZE > 0 && version == systemTagCacheVersion.get();
+            for (String uuid : toLoad) {
+                List<CachedSystemTag> tags = loaded.get(uuid);
+                tags = tags == null ? Collections.<CachedSystemTag>emptyList() : Collections.unmodifiableList(tags);
+                ret.put(uuid, tags);
+                if (cache) {
+                    systemTagCache.put(uuid, tags);
+                }
+            }
+        }
+
+        return ret;
+    }
+
+    private List<CachedSystemTag> getSystemTags(String resourceUuid) {
+        return getSystemTags(Arrays.asList(resourceUuid)).get(resourceUuid);
+    }
+
+    @Override
+    public Map<String, List<String>> findSystemTags(Collection<String> resourceUuids, String resourceType) {
+        Map<String, List<String>> ret = new HashMap<String, List<String>>();
+        for (Map.Entry<String, List<CachedSystemTag>> e : getSystemTags(resourceUuids).entrySet()) {
+            List<String> tags = null;
+            for (CachedSystemTag tag : e.getValue()) {
+                if (!tag.resourceType.equals(resourceType)) {
+                    continue;
+                }
+
+                if (tags == null) {
+                    tags = new ArrayList<String>();
+                    ret.put(e.getKey(), tags);
+                }
+                tags.add(tag.tag);
+            }
+        }
+        return ret;
+    }
+
     private boolean isTagExisting(String resourceUuid, String tag, TagType type, String resourceType) {
         if (type == TagType.User) {
             SimpleQuery<UserTagVO> q = dbf.createQuery(UserTagVO.class);
@@ -202,6 +358,7 @@ public class TagManagerImpl extends AbstractService implements TagManager,
             vo.setTag(tag);
             vo.setType(type);
             vo = dbf.persistAndRefresh(vo);
+            systemTagChanged(Arrays.asList(resourceUuid));
             SystemTagInventory stag = SystemTagInventory.valueOf(vo);
             fireTagCreated(Arrays.asList(stag));
             return stag;
@@ -222,6 +379,7 @@ public class TagManagerImpl extends AbstractService implements TagManager,
         vo.setTag(tag);
         vo.setType(TagType.System);
         vo = dbf.persistAndRefresh(vo);
+        systemTagChanged(Arrays.asList(resourceUuid));
         SystemTagInventory inv = SystemTagInventory.valueOf(vo);
         fireTagCreated(Arrays.asList(inv));
         return inv;
@@ -281,14 +439,16 @@ public class TagManagerImpl extends AbstractService implements TagManager,
             ntag.setResourceUuid(dstResourceUuid);
             dbf.getEntityManager().persist(ntag);
         }
+        systemTagChanged(Arrays.asList(dstResourceUuid));
     }
 
     @Override
     public List<String> findSystemTags(String resourceUuid) {
-        SimpleQuery<SystemTagVO> q = dbf.createQuery(SystemTagVO.class);
-        q.select(SystemTagVO_.tag);
-        q.add(SystemTagVO_.resourceUuid, SimpleQuery.Op.EQ, resourceUuid);
-        return q.listValue();
+        List<String> ret = new ArrayList<String>();
+        for (CachedSystemTag tag : getSystemTags(resourceUuid)) {
+            ret.add(tag.tag);
+        }
+        return ret;
     }
 
     @Override
@@ -301,10 +461,13 @@ public class TagManagerImpl extends AbstractService implements TagManager,
 
     private boolean hasTag(String resourceUuid, String tag, TagType tagType) {
         if (tagType == TagType.System) {
-            SimpleQuery<SystemTagVO> q = dbf.createQuery(SystemTagVO.class);
-            q.add(SystemTagVO_.resourceUuid, SimpleQuery.Op.EQ, resourceUuid);
-            q.add(SystemTagVO_.tag, SimpleQuery.Op.EQ, tag);
-            return q.isExists();
+            for (CachedSystemTag stag : getSystemTags(resourceUuid)) {
+                // the column is compared case insensitively in the database
+                if (stag.tag.equalsIgnoreCase(tag)) {
+                    return true;
+                }
+            }
+            return false;
         } else {
             SimpleQuery<UserTagVO> q = dbf.createQuery(UserTagVO.class);
             q.add(UserTagVO_.resourceUuid, SimpleQuery.Op.EQ, resourceUuid);
@@ -351,6 +514,11 @@ public class TagManagerImpl extends AbstractService implements TagManager,
         List<SystemTagVO> vos = q.list();
         dbf.removeCollection(vos, SystemTagVO.class);
         if (!vos.isEmpty()) {
+            List<String> resourceUuids = new ArrayList<String>(vos.size());
+            for (SystemTagVO vo : vos) {
+                resourceUuids.add(vo.getResourceUuid());
+            }
+            systemTagChanged(resourceUuids);
             fireTagDeleted(SystemTagInventory.valueOf(vos));
         }
     }
@@ -438,6 +606,7 @@ public class TagManagerImpl extends AbstractService implements TagManager,
         dbf.removeByPrimaryKey(msg.getUuid(), SystemTagVO.class);
         dbf.removeByPrimaryKey(msg.getUuid(), UserTagVO.class);
         if (stag != null) {
+            systemTagChanged(Arrays.asList(stag.getResourceUuid()));
             fireTagDeleted(Arrays.asList(SystemTagInventory.valueOf(stag)));
         }
         bus.publish(evt);
@@ -537,6 +706,7 @@ public class TagManagerImpl extends AbstractService implements TagManager,
         q.setParameter("resourceType", entityClass.getSimpleName());
         q.setParameter("resourceUuids", entityIds);
         q.executeUpdate();
+        systemTagChanged(entityIds);
 
         sql = "delete from UserTagVO s where s.resourceType = :resourceType and s.resourceUuid in (:resourceUuids)";
         q = dbf.getEntityManager().createQuery(sql);
@@ -0,0 +1,82 @@
+package org.zstack.test.compute.cluster;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.header.cluster.APIQueryClusterMsg;
+import org.zstack.header.cluster.APIQueryClusterReply;
+import org.zstack.header.cluster.ClusterInventory;
+import org.zstack.test.Api;
+import org.zstack.test.ApiSenderException;
+import org.zstack.test.DBUtil;
+import org.zstack.test.deployer.Deployer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 1. query 5 clusters by keyset paging, 2 clusters a page, sorted by name
+ *
+ * confirm all clusters are returned in order in 3 pages and only the first page has the total
+ *
+ * 2. do it again in descending order
+ *
+ * confirm the same
+ */
+public class TestQueryClusterKeysetPaging {
+    Deployer deployer;
+    Api api;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        deployer = new Deployer("deployerXml/cluster/TestQueryCluster.xml");
+        deployer.build();
+        api = deployer.getApi();
+    }
+
+    private List<String> pageAll(String direction) throws ApiSenderException {
+        List<String> names = new ArrayList<String>();
+        String token = null;
+        int pages = 0;
+        do {
+            APIQueryClusterMsg msg = new APIQueryClusterMsg();
+            msg.setKeysetPaging(true);
+            msg.setContinuationToken(token);
+            msg.setLimit(2);
+            msg.setSortBy("name");
+            msg.setSortDirection(direction);
+            msg.setReplyWithCount(true);
+            APIQueryClusterReply reply = api.query(msg, APIQueryClusterReply.class);
+            if (pages == 0) {
+                Assert.assertEquals(5, reply.getTotal().longValue());
+            } else {
+                Assert.assertNull(reply.getTotal());
+            }
+
+            for (ClusterInventory inv : reply.getInventories()) {
+                names.add(inv.getName());
+            }
+            token = reply.getContinuationToken();
+            pages ++;
+        } while (token != null);
+
+        Assert.assertEquals(3, pages);
+        return names;
+    }
+
+    @Test
+    public void test() throws ApiSenderException {
+        List<String> names = pageAll("asc");
+        Assert.assertEquals(5, names.size());
+        for (int i=0; i<names.size(); i++) {
+            Assert.assertEquals(String.format("Cluster%s", i + 1), names.get(i));
+        }
+
+        names = pageAll("desc");
+        Assert.assertEquals(5, names.size());
+        for (int i=0; i<names.size(); i++) {
+            Assert.assertEquals(String.format("Cluster%s", 5 - i), names.get(i));
+        }
+    }
+}
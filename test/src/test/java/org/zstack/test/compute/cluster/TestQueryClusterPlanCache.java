@@ -0,0 +1,75 @@
+package org.zstack.test.compute.cluster;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.header.cluster.APIQueryClusterMsg;
+import org.zstack.header.cluster.APIQueryClusterReply;
+import org.zstack.header.cluster.ClusterInventory;
+import org.zstack.header.query.QueryOp;
+import org.zstack.query.MysqlQueryBuilderImpl3;
+import org.zstack.test.Api;
+import org.zstack.test.ApiSenderException;
+import org.zstack.test.DBUtil;
+import org.zstack.test.deployer.Deployer;
+
+/**
+ * 1. query clusters by name twice with different values
+ *
+ * confirm the second query reuses the plan of the first one and returns the right cluster
+ *
+ * 2. query clusters with a different condition
+ *
+ * confirm a new plan is made
+ */
+public class TestQueryClusterPlanCache {
+    Deployer deployer;
+    Api api;
+    ComponentLoader loader;
+    MysqlQueryBuilderImpl3 qb;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        deployer = new Deployer("deployerXml/cluster/TestQueryCluster.xml");
+        deployer.build();
+        api = deployer.getApi();
+        loader = deployer.getComponentLoader();
+        qb = loader.getComponent(MysqlQueryBuilderImpl3.class);
+    }
+
+    private APIQueryClusterReply queryByName(String name) throws ApiSenderException {
+        APIQueryClusterMsg msg = new APIQueryClusterMsg();
+        msg.addQueryCondition("name", QueryOp.EQ, name);
+        return api.query(msg, APIQueryClusterReply.class);
+    }
+
+    @Test
+    public void test() throws ApiSenderException {
+        ClusterInventory cluster1 = deployer.clusters.get("Cluster1");
+        ClusterInventory cluster2 = deployer.clusters.get("Cluster2");
+
+        qb.clearPlanCache();
+        long hit = qb.getPlanCacheHitNum();
+        long miss = qb.getPlanCacheMissNum();
+
+        APIQueryClusterReply reply = queryByName(cluster1.getName());
+        Assert.assertEquals(1, reply.getInventories().size());
+        Assert.assertEquals(cluster1.getUuid(), reply.getInventories().get(0).getUuid());
+        Assert.assertEquals(miss + 1, qb.getPlanCacheMissNum());
+
+        reply = queryByName(cluster2.getName());
+        Assert.assertEquals(1, reply.getInventories().size());
+        Assert.assertEquals(cluster2.getUuid(), reply.getInventories().get(0).getUuid());
+        Assert.assertEquals(hit + 1, qb.getPlanCacheHitNum());
+        Assert.assertEquals(miss + 1, qb.getPlanCacheMissNum());
+
+        APIQueryClusterMsg msg = new APIQueryClusterMsg();
+        msg.addQueryCondition("uuid", QueryOp.EQ, cluster2.getUuid());
+        reply = api.query(msg, APIQueryClusterReply.class);
+        Assert.assertEquals(1, reply.getInventories().size());
+        Assert.assertEquals(cluster2.getUuid(), reply.getInventories().get(0).getUuid());
+        Assert.assertEquals(miss + 2, qb.getPlanCacheMissNum());
+    }
+}
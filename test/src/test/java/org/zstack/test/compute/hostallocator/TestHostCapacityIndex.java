@@ -0,0 +1,88 @@
+package org.zstack.test.compute.hostallocator;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.compute.allocator.HostAllocatorGlobalConfig;
+import org.zstack.compute.allocator.HostCapacityIndex;
+import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.header.allocator.HostCapacityVO;
+import org.zstack.header.configuration.InstanceOfferingInventory;
+import org.zstack.header.image.ImageInventory;
+import org.zstack.header.network.l3.L3NetworkInventory;
+import org.zstack.header.vm.VmInstanceInventory;
+import org.zstack.test.Api;
+import org.zstack.test.ApiSenderException;
+import org.zstack.test.DBUtil;
+import org.zstack.test.VmCreator;
+import org.zstack.test.deployer.Deployer;
+
+/**
+ * 1. enable the host capacity index
+ * 2. create a vm
+ * 3. exhaust the host capacity in database behind the index
+ * 4. create another vm
+ *
+ * confirm the first vm gets capacity allocated, the second fails and the index is corrected
+ */
+public class TestHostCapacityIndex {
+    Deployer deployer;
+    Api api;
+    ComponentLoader loader;
+    CloudBus bus;
+    DatabaseFacade dbf;
+    HostCapacityIndex capIndex;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        deployer = new Deployer("deployerXml/hostAllocator/TestHostAllocator.xml");
+        deployer.build();
+        api = deployer.getApi();
+        loader = deployer.getComponentLoader();
+        bus = loader.getComponent(CloudBus.class);
+        dbf = loader.getComponent(DatabaseFacade.class);
+        capIndex = loader.getComponent(HostCapacityIndex.class);
+    }
+
+    @Test
+    public void test() throws ApiSenderException {
+        HostAllocatorGlobalConfig.USE_CAPACITY_INDEX.updateValue(true);
+        capIndex.reconcile();
+        Assert.assertTrue(capIndex.isReady());
+
+        L3NetworkInventory l3  = deployer.l3Networks.get("l3Network1");
+        InstanceOfferingInventory instanceOffering = deployer.instanceOfferings.get("instanceOffering512M512HZ");
+        ImageInventory imageInventory = deployer.images.get("image1");
+
+        VmCreator creator = new VmCreator(api);
+        creator.addL3Network(l3.getUuid());
+        creator.imageUuid = imageInventory.getUuid();
+        creator.instanceOfferingUuid = instanceOffering.getUuid();
+        VmInstanceInventory vm = creator.create();
+        HostCapacityVO cvo = dbf.findByUuid(vm.getHostUuid(), HostCapacityVO.class);
+        Assert.assertEquals(instanceOffering.getCpuNum()*instanceOffering.getCpuSpeed(), cvo.getUsedCpu());
+        Assert.assertEquals(instanceOffering.getMemorySize(), cvo.getUsedMemory());
+
+        long cpu = instanceOffering.getCpuNum()*instanceOffering.getCpuSpeed();
+        Assert.assertTrue(capIndex.hasCapacity(vm.getHostUuid(), cpu, instanceOffering.getMemorySize()));
+
+        // the index doesn't know this
+        cvo.setAvailableCpu(0);
+        dbf.update(cvo);
+
+        boolean s = false;
+        try {
+            creator.create();
+        } catch (ApiSenderException e) {
+            s = true;
+        }
+        Assert.assertTrue(s);
+        Assert.assertFalse(capIndex.hasCapacity(vm.getHostUuid(), cpu, instanceOffering.getMemorySize()));
+
+        HostAllocatorGlobalConfig.USE_CAPACITY_INDEX.updateValue(false);
+        Assert.assertFalse(capIndex.isReady());
+    }
+}
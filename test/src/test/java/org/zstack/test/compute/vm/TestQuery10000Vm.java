@@ -0,0 +1,135 @@
+package org.zstack.test.compute.vm;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.thread.SyncThread;
+import org.zstack.header.configuration.DiskOfferingInventory;
+import org.zstack.header.configuration.InstanceOfferingInventory;
+import org.zstack.header.image.ImageInventory;
+import org.zstack.header.network.l3.L3NetworkInventory;
+import org.zstack.header.query.QueryOp;
+import org.zstack.header.vm.*;
+import org.zstack.query.QueryGlobalProperty;
+import org.zstack.test.Api;
+import org.zstack.test.ApiSenderException;
+import org.zstack.test.DBUtil;
+import org.zstack.test.deployer.Deployer;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 1. create 10000 vms
+ * 2. query all of them with and without Query.batchFetch
+ *
+ * confirm both modes return the same inventories and print the time cost of each mode
+ */
+public class TestQuery10000Vm {
+    CLogger logger = Utils.getLogger(TestQuery10000Vm.class);
+
+    Deployer deployer;
+    Api api;
+    ComponentLoader loader;
+    CloudBus bus;
+    DatabaseFacade dbf;
+    int vmNum = 10000;
+    int queryTimes = 10;
+    CountDownLatch latch = new CountDownLatch(vmNum);
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        deployer = new Deployer("deployerXml/vm/CreateVm1000.xml");
+        deployer.build();
+        api = deployer.getApi();
+        loader = deployer.getComponentLoader();
+        bus = loader.getComponent(CloudBus.class);
+        dbf = loader.getComponent(DatabaseFacade.class);
+    }
+
+    @SyncThread(level = 100)
+    private void createVm(VmInstanceInventory vm, String rootDiskUuid, List<String> nws, List<String> disks) throws ApiSenderException {
+        try {
+            api.createVmByFullConfig(vm, rootDiskUuid, nws, disks);
+        } finally {
+            latch.countDown();
+        }
+    }
+
+    private List<VmInstanceInventory> queryVm() throws ApiSenderException {
+        APIQueryVmInstanceMsg msg = new APIQueryVmInstanceMsg();
+        msg.addQueryCondition("name", QueryOp.EQ, "vm");
+        msg.setLimit(vmNum);
+        msg.setSortBy("uuid");
+        APIQueryVmInstanceReply reply = api.query(msg, APIQueryVmInstanceReply.class);
+        return reply.getInventories();
+    }
+
+    private long benchmark(boolean batchFetch) throws ApiSenderException {
+        QueryGlobalProperty.BATCH_FETCH = batchFetch;
+        long totalTime = 0;
+        for (int i=0; i<queryTimes; i++) {
+            long s = System.currentTimeMillis();
+            List<VmInstanceInventory> vms = queryVm();
+            totalTime += System.currentTimeMillis() - s;
+            Assert.assertEquals(vmNum, vms.size());
+        }
+
+        long avg = totalTime / queryTimes;
+        System.out.println(String.format("batch fetch: %s, query %s vms %s times, avg time: %s ms", batchFetch, vmNum, queryTimes, avg));
+        return avg;
+    }
+
+    @Test
+    public void test() throws ApiSenderException, InterruptedException {
+        InstanceOfferingInventory ioinv = api.listInstanceOffering(null).get(0);
+        ImageInventory iminv = api.listImage(null).get(0);
+        List<DiskOfferingInventory> dinvs = api.listDiskOffering(null);
+        List<L3NetworkInventory> nwinvs = api.listL3Network(null);
+        List<String> nws = new ArrayList<String>(nwinvs.size());
+        for (L3NetworkInventory nwinv : nwinvs) {
+            nws.add(nwinv.getUuid());
+        }
+
+        for (int i = 0; i < vmNum; i++) {
+            VmInstanceInventory vm = new VmInstanceInventory();
+            vm.setDescription("TestVm");
+            vm.setName("vm");
+            vm.setType(VmInstanceConstant.USER_VM_TYPE);
+            vm.setInstanceOfferingUuid(ioinv.getUuid());
+            vm.setImageUuid(iminv.getUuid());
+            createVm(vm, dinvs.get(0).getUuid(), nws, new ArrayList<String>());
+        }
+        latch.await(120, TimeUnit.MINUTES);
+
+        boolean origin = QueryGlobalProperty.BATCH_FETCH;
+        try {
+            QueryGlobalProperty.BATCH_FETCH = false;
+            List<VmInstanceInventory> plain = queryVm();
+            QueryGlobalProperty.BATCH_FETCH = true;
+            List<VmInstanceInventory> batched = queryVm();
+            Assert.assertEquals(plain.size(), batched.size());
+            for (int i=0; i<plain.size(); i++) {
+                VmInstanceInventory p = plain.get(i);
+                VmInstanceInventory b = batched.get(i);
+                Assert.assertEquals(p.getUuid(), b.getUuid());
+                Assert.assertEquals(p.getVmNics().size(), b.getVmNics().size());
+                Assert.assertEquals(p.getAllVolumes().size(), b.getAllVolumes().size());
+            }
+
+            long plainTime = benchmark(false);
+            long batchTime = benchmark(true);
+            logger.debug(String.format("avg query time of %s vms, plain: %s ms, batch fetch: %s ms", vmNum, plainTime, batchTime));
+        } finally {
+            QueryGlobalProperty.BATCH_FETCH = origin;
+        }
+    }
+}
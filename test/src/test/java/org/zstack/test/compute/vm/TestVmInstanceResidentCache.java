@@ -0,0 +1,83 @@
+package org.zstack.test.compute.vm;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.Platform;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.header.vm.*;
+import org.zstack.test.Api;
+import org.zstack.test.ApiSenderException;
+import org.zstack.test.DBUtil;
+import org.zstack.test.deployer.Deployer;
+
+/**
+ * 1. enable the resident VM cache
+ * 2. send messages to a VM so it's cached
+ * 3. update the VM and its nic through DatabaseFacade
+ *
+ * confirm the next message to the VM sees the updates
+ */
+public class TestVmInstanceResidentCache {
+    Deployer deployer;
+    Api api;
+    ComponentLoader loader;
+    DatabaseFacade dbf;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        // load global properties first, then override them for the test
+        Platform.getUuid();
+        System.setProperty("VmInstanceManager.residentVmNum", "100");
+
+        deployer = new Deployer("deployerXml/vm/TestCreateVm.xml");
+        deployer.build();
+        api = deployer.getApi();
+        loader = deployer.getComponentLoader();
+        dbf = loader.getComponent(DatabaseFacade.class);
+    }
+
+    private VmInstanceInventory updateDescription(String vmUuid, String description) throws ApiSenderException {
+        VmInstanceInventory inv = new VmInstanceInventory();
+        inv.setUuid(vmUuid);
+        inv.setDescription(description);
+        return api.updateVm(inv);
+    }
+
+    @Test
+    public void test() throws ApiSenderException {
+        VmInstanceInventory vm = deployer.vms.get("TestVm");
+        Assert.assertEquals(VmInstanceState.Running.toString(), vm.getState());
+        updateDescription(vm.getUuid(), "1");
+        updateDescription(vm.getUuid(), "2");
+
+        VmInstanceVO vo = dbf.findByUuid(vm.getUuid(), VmInstanceVO.class);
+        vo.setState(VmInstanceState.Stopped);
+        vo.setName("updated-by-dbf");
+        dbf.update(vo);
+
+        VmInstanceInventory inv = updateDescription(vm.getUuid(), "3");
+        Assert.assertEquals(VmInstanceState.Stopped.toString(), inv.getState());
+        Assert.assertEquals("updated-by-dbf", inv.getName());
+        Assert.assertEquals("3", inv.getDescription());
+        vo = dbf.findByUuid(vm.getUuid(), VmInstanceVO.class);
+        Assert.assertEquals(VmInstanceState.Stopped, vo.getState());
+        Assert.assertEquals("updated-by-dbf", vo.getName());
+
+        VmNicVO nic = vo.getVmNics().iterator().next();
+        nic.setMetaData("updated-by-dbf");
+        dbf.update(nic);
+
+        inv = updateDescription(vm.getUuid(), "4");
+        boolean found = false;
+        for (VmNicInventory n : inv.getVmNics()) {
+            if (n.getUuid().equals(nic.getUuid())) {
+                Assert.assertEquals("updated-by-dbf", n.getMetaData());
+                found = true;
+            }
+        }
+        Assert.assertTrue(found);
+    }
+}
@@ -0,0 +1,129 @@
+package org.zstack.test.compute.zone;
+
+import org.json.JSONArray;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.web.client.HttpServerErrorException;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.rest.RESTApiDecoder;
+import org.zstack.header.message.APIReply;
+import org.zstack.header.query.QueryCondition;
+import org.zstack.header.rest.RESTApiFacade;
+import org.zstack.header.rest.RESTConstant;
+import org.zstack.header.rest.RESTFacade;
+import org.zstack.header.zone.APICreateZoneMsg;
+import org.zstack.header.zone.APIQueryZoneMsg;
+import org.zstack.header.zone.APIQueryZoneReply;
+import org.zstack.header.zone.ZoneInventory;
+import org.zstack.test.Api;
+import org.zstack.test.DBUtil;
+import org.zstack.test.WebBeanConstructor;
+import org.zstack.test.deployer.Deployer;
+import org.zstack.utils.URLBuilder;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * 1. create 5 zones
+ * 2. stream query zones by http api with limit 2
+ *
+ * confirm 3 pages are returned and they have all zones
+ *
+ * 3. stream a non-query api
+ *
+ * confirm an http error is returned
+ *
+ * 4. fail the stream after the first page
+ *
+ * confirm the array is closed with a failed reply
+ */
+public class TestStreamQueryZoneByHttpApi {
+    CLogger logger = Utils.getLogger(TestStreamQueryZoneByHttpApi.class);
+    Deployer deployer;
+    Api api;
+    ComponentLoader loader;
+    RESTFacade restf;
+    RESTApiFacade restApi;
+    String url;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        WebBeanConstructor con = new WebBeanConstructor();
+        con.setPort(8080);
+        deployer = new Deployer("deployerXml/zone/TestQueryZone.xml", con);
+        deployer.addSpringConfig("RESTFacade.xml");
+        deployer.build();
+        api = deployer.getApi();
+        loader = deployer.getComponentLoader();
+        restf = loader.getComponent(RESTFacade.class);
+        restApi = loader.getComponent(RESTApiFacade.class);
+        url = URLBuilder.buildUrlFromBase("http://localhost:8080/", RESTConstant.REST_API_QUERY_STREAM);
+    }
+
+    private String queryBody() {
+        APIQueryZoneMsg msg = new APIQueryZoneMsg();
+        msg.setConditions(new ArrayList<QueryCondition>());
+        msg.setLimit(2);
+        msg.setSession(api.getAdminSession());
+        return RESTApiDecoder.dump(msg);
+    }
+
+    @Test
+    public void test() throws Exception {
+        String res = restf.getRESTTemplate().postForObject(url, queryBody(), String.class);
+        logger.debug(res);
+        JSONArray pages = new JSONArray(res);
+        Assert.assertEquals(3, pages.length());
+        Set<String> names = new HashSet<String>();
+        for (int i = 0; i < pages.length(); i++) {
+            APIQueryZoneReply reply = (APIQueryZoneReply) RESTApiDecoder.loads(pages.getJSONObject(i).toString());
+            Assert.assertTrue(reply.isSuccess());
+            Assert.assertTrue(reply.getInventories().size() <= 2);
+            for (ZoneInventory inv : reply.getInventories()) {
+                names.add(inv.getName());
+            }
+        }
+        Assert.assertEquals(5, names.size());
+
+        APICreateZoneMsg cmsg = new APICreateZoneMsg();
+        cmsg.setName("zone");
+        cmsg.setSession(api.getAdminSession());
+        boolean s = false;
+        try {
+            restf.getRESTTemplate().postForObject(url, RESTApiDecoder.dump(cmsg), String.class);
+        } catch (HttpServerErrorException e) {
+            s = true;
+        }
+        Assert.assertTrue(s);
+
+        // the response is committed once the first page is written, a later failure
+        // must still leave a well-formed array ending with the error
+        StringWriter out = new StringWriter() {
+            int pageCount = 0;
+
+            @Override
+            public void write(String str) {
+                if (str.contains(APIQueryZoneReply.class.getName()) && ++pageCount == 2) {
+                    throw new IllegalStateException("on purpose");
+                }
+                super.write(str);
+            }
+        };
+        restApi.streamQuery(queryBody(), out);
+        logger.debug(out.toString());
+        pages = new JSONArray(out.toString());
+        Assert.assertEquals(2, pages.length());
+        APIQueryZoneReply first = (APIQueryZoneReply) RESTApiDecoder.loads(pages.getJSONObject(0).toString());
+        Assert.assertTrue(first.isSuccess());
+        APIReply last = (APIReply) RESTApiDecoder.loads(pages.getJSONObject(1).toString());
+        Assert.assertFalse(last.isSuccess());
+        Assert.assertNotNull(last.getError());
+    }
+}
@@ -0,0 +1,129 @@
+package org.zstack.test.core.cloudbus;
+
+import junit.framework.Assert;
+import org.junit.Test;
+import org.zstack.core.cloudbus.BinaryMessageCodec;
+import org.zstack.header.exception.CloudRuntimeException;
+import org.zstack.header.message.NeedReplyMessage;
+import org.zstack.header.vm.VmInstanceInventory;
+import org.zstack.header.vm.VmNicInventory;
+
+import java.io.ByteArrayOutputStream;
+import java.sql.Timestamp;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * polymorphic fields, collections and dates survive the binary codec
+ */
+public class TestBinaryMessageCodec {
+    public static enum Color {
+        RED,
+        GREEN
+    }
+
+    public static class HelloWorldMsg extends NeedReplyMessage {
+        private Object payload;
+        private List<VmNicInventory> nics;
+        private Map<String, Object> opaque;
+        private Set<String> names;
+        private Timestamp date;
+        private Color color;
+        private int count;
+        private double ratio;
+    }
+
+    public static class UnsafeMsg extends NeedReplyMessage {
+        private Object payload;
+    }
+
+    @Test
+    public void test() {
+        VmInstanceInventory vm = new VmInstanceInventory();
+        vm.setUuid("vm");
+        vm.setMemorySize(1024L);
+        vm.setCpuNum(2);
+
+        List<VmNicInventory> nics = new ArrayList<VmNicInventory>();
+        for (int i=0; i<3; i++) {
+            VmNicInventory nic = new VmNicInventory();
+            nic.setUuid("nic" + i);
+            nic.setIp("10.0.0." + i);
+            nic.setDeviceId(i);
+            nics.add(nic);
+        }
+        vm.setVmNics(nics);
+
+        HelloWorldMsg msg = new HelloWorldMsg();
+        msg.setServiceId("hello");
+        msg.setTimeout(TimeUnit.SECONDS.toMillis(10));
+        msg.payload = vm;
+        msg.nics = nics;
+        msg.opaque = new HashMap<String, Object>();
+        msg.opaque.put("vm", vm);
+        msg.opaque.put("number", 10L);
+        msg.names = new HashSet<String>();
+        msg.names.add("a");
+        msg.date = new Timestamp(System.currentTimeMillis());
+        msg.date.setNanos(123456789);
+        msg.color = Color.GREEN;
+        msg.count = -5;
+        msg.ratio = 0.5;
+        msg.putHeaderEntry("noReply", "false");
+
+        BinaryMessageCodec codec = new BinaryMessageCodec();
+        HelloWorldMsg copy = (HelloWorldMsg) codec.decode(codec.encode(msg));
+
+        Assert.assertEquals(msg.getId(), copy.getId());
+        Assert.assertEquals(msg.getServiceId(), copy.getServiceId());
+        Assert.assertEquals(msg.getTimeout(), copy.getTimeout());
+        Assert.assertEquals("false", copy.getHeaderEntry("noReply"));
+
+        Assert.assertTrue(copy.payload instanceof VmInstanceInventory);
+        VmInstanceInventory cvm = (VmInstanceInventory) copy.payload;
+        Assert.assertEquals("vm", cvm.getUuid());
+        Assert.assertEquals(Long.valueOf(1024), cvm.getMemorySize());
+        Assert.assertEquals(3, cvm.getVmNics().size());
+        Assert.assertEquals("10.0.0.2", cvm.getVmNics().get(2).getIp());
+
+        Assert.assertEquals(3, copy.nics.size());
+        Assert.assertEquals("nic1", copy.nics.get(1).getUuid());
+        Assert.assertTrue(copy.opaque.get("vm") instanceof VmInstanceInventory);
+        Assert.assertEquals(10L, copy.opaque.get("number"));
+        Assert.assertTrue(copy.names instanceof HashSet);
+        Assert.assertTrue(copy.names.contains("a"));
+        Assert.assertEquals(msg.date, copy.date);
+        Assert.assertEquals(Color.GREEN, copy.color);
+        Assert.assertEquals(-5, copy.count);
+        Assert.assertEquals(0.5, copy.ratio);
+    }
+
+    @Test
+    public void testClassesOutsideWhitelist() throws Exception {
+        BinaryMessageCodec codec = new BinaryMessageCodec();
+
+        UnsafeMsg msg = new UnsafeMsg();
+        msg.payload = new StringBuilder("not allowed");
+        try {
+            codec.encode(msg);
+            Assert.fail("a JDK object not handled by the codec must not be encoded");
+        } catch (CloudRuntimeException e) {
+            // expected
+        }
+
+        // a forged message naming a JDK class: version, OBJECT tag, new class ref, class name
+        String name = PriorityQueue.class.getName();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        bos.write(1);
+        bos.write(15);
+        bos.write(0);
+        bos.write(name.length());
+        bos.write(name.getBytes("UTF-8"));
+        try {
+            codec.decode(bos.toByteArray());
+            Assert.fail("a class outside the whitelist must not be decoded");
+        } catch (CloudRuntimeException e) {
+            Assert.assertTrue(e.getMessage().contains("not allowed"));
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package org.zstack.test.core.cloudbus;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.cloudbus.EventCallback;
+import org.zstack.core.cloudbus.EventFacade;
+import org.zstack.core.cloudbus.EventFacadeImpl;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.test.BeanConstructor;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * a token matches exactly one segment; a trailing '*' matches the remaining segments;
+ * callbacks on unrelated paths are not called
+ */
+public class TestCanonicalEvent9 {
+    CLogger logger = Utils.getLogger(TestCanonicalEvent9.class);
+    ComponentLoader loader;
+    EventFacade evtf;
+    AtomicInteger tokenCount = new AtomicInteger(0);
+    AtomicInteger tailCount = new AtomicInteger(0);
+    AtomicInteger otherCount = new AtomicInteger(0);
+    String category;
+    String name;
+
+    @Before
+    public void setUp() throws Exception {
+        BeanConstructor con = new BeanConstructor();
+        loader = con.build();
+        evtf = loader.getComponent(EventFacade.class);
+        ((EventFacadeImpl)evtf).start();
+    }
+
+    @Test
+    public void test() throws InterruptedException {
+        evtf.on("/test/{category}/{name}", new EventCallback<Void>() {
+            @Override
+            public void run(Map<String, String> tokens, Void data) {
+                category = tokens.get("category");
+                name = tokens.get("name");
+                tokenCount.incrementAndGet();
+            }
+        });
+
+        evtf.on("/test/*", new Runnable() {
+            @Override
+            public void run() {
+                tailCount.incrementAndGet();
+            }
+        });
+
+        evtf.on("/other/event", new Runnable() {
+            @Override
+            public void run() {
+                otherCount.incrementAndGet();
+            }
+        });
+
+        evtf.fire("/test/vm/start", null);
+        evtf.fire("/test/vm/start/more", null);
+        evtf.fire("/test/vm", null);
+        TimeUnit.SECONDS.sleep(1);
+
+        Assert.assertEquals(1, tokenCount.get());
+        Assert.assertEquals("vm", category);
+        Assert.assertEquals("start", name);
+        Assert.assertEquals(3, tailCount.get());
+        Assert.assertEquals(0, otherCount.get());
+    }
+}
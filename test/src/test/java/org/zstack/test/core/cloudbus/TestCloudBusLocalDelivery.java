@@ -0,0 +1,133 @@
+package org.zstack.test.core.cloudbus;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.cloudbus.CloudBusCallBack;
+import org.zstack.core.cloudbus.CloudBusGlobalProperty;
+import org.zstack.core.cloudbus.CloudBusIN;
+import org.zstack.core.cloudbus.CloudBusImpl2;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.header.AbstractService;
+import org.zstack.header.Service;
+import org.zstack.header.message.Message;
+import org.zstack.header.message.MessageReply;
+import org.zstack.header.message.NeedReplyMessage;
+import org.zstack.test.BeanConstructor;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * messages sent to a queue owned by this management node are delivered
+ * without the broker, and the receiver gets a copy of the message;
+ * the message and its reply are both counted as local deliveries
+ */
+public class TestCloudBusLocalDelivery {
+    CLogger logger = Utils.getLogger(TestCloudBusLocalDelivery.class);
+    ComponentLoader loader;
+    CloudBusIN bus;
+    CountDownLatch latch = new CountDownLatch(1);
+    boolean isSuccess = false;
+    Message received;
+    Service serv;
+
+    public static class HelloWorldMsg extends NeedReplyMessage {
+        private String greet;
+
+        public String getGreet() {
+            return greet;
+        }
+
+        public void setGreet(String greet) {
+            this.greet = greet;
+        }
+    }
+
+    public static class HelloWorldReply extends MessageReply {
+        private String greet;
+
+        public String getGreet() {
+            return greet;
+        }
+
+        public void setGreet(String greet) {
+            this.greet = greet;
+        }
+    }
+
+    class FakeService extends AbstractService {
+        @Override
+        public boolean start() {
+            bus.registerService(this);
+            return true;
+        }
+
+        @Override
+        public boolean stop() {
+            bus.unregisterService(this);
+            return true;
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            if (msg.getClass() == HelloWorldMsg.class) {
+                received = msg;
+                HelloWorldMsg hmsg = (HelloWorldMsg)msg;
+                HelloWorldReply r = new HelloWorldReply();
+                r.setGreet(hmsg.getGreet());
+                bus.reply(msg, r);
+            }
+        }
+
+        @Override
+        public String getId() {
+            return bus.makeLocalServiceId(this.getClass().getCanonicalName());
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        CloudBusGlobalProperty.LOCAL_DELIVERY = true;
+        BeanConstructor con = new BeanConstructor();
+        loader = con.build();
+        bus = loader.getComponent(CloudBusIN.class);
+        serv = new FakeService();
+        serv.start();
+    }
+
+    @After
+    public void tearDown() {
+        serv.stop();
+        CloudBusGlobalProperty.LOCAL_DELIVERY = false;
+    }
+
+    @Test
+    public void test() throws InterruptedException, ClassNotFoundException {
+        CloudBusImpl2 busImpl = (CloudBusImpl2) bus;
+        long localDeliveryCount = busImpl.getLocalDeliveryCount();
+        final HelloWorldMsg msg = new HelloWorldMsg();
+        msg.setGreet("Hello");
+        msg.setServiceId(serv.getId());
+        msg.setTimeout(TimeUnit.SECONDS.toMillis(10));
+        bus.send(msg, new CloudBusCallBack() {
+            @Override
+            public void run(MessageReply reply) {
+                if (reply instanceof HelloWorldReply) {
+                    HelloWorldReply hr = (HelloWorldReply)reply;
+                    if ("Hello".equals(hr.getGreet()) && received != null && received != msg) {
+                        isSuccess = true;
+                    }
+                }
+                latch.countDown();
+            }
+        });
+        latch.await(15, TimeUnit.SECONDS);
+        Assert.assertEquals(true, isSuccess);
+        // only the local path counts, with the broker the count doesn't move
+        Assert.assertTrue(busImpl.getLocalDeliveryCount() - localDeliveryCount >= 2);
+    }
+}
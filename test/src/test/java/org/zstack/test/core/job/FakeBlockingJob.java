@@ -0,0 +1,26 @@
+package org.zstack.test.core.job;
+
+import org.springframework.beans.factory.annotation.Autowire;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Configurable;
+import org.zstack.core.job.Job;
+import org.zstack.header.core.ReturnValueCompletion;
+
+import java.util.concurrent.TimeUnit;
+
+@Configurable(preConstruction = true, autowire = Autowire.BY_TYPE)
+public class FakeBlockingJob implements Job {
+    @Autowired
+    private FakeJobConfig fl;
+
+    @Override
+    public void run(ReturnValueCompletion<Object> complete) {
+        try {
+            fl.blockingLatch.await(60, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            complete.success(null);
+        }
+    }
+}
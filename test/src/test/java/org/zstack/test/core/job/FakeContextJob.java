@@ -0,0 +1,64 @@
+package org.zstack.test.core.job;
+
+import org.springframework.beans.factory.annotation.Autowire;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Configurable;
+import org.zstack.core.job.Job;
+import org.zstack.core.job.JobContext;
+import org.zstack.header.core.ReturnValueCompletion;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.Map;
+
+@Configurable(preConstruction = true, autowire = Autowire.BY_TYPE)
+public class FakeContextJob implements Job {
+    public static abstract class Value implements Serializable {
+    }
+
+    public static class IntValue extends Value {
+        int value;
+
+        IntValue() {
+        }
+
+        IntValue(int value) {
+            this.value = value;
+        }
+    }
+
+    public static class StringValue extends Value {
+        String value;
+
+        StringValue() {
+        }
+
+        StringValue(String value) {
+            this.value = value;
+        }
+    }
+
+    @JobContext
+    String name;
+    @JobContext
+    List<Value> values;
+    @JobContext
+    Object payload;
+    @Autowired
+    private FakeJobConfig fl;
+
+    private FakeContextJob() {
+    }
+
+    public FakeContextJob(String name, List<Value> values, Map<String, Value> payload) {
+        this.name = name;
+        this.values = values;
+        this.payload = payload;
+    }
+
+    @Override
+    public void run(ReturnValueCompletion<Object> complete) {
+        fl.contextJobs.add(this);
+        complete.success(null);
+    }
+}
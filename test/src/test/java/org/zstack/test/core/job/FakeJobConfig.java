@@ -1,7 +1,9 @@
 package org.zstack.test.core.job;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
 public class FakeJobConfig {
     List<Long> indexs = new ArrayList<Long>();
@@ -9,4 +11,6 @@ public class FakeJobConfig {
     boolean success;
     volatile int jdbRepeatNum;
     volatile boolean condition = false;
+    List<FakeContextJob> contextJobs = Collections.synchronizedList(new ArrayList<FakeContextJob>());
+    CountDownLatch blockingLatch = new CountDownLatch(1);
 }
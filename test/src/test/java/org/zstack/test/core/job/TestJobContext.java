@@ -0,0 +1,165 @@
+package org.zstack.test.core.job;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.Platform;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.db.SimpleQuery;
+import org.zstack.core.job.*;
+import org.zstack.header.managementnode.ManagementNodeChangeListener;
+import org.zstack.test.Api;
+import org.zstack.test.BeanConstructor;
+import org.zstack.test.DBUtil;
+import org.zstack.test.core.job.FakeContextJob.IntValue;
+import org.zstack.test.core.job.FakeContextJob.StringValue;
+import org.zstack.test.core.job.FakeContextJob.Value;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 1. run jobs whose contexts hold subclasses in a list and a map in an Object field,
+ * with contexts in the legacy format and in the JSON format
+ *
+ * confirm the jobs get values of the classes they were saved with
+ *
+ * 2. queue jobs of both formats behind a blocking job, move them to orphan queues
+ * 3. let several threads take over the orphan queues at the same time
+ *
+ * confirm every job runs exactly once
+ */
+public class TestJobContext {
+    ComponentLoader loader;
+    JobQueueFacade jobf;
+    DatabaseFacade dbf;
+    FakeJobConfig fl;
+    int orphanQueueNum = 8;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        BeanConstructor con = new BeanConstructor();
+        loader = con.addXml("JobForUnitTest.xml").addXml("PortalForUnitTest.xml").addXml("AccountManager.xml").build();
+        jobf = loader.getComponent(JobQueueFacade.class);
+        dbf = loader.getComponent(DatabaseFacade.class);
+        fl = loader.getComponent(FakeJobConfig.class);
+        new Api().startServer();
+    }
+
+    @After
+    public void tearDown() {
+        JobGlobalProperty.JOB_CONTEXT_JSON = false;
+        fl.blockingLatch.countDown();
+    }
+
+    private FakeContextJob newJob(String name, int index) {
+        List<Value> values = new ArrayList<Value>();
+        values.add(new IntValue(index));
+        values.add(new StringValue(name));
+        Map<String, Value> payload = new HashMap<String, Value>();
+        payload.put(name, new IntValue(index));
+        return new FakeContextJob(name, values, payload);
+    }
+
+    private void checkJob(FakeContextJob job) {
+        Assert.assertEquals(2, job.values.size());
+        Assert.assertEquals(IntValue.class, job.values.get(0).getClass());
+        Assert.assertEquals(StringValue.class, job.values.get(1).getClass());
+        Assert.assertEquals(job.name, ((StringValue) job.values.get(1)).value);
+        Assert.assertTrue(job.payload instanceof Map);
+        Object v = ((Map) job.payload).get(job.name);
+        Assert.assertEquals(IntValue.class, v.getClass());
+        Assert.assertEquals(((IntValue) job.values.get(0)).value, ((IntValue) v).value);
+    }
+
+    private void waitForJobs(int num) throws InterruptedException {
+        for (int i = 0; i < 30 && fl.contextJobs.size() < num; i++) {
+            TimeUnit.SECONDS.sleep(1);
+        }
+        // give duplicated runs a chance to show up
+        TimeUnit.SECONDS.sleep(2);
+        Assert.assertEquals(num, fl.contextJobs.size());
+    }
+
+    private static boolean isJsonContext(byte[] context) {
+        return context[0] == 'Z' && context[1] == 'J' && context[2] == 'C';
+    }
+
+    @Test
+    public void test() throws InterruptedException {
+        JobGlobalProperty.JOB_CONTEXT_JSON = false;
+        jobf.execute("legacy-job", "TestJobContext", newJob("legacy", 1));
+        JobGlobalProperty.JOB_CONTEXT_JSON = true;
+        jobf.execute("json-job", "TestJobContext", newJob("json", 2));
+        waitForJobs(2);
+        for (FakeContextJob job : fl.contextJobs) {
+            checkJob(job);
+        }
+        fl.contextJobs.clear();
+
+        jobf.execute("blocked-queue", "TestJobContext", new FakeBlockingJob());
+        int jobNum = orphanQueueNum * 2;
+        for (int i = 0; i < jobNum; i++) {
+            JobGlobalProperty.JOB_CONTEXT_JSON = i % 2 == 0;
+            jobf.execute("blocked-queue", "TestJobContext", newJob("orphan-" + i, i));
+        }
+
+        SimpleQuery<JobQueueEntryVO> q = dbf.createQuery(JobQueueEntryVO.class);
+        q.add(JobQueueEntryVO_.name, SimpleQuery.Op.EQ, FakeContextJob.class.getName());
+        q.add(JobQueueEntryVO_.state, SimpleQuery.Op.EQ, JobState.Pending);
+        q.orderBy(JobQueueEntryVO_.id, SimpleQuery.Od.ASC);
+        List<JobQueueEntryVO> entries = q.list();
+        Assert.assertEquals(jobNum, entries.size());
+
+        // the queues of a left node have no worker, their jobs were issued by a node still alive
+        List<JobQueueVO> orphans = new ArrayList<JobQueueVO>();
+        for (int i = 0; i < orphanQueueNum; i++) {
+            JobQueueVO qvo = new JobQueueVO();
+            qvo.setName("orphan-queue-" + i);
+            qvo.setOwner("TestJobContext");
+            orphans.add(dbf.persistAndRefresh(qvo));
+        }
+
+        for (int i = 0; i < entries.size(); i++) {
+            JobQueueEntryVO e = entries.get(i);
+            Assert.assertEquals(i % 2 == 0, isJsonContext(e.getContext()));
+            e.setJobQueueId(orphans.get(i / 2).getId());
+            dbf.update(e);
+        }
+
+        final ManagementNodeChangeListener listener = (ManagementNodeChangeListener) jobf;
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 4; i++) {
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        listener.nodeLeft(Platform.getUuid());
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            t.start();
+            threads.add(t);
+        }
+        start.countDown();
+        for (Thread t : threads) {
+            t.join(TimeUnit.SECONDS.toMillis(60));
+        }
+
+        waitForJobs(jobNum);
+        Set<String> names = new HashSet<String>();
+        for (FakeContextJob job : fl.contextJobs) {
+            checkJob(job);
+            names.add(job.name);
+        }
+        Assert.assertEquals(jobNum, names.size());
+    }
+}
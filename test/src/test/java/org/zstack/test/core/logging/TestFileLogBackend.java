@@ -0,0 +1,209 @@
+package org.zstack.test.core.logging;
+
+import junit.framework.Assert;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.Platform;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.logging.*;
+import org.zstack.test.BeanConstructor;
+import org.zstack.test.DBUtil;
+import org.zstack.utils.path.PathUtil;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 1. read logs before the backend is started
+ *
+ * confirm no file is created
+ *
+ * 2. write logs of two resources over several segments
+ *
+ * confirm logs of each resource are read in order with their type and level
+ *
+ * 3. stop the backend and read the logs with a new backend
+ *
+ * confirm the same logs are read and no segment is created by reading
+ *
+ * 4. start the backend on a segment holding both expired and live logs
+ *
+ * confirm the segment is compacted to the live logs
+ */
+public class TestFileLogBackend {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    ComponentLoader loader;
+    FileLogBackend backend;
+    File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        // load global properties first, then override them for the test
+        Platform.getUuid();
+        LogGlobalProperty.FILE_BACKEND_DIR = "TestFileLogBackend";
+        LogGlobalProperty.FILE_BACKEND_SEGMENT_SIZE = 4096;
+        LogGlobalProperty.FILE_BACKEND_RETENTION_DAYS = 30;
+        LogGlobalProperty.FILE_BACKEND_MAINTENANCE_INTERVAL = 1;
+        dir = new File(PathUtil.join(PathUtil.getZStackHomeFolder(), LogGlobalProperty.FILE_BACKEND_DIR));
+        FileUtils.deleteDirectory(dir);
+
+        BeanConstructor con = new BeanConstructor();
+        loader = con.addXml("PortalForUnitTest.xml").build();
+        backend = loader.getComponent(FileLogBackend.class);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        backend.stop();
+        TimeUnit.SECONDS.sleep(1);
+        FileUtils.deleteDirectory(dir);
+    }
+
+    private static List<LogVO> read(LogBackend bkd, String resourceUuid) {
+        final List<LogVO> ret = new ArrayList<LogVO>();
+        bkd.read(resourceUuid, new LogVisitor() {
+            @Override
+            public boolean visit(LogVO log) {
+                ret.add(log);
+                return true;
+            }
+        });
+        return ret;
+    }
+
+    private List<LogVO> waitForLogs(String resourceUuid, int num) throws InterruptedException {
+        List<LogVO> logs = null;
+        for (int i = 0; i < 30; i++) {
+            logs = read(backend, resourceUuid);
+            if (logs.size() == num) {
+                return logs;
+            }
+            TimeUnit.MILLISECONDS.sleep(500);
+        }
+
+        Assert.fail(String.format("expected %s logs of resource[uuid:%s], but got %s", num, resourceUuid, logs.size()));
+        return null;
+    }
+
+    private int segmentNum() {
+        String[] names = dir.list();
+        int num = 0;
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith("segment-")) {
+                    num ++;
+                }
+            }
+        }
+        return num;
+    }
+
+    private static LogLevel levelOf(int i) {
+        return LogLevel.values()[i % LogLevel.values().length];
+    }
+
+    private static LogType typeOf(int i) {
+        return i % 2 == 0 ? LogType.Text : LogType.Json;
+    }
+
+    private void checkLogs(List<LogVO> logs, String resourceUuid) {
+        for (int i = 0; i < logs.size(); i++) {
+            LogVO log = logs.get(i);
+            Assert.assertEquals(resourceUuid, log.getResourceUuid());
+            Assert.assertEquals(resourceUuid + "-" + i, log.getContent());
+            Assert.assertEquals(levelOf(i), log.getLevel());
+            Assert.assertEquals(typeOf(i), log.getType());
+        }
+    }
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        String uuid1 = Platform.getUuid();
+        String uuid2 = Platform.getUuid();
+
+        Assert.assertTrue(read(new FileLogBackend(), uuid1).isEmpty());
+        Assert.assertFalse(dir.exists());
+
+        backend.start();
+        int num = 100;
+        for (int i = 0; i < num; i++) {
+            for (String uuid : new String[]{uuid1, uuid2}) {
+                LogVO vo = new LogVO();
+                vo.setResourceUuid(uuid);
+                vo.setContent(uuid + "-" + i);
+                vo.setLevel(levelOf(i));
+                vo.setType(typeOf(i));
+                backend.write(vo);
+            }
+        }
+
+        checkLogs(waitForLogs(uuid1, num), uuid1);
+        checkLogs(waitForLogs(uuid2, num), uuid2);
+        Assert.assertTrue(segmentNum() > 1);
+
+        backend.stop();
+        TimeUnit.SECONDS.sleep(1);
+        int segments = segmentNum();
+
+        FileLogBackend reopened = new FileLogBackend();
+        List<LogVO> logs = read(reopened, uuid1);
+        Assert.assertEquals(num, logs.size());
+        checkLogs(logs, uuid1);
+        Assert.assertEquals(segments, segmentNum());
+    }
+
+    private static byte[] record(long time, LogType type, LogLevel level, String uuid, String content) {
+        byte[] u = uuid.getBytes(UTF8);
+        byte[] c = content.getBytes(UTF8);
+        ByteBuffer buf = ByteBuffer.allocate(4 + 8 + 1 + 1 + 2 + u.length + 4 + c.length);
+        buf.putInt(buf.capacity() - 4);
+        buf.putLong(time);
+        buf.put((byte) type.getCode());
+        buf.put((byte) level.getCode());
+        buf.putShort((short) u.length);
+        buf.put(u);
+        buf.putInt(c.length);
+        buf.put(c);
+        return buf.array();
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        String uuid1 = Platform.getUuid();
+        String uuid2 = Platform.getUuid();
+        long now = System.currentTimeMillis();
+        long expired = now - TimeUnit.DAYS.toMillis(LogGlobalProperty.FILE_BACKEND_RETENTION_DAYS + 10);
+
+        // a sealed segment written by a previous run
+        Assert.assertTrue(dir.mkdirs());
+        FileOutputStream out = new FileOutputStream(new File(dir, "segment-1.log"));
+        try {
+            out.write(record(expired, LogType.Text, LogLevel.Info, uuid1, "expired"));
+            out.write(record(expired, LogType.Text, LogLevel.Warn, uuid2, "expired"));
+            out.write(record(now, LogType.Json, LogLevel.Error, uuid1, "live"));
+        } finally {
+            out.close();
+        }
+
+        backend.start();
+        List<LogVO> logs = waitForLogs(uuid1, 1);
+        Assert.assertEquals("live", logs.get(0).getContent());
+        Assert.assertEquals(LogType.Json, logs.get(0).getType());
+        Assert.assertEquals(LogLevel.Error, logs.get(0).getLevel());
+        waitForLogs(uuid2, 0);
+        Assert.assertFalse(new File(dir, "segment-1.log.compact").exists());
+
+        logs = read(new FileLogBackend(), uuid1);
+        Assert.assertEquals(1, logs.size());
+        Assert.assertEquals("live", logs.get(0).getContent());
+        Assert.assertTrue(read(new FileLogBackend(), uuid2).isEmpty());
+    }
+}
@@ -0,0 +1,118 @@
+package org.zstack.test.core.thread;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.thread.*;
+import org.zstack.test.BeanConstructor;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * sync level is honored per signature and chain tasks keep their order
+ * with ThreadFacade.dispatchQueue = concurrent
+ */
+public class TestConcurrentDispatchQueue {
+    CLogger logger = Utils.getLogger(TestConcurrentDispatchQueue.class);
+    ComponentLoader loader;
+    ThreadFacade thdf;
+    int signatureNum = 100;
+    int taskNumPerSignature = 100;
+    int syncLevel = 3;
+    CountDownLatch syncLatch = new CountDownLatch(signatureNum * taskNumPerSignature);
+    CountDownLatch chainLatch = new CountDownLatch(signatureNum * taskNumPerSignature);
+    AtomicInteger[] running = new AtomicInteger[signatureNum];
+    volatile boolean syncLevelBroken = false;
+    List<List<Integer>> chainResults = new ArrayList<List<Integer>>();
+
+    @Before
+    public void setUp() throws Exception {
+        ThreadGlobalProperty.DISPATCH_QUEUE = "concurrent";
+        BeanConstructor con = new BeanConstructor();
+        loader = con.build();
+        thdf = loader.getComponent(ThreadFacade.class);
+
+        for (int i=0; i<signatureNum; i++) {
+            running[i] = new AtomicInteger(0);
+            chainResults.add(Collections.synchronizedList(new ArrayList<Integer>()));
+        }
+    }
+
+    @Test
+    public void test() throws InterruptedException {
+        for (int i=0; i<taskNumPerSignature; i++) {
+            for (int j=0; j<signatureNum; j++) {
+                final int sig = j;
+                final int index = i;
+                thdf.syncSubmit(new SyncTask<Void>() {
+                    @Override
+                    public String getSyncSignature() {
+                        return "sync-" + sig;
+                    }
+
+                    @Override
+                    public int getSyncLevel() {
+                        return syncLevel;
+                    }
+
+                    @Override
+                    public String getName() {
+                        return getSyncSignature();
+                    }
+
+                    @Override
+                    public Void call() throws Exception {
+                        if (running[sig].incrementAndGet() > syncLevel) {
+                            syncLevelBroken = true;
+                        }
+                        TimeUnit.MILLISECONDS.sleep(1);
+                        running[sig].decrementAndGet();
+                        syncLatch.countDown();
+                        return null;
+                    }
+                });
+
+                thdf.chainSubmit(new ChainTask() {
+                    @Override
+                    public String getSyncSignature() {
+                        return "chain-" + sig;
+                    }
+
+                    @Override
+                    public void run(SyncTaskChain chain) {
+                        chainResults.get(sig).add(index);
+                        chainLatch.countDown();
+                        chain.next();
+                    }
+
+                    @Override
+                    public String getName() {
+                        return getSyncSignature();
+                    }
+                });
+            }
+        }
+
+        Assert.assertTrue(syncLatch.await(2, TimeUnit.MINUTES));
+        Assert.assertTrue(chainLatch.await(2, TimeUnit.MINUTES));
+        Assert.assertFalse(syncLevelBroken);
+        for (List<Integer> res : chainResults) {
+            Assert.assertEquals(taskNumPerSignature, res.size());
+            int si = -1;
+            for (Integer index : res) {
+                Assert.assertTrue(index > si);
+                si = index;
+            }
+        }
+
+        ThreadGlobalProperty.DISPATCH_QUEUE = "default";
+    }
+}
@@ -0,0 +1,60 @@
+package org.zstack.test.core.thread;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.thread.Task;
+import org.zstack.core.thread.ThreadFacade;
+import org.zstack.core.thread.ThreadGlobalProperty;
+import org.zstack.test.BeanConstructor;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * in elastic mode, more blocking tasks than ThreadFacade.maxThreadNum
+ * run at the same time
+ */
+public class TestThreadFacadeElasticMode {
+    CLogger logger = Utils.getLogger(TestThreadFacadeElasticMode.class);
+    ComponentLoader loader;
+    ThreadFacade thdf;
+    int taskNum = 300;
+    CountDownLatch started = new CountDownLatch(taskNum);
+    CountDownLatch release = new CountDownLatch(1);
+
+    @Before
+    public void setUp() throws Exception {
+        ThreadGlobalProperty.EXECUTION_MODE = "elastic";
+        BeanConstructor con = new BeanConstructor();
+        loader = con.build();
+        thdf = loader.getComponent(ThreadFacade.class);
+    }
+
+    @Test
+    public void test() throws InterruptedException {
+        for (int i=0; i<taskNum; i++) {
+            thdf.submit(new Task<Void>() {
+                @Override
+                public String getName() {
+                    return "elastic-test";
+                }
+
+                @Override
+                public Void call() throws Exception {
+                    started.countDown();
+                    release.await(60, TimeUnit.SECONDS);
+                    return null;
+                }
+            });
+        }
+
+        boolean allStarted = started.await(30, TimeUnit.SECONDS);
+        release.countDown();
+        ThreadGlobalProperty.EXECUTION_MODE = "fixed";
+        Assert.assertTrue(allStarted);
+    }
+}
@@ -0,0 +1,103 @@
+package org.zstack.test.core.thread;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.thread.PeriodicTask;
+import org.zstack.core.thread.ThreadFacade;
+import org.zstack.core.thread.ThreadFacadeImpl.TimeoutTaskReceipt;
+import org.zstack.core.thread.ThreadGlobalProperty;
+import org.zstack.test.BeanConstructor;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * with ThreadFacade.timer = timingWheel, cancelled timeout tasks never run,
+ * the others run once, and periodic tasks keep running until cancelled
+ */
+public class TestTimingWheel {
+    CLogger logger = Utils.getLogger(TestTimingWheel.class);
+    ComponentLoader loader;
+    ThreadFacade thdf;
+    int taskNum = 10000;
+    AtomicInteger cancelledRun = new AtomicInteger(0);
+    CountDownLatch latch = new CountDownLatch(taskNum / 2);
+
+    @Before
+    public void setUp() throws Exception {
+        ThreadGlobalProperty.TIMER = "timingWheel";
+        BeanConstructor con = new BeanConstructor();
+        loader = con.build();
+        thdf = loader.getComponent(ThreadFacade.class);
+    }
+
+    @Test
+    public void test() throws InterruptedException {
+        List<TimeoutTaskReceipt> toCancel = new ArrayList<TimeoutTaskReceipt>();
+        for (int i=0; i<taskNum; i++) {
+            if (i % 2 == 0) {
+                toCancel.add(thdf.submitTimeoutTask(new Runnable() {
+                    @Override
+                    public void run() {
+                        cancelledRun.incrementAndGet();
+                    }
+                }, TimeUnit.MILLISECONDS, 500));
+            } else {
+                thdf.submitTimeoutTask(new Runnable() {
+                    @Override
+                    public void run() {
+                        latch.countDown();
+                    }
+                }, TimeUnit.MILLISECONDS, i % 1000);
+            }
+        }
+
+        for (TimeoutTaskReceipt r : toCancel) {
+            Assert.assertTrue(r.cancel());
+        }
+
+        final AtomicInteger periodicRun = new AtomicInteger(0);
+        Future<Void> f = thdf.submitPeriodicTask(new PeriodicTask() {
+            @Override
+            public TimeUnit getTimeUnit() {
+                return TimeUnit.MILLISECONDS;
+            }
+
+            @Override
+            public long getInterval() {
+                return 100;
+            }
+
+            @Override
+            public String getName() {
+                return "timing-wheel-test";
+            }
+
+            @Override
+            public void run() {
+                periodicRun.incrementAndGet();
+            }
+        });
+
+        boolean allRun = latch.await(30, TimeUnit.SECONDS);
+        TimeUnit.SECONDS.sleep(1);
+        f.cancel(true);
+        int runs = periodicRun.get();
+        TimeUnit.MILLISECONDS.sleep(500);
+        ThreadGlobalProperty.TIMER = "timerPool";
+
+        Assert.assertTrue(allRun);
+        Assert.assertEquals(0, cancelledRun.get());
+        Assert.assertTrue(String.format("periodic task only ran %s times", runs), runs >= 5);
+        // at most one run was already on the way when cancelling
+        Assert.assertTrue(periodicRun.get() <= runs + 1);
+    }
+}
@@ -0,0 +1,225 @@
+package org.zstack.test.core.workflow;
+
+import junit.framework.Assert;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.Platform;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.db.SimpleQuery;
+import org.zstack.core.db.SimpleQuery.Op;
+import org.zstack.core.workflow.*;
+import org.zstack.header.Component;
+import org.zstack.header.exception.CloudRuntimeException;
+import org.zstack.test.BeanConstructor;
+import org.zstack.test.DBUtil;
+import org.zstack.utils.path.PathUtil;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * use the journal mode of WorkFlowStore
+ *
+ * 1. change one flow of a checkpointed chain and checkpoint again
+ *
+ * confirm only that flow row is updated, rows of other flows are kept
+ *
+ * 2. keep the journal of changes to two chains, then put the database back to before
+ * the changes for one chain and change the other as another node would
+ * 3. replay the journal
+ *
+ * confirm the first chain is replayed and the second one is left alone
+ *
+ * 4. stop the store while threads are appending
+ *
+ * confirm no appender hangs and appends after stop are rejected
+ */
+public class TestWorkFlowJournal {
+    ComponentLoader loader;
+    DatabaseFacade dbf;
+    WorkFlowStore store;
+    Component component;
+    File dir;
+    File backup;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        // load global properties first, then override them for the test
+        Platform.getUuid();
+        WorkFlowGlobalProperty.PERSISTENCE_MODE = WorkFlowStore.JOURNAL_MODE;
+        WorkFlowGlobalProperty.JOURNAL_DIR = "TestWorkFlowJournal";
+        // checkpoints are driven by stop() of the test
+        WorkFlowGlobalProperty.JOURNAL_CHECKPOINT_INTERVAL = 3600;
+        dir = new File(PathUtil.getFolderUnderZStackHomeFolder(WorkFlowGlobalProperty.JOURNAL_DIR));
+        backup = new File(System.getProperty("java.io.tmpdir"), "TestWorkFlowJournal-backup");
+        FileUtils.deleteDirectory(dir);
+        FileUtils.deleteDirectory(backup);
+
+        BeanConstructor con = new BeanConstructor();
+        loader = con.addXml("PortalForUnitTest.xml").build();
+        dbf = loader.getComponent(DatabaseFacade.class);
+        store = loader.getComponent(WorkFlowStore.class);
+        component = (Component) store;
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        WorkFlowGlobalProperty.PERSISTENCE_MODE = WorkFlowStore.DATABASE_MODE;
+        FileUtils.deleteDirectory(dir);
+        FileUtils.deleteDirectory(backup);
+    }
+
+    private WorkFlowChainVO persistChain(String name) {
+        WorkFlowChainVO vo = new WorkFlowChainVO();
+        vo.setUuid(Platform.getUuid());
+        vo.setName(name);
+        vo.setOwner(TestWorkFlowJournal.class.getSimpleName());
+        vo.setState(WorkFlowChainState.Processing);
+        vo.setTotalWorkFlows(3);
+        vo.setCurrentPosition(0);
+        return store.persistChain(vo);
+    }
+
+    private WorkFlowVO updateFlow(String chainUuid, int position, WorkFlowState state) {
+        WorkFlowVO vo = new WorkFlowVO();
+        vo.setChainUuid(chainUuid);
+        vo.setName("flow-" + position);
+        vo.setPosition(position);
+        vo.setState(state);
+        vo.setContext(new byte[]{(byte) position});
+        return store.updateFlow(vo);
+    }
+
+    private Map<Integer, WorkFlowVO> flowsInDb(String chainUuid) {
+        SimpleQuery<WorkFlowVO> q = dbf.createQuery(WorkFlowVO.class);
+        q.add(WorkFlowVO_.chainUuid, Op.EQ, chainUuid);
+        Map<Integer, WorkFlowVO> ret = new HashMap<Integer, WorkFlowVO>();
+        for (WorkFlowVO vo : q.list()) {
+            Assert.assertFalse(ret.containsKey(vo.getPosition()));
+            ret.put(vo.getPosition(), vo);
+        }
+        return ret;
+    }
+
+    @Test
+    public void testCheckpoint() {
+        component.start();
+        WorkFlowChainVO chain = persistChain("checkpoint");
+        updateFlow(chain.getUuid(), 0, WorkFlowState.Done);
+        updateFlow(chain.getUuid(), 1, WorkFlowState.Done);
+        updateFlow(chain.getUuid(), 2, WorkFlowState.Processing);
+        component.stop();
+
+        Map<Integer, WorkFlowVO> before = flowsInDb(chain.getUuid());
+        Assert.assertEquals(3, before.size());
+
+        component.start();
+        updateFlow(chain.getUuid(), 2, WorkFlowState.Done);
+        component.stop();
+
+        Map<Integer, WorkFlowVO> after = flowsInDb(chain.getUuid());
+        Assert.assertEquals(3, after.size());
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(before.get(i).getId(), after.get(i).getId());
+            Assert.assertEquals(WorkFlowState.Done, after.get(i).getState());
+        }
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        component.start();
+        WorkFlowChainVO chain1 = persistChain("replayed");
+        WorkFlowChainVO chain2 = persistChain("carried-on-by-others");
+        updateFlow(chain1.getUuid(), 0, WorkFlowState.Processing);
+        updateFlow(chain2.getUuid(), 0, WorkFlowState.Processing);
+        component.stop();
+
+        component.start();
+        for (WorkFlowChainVO c : new WorkFlowChainVO[]{chain1, chain2}) {
+            updateFlow(c.getUuid(), 0, WorkFlowState.Done);
+            c.setCurrentPosition(1);
+            store.updateChain(c);
+        }
+        // records are on disk once the calls return, this is what a crash would leave
+        FileUtils.copyDirectory(dir, backup);
+        component.stop();
+
+        // chain1 as the database had it before the crash
+        WorkFlowChainVO vo1 = dbf.findByUuid(chain1.getUuid(), WorkFlowChainVO.class);
+        vo1.setCurrentPosition(0);
+        dbf.update(vo1);
+        WorkFlowVO flow1 = flowsInDb(chain1.getUuid()).get(0);
+        flow1.setState(WorkFlowState.Processing);
+        dbf.update(flow1);
+
+        // chain2 carried on by another node while this one was down
+        WorkFlowChainVO vo2 = dbf.findByUuid(chain2.getUuid(), WorkFlowChainVO.class);
+        vo2.setState(WorkFlowChainState.ProcessFailed);
+        vo2.setReason("carried on by another node");
+        dbf.update(vo2);
+
+        FileUtils.copyDirectory(backup, dir);
+        component.start();
+        component.stop();
+
+        vo1 = dbf.findByUuid(chain1.getUuid(), WorkFlowChainVO.class);
+        Assert.assertEquals(1, vo1.getCurrentPosition());
+        Assert.assertEquals(WorkFlowState.Done, flowsInDb(chain1.getUuid()).get(0).getState());
+
+        vo2 = dbf.findByUuid(chain2.getUuid(), WorkFlowChainVO.class);
+        Assert.assertEquals(WorkFlowChainState.ProcessFailed, vo2.getState());
+        Assert.assertEquals("carried on by another node", vo2.getReason());
+    }
+
+    @Test
+    public void testStop() throws Exception {
+        component.start();
+        final WorkFlowChainVO chain = persistChain("stop");
+        final AtomicInteger rejected = new AtomicInteger(0);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 8; i++) {
+            final int position = i;
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(60);
+                    while (System.currentTimeMillis() < deadline) {
+                        try {
+                            updateFlow(chain.getUuid(), position, WorkFlowState.Processing);
+                        } catch (CloudRuntimeException e) {
+                            rejected.incrementAndGet();
+                            return;
+                        }
+                    }
+                }
+            });
+            t.start();
+            threads.add(t);
+        }
+
+        TimeUnit.MILLISECONDS.sleep(500);
+        component.stop();
+        for (Thread t : threads) {
+            t.join(TimeUnit.SECONDS.toMillis(30));
+            Assert.assertFalse(t.isAlive());
+        }
+        Assert.assertEquals(threads.size(), rejected.get());
+
+        boolean s = false;
+        try {
+            updateFlow(chain.getUuid(), 0, WorkFlowState.Done);
+        } catch (CloudRuntimeException e) {
+            s = true;
+        }
+        Assert.assertTrue(s);
+    }
+}
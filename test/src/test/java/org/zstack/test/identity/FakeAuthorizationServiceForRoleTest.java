@@ -36,6 +36,8 @@ public class FakeAuthorizationServiceForRoleTest extends AbstractService {
             bus.publish(evt);
         } else if (msg instanceof FakePolicyAllowHas2RoleMsg) {
             bus.publish(evt);
+        } else if (msg instanceof FakePolicyActionMsg) {
+            bus.publish(evt);
         } else {
             bus.dealWithUnknownMessage(msg);
         }
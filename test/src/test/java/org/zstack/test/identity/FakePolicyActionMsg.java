@@ -0,0 +1,11 @@
+package org.zstack.test.identity;
+
+import org.zstack.header.configuration.NoPython;
+import org.zstack.header.identity.Action;
+import org.zstack.header.message.APIMessage;
+
+@Action(category = "test", names = {"read"})
+@NoPython
+public class FakePolicyActionMsg extends APIMessage {
+
+}
@@ -0,0 +1,148 @@
+package org.zstack.test.identity;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.header.apimediator.ApiMediatorConstant;
+import org.zstack.header.identity.AccountConstant.StatementEffect;
+import org.zstack.header.identity.PolicyInventory.Statement;
+import org.zstack.header.identity.SessionInventory;
+import org.zstack.test.Api;
+import org.zstack.test.ApiSender;
+import org.zstack.test.ApiSenderException;
+import org.zstack.test.BeanConstructor;
+import org.zstack.test.DBUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * the API has actions test:read and test:FakePolicyActionMsg
+ *
+ * 1. create policies of which a literal rule, a prefix rule and a regex rule all match the API,
+ * in different orders
+ *
+ * confirm the first matching rule wins
+ *
+ * 2. attach a user policy denying the API, and add the user to a group allowing the API
+ *
+ * confirm the user policy wins
+ *
+ * 3. attach/detach policies and add/remove the user to/from the group
+ *
+ * confirm every change takes effect on the next API call
+ */
+public class TestPolicyDecision {
+    Api api;
+    ComponentLoader loader;
+    IdentityCreator creator;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        BeanConstructor con = new BeanConstructor();
+        /* This loads spring application context */
+        loader = con.addXml("PortalForUnitTest.xml").addXml("AccountManager.xml").addXml("FakeAuthorizationServiceForRoleTest.xml").build();
+        api = new Api();
+        api.startServer();
+        creator = new IdentityCreator(api);
+        creator.createAccount("test", "test");
+    }
+
+    private Statement statement(String name, StatementEffect effect, String action) {
+        Statement s = new Statement();
+        s.setName(name);
+        s.setEffect(effect);
+        s.addAction(action);
+        return s;
+    }
+
+    private void createPolicy(String name, Statement...ss) throws ApiSenderException {
+        List<Statement> lst = new ArrayList<Statement>();
+        for (Statement s : ss) {
+            lst.add(s);
+        }
+        creator.createPolicy(name, lst);
+    }
+
+    private boolean isAllowed(SessionInventory session) {
+        FakePolicyActionMsg msg = new FakePolicyActionMsg();
+        msg.setServiceId(ApiMediatorConstant.SERVICE_ID);
+        msg.setSession(session);
+        ApiSender sender = new ApiSender();
+        try {
+            sender.send(msg, FakeApiEvent.class);
+            return true;
+        } catch (ApiSenderException e) {
+            return false;
+        }
+    }
+
+    private SessionInventory userWithPolicy(String user, String policy) throws ApiSenderException {
+        creator.createUser(user, "password");
+        creator.attachPolicyToUser(user, policy);
+        return creator.userLogin(user, "password");
+    }
+
+    @Test
+    public void test() throws ApiSenderException {
+        String literal = "test:read";
+        String prefix = "test:re.*";
+        String regex = "[a-z]+:Fake.*Msg";
+
+        createPolicy("literal-first",
+                statement("literal", StatementEffect.Deny, literal),
+                statement("prefix", StatementEffect.Allow, prefix),
+                statement("regex", StatementEffect.Allow, regex));
+        createPolicy("prefix-first",
+                statement("prefix", StatementEffect.Deny, prefix),
+                statement("literal", StatementEffect.Allow, literal),
+                statement("regex", StatementEffect.Allow, regex));
+        createPolicy("regex-first",
+                statement("regex", StatementEffect.Deny, regex),
+                statement("literal", StatementEffect.Allow, literal),
+                statement("prefix", StatementEffect.Allow, prefix));
+        createPolicy("regex-allow-first",
+                statement("regex", StatementEffect.Allow, regex),
+                statement("prefix", StatementEffect.Deny, prefix),
+                statement("literal", StatementEffect.Deny, literal));
+
+        Assert.assertFalse(isAllowed(userWithPolicy("literal-user", "literal-first")));
+        Assert.assertFalse(isAllowed(userWithPolicy("prefix-user", "prefix-first")));
+        Assert.assertFalse(isAllowed(userWithPolicy("regex-user", "regex-first")));
+        Assert.assertTrue(isAllowed(userWithPolicy("regex-allow-user", "regex-allow-first")));
+
+        createPolicy("allow", statement("allow", StatementEffect.Allow, ".*"));
+        createPolicy("deny", statement("deny", StatementEffect.Deny, literal));
+        creator.createGroup("group");
+        creator.attachPolicyToGroup("group", "allow");
+
+        creator.createUser("user", "password");
+        SessionInventory session = creator.userLogin("user", "password");
+        // no policy, denied by default
+        Assert.assertFalse(isAllowed(session));
+
+        creator.attachPolicyToUser("user", "allow");
+        Assert.assertTrue(isAllowed(session));
+        creator.detachPolicyFromUser("user", "allow");
+        Assert.assertFalse(isAllowed(session));
+
+        creator.addUserToGroup("user", "group");
+        Assert.assertTrue(isAllowed(session));
+
+        // a user policy deny beats a group policy allow
+        creator.attachPolicyToUser("user", "deny");
+        Assert.assertFalse(isAllowed(session));
+        creator.detachPolicyFromUser("user", "deny");
+        Assert.assertTrue(isAllowed(session));
+
+        creator.detachPolicyFromGroup("group", "allow");
+        Assert.assertFalse(isAllowed(session));
+        creator.attachPolicyToGroup("group", "allow");
+        Assert.assertTrue(isAllowed(session));
+
+        creator.removeUserFromGroup("user", "group");
+        Assert.assertFalse(isAllowed(session));
+    }
+}
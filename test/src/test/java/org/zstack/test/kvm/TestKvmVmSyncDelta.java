@@ -0,0 +1,167 @@
+package org.zstack.test.kvm;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.compute.host.HostGlobalConfig;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.header.vm.VmInstanceInventory;
+import org.zstack.header.vm.VmInstanceState;
+import org.zstack.header.vm.VmInstanceVO;
+import org.zstack.kvm.KVMAgentCommands.VmSyncCmd;
+import org.zstack.kvm.KVMAgentCommands.VmSyncResponse;
+import org.zstack.kvm.KVMConstant.KvmVmState;
+import org.zstack.kvm.KVMGlobalProperty;
+import org.zstack.simulator.kvm.KVMSimulatorConfig;
+import org.zstack.test.Api;
+import org.zstack.test.DBUtil;
+import org.zstack.test.WebBeanConstructor;
+import org.zstack.test.deployer.Deployer;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @condition
+ * 1. enable delta vm sync, change host ping interval to 1s
+ * 2. create a vm on kvm
+ * 3. wait for several syncs
+ * 4. change the vm to Shutdown on kvm simulator
+ * 5. change the vm back to Running, then remove it from kvm simulator
+ * 6. change the vm back to Running, then make kvm simulator not support delta sync
+ *
+ * @test
+ * confirm later syncs carry the generation of the last reply and get deltas
+ * confirm the changed state is in a delta and the vm is Stopped in database
+ * confirm the removed vm is in a delta and the vm is Stopped in database
+ * confirm full states are replied without generation and the vm is Running in database
+ */
+public class TestKvmVmSyncDelta {
+    CLogger logger = Utils.getLogger(TestKvmVmSyncDelta.class);
+    Deployer deployer;
+    Api api;
+    ComponentLoader loader;
+    DatabaseFacade dbf;
+    KVMSimulatorConfig config;
+
+    @Before
+    public void setUp() throws Exception {
+        KVMGlobalProperty.VM_SYNC_DELTA = true;
+        DBUtil.reDeployDB();
+        WebBeanConstructor con = new WebBeanConstructor();
+        deployer = new Deployer("deployerXml/kvm/TestCreateVmOnKvm.xml", con);
+        deployer.addSpringConfig("KVMRelated.xml");
+        loader = deployer.getComponentLoader();
+        dbf = loader.getComponent(DatabaseFacade.class);
+        config = loader.getComponent(KVMSimulatorConfig.class);
+        HostGlobalConfig.PING_HOST_INTERVAL.updateValue(1);
+        deployer.build();
+        api = deployer.getApi();
+    }
+
+    @After
+    public void tearDown() {
+        KVMGlobalProperty.VM_SYNC_DELTA = false;
+        config.vmSyncDeltaSupported = true;
+    }
+
+    private List<VmSyncCmd> takeCmds() {
+        synchronized (config) {
+            List<VmSyncCmd> cmds = new ArrayList<VmSyncCmd>(config.vmSyncCmds);
+            config.vmSyncCmds.clear();
+            return cmds;
+        }
+    }
+
+    private List<VmSyncResponse> takeResponses() {
+        synchronized (config) {
+            List<VmSyncResponse> rsps = new ArrayList<VmSyncResponse>(config.vmSyncResponses);
+            config.vmSyncResponses.clear();
+            return rsps;
+        }
+    }
+
+    private void changeVmState(String vmUuid, KvmVmState state) {
+        synchronized (config) {
+            if (state == null) {
+                config.vms.remove(vmUuid);
+            } else {
+                config.vms.put(vmUuid, state);
+            }
+            config.vmSyncCmds.clear();
+            config.vmSyncResponses.clear();
+        }
+    }
+
+    private void assertVmState(String vmUuid, VmInstanceState state) {
+        VmInstanceVO vmvo = dbf.findByUuid(vmUuid, VmInstanceVO.class);
+        Assert.assertEquals(state, vmvo.getState());
+    }
+
+    @Test
+    public void test() throws InterruptedException {
+        VmInstanceInventory vm = deployer.vms.get("TestVm");
+        TimeUnit.SECONDS.sleep(1);
+        // drop syncs done while connecting the host
+        takeCmds();
+        takeResponses();
+        TimeUnit.SECONDS.sleep(3);
+        List<VmSyncCmd> cmds = takeCmds();
+        List<VmSyncResponse> rsps = takeResponses();
+        Assert.assertTrue(cmds.size() > 1);
+        for (int i = 1; i < cmds.size(); i++) {
+            // each sync carries the generation replied by the previous one and gets a delta
+            Assert.assertEquals(rsps.get(i - 1).getGeneration(), cmds.get(i).getGeneration());
+            Assert.assertTrue(rsps.get(i).isDelta());
+            Assert.assertTrue(rsps.get(i).getStates().isEmpty());
+            Assert.assertTrue(rsps.get(i).getRemovedVmUuids().isEmpty());
+        }
+        assertVmState(vm.getUuid(), VmInstanceState.Running);
+
+        changeVmState(vm.getUuid(), KvmVmState.Shutdown);
+        TimeUnit.SECONDS.sleep(3);
+        rsps = takeResponses();
+        Assert.assertFalse(rsps.isEmpty());
+        VmSyncResponse rsp = rsps.get(0);
+        Assert.assertTrue(rsp.isDelta());
+        Assert.assertEquals(1, rsp.getStates().size());
+        Assert.assertEquals(KvmVmState.Shutdown.toString(), rsp.getStates().get(vm.getUuid()));
+        assertVmState(vm.getUuid(), VmInstanceState.Stopped);
+
+        changeVmState(vm.getUuid(), KvmVmState.Running);
+        TimeUnit.SECONDS.sleep(3);
+        assertVmState(vm.getUuid(), VmInstanceState.Running);
+
+        changeVmState(vm.getUuid(), null);
+        TimeUnit.SECONDS.sleep(3);
+        rsps = takeResponses();
+        Assert.assertFalse(rsps.isEmpty());
+        rsp = rsps.get(0);
+        Assert.assertTrue(rsp.isDelta());
+        Assert.assertTrue(rsp.getStates().isEmpty());
+        Assert.assertEquals(1, rsp.getRemovedVmUuids().size());
+        Assert.assertEquals(vm.getUuid(), rsp.getRemovedVmUuids().get(0));
+        assertVmState(vm.getUuid(), VmInstanceState.Stopped);
+
+        config.vmSyncDeltaSupported = false;
+        changeVmState(vm.getUuid(), KvmVmState.Running);
+        TimeUnit.SECONDS.sleep(3);
+        cmds = takeCmds();
+        rsps = takeResponses();
+        Assert.assertTrue(cmds.size() > 1);
+        for (int i = 0; i < rsps.size(); i++) {
+            rsp = rsps.get(i);
+            Assert.assertFalse(rsp.isDelta());
+            Assert.assertNull(rsp.getGeneration());
+            Assert.assertEquals(KvmVmState.Running.toString(), rsp.getStates().get(vm.getUuid()));
+        }
+        // without a generation replied, the management server falls back to full syncs
+        Assert.assertNull(cmds.get(cmds.size() - 1).getGeneration());
+        assertVmState(vm.getUuid(), VmInstanceState.Running);
+    }
+}
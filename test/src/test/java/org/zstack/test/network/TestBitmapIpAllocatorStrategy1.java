@@ -0,0 +1,107 @@
+package org.zstack.test.network;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.header.network.l2.L2NetworkInventory;
+import org.zstack.header.network.l3.*;
+import org.zstack.header.zone.ZoneInventory;
+import org.zstack.test.Api;
+import org.zstack.test.ApiSenderException;
+import org.zstack.test.BeanConstructor;
+import org.zstack.test.DBUtil;
+import org.zstack.utils.network.NetworkUtils;
+
+import java.util.UUID;
+
+/**
+ * 1. take some ips in database before and after the bitmap is built
+ * 2. allocate ips until the range is exhausted
+ *
+ * confirm ips taken behind the bitmap are skipped and a returned ip can be allocated again
+ */
+public class TestBitmapIpAllocatorStrategy1 {
+    Api api;
+    ComponentLoader loader;
+    DatabaseFacade dbf;
+    CloudBus bus;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        BeanConstructor con = new BeanConstructor();
+        /* This loads spring application context */
+        loader = con.addXml("PortalForUnitTest.xml").addXml("ZoneManager.xml").addXml("NetworkManager.xml").addXml("AccountManager.xml").build();
+        dbf = loader.getComponent(DatabaseFacade.class);
+        bus = loader.getComponent(CloudBus.class);
+        api = new Api();
+        api.startServer();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        api.stopServer();
+    }
+
+    private void takeIp(L3NetworkInventory l3inv, IpRangeInventory ipinv, String...ips) {
+        for (String ip : ips) {
+            UsedIpVO vo = new UsedIpVO(ipinv.getUuid(), ip);
+            // the same uuid L3NetworkManager.reserveIp() makes, so a later reservation of the ip fails
+            vo.setUuid(UUID.nameUUIDFromBytes((ipinv.getUuid() + ip).getBytes()).toString().replaceAll("-", ""));
+            vo.setIpInLong(NetworkUtils.ipv4StringToLong(ip));
+            vo.setL3NetworkUuid(l3inv.getUuid());
+            dbf.persist(vo);
+        }
+    }
+
+    private AllocateIpReply allocate(L3NetworkInventory l3inv) {
+        AllocateIpMsg msg = new AllocateIpMsg();
+        msg.setL3NetworkUuid(l3inv.getUuid());
+        msg.setServiceId(bus.makeLocalServiceId(L3NetworkConstant.SERVICE_ID));
+        msg.setAllocateStrategy(L3NetworkConstant.BITMAP_IP_ALLOCATOR_STRATEGY);
+        return (AllocateIpReply) bus.call(msg);
+    }
+
+    @Test
+    public void test() throws ApiSenderException {
+        ZoneInventory zone = api.createZones(1).get(0);
+        L2NetworkInventory linv = api.createNoVlanL2Network(zone.getUuid(), "eth0");
+        L3NetworkInventory l3inv = api.createL3BasicNetwork(linv.getUuid());
+        IpRangeInventory ipInv = api.addIpRange(l3inv.getUuid(), "10.223.110.10", "10.223.110.20", "10.223.110.1", "255.255.255.0");
+
+        takeIp(l3inv, ipInv, "10.223.110.10", "10.223.110.11", "10.223.110.12", "10.223.110.14");
+
+        AllocateIpReply reply = allocate(l3inv);
+        Assert.assertTrue(reply.isSuccess());
+        UsedIpInventory ip13 = reply.getIpInventory();
+        Assert.assertEquals("10.223.110.13", ip13.getIp());
+
+        // taken behind the bitmap
+        takeIp(l3inv, ipInv, "10.223.110.15");
+
+        for (int i=16; i<=20; i++) {
+            reply = allocate(l3inv);
+            Assert.assertTrue(reply.isSuccess());
+            Assert.assertEquals(String.format("10.223.110.%s", i), reply.getIpInventory().getIp());
+        }
+
+        reply = allocate(l3inv);
+        Assert.assertFalse(reply.isSuccess());
+
+        ReturnIpMsg rmsg = new ReturnIpMsg();
+        rmsg.setL3NetworkUuid(l3inv.getUuid());
+        rmsg.setUsedIpUuid(ip13.getUuid());
+        rmsg.setServiceId(bus.makeLocalServiceId(L3NetworkConstant.SERVICE_ID));
+        ReturnIpReply rreply = (ReturnIpReply) bus.call(rmsg);
+        Assert.assertTrue(rreply.isSuccess());
+
+        reply = allocate(l3inv);
+        Assert.assertTrue(reply.isSuccess());
+        Assert.assertEquals("10.223.110.13", reply.getIpInventory().getIp());
+        Assert.assertNotNull(dbf.findByUuid(reply.getIpInventory().getUuid(), UsedIpVO.class));
+    }
+}
@@ -0,0 +1,53 @@
+package org.zstack.test.portal;
+
+import org.zstack.header.cluster.ClusterVO;
+import org.zstack.header.configuration.NoPython;
+import org.zstack.header.message.APIMessage;
+import org.zstack.header.message.APIParam;
+import org.zstack.header.zone.ZoneVO;
+
+import java.util.List;
+
+@NoPython
+public class FakeResourceParamMsg extends APIMessage {
+    @APIParam(resourceType = ZoneVO.class)
+    private String zoneUuid;
+    @APIParam(required = false, resourceType = ZoneVO.class)
+    private List<String> zoneUuids;
+    @APIParam(required = false, resourceType = ClusterVO.class)
+    private String clusterUuid;
+    @APIParam(required = false, resourceType = ClusterVO.class)
+    private List<String> clusterUuids;
+
+    public String getZoneUuid() {
+        return zoneUuid;
+    }
+
+    public void setZoneUuid(String zoneUuid) {
+        this.zoneUuid = zoneUuid;
+    }
+
+    public List<String> getZoneUuids() {
+        return zoneUuids;
+    }
+
+    public void setZoneUuids(List<String> zoneUuids) {
+        this.zoneUuids = zoneUuids;
+    }
+
+    public String getClusterUuid() {
+        return clusterUuid;
+    }
+
+    public void setClusterUuid(String clusterUuid) {
+        this.clusterUuid = clusterUuid;
+    }
+
+    public List<String> getClusterUuids() {
+        return clusterUuids;
+    }
+
+    public void setClusterUuids(List<String> clusterUuids) {
+        this.clusterUuids = clusterUuids;
+    }
+}
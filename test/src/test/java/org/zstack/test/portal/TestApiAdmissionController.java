@@ -0,0 +1,238 @@
+package org.zstack.test.portal;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.thread.*;
+import org.zstack.core.thread.ThreadFacadeImpl.TimeoutTaskReceipt;
+import org.zstack.header.apimediator.APIIsReadyToGoMsg;
+import org.zstack.header.identity.SessionInventory;
+import org.zstack.header.message.APIMessage;
+import org.zstack.header.message.Message;
+import org.zstack.header.zone.*;
+import org.zstack.portal.apimediator.ApiAdmissionController;
+import org.zstack.portal.apimediator.ApiAdmissionController.ApiHandler;
+import org.zstack.portal.apimediator.ApiAdmissionController.Lane;
+import org.zstack.portal.apimediator.ApiLaneStatistic;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * test ApiAdmissionController with a thread facade that keeps submitted tasks until the test runs them
+ *
+ * 1. classify APIs into lanes
+ * 2. fill a lane
+ *
+ * confirm an API arriving at the full lane is rejected at once, and the reason shows the live counters
+ *
+ * 3. queue APIs of several accounts in a lane
+ *
+ * confirm queued APIs are taken round-robin by account
+ */
+public class TestApiAdmissionController {
+    List<Task> tasks;
+    List<Message> handled;
+    List<String> rejected;
+    ApiAdmissionController controller;
+
+    private class StubThreadFacade implements ThreadFacade {
+        @Override
+        public <T> Future<T> submit(Task<T> task) {
+            tasks.add(task);
+            return null;
+        }
+
+        @Override
+        public <T> Future<T> syncSubmit(SyncTask<T> task) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Future<Void> chainSubmit(ChainTask task) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Future<Void> submitPeriodicTask(PeriodicTask task, long delay) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Future<Void> submitPeriodicTask(PeriodicTask task) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Future<Void> submitCancelablePeriodicTask(CancelablePeriodicTask task) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Future<Void> submitCancelablePeriodicTask(CancelablePeriodicTask task, long delay) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void registerHook(ThreadAroundHook hook) {
+        }
+
+        @Override
+        public void unregisterHook(ThreadAroundHook hook) {
+        }
+
+        @Override
+        public TimeoutTaskReceipt submitTimeoutTask(Runnable task, TimeUnit unit, long delay) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean start() {
+            return true;
+        }
+
+        @Override
+        public boolean stop() {
+            return true;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        tasks = new ArrayList<Task>();
+        handled = new ArrayList<Message>();
+        rejected = new ArrayList<String>();
+        controller = new ApiAdmissionController(new StubThreadFacade(), new ApiHandler() {
+            @Override
+            public void handle(Message msg) {
+                handled.add(msg);
+            }
+
+            @Override
+            public void reject(Message msg, String reason) {
+                rejected.add(reason);
+            }
+        });
+
+        controller.setLane(Lane.Query, 1, 10);
+        controller.setLane(Lane.Mutate, 1, 2);
+        controller.setLane(Lane.Admin, 1, 2);
+        controller.setLane(Lane.LongRunning, 1, 2);
+        controller.assignApis(Lane.LongRunning, " APIDeleteZoneMsg, ");
+    }
+
+    private <T extends APIMessage> T withAccount(T msg, String accountUuid) {
+        SessionInventory session = new SessionInventory();
+        session.setUuid(accountUuid + "-session");
+        session.setAccountUuid(accountUuid);
+        msg.setSession(session);
+        return msg;
+    }
+
+    private void runTasks() throws Exception {
+        List<Task> lst = new ArrayList<Task>(tasks);
+        tasks.clear();
+        for (Task t : lst) {
+            t.call();
+        }
+    }
+
+    private ApiLaneStatistic getStatistic(Lane lane) {
+        return controller.getStatistics().get(lane.toString());
+    }
+
+    @Test
+    public void testClassify() {
+        Assert.assertEquals(Lane.Query, controller.classify(new APIQueryZoneMsg()));
+        Assert.assertEquals(Lane.Query, controller.classify(new APIGetZoneMsg()));
+        Assert.assertEquals(Lane.Query, controller.classify(new APIListZonesMsg()));
+        Assert.assertEquals(Lane.Query, controller.classify(new APISearchZoneMsg()));
+        Assert.assertEquals(Lane.Mutate, controller.classify(new APICreateZoneMsg()));
+        Assert.assertEquals(Lane.Mutate, controller.classify(new APIUpdateZoneMsg()));
+        Assert.assertEquals(Lane.Admin, controller.classify(new APIIsReadyToGoMsg()));
+        Assert.assertEquals(Lane.LongRunning, controller.classify(new APIDeleteZoneMsg()));
+    }
+
+    @Test
+    public void testRejectWhenFull() throws Exception {
+        APICreateZoneMsg running = withAccount(new APICreateZoneMsg(), "a");
+        controller.submit(running);
+        controller.submit(withAccount(new APICreateZoneMsg(), "a"));
+        controller.submit(withAccount(new APICreateZoneMsg(), "b"));
+        Assert.assertEquals(1, tasks.size());
+        Assert.assertTrue(rejected.isEmpty());
+
+        // the lane is full, the API is rejected without waiting for the running one
+        controller.submit(withAccount(new APICreateZoneMsg(), "c"));
+        Assert.assertEquals(1, rejected.size());
+        Assert.assertTrue(rejected.get(0), rejected.get(0).contains("running: 1/1, queued: 2/2"));
+        Assert.assertTrue(handled.isEmpty());
+        Assert.assertEquals(1, tasks.size());
+
+        ApiLaneStatistic s = getStatistic(Lane.Mutate);
+        Assert.assertEquals(1, s.getRunning());
+        Assert.assertEquals(2, s.getQueued());
+        Assert.assertEquals(3, s.getAdmitted());
+        Assert.assertEquals(1, s.getRejected());
+
+        // other lanes are not affected
+        controller.submit(withAccount(new APIQueryZoneMsg(), "c"));
+        Assert.assertEquals(1, rejected.size());
+        Assert.assertEquals(2, tasks.size());
+
+        runTasks();
+        Assert.assertEquals(4, handled.size());
+        Assert.assertEquals(running, handled.get(0));
+        s = getStatistic(Lane.Mutate);
+        Assert.assertEquals(0, s.getRunning());
+        Assert.assertEquals(0, s.getQueued());
+        Assert.assertEquals(3, s.getCompleted());
+
+        // the lane accepts APIs again
+        controller.submit(withAccount(new APICreateZoneMsg(), "c"));
+        Assert.assertEquals(1, rejected.size());
+        Assert.assertEquals(1, tasks.size());
+    }
+
+    @Test
+    public void testRoundRobinByAccount() throws Exception {
+        APIQueryZoneMsg a1 = withAccount(new APIQueryZoneMsg(), "a");
+        APIQueryZoneMsg a2 = withAccount(new APIQueryZoneMsg(), "a");
+        APIQueryZoneMsg a3 = withAccount(new APIQueryZoneMsg(), "a");
+        APIQueryZoneMsg a4 = withAccount(new APIQueryZoneMsg(), "a");
+        APIQueryZoneMsg b1 = withAccount(new APIQueryZoneMsg(), "b");
+        APIQueryZoneMsg b2 = withAccount(new APIQueryZoneMsg(), "b");
+        // no account uuid, the session uuid is used
+        APIQueryZoneMsg c1 = withAccount(new APIQueryZoneMsg(), "c");
+        c1.getSession().setAccountUuid(null);
+
+        controller.submit(a1);
+        controller.submit(a2);
+        controller.submit(a3);
+        controller.submit(a4);
+        controller.submit(b1);
+        controller.submit(b2);
+        controller.submit(c1);
+        Assert.assertEquals(1, tasks.size());
+        Assert.assertEquals(6, getStatistic(Lane.Query).getQueued());
+
+        runTasks();
+        List<Message> expected = new ArrayList<Message>();
+        expected.add(a1);
+        expected.add(a2);
+        expected.add(b1);
+        expected.add(c1);
+        expected.add(a3);
+        expected.add(b2);
+        expected.add(a4);
+        Assert.assertEquals(expected, handled);
+        Assert.assertTrue(rejected.isEmpty());
+
+        ApiLaneStatistic s = getStatistic(Lane.Query);
+        Assert.assertEquals(0, s.getRunning());
+        Assert.assertEquals(0, s.getQueued());
+        Assert.assertEquals(7, s.getCompleted());
+    }
+}
@@ -0,0 +1,193 @@
+package org.zstack.test.portal;
+
+import junit.framework.Assert;
+import org.hibernate.ejb.HibernateEntityManagerFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.transaction.annotation.Transactional;
+import org.zstack.core.Platform;
+import org.zstack.core.cloudbus.EventFacade;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.errorcode.ErrorFacade;
+import org.zstack.header.apimediator.ApiMessageInterceptionException;
+import org.zstack.header.cluster.ClusterInventory;
+import org.zstack.header.cluster.ClusterVO;
+import org.zstack.header.errorcode.SysErrors;
+import org.zstack.header.zone.ZoneInventory;
+import org.zstack.header.zone.ZoneStateEvent;
+import org.zstack.header.zone.ZoneVO;
+import org.zstack.portal.apimediator.ApiMediatorCanonicalEvents;
+import org.zstack.portal.apimediator.ApiMediatorCanonicalEvents.ResourceDeletedData;
+import org.zstack.portal.apimediator.ApiParamValidator;
+import org.zstack.portal.apimediator.ResourceExistenceCache;
+import org.zstack.test.Api;
+import org.zstack.test.ApiSenderException;
+import org.zstack.test.BeanConstructor;
+import org.zstack.test.DBUtil;
+
+import javax.persistence.Query;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.zstack.utils.CollectionDSL.e;
+import static org.zstack.utils.CollectionDSL.map;
+import static org.zstack.utils.StringDSL.s;
+
+/**
+ * 1. validate a message having several fields of zone and cluster uuids
+ *
+ * confirm resources are checked by one query per resource type, and not queried again when cached
+ *
+ * 2. validate the message with a missing zone in the uuid field and in the uuids field
+ *
+ * confirm the errors are the same as before the validation was batched
+ *
+ * 3. enable the resource existence cache of ApiMediator, delete a validated zone
+ *
+ * confirm the next API to the zone fails the validation
+ *
+ * 4. delete a validated zone behind DatabaseFacade and publish the deletion as from another node
+ *
+ * confirm the next API to the zone fails the validation
+ */
+public class TestApiParamValidator {
+    ComponentLoader loader;
+    Api api;
+    DatabaseFacade dbf;
+    ErrorFacade errf;
+    EventFacade evtf;
+    Statistics statistics;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        // load global properties first, then override them for the test
+        Platform.getUuid();
+        System.setProperty("ApiMediator.resourceExistenceCacheTimeout", String.valueOf(TimeUnit.MINUTES.toMillis(10)));
+
+        BeanConstructor con = new BeanConstructor();
+        /* This loads spring application context */
+        loader = con.addXml("PortalForUnitTest.xml").addXml("ZoneManager.xml").addXml("ClusterManager.xml").addXml("AccountManager.xml").build();
+        dbf = loader.getComponent(DatabaseFacade.class);
+        errf = loader.getComponent(ErrorFacade.class);
+        evtf = loader.getComponent(EventFacade.class);
+        api = new Api();
+        api.startServer();
+
+        HibernateEntityManagerFactory emf = (HibernateEntityManagerFactory) dbf.getEntityManager().getEntityManagerFactory();
+        statistics = emf.getSessionFactory().getStatistics();
+        statistics.setStatisticsEnabled(true);
+    }
+
+    private long countExistenceQueries(Class resourceType) {
+        String prefix = String.format("select e.uuid from %s e where e.uuid in", resourceType.getSimpleName());
+        long count = 0;
+        for (String q : statistics.getQueries()) {
+            if (q.startsWith(prefix)) {
+                count += statistics.getQueryStatistics(q).getExecutionCount();
+            }
+        }
+        return count;
+    }
+
+    private String validateError(ApiParamValidator validator, FakeResourceParamMsg msg) throws IllegalAccessException {
+        try {
+            validator.validate(msg);
+        } catch (ApiMessageInterceptionException ae) {
+            Assert.assertEquals(SysErrors.RESOURCE_NOT_FOUND.toString(), ae.getError().getCode());
+            return ae.getError().getDetails();
+        }
+
+        Assert.fail("the validation passes");
+        return null;
+    }
+
+    private String changeZoneStateError(String zoneUuid) {
+        try {
+            api.changeZoneState(zoneUuid, ZoneStateEvent.disable);
+        } catch (ApiSenderException ae) {
+            return ae.getError().getDetails();
+        }
+
+        Assert.fail(String.format("changing state of the zone[uuid:%s] succeeds", zoneUuid));
+        return null;
+    }
+
+    @Transactional
+    private void deleteZoneBehindDatabaseFacade(String zoneUuid) {
+        Query q = dbf.getEntityManager().createQuery("delete from ZoneEO z where z.uuid = :uuid");
+        q.setParameter("uuid", zoneUuid);
+        q.executeUpdate();
+    }
+
+    @Test
+    public void testValidate() throws Exception {
+        List<ZoneInventory> zones = api.createZones(2);
+        String zone1 = zones.get(0).getUuid();
+        String zone2 = zones.get(1).getUuid();
+        ClusterInventory cluster = api.createClusters(1, zone1).get(0);
+
+        FakeResourceParamMsg msg = new FakeResourceParamMsg();
+        msg.setZoneUuid(zone1);
+        msg.setZoneUuids(Arrays.asList(zone1, zone2));
+        msg.setClusterUuid(cluster.getUuid());
+        msg.setClusterUuids(Arrays.asList(cluster.getUuid()));
+
+        ApiParamValidator validator = new ApiParamValidator(dbf, errf, new ResourceExistenceCache(0));
+        statistics.clear();
+        validator.validate(msg);
+        Assert.assertEquals(1, countExistenceQueries(ZoneVO.class));
+        Assert.assertEquals(1, countExistenceQueries(ClusterVO.class));
+
+        validator = new ApiParamValidator(dbf, errf, new ResourceExistenceCache(TimeUnit.MINUTES.toMillis(10)));
+        validator.validate(msg);
+        statistics.clear();
+        validator.validate(msg);
+        Assert.assertEquals(0, countExistenceQueries(ZoneVO.class));
+        Assert.assertEquals(0, countExistenceQueries(ClusterVO.class));
+
+        String missing = Platform.getUuid();
+        msg.setZoneUuid(missing);
+        Assert.assertEquals(String.format("invalid field[zoneUuid], resource[uuid:%s, type:ZoneVO] not found", missing),
+                validateError(validator, msg));
+
+        msg.setZoneUuid(zone1);
+        msg.setZoneUuids(Arrays.asList(zone2, missing));
+        Assert.assertEquals(String.format("invalid field[zoneUuids], resource[uuids:[%s], type:ZoneVO] not found", missing),
+                validateError(validator, msg));
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        List<ZoneInventory> zones = api.createZones(2);
+        String zone1 = zones.get(0).getUuid();
+        String zone2 = zones.get(1).getUuid();
+
+        // the zone is cached by the validation, then evicted by the deletion
+        api.changeZoneState(zone1, ZoneStateEvent.disable);
+        api.deleteZone(zone1);
+        Assert.assertEquals(String.format("invalid field[uuid], resource[uuid:%s, type:ZoneVO] not found", zone1),
+                changeZoneStateError(zone1));
+
+        // the zone is deleted without DatabaseFacade, the deletion is published as by another node
+        api.changeZoneState(zone2, ZoneStateEvent.disable);
+        deleteZoneBehindDatabaseFacade(zone2);
+        ResourceDeletedData data = new ResourceDeletedData();
+        data.setResourceUuids(Arrays.asList(zone2));
+        evtf.fire(s(ApiMediatorCanonicalEvents.RESOURCE_DELETED_PATH).formatByMap(map(
+                e("nodeUuid", Platform.getUuid())
+        )), data);
+
+        String expected = String.format("invalid field[uuid], resource[uuid:%s, type:ZoneVO] not found", zone2);
+        for (int i = 0; i < 10; i++) {
+            if (expected.equals(changeZoneStateError(zone2))) {
+                return;
+            }
+            TimeUnit.MILLISECONDS.sleep(500);
+        }
+        Assert.fail(String.format("the zone[uuid:%s] is not evicted by the event", zone2));
+    }
+}
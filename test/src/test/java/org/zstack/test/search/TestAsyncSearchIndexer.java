@@ -0,0 +1,204 @@
+package org.zstack.test.search;
+
+import org.apache.commons.io.FileUtils;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.Platform;
+import org.zstack.core.cloudbus.ResourceDestinationMaker;
+import org.zstack.core.cloudbus.ResourceDestinationMakerImpl;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.db.SimpleQuery;
+import org.zstack.core.db.SimpleQuery.Op;
+import org.zstack.header.identity.AccountInventory;
+import org.zstack.header.identity.AccountType;
+import org.zstack.header.identity.AccountVO;
+import org.zstack.header.search.*;
+import org.zstack.search.InventoryIndexManager;
+import org.zstack.search.LocalSearchIndexBackend;
+import org.zstack.search.SearchGlobalProperty;
+import org.zstack.search.SearchIndexBackend;
+import org.zstack.test.BeanConstructor;
+import org.zstack.test.DBUtil;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 1. use the local search backend and the async indexer
+ * 2. create, update and delete an account, with rows in InsertVO/UpdateVO/DeleteVO
+ *
+ * confirm the indexer writes the document of every change and removes the trigger rows
+ *
+ * 3. add another management node, put more pages of its InsertVO rows than a round reads
+ * ahead of a row of this node
+ *
+ * confirm this node still indexes its row, and leaves the rows of the other node
+ */
+public class TestAsyncSearchIndexer {
+    ComponentLoader loader;
+    DatabaseFacade dbf;
+    SearchIndexBackend backend;
+    File dataDir;
+    String inventoryName = AccountInventory.class.getSimpleName();
+    int batchSize;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        dataDir = new File(System.getProperty("java.io.tmpdir"), "TestAsyncSearchIndexer");
+        FileUtils.deleteDirectory(dataDir);
+
+        // load global properties first, then override them for the test
+        Platform.getUuid();
+        SearchGlobalProperty.BACKEND = LocalSearchIndexBackend.TYPE;
+        SearchGlobalProperty.LOCAL_INDEX_DATA_DIR = dataDir.getAbsolutePath();
+        SearchGlobalProperty.ASYNC_INDEXER = true;
+        SearchGlobalProperty.INDEXER_SWEEP_INTERVAL_SEC = 1;
+        batchSize = SearchGlobalProperty.INDEXER_BATCH_SIZE;
+
+        BeanConstructor con = new BeanConstructor();
+        loader = con.addXml("PortalForUnitTest.xml").addXml("SearchManager.xml").addXml("AccountManager.xml").build();
+        dbf = loader.getComponent(DatabaseFacade.class);
+        backend = loader.getComponent(InventoryIndexManager.class).getBackend();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        SearchGlobalProperty.ASYNC_INDEXER = false;
+        SearchGlobalProperty.INDEXER_BATCH_SIZE = batchSize;
+        FileUtils.deleteDirectory(dataDir);
+    }
+
+    private String waitForDoc(String uuid, String name) throws Exception {
+        for (int i = 0; i < 30; i++) {
+            String src = backend.get(inventoryName, uuid);
+            if (name == null ? src == null : src != null && name.equals(new JSONObject(src).getString("name"))) {
+                return src;
+            }
+            TimeUnit.MILLISECONDS.sleep(500);
+        }
+
+        Assert.fail(String.format("document[uuid:%s] doesn't become %s", uuid, name));
+        return null;
+    }
+
+    private long countInsertVO(String uuid) {
+        SimpleQuery<InsertVO> q = dbf.createQuery(InsertVO.class);
+        q.add(InsertVO_.uuid, Op.EQ, uuid);
+        return q.count();
+    }
+
+    private long countInsertVO(List<String> uuids) {
+        SimpleQuery<InsertVO> q = dbf.createQuery(InsertVO.class);
+        q.add(InsertVO_.uuid, Op.IN, uuids);
+        return q.count();
+    }
+
+    private long countUpdateVO(String uuid) {
+        SimpleQuery<UpdateVO> q = dbf.createQuery(UpdateVO.class);
+        q.add(UpdateVO_.uuid, Op.EQ, uuid);
+        return q.count();
+    }
+
+    private long countDeleteVO(String uuid) {
+        SimpleQuery<DeleteVO> q = dbf.createQuery(DeleteVO.class);
+        q.add(DeleteVO_.uuid, Op.EQ, uuid);
+        return q.count();
+    }
+
+    @Test
+    public void test() throws Exception {
+        AccountVO vo = new AccountVO();
+        vo.setUuid(Platform.getUuid());
+        vo.setName("async");
+        vo.setPassword("password");
+        vo.setType(AccountType.Normal);
+        vo = dbf.persistAndRefresh(vo);
+
+        InsertVO ivo = new InsertVO();
+        ivo.setVoName(AccountVO.class.getSimpleName());
+        ivo.setUuid(vo.getUuid());
+        ivo.setInsertDate(new Date());
+        dbf.persist(ivo);
+        waitForDoc(vo.getUuid(), "async");
+
+        vo.setName("async-renamed");
+        vo = dbf.updateAndRefresh(vo);
+        UpdateVO uvo = new UpdateVO();
+        uvo.setVoName(AccountVO.class.getSimpleName());
+        uvo.setUuid(vo.getUuid());
+        uvo.setUpdateDate(new Date());
+        dbf.persist(uvo);
+        waitForDoc(vo.getUuid(), "async-renamed");
+
+        dbf.remove(vo);
+        DeleteVO dvo = new DeleteVO();
+        dvo.setVoName(AccountVO.class.getSimpleName());
+        dvo.setUuid(vo.getUuid());
+        dvo.setDeletedDate(new Date());
+        dbf.persist(dvo);
+        waitForDoc(vo.getUuid(), null);
+
+        // trigger rows are removed once the bulk succeeded
+        TimeUnit.SECONDS.sleep(1);
+        Assert.assertEquals(0, countInsertVO(vo.getUuid()));
+        Assert.assertEquals(0, countUpdateVO(vo.getUuid()));
+        Assert.assertEquals(0, countDeleteVO(vo.getUuid()));
+    }
+
+    @Test
+    public void testForeignRowsAhead() throws Exception {
+        SearchGlobalProperty.INDEXER_BATCH_SIZE = 2;
+        ResourceDestinationMakerImpl destMaker = (ResourceDestinationMakerImpl) loader.getComponent(ResourceDestinationMaker.class);
+        destMaker.nodeJoin(Platform.getUuid());
+
+        // more than 10 pages of rows owned by the other node
+        List<String> foreignUuids = new ArrayList<String>();
+        while (foreignUuids.size() < 30) {
+            String uuid = Platform.getUuid();
+            if (destMaker.isManagedByUs(uuid)) {
+                continue;
+            }
+
+            InsertVO ivo = new InsertVO();
+            ivo.setVoName(AccountVO.class.getSimpleName());
+            ivo.setUuid(uuid);
+            ivo.setInsertDate(new Date());
+            dbf.persist(ivo);
+            foreignUuids.add(uuid);
+        }
+
+        AccountVO vo = null;
+        while (vo == null) {
+            String uuid = Platform.getUuid();
+            if (!destMaker.isManagedByUs(uuid)) {
+                continue;
+            }
+
+            vo = new AccountVO();
+            vo.setUuid(uuid);
+            vo.setName("owned");
+            vo.setPassword("password");
+            vo.setType(AccountType.Normal);
+            vo = dbf.persistAndRefresh(vo);
+        }
+
+        InsertVO ivo = new InsertVO();
+        ivo.setVoName(AccountVO.class.getSimpleName());
+        ivo.setUuid(vo.getUuid());
+        ivo.setInsertDate(new Date());
+        dbf.persist(ivo);
+
+        waitForDoc(vo.getUuid(), "owned");
+        TimeUnit.SECONDS.sleep(1);
+        Assert.assertEquals(0, countInsertVO(vo.getUuid()));
+        Assert.assertEquals(foreignUuids.size(), countInsertVO(foreignUuids));
+    }
+}
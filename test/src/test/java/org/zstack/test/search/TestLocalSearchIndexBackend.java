@@ -0,0 +1,131 @@
+package org.zstack.test.search;
+
+import org.apache.commons.io.FileUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.header.search.InventoryDoc;
+import org.zstack.header.zone.ZoneInventory;
+import org.zstack.search.ESBulkBuilder;
+import org.zstack.search.LocalSearchIndexBackend;
+import org.zstack.search.QueryBuilder;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * 1. index 10 zones into the local search backend
+ * 2. query them by term, terms, range and not
+ * 3. delete some and restart the backend
+ *
+ * confirm the results are correct and the index survives the restart
+ */
+public class TestLocalSearchIndexBackend {
+    CLogger logger = Utils.getLogger(TestLocalSearchIndexBackend.class);
+    File dataDir;
+    LocalSearchIndexBackend backend;
+    String inventoryName = ZoneInventory.class.getSimpleName();
+
+    @Before
+    public void setUp() throws Exception {
+        dataDir = new File(System.getProperty("java.io.tmpdir"), "TestLocalSearchIndexBackend");
+        FileUtils.deleteDirectory(dataDir);
+        backend = new LocalSearchIndexBackend(dataDir.getAbsolutePath(), 5);
+        backend.start();
+        backend.createIndexIfNotExists(inventoryName);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        backend.stop();
+        FileUtils.deleteDirectory(dataDir);
+    }
+
+    private ZoneInventory zone(int i) {
+        ZoneInventory zone = new ZoneInventory();
+        zone.setUuid(String.format("uuid-%s", i));
+        zone.setName(String.format("zone%s", i));
+        zone.setState(i % 2 == 0 ? "Enabled" : "Disabled");
+        zone.setDescription(String.valueOf(i));
+        return zone;
+    }
+
+    private JSONArray search(QueryBuilder qb) throws Exception {
+        String res = backend.search(inventoryName, qb.build());
+        logger.debug(res);
+        return new JSONObject(res).getJSONObject("hits").getJSONArray("hits");
+    }
+
+    @Test
+    public void test() throws Exception {
+        ESBulkBuilder bbuilder = new ESBulkBuilder();
+        for (int i = 0; i < 10; i++) {
+            ZoneInventory zone = zone(i);
+            InventoryDoc doc = InventoryDoc.toDoc(inventoryName, zone.getUuid(), zone);
+            bbuilder.addIndexBulk(inventoryName.toLowerCase(), inventoryName, doc);
+        }
+        Assert.assertTrue(backend.bulk(bbuilder));
+
+        QueryBuilder qb = new QueryBuilder();
+        qb.setSize(100);
+        Assert.assertEquals(10, search(qb).length());
+
+        qb = new QueryBuilder();
+        qb.andEQ("state", "Enabled");
+        qb.setSize(100);
+        Assert.assertEquals(5, search(qb).length());
+
+        qb = new QueryBuilder();
+        qb.andIn("name", Arrays.asList("zone1", "zone2", "zone100"));
+        Assert.assertEquals(2, search(qb).length());
+
+        qb = new QueryBuilder();
+        qb.andGTE("description", "3");
+        qb.andLT("description", "7");
+        Assert.assertEquals(4, search(qb).length());
+
+        qb = new QueryBuilder();
+        qb.andNotEQ("state", "Enabled");
+        qb.andGT("description", "6");
+        qb.select("uuid", "name");
+        JSONArray hits = search(qb);
+        Assert.assertEquals(2, hits.length());
+        Assert.assertEquals("zone7", hits.getJSONObject(0).getJSONObject("fields").getString("name"));
+
+        qb = new QueryBuilder();
+        qb.setFrom(8);
+        Assert.assertEquals(2, search(qb).length());
+
+        bbuilder = new ESBulkBuilder();
+        for (int i = 0; i < 4; i++) {
+            bbuilder.addDeleteBulk(inventoryName.toLowerCase(), inventoryName, zone(i).getUuid());
+        }
+        ZoneInventory zone9 = zone(9);
+        zone9.setName("renamed");
+        bbuilder.addIndexBulk(inventoryName.toLowerCase(), inventoryName, InventoryDoc.toDoc(inventoryName, zone9.getUuid(), zone9));
+        Assert.assertTrue(backend.bulk(bbuilder));
+
+        backend.stop();
+        backend = new LocalSearchIndexBackend(dataDir.getAbsolutePath(), 5);
+        backend.start();
+
+        qb = new QueryBuilder();
+        qb.setSize(100);
+        Assert.assertEquals(6, search(qb).length());
+        Assert.assertNull(backend.get(inventoryName, zone(0).getUuid()));
+        String src = backend.get(inventoryName, zone9.getUuid());
+        Assert.assertEquals("renamed", new JSONObject(src).getString("name"));
+
+        qb = new QueryBuilder();
+        qb.andEQ("name", "zone9");
+        Assert.assertEquals(0, search(qb).length());
+
+        backend.deleteIndex(null);
+        Assert.assertNull(backend.get(inventoryName, zone9.getUuid()));
+    }
+}
@@ -0,0 +1,118 @@
+package org.zstack.test.securitygroup;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.header.vm.VmInstanceInventory;
+import org.zstack.header.vm.VmNicInventory;
+import org.zstack.network.securitygroup.*;
+import org.zstack.simulator.SimulatorSecurityGroupBackend;
+import org.zstack.test.Api;
+import org.zstack.test.ApiSenderException;
+import org.zstack.test.DBUtil;
+import org.zstack.test.WebBeanConstructor;
+import org.zstack.test.deployer.Deployer;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @condition
+ * 1. enable rule.deltaPush
+ * 2. create an empty security group, add vm1's nic then vm2's nic to it
+ * 3. remove vm2's nic from it
+ * 4. make applying rules fail and add vm1's nic to a security group with rules
+ * 5. make applying rules succeed
+ *
+ * @test
+ * confirm only changed nics are pushed in 2 and 3
+ * confirm the failure host worker pushes all rules of the host after 5
+ */
+public class TestSecurityGroupDeltaPush {
+    static CLogger logger = Utils.getLogger(TestSecurityGroupDeltaPush.class);
+    Deployer deployer;
+    Api api;
+    ComponentLoader loader;
+    DatabaseFacade dbf;
+    SimulatorSecurityGroupBackend sbkd;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        WebBeanConstructor con = new WebBeanConstructor();
+        deployer = new Deployer("deployerXml/securityGroup/TestApplySeurityGroupRulesInTwoGroup.xml", con);
+        deployer.build();
+        api = deployer.getApi();
+        loader = deployer.getComponentLoader();
+        dbf = loader.getComponent(DatabaseFacade.class);
+        sbkd = loader.getComponent(SimulatorSecurityGroupBackend.class);
+        SecurityGroupGlobalConfig.FAILURE_HOST_WORKER_INTERVAL.updateValue(1);
+        SecurityGroupGlobalConfig.DELTA_PUSH.updateValue(true);
+    }
+
+    private List<String> pushedNicUuids() {
+        List<String> ret = new ArrayList<String>();
+        synchronized (sbkd.appliedHostRuleTOs) {
+            for (HostRuleTO hto : sbkd.appliedHostRuleTOs) {
+                for (SecurityGroupRuleTO sgto : hto.getRules()) {
+                    ret.add(sgto.getVmNicUuid());
+                }
+            }
+            sbkd.appliedHostRuleTOs.clear();
+        }
+        return ret;
+    }
+
+    @Test
+    public void test() throws ApiSenderException, InterruptedException {
+        VmInstanceInventory vm1 = deployer.vms.get("TestVm");
+        VmNicInventory vm1Nic = vm1.getVmNics().get(0);
+        VmInstanceInventory vm2 = deployer.vms.get("TestVm1");
+        VmNicInventory vm2Nic = vm2.getVmNics().get(0);
+
+        SecurityGroupInventory empty = api.createSecurityGroup("empty");
+        api.attachSecurityGroupToL3Network(empty.getUuid(), vm1Nic.getL3NetworkUuid());
+
+        api.addVmNicToSecurityGroup(empty.getUuid(), vm1Nic.getUuid());
+        TimeUnit.MILLISECONDS.sleep(500);
+        pushedNicUuids();
+
+        // vm1's rules don't change, only vm2's are pushed
+        api.addVmNicToSecurityGroup(empty.getUuid(), vm2Nic.getUuid());
+        TimeUnit.MILLISECONDS.sleep(500);
+        List<String> pushed = pushedNicUuids();
+        Assert.assertEquals(1, pushed.size());
+        Assert.assertEquals(vm2Nic.getUuid(), pushed.get(0));
+
+        api.removeVmNicFromSecurityGroup(empty.getUuid(), vm2Nic.getUuid());
+        TimeUnit.MILLISECONDS.sleep(500);
+        pushed = pushedNicUuids();
+        Assert.assertEquals(1, pushed.size());
+        Assert.assertEquals(vm2Nic.getUuid(), pushed.get(0));
+
+        SecurityGroupInventory scinv = deployer.securityGroups.get("test");
+        sbkd.securityGroupSuccess = false;
+        api.addVmNicToSecurityGroup(scinv.getUuid(), vm1Nic.getUuid());
+        TimeUnit.MILLISECONDS.sleep(500);
+        Assert.assertEquals(1, dbf.count(SecurityGroupFailureHostVO.class));
+
+        sbkd.securityGroupSuccess = true;
+        TimeUnit.SECONDS.sleep(3);
+        Assert.assertEquals(0, dbf.count(SecurityGroupFailureHostVO.class));
+        SecurityGroupRuleTO vmto = sbkd.getRulesOnHost(vm1.getHostUuid(), vm1Nic.getInternalName());
+        SecurityGroupTestValidator.validate(vmto, scinv.getRules());
+
+        // the host is materialized again by the full push, unchanged nics are skipped
+        pushedNicUuids();
+        api.addVmNicToSecurityGroup(empty.getUuid(), vm2Nic.getUuid());
+        TimeUnit.MILLISECONDS.sleep(500);
+        pushed = pushedNicUuids();
+        Assert.assertEquals(1, pushed.size());
+        Assert.assertEquals(vm2Nic.getUuid(), pushed.get(0));
+    }
+}
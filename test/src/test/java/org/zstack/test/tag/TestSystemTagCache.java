@@ -0,0 +1,122 @@
+package org.zstack.test.tag;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.Platform;
+import org.zstack.core.cloudbus.EventFacade;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.header.tag.SystemTagInventory;
+import org.zstack.header.tag.SystemTagVO;
+import org.zstack.header.tag.TagDefinition;
+import org.zstack.header.tag.TagType;
+import org.zstack.header.zone.ZoneInventory;
+import org.zstack.header.zone.ZoneVO;
+import org.zstack.tag.PatternedSystemTag;
+import org.zstack.tag.SystemTag;
+import org.zstack.tag.TagCanonicalEvents;
+import org.zstack.tag.TagCanonicalEvents.SystemTagChangedData;
+import org.zstack.test.Api;
+import org.zstack.test.ApiSenderException;
+import org.zstack.test.DBUtil;
+import org.zstack.test.deployer.Deployer;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.zstack.utils.CollectionDSL.e;
+import static org.zstack.utils.CollectionDSL.map;
+import static org.zstack.utils.StringDSL.s;
+
+/**
+ * 1. read tags of a zone to get them cached
+ * 2. create and delete tags of the zone
+ * 3. read tags of another zone, then insert a tag of it into database directly
+ * 4. fire the system tag changed event of another management node for the zone
+ *
+ * confirm every read after a change sees the change
+ * confirm the directly inserted tag is not seen until the event evicts the zone
+ */
+public class TestSystemTagCache {
+    Deployer deployer;
+    Api api;
+    ComponentLoader loader;
+    DatabaseFacade dbf;
+    EventFacade evtf;
+
+    @TagDefinition
+    public static class TestSystemTags {
+        public static SystemTag big = new SystemTag("big", ZoneVO.class);
+        public static PatternedSystemTag size = new PatternedSystemTag("size::{size}::unit", ZoneVO.class);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        deployer = new Deployer("deployerXml/tag/TestUserTag.xml");
+        deployer.build();
+        api = deployer.getApi();
+        loader = deployer.getComponentLoader();
+        dbf = loader.getComponent(DatabaseFacade.class);
+        evtf = loader.getComponent(EventFacade.class);
+    }
+
+    private void insertTagBehindCache(String resourceUuid, String tag) {
+        SystemTagVO vo = new SystemTagVO();
+        vo.setUuid(Platform.getUuid());
+        vo.setResourceUuid(resourceUuid);
+        vo.setResourceType(ZoneVO.class.getSimpleName());
+        vo.setInherent(false);
+        vo.setTag(tag);
+        vo.setType(TagType.System);
+        dbf.persist(vo);
+    }
+
+    @Test
+    public void test() throws ApiSenderException, InterruptedException {
+        ZoneInventory zone1 = deployer.zones.get("Zone1");
+        Assert.assertFalse(TestSystemTags.big.hasTag(zone1.getUuid()));
+        Assert.assertNull(TestSystemTags.size.getTokenByResourceUuid(zone1.getUuid(), "size"));
+
+        SystemTagInventory big = TestSystemTags.big.createTag(zone1.getUuid());
+        Assert.assertTrue(TestSystemTags.big.hasTag(zone1.getUuid()));
+        Assert.assertFalse(TestSystemTags.size.hasTag(zone1.getUuid()));
+
+        Map<String, String> tokens = new HashMap<String, String>();
+        tokens.put("size", "100");
+        TestSystemTags.size.createTag(zone1.getUuid(), tokens);
+        Assert.assertEquals(tokens.get("size"), TestSystemTags.size.getTokenByResourceUuid(zone1.getUuid(), "size"));
+
+        tokens.put("size", "200");
+        TestSystemTags.size.recreateTag(zone1.getUuid(), tokens);
+        Assert.assertEquals(1, TestSystemTags.size.getTags(zone1.getUuid()).size());
+        Assert.assertEquals(tokens.get("size"), TestSystemTags.size.getTokenByResourceUuid(zone1.getUuid(), "size"));
+
+        api.deleteTag(big.getUuid());
+        Assert.assertFalse(TestSystemTags.big.hasTag(zone1.getUuid()));
+        Assert.assertTrue(TestSystemTags.size.hasTag(zone1.getUuid()));
+
+        api.deleteZone(zone1.getUuid());
+        Assert.assertFalse(TestSystemTags.size.hasTag(zone1.getUuid()));
+
+        ZoneInventory zone2 = deployer.zones.get("Zone2");
+        Assert.assertFalse(TestSystemTags.big.hasTag(zone2.getUuid()));
+        Assert.assertTrue(TestSystemTags.size.getTags(zone2.getUuid()).isEmpty());
+        // rows written not through TagManager are not seen while the zone is cached
+        insertTagBehindCache(zone2.getUuid(), "big");
+        insertTagBehindCache(zone2.getUuid(), "size::300::unit");
+        Assert.assertFalse(TestSystemTags.big.hasTag(zone2.getUuid()));
+        Assert.assertTrue(TestSystemTags.size.getTags(zone2.getUuid()).isEmpty());
+
+        SystemTagChangedData data = new SystemTagChangedData();
+        data.setResourceUuids(Arrays.asList(zone2.getUuid()));
+        evtf.fire(s(TagCanonicalEvents.SYSTEM_TAG_CHANGED_PATH).formatByMap(map(e("nodeUuid", Platform.getUuid()))), data);
+        TimeUnit.SECONDS.sleep(2);
+        Assert.assertTrue(TestSystemTags.big.hasTag(zone2.getUuid()));
+        Assert.assertEquals(1, TestSystemTags.size.getTags(zone2.getUuid()).size());
+        Assert.assertEquals("300", TestSystemTags.size.getTokenByResourceUuid(zone2.getUuid(), "size"));
+    }
+}
@@ -0,0 +1,73 @@
+package org.zstack.test.utils;
+
+import junit.framework.Assert;
+import org.junit.Test;
+import org.zstack.core.cloudbus.MessageJsonSchemaBuilder;
+import org.zstack.header.message.MessageReply;
+import org.zstack.header.vm.VmInstanceInventory;
+import org.zstack.header.vm.VmNicInventory;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * measures building the JSON schema for a reply carrying a large VM list,
+ * run with -Dtotal=N to change the list size
+ */
+public class TestJsonSchemaPerf {
+    CLogger logger = Utils.getLogger(TestJsonSchemaPerf.class);
+
+    public static class BulkVmReply extends MessageReply {
+        private List<VmInstanceInventory> inventories;
+
+        public List<VmInstanceInventory> getInventories() {
+            return inventories;
+        }
+
+        public void setInventories(List<VmInstanceInventory> inventories) {
+            this.inventories = inventories;
+        }
+    }
+
+    @Test
+    public void test() {
+        int total = Integer.valueOf(System.getProperty("total", "10000"));
+        int rounds = 10;
+
+        List<VmInstanceInventory> vms = new ArrayList<VmInstanceInventory>(total);
+        for (int i=0; i<total; i++) {
+            VmInstanceInventory vm = new VmInstanceInventory();
+            vm.setUuid(String.valueOf(i));
+            List<VmNicInventory> nics = new ArrayList<VmNicInventory>();
+            for (int j=0; j<2; j++) {
+                VmNicInventory nic = new VmNicInventory();
+                nic.setUuid(String.format("%s-%s", i, j));
+                nics.add(nic);
+            }
+            vm.setVmNics(nics);
+            vms.add(vm);
+        }
+
+        BulkVmReply reply = new BulkVmReply();
+        reply.setInventories(vms);
+
+        // the first round builds the class plans
+        Map<String, List<String>> schema = MessageJsonSchemaBuilder.buildSchema(reply);
+        List<String> vmPaths = schema.get(VmInstanceInventory.class.getName());
+        List<String> nicPaths = schema.get(VmNicInventory.class.getName());
+        Assert.assertEquals(total, vmPaths.size());
+        Assert.assertEquals(total * 2, nicPaths.size());
+        Assert.assertEquals(String.format("inventories[%s]", total - 1), vmPaths.get(total - 1));
+        Assert.assertEquals(String.format("inventories[%s].vmNics[1]", total - 1), nicPaths.get(total * 2 - 1));
+
+        long start = System.nanoTime();
+        for (int i=0; i<rounds; i++) {
+            MessageJsonSchemaBuilder.buildSchema(reply);
+        }
+        long cost = (System.nanoTime() - start) / rounds;
+        logger.debug(String.format("building schema for %s VMs takes %s ms on average of %s rounds", total, cost / 1000000, rounds));
+    }
+}
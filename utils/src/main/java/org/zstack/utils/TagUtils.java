@@ -1,65 +1,111 @@
 package org.zstack.utils;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  */
 public class TagUtils {
-    public static Map<String, String> parse(String fmt, String tag) {
-        List<String> origins =  new ArrayList<String>();
-        Collections.addAll(origins, tag.split("::"));
+    private static final String SEPARATOR = "::";
+
+    /**
+     * a tag format split once. Matching and parsing a tag only split the tag,
+     * with the same result as String.split("::").
+     */
+    public static class TagFormat {
+        private final String[] segments;
+        // token name of each segment, null for a literal segment
+        private final String[] tokens;
+
+        private TagFormat(String fmt) {
+            segments = split(fmt);
+            tokens = new String[segments.length];
+            for (int i=0; i<segments.length; i++) {
+                String key = segments[i];
+                if (key.startsWith("{") && key.endsWith("}")) {
+                    tokens[i] = key.replace("{", "").replace("}", "");
+                }
+            }
+        }
 
-        List<String> t = new ArrayList<String>();
-        Collections.addAll(t, fmt.split("::"));
+        public boolean isMatch(String tag) {
+            String[] origins = split(tag);
+            if (origins.length != segments.length) {
+                return false;
+            }
 
-        Map<String, String> ret = new HashMap();
-        for (int i=0;i<t.size(); i++) {
-            String key = t.get(i);
-            if (!key.startsWith("{") || !key.endsWith("}")) {
-                continue;
+            for (int i=0; i<segments.length; i++) {
+                if (tokens[i] == null && !segments[i].equals(origins[i])) {
+                    return false;
+                }
             }
 
-            key = key.replaceAll("\\{", "").replaceAll("\\}", "");
-            if (i < origins.size()) {
-                ret.put(key, origins.get(i));
+            return true;
+        }
+
+        public Map<String, String> parse(String tag) {
+            return parse(split(tag));
+        }
+
+        private Map<String, String> parse(String[] origins) {
+            Map<String, String> ret = new HashMap<String, String>();
+            for (int i=0; i<tokens.length && i<origins.length; i++) {
+                if (tokens[i] != null) {
+                    ret.put(tokens[i], origins[i]);
+                }
             }
+            return ret;
         }
 
-        return ret;
+        public Map<String, String> parseIfMatch(String tag) {
+            return isMatch(tag) ? parse(tag) : null;
+        }
     }
 
-    public static boolean isMatch(String fmt, String tag) {
-        List<String> origins =  new ArrayList<String>();
-        Collections.addAll(origins, tag.split("::"));
+    private static final Map<String, TagFormat> formats = new ConcurrentHashMap<String, TagFormat>();
 
-        List<String> t = new ArrayList<String>();
-        Collections.addAll(t, fmt.split("::"));
+    private static String[] split(String str) {
+        int index = str.indexOf(SEPARATOR);
+        if (index < 0) {
+            return new String[]{str};
+        }
 
-        if (origins.size() != t.size()) {
-            return false;
+        List<String> ret = new ArrayList<String>();
+        int start = 0;
+        while (index >= 0) {
+            ret.add(str.substring(start, index));
+            start = index + SEPARATOR.length();
+            index = str.indexOf(SEPARATOR, start);
         }
+        ret.add(str.substring(start));
 
-        for (int i=0; i<t.size(); i++) {
-            String fmtKey = t.get(i);
-            if (fmtKey.startsWith("{") && fmtKey.endsWith("}")) {
-                continue;
-            }
+        // like String.split(), trailing empty strings are removed
+        int size = ret.size();
+        while (size > 0 && ret.get(size - 1).isEmpty()) {
+            size --;
+        }
+        return ret.subList(0, size).toArray(new String[size]);
+    }
 
-            String originKey = origins.get(i);
-            if (!originKey.equals(fmtKey)) {
-                return false;
-            }
+    public static TagFormat compile(String fmt) {
+        TagFormat f = formats.get(fmt);
+        if (f == null) {
+            f = new TagFormat(fmt);
+            formats.put(fmt, f);
         }
+        return f;
+    }
 
-        return true;
+    public static Map<String, String> parse(String fmt, String tag) {
+        return compile(fmt).parse(tag);
     }
 
-    public static Map<String, String> parseIfMatch(String fmt, String tag) {
-        if (!isMatch(fmt, tag)) {
-            return null;
-        }
+    public static boolean isMatch(String fmt, String tag) {
+        return compile(fmt).isMatch(tag);
+    }
 
-        return parse(fmt, tag);
+    public static Map<String, String> parseIfMatch(String fmt, String tag) {
+        return compile(fmt).parseIfMatch(tag);
     }
 
     public static String tagPatternToSqlPattern(Enum tag) {